@@ -0,0 +1,148 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.annotation.MQKey;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 基准测试共用的消息体和不连接broker的生产者、消费者
+ */
+public final class BenchmarkFixtures {
+
+    public static final String TOPIC = "TP_BENCHMARK";
+
+    public static final String TAG = "TG_BENCHMARK";
+
+    private BenchmarkFixtures() {
+    }
+
+    public static class Item {
+        String sku;
+        String name;
+        int quantity;
+        long price;
+    }
+
+    public static class Order {
+        String orderNo;
+        String buyer;
+        List<Item> items;
+    }
+
+    public static class KeyedOrder extends Order {
+        @MQKey(prefix = "order_")
+        String orderKey;
+    }
+
+    /**
+     * 构造订单消息体
+     *
+     * @param items 订单明细行数，用来控制消息体大小
+     * @param keyed 是否带@MQKey字段
+     * @return 订单
+     */
+    public static Order order(int items, boolean keyed) {
+        Order order;
+        if (keyed) {
+            KeyedOrder keyedOrder = new KeyedOrder();
+            keyedOrder.orderKey = "201710180001";
+            order = keyedOrder;
+        } else {
+            order = new Order();
+        }
+        order.orderNo = "201710180001";
+        order.buyer = "买家" + items;
+        order.items = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            Item item = new Item();
+            item.sku = "SKU-" + i;
+            item.name = "商品名称-" + i;
+            item.quantity = i % 7 + 1;
+            item.price = 1999L * i;
+            order.items.add(item);
+        }
+        return order;
+    }
+
+    /**
+     * 模拟broker投递给消费者的消息
+     *
+     * @param message 生产者构造的消息
+     * @param offset 位点
+     * @return 消费端收到的消息
+     */
+    public static MessageExt delivered(Message message, long offset) {
+        InetSocketAddress host = new InetSocketAddress("127.0.0.1", 10911);
+        MessageExt messageExt = new MessageExt(0, System.currentTimeMillis(), host, System.currentTimeMillis(), host, "MSG-" + offset);
+        messageExt.setTopic(message.getTopic());
+        messageExt.setBody(message.getBody());
+        messageExt.setQueueOffset(offset);
+        MessageAccessor.setProperties(messageExt, new HashMap<>(message.getProperties()));
+        return messageExt;
+    }
+
+    /**
+     * 不连接broker的生产者，只保留最后一条发出的消息
+     */
+    public static class StubProducer extends DefaultMQProducer {
+
+        private final MessageQueue queue = new MessageQueue(TOPIC, "broker-a", 0);
+
+        private volatile Message last;
+
+        private long offset;
+
+        public StubProducer() {
+            super("PID_BENCHMARK");
+        }
+
+        public Message getLast() {
+            return last;
+        }
+
+        @Override
+        public SendResult send(Message msg) {
+            last = msg;
+            return new SendResult(SendStatus.SEND_OK, "MSG-" + offset, "MSG-" + offset, queue, offset++);
+        }
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            sendCallback.onSuccess(send(msg));
+        }
+
+        @Override
+        public void sendOneway(Message msg) {
+            last = msg;
+        }
+    }
+
+    public static class StubProducerBean extends AbstractMQProducer {
+    }
+
+    public static class StubConsumer extends AbstractMQPushConsumer<Order> {
+
+        private long processed;
+
+        @Override
+        public boolean process(String messageKey, String tag, Order message) {
+            processed += message.items.size();
+            return true;
+        }
+
+        public long getProcessed() {
+            return processed;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.Order;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubConsumer;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducer;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducerBean;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Type;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费者热点路径：parseMessage、getMessageType
+ * 消息由stub生产者的genMessage构造，不连接broker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConsumerBenchmark {
+
+    /**订单明细行数，用来控制消息体大小*/
+    @Param({"1", "100", "2000"})
+    public int items;
+
+    private StubConsumer consumer;
+
+    private MessageExt message;
+
+    @Setup
+    public void setUp() {
+        StubProducer stubProducer = new StubProducer();
+        StubProducerBean producer = new StubProducerBean();
+        producer.setProducer(stubProducer);
+        producer.setTopic(BenchmarkFixtures.TOPIC);
+        producer.setTag(BenchmarkFixtures.TAG);
+        producer.sendOneWay(BenchmarkFixtures.order(items, true));
+        message = BenchmarkFixtures.delivered(stubProducer.getLast(), 0);
+        consumer = new StubConsumer();
+    }
+
+    @Benchmark
+    public Order parseMessage() {
+        return consumer.parseMessage(message);
+    }
+
+    @Benchmark
+    public Type getMessageType() {
+        return consumer.getMessageType();
+    }
+}
@@ -0,0 +1,76 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubConsumer;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducer;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducerBean;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次投递的完整dealMessage：拆包、重试检查、解码、process以及ack
+ * 消息由stub生产者的genMessage构造，不连接broker
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DealMessageBenchmark {
+
+    /**订单明细行数，用来控制消息体大小*/
+    @Param({"1", "100", "2000"})
+    public int items;
+
+    /**一次投递给dealMessage的消息条数，大于1时走processBatch*/
+    @Param({"1", "32"})
+    public int batchSize;
+
+    private StubConsumer consumer;
+
+    private List<MessageExt> messages;
+
+    private ConsumeConcurrentlyContext context;
+
+    @Setup
+    public void setUp() {
+        StubProducer stubProducer = new StubProducer();
+        StubProducerBean producer = new StubProducerBean();
+        producer.setProducer(stubProducer);
+        producer.setTopic(BenchmarkFixtures.TOPIC);
+        producer.setTag(BenchmarkFixtures.TAG);
+        messages = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            producer.sendOneWay(BenchmarkFixtures.order(items, true));
+            messages.add(BenchmarkFixtures.delivered(stubProducer.getLast(), i));
+        }
+
+        consumer = new StubConsumer();
+        consumer.setConsumer(new DefaultMQPushConsumer("CID_BENCHMARK"));
+        consumer.setConsumeMessageBatchMaxSize(batchSize);
+        context = new ConsumeConcurrentlyContext(new MessageQueue(BenchmarkFixtures.TOPIC, "broker-a", 0));
+    }
+
+    @Benchmark
+    public ConsumeConcurrentlyStatus dealMessage() {
+        return consumer.dealMessage(messages, context);
+    }
+}
@@ -0,0 +1,73 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.annotation.MQKey;
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比每次发送都反射扫描@MQKey字段（原genMessage实现）与按类缓存MethodHandle两种方式的单次开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageKeyBenchmark {
+
+    public static class BaseOrder {
+        private String remark = "remark";
+        private long createTime = System.currentTimeMillis();
+    }
+
+    public static class Order extends BaseOrder {
+        private String buyer = "buyer";
+        private String seller = "seller";
+        private int amount = 100;
+        @MQKey(prefix = "order_")
+        private String orderNo = "201710180001";
+        private String status = "CREATED";
+    }
+
+    private final Order order = new Order();
+
+    @Benchmark
+    public String reflectiveScan() {
+        String messageKey = "";
+        try {
+            Field[] fields = order.getClass().getDeclaredFields();
+            for (Field field : fields) {
+                Annotation[] allFAnnos = field.getAnnotations();
+                if (allFAnnos.length > 0) {
+                    for (int i = 0; i < allFAnnos.length; i++) {
+                        if (allFAnnos[i].annotationType().equals(MQKey.class)) {
+                            field.setAccessible(true);
+                            MQKey mqKey = MQKey.class.cast(allFAnnos[i]);
+                            messageKey = StringUtils.isEmpty(mqKey.prefix()) ? field.get(order).toString() : (mqKey.prefix() + field.get(order).toString());
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return messageKey;
+    }
+
+    @Benchmark
+    public String cachedResolver() throws Throwable {
+        return MessageKeyResolver.forClass(order.getClass()).resolveKey(order);
+    }
+}
@@ -0,0 +1,87 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.Order;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducer;
+import com.maihaoche.starter.mq.base.BenchmarkFixtures.StubProducerBean;
+import org.apache.rocketmq.common.message.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 生产者热点路径：genMessage（解析key、编码消息体）以及经过stub生产者的完整发送调用
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProducerBenchmark {
+
+    private static final MethodHandle GEN_MESSAGE;
+
+    static {
+        try {
+            Method method = AbstractMQProducer.class.getDeclaredMethod("genMessage", String.class, String.class, Object.class);
+            method.setAccessible(true);
+            GEN_MESSAGE = MethodHandles.lookup().unreflect(method);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**订单明细行数，用来控制消息体大小*/
+    @Param({"1", "100", "2000"})
+    public int items;
+
+    /**消息体是否带@MQKey字段*/
+    @Param({"true", "false"})
+    public boolean keyed;
+
+    private StubProducerBean producer;
+
+    private StubProducer stubProducer;
+
+    private Order order;
+
+    @Setup
+    public void setUp() {
+        stubProducer = new StubProducer();
+        producer = new StubProducerBean();
+        producer.setProducer(stubProducer);
+        producer.setTopic(BenchmarkFixtures.TOPIC);
+        producer.setTag(BenchmarkFixtures.TAG);
+        order = BenchmarkFixtures.order(items, keyed);
+    }
+
+    @Benchmark
+    public Message genMessage() throws Throwable {
+        return (Message) GEN_MESSAGE.invokeExact((AbstractMQProducer) producer, "", "", (Object) order);
+    }
+
+    @Benchmark
+    public Message sendOneWay() {
+        producer.sendOneWay(order);
+        return stubProducer.getLast();
+    }
+
+    @Benchmark
+    public Message synSend() {
+        producer.synSend(order);
+        return stubProducer.getLast();
+    }
+}
@@ -0,0 +1,99 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比String中转（原genMessage/parseMessage实现）与直接读写字节的编解码开销
+ * 配合 -prof gc 查看每条消息的分配量（gc.alloc.rate.norm）
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    public static class Item {
+        String sku;
+        String name;
+        int quantity;
+        long price;
+    }
+
+    public static class OrderSnapshot {
+        String orderNo;
+        String buyer;
+        List<Item> items;
+    }
+
+    /**订单明细行数，用来控制消息体大小*/
+    @Param({"1", "100", "2000"})
+    public int items;
+
+    private final Gson gson = new Gson();
+
+    private final MessageCodec codec = new GsonMessageCodec();
+
+    private MessageDecoder<OrderSnapshot> decoder;
+
+    private OrderSnapshot snapshot;
+
+    private byte[] body;
+
+    @Setup
+    public void setUp() {
+        snapshot = new OrderSnapshot();
+        snapshot.orderNo = "201710180001";
+        snapshot.buyer = "买家" + items;
+        snapshot.items = new ArrayList<>(items);
+        for (int i = 0; i < items; i++) {
+            Item item = new Item();
+            item.sku = "SKU-" + i;
+            item.name = "商品名称-" + i;
+            item.quantity = i % 7 + 1;
+            item.price = 1999L * i;
+            snapshot.items.add(item);
+        }
+        body = codec.encode(snapshot);
+        decoder = codec.decoder(OrderSnapshot.class);
+    }
+
+    @Benchmark
+    public byte[] encodeViaString() {
+        return gson.toJson(snapshot).getBytes(UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeDirect() {
+        return codec.encode(snapshot);
+    }
+
+    @Benchmark
+    public OrderSnapshot decodeViaString() {
+        return gson.fromJson(new String(body, UTF_8), OrderSnapshot.class);
+    }
+
+    @Benchmark
+    public OrderSnapshot decodeDirect() {
+        return decoder.decode(body);
+    }
+}
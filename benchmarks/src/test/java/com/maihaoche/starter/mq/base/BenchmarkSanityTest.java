@@ -0,0 +1,53 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * 每个基准方法执行一次，确认测量的是正常路径而不是解析失败、重试等异常路径
+ */
+public class BenchmarkSanityTest {
+
+    @Test
+    public void producerBuildsKeyedMessage() throws Throwable {
+        ProducerBenchmark benchmark = new ProducerBenchmark();
+        benchmark.items = 100;
+        benchmark.keyed = true;
+        benchmark.setUp();
+        Message message = benchmark.genMessage();
+        assertEquals("order_201710180001", message.getKeys());
+        assertNotNull(benchmark.sendOneWay());
+        assertNotNull(benchmark.synSend());
+    }
+
+    @Test
+    public void consumerParsesDeliveredMessage() {
+        ConsumerBenchmark benchmark = new ConsumerBenchmark();
+        benchmark.items = 100;
+        benchmark.setUp();
+        assertEquals(100, benchmark.parseMessage().items.size());
+        assertEquals(BenchmarkFixtures.Order.class, benchmark.getMessageType());
+    }
+
+    @Test
+    public void dealMessageSucceeds() {
+        for (int batchSize : new int[]{1, 32}) {
+            DealMessageBenchmark benchmark = new DealMessageBenchmark();
+            benchmark.items = 100;
+            benchmark.batchSize = batchSize;
+            benchmark.setUp();
+            assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, benchmark.dealMessage());
+        }
+    }
+
+    @Test
+    public void keyResolversAgree() throws Throwable {
+        MessageKeyBenchmark benchmark = new MessageKeyBenchmark();
+        assertEquals("order_201710180001", benchmark.reflectiveScan());
+        assertEquals(benchmark.reflectiveScan(), benchmark.cachedResolver());
+    }
+}
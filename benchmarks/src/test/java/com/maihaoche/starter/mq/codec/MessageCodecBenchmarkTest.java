@@ -0,0 +1,19 @@
+package com.maihaoche.starter.mq.codec;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class MessageCodecBenchmarkTest {
+
+    @Test
+    public void directAndStringPathsAgree() {
+        MessageCodecBenchmark benchmark = new MessageCodecBenchmark();
+        benchmark.items = 100;
+        benchmark.setUp();
+        assertArrayEquals(benchmark.encodeViaString(), benchmark.encodeDirect());
+        assertEquals(benchmark.decodeViaString().items.size(), benchmark.decodeDirect().items.size());
+        assertEquals(benchmark.decodeViaString().buyer, benchmark.decodeDirect().buyer);
+    }
+}
@@ -8,4 +8,8 @@ public class MQException extends RuntimeException {
     public MQException(String msg) {
         super(msg);
     }
+
+    public MQException(String msg, Throwable cause) {
+        super(msg, cause);
+    }
 }
@@ -18,4 +18,54 @@ public @interface MQConsumer {
     String messageMode() default "CLUSTERING";
     String consumeMode() default "CONCURRENTLY";
     String[] tag() default {"*"};
+    /**消息属性中未记录编码方式时使用的解码方式，不填则使用rocketmq.codec配置*/
+    String codec() default "";
+    /**每次拉取的最大消息条数*/
+    int pullBatchSize() default 32;
+    /**Pull模式下处理消息的工作线程数*/
+    int pullThreads() default 4;
+    /**CONCURRENTLY模式下每次投递的最大消息条数，大于1时按批调用processBatch*/
+    int consumeMessageBatchMaxSize() default 1;
+    /**Push模式消费线程池的核心线程数*/
+    int consumeThreadMin() default 20;
+    /**Push模式消费线程池的最大线程数，开启adaptiveThreadPool时线程数在consumeThreadMin和该值之间调整*/
+    int consumeThreadMax() default 64;
+    /**Push模式两次拉取之间的间隔毫秒数*/
+    long pullInterval() default 0;
+    /**Push模式单个queue本地缓存的最大消息条数，超过后暂停拉取*/
+    int pullThresholdForQueue() default 1000;
+    /**CONCURRENTLY模式单个queue中最早与最晚未消费消息的最大位点跨度，超过后暂停拉取*/
+    int consumeConcurrentlyMaxSpan() default 2000;
+    /**ORDERLY模式下每个queue按消息key（顺序发送的hashKey）拆分的并行lane数，只保证同一个key的消息有序；大于1时每批消息数至少为lane数的8倍*/
+    int orderlyLanes() default 1;
+    /**根据消息积压和process耗时自动调整消费线程数*/
+    boolean adaptiveThreadPool() default false;
+    /**去重方式：NONE不去重，MESSAGE_KEY按消息key，MSG_ID按msgId，CUSTOM使用子类设置的DedupKeyExtractor或重写的dedupKey方法*/
+    String dedupKey() default "NONE";
+    /**去重缓存的存储位置：HEAP堆内，OFF_HEAP堆外（适合很大的去重窗口）*/
+    String dedupStore() default "HEAP";
+    /**去重缓存最多保存的key数量*/
+    int dedupCapacity() default 100000;
+    /**已消费的key在去重缓存中保留的毫秒数*/
+    long dedupTtlMs() default 600000;
+    /**process限流方式：NONE不限流，RATE按limitRate固定速率（令牌桶），AIMD、GRADIENT按process耗时自适应调整并发数；达到限制时阻塞消费线程，放慢拉取*/
+    String limiter() default "NONE";
+    /**RATE模式每秒最多处理的消息数，空闲时最多积攒1秒的额度*/
+    double limitRate() default 0;
+    /**AIMD、GRADIENT模式的最小并发数*/
+    int limitMinConcurrency() default 1;
+    /**AIMD、GRADIENT模式的最大并发数，0表示push模式使用consumeThreadMax，pull模式使用pullThreads*/
+    int limitMaxConcurrency() default 0;
+    /**AIMD模式下process耗时超过该毫秒数时视为过载（批量处理时为整批的耗时）*/
+    long limitLatencyMs() default 1000;
+    /**最多处理次数（包含第一次消费），用完后放弃重试；pull模式没有重新投递，处理失败直接放弃*/
+    int maxAttempts() default 5;
+    /**重试的退避时间，空格分隔如"5s 30s 2m"，第n次重试使用第n个值，超出时使用最后一个；CONCURRENTLY模式换算为不小于该时间的最小延时级别，ORDERLY模式为暂停当前queue的时间；不填使用broker默认的递增延时*/
+    String retryBackoff() default "";
+    /**只对这些异常（包括cause链上的异常）重试，其余异常直接放弃；不填时所有异常都重试*/
+    Class<? extends Throwable>[] retryOn() default {};
+    /**遇到这些异常（包括cause链上的异常）直接放弃，优先于retryOn*/
+    Class<? extends Throwable>[] noRetryOn() default {};
+    /**放弃重试的消息转发到的topic，不填时只记录错误日志*/
+    String deadLetterTopic() default "";
 }
@@ -0,0 +1,16 @@
+package com.maihaoche.starter.mq.annotation;
+
+import java.lang.annotation.*;
+
+/**
+ * 标识消费者bean上处理指定tag消息的方法，每个方法可以使用不同的消息类型
+ * 方法参数为(消息体)或(String messageKey, String tag, 消息体)，返回boolean或void（正常返回即消费成功）
+ * 没有匹配handler的tag仍然交给process处理
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface MQHandler {
+    /**处理的tag，不支持*/
+    String[] tag();
+}
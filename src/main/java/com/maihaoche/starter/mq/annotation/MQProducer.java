@@ -14,5 +14,33 @@ import java.lang.annotation.*;
 @Component
 public @interface MQProducer {
     String topic() default "";
+    /**生产者组，不填则使用rocketmq.producer-group配置；相同producerGroup的bean共享客户端实例*/
+    String producerGroup() default "";
     String tag() default "";
+    /**消息体编码方式，如gson、jackson、smile，不填则使用rocketmq.codec配置*/
+    String codec() default "";
+    /**批量发送每批最多条数，大于1时开启批量发送（仅对sendOneWay和不带hashKey的asynSend生效）*/
+    int batchMaxSize() default 0;
+    /**批量发送每批最多字节数*/
+    int batchMaxBytes() default 512 * 1024;
+    /**批量发送时消息在本地最多等待的毫秒数*/
+    long batchLingerMs() default 10;
+    /**sendAsync最大在途请求数，小于等于0表示不限制*/
+    int maxInFlight() default 0;
+    /**在途请求数达到上限时的处理方式：BLOCK、FAIL_FAST、TIMEOUT*/
+    String inFlightPolicy() default "BLOCK";
+    /**inFlightPolicy为TIMEOUT时最多等待的毫秒数*/
+    long inFlightTimeoutMs() default 3000;
+    /**消息体压缩算法，如deflate、lz4、none，不填则使用rocketmq.compression.algorithm配置*/
+    String compression() default "";
+    /**消息体不小于该字节数时才压缩，小于0则使用rocketmq.compression.min-size配置*/
+    int compressMinSize() default -1;
+    /**带hashKey发送时选择queue的方式：HASH按hashCode取模，CONSISTENT_HASH使用一致性hash，queue数变化时只有少量key换queue*/
+    String queueSelector() default "HASH";
+    /**不带hashKey的发送是否优先选择近期发送延迟较低的broker上的queue，发送失败时按retryTimesWhenSendFailed（异步为retryTimesWhenSendAsyncFailed）换broker重试*/
+    boolean latencyAware() default false;
+    /**broker不可用时是否把synSend、sendOneWay写入本地spool，由后台线程在broker恢复后按顺序重新发送，相关参数通过rocketmq.spool配置*/
+    boolean spool() default false;
+    /**是否可以使用sendAt、sendAfter定时发送，相关参数通过rocketmq.schedule配置*/
+    boolean scheduled() default false;
 }
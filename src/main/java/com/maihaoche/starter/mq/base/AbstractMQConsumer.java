@@ -1,11 +1,29 @@
 package com.maihaoche.starter.mq.base;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-import java.io.UnsupportedEncodingException;
+import com.maihaoche.starter.mq.MQException;
+import com.maihaoche.starter.mq.codec.MessageCodec;
+import com.maihaoche.starter.mq.codec.MessageCodecs;
+import com.maihaoche.starter.mq.codec.MessageDecoder;
+import com.maihaoche.starter.mq.compress.MessageCompressors;
+import com.maihaoche.starter.mq.dedup.DedupCache;
+import com.maihaoche.starter.mq.dedup.DedupKeyExtractor;
+import com.maihaoche.starter.mq.limit.ConsumeLimiter;
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.springframework.util.Assert;
 
@@ -21,8 +39,110 @@ import org.springframework.util.Assert;
 @Slf4j
 public abstract class AbstractMQConsumer<T> {
 
+    /**
+     * @deprecated 消息体改由{@link #getCodec()}解码，保留该字段仅为兼容子类
+     */
+    @Deprecated
     protected static Gson gson = new Gson();
-    /**默认最大重试次数5次*/
+
+    /**
+     * 消息属性中未记录codec时使用的解码方式，默认gson，可以通过@MQConsumer的codec或rocketmq.codec配置
+     */
+    @Getter
+    private MessageCodec codec = MessageCodecs.getDefault();
+
+    private volatile Type messageType;
+
+    /**按codec id缓存绑定了消息类型的解码器*/
+    private final ConcurrentMap<String, MessageDecoder<T>> decoders = new ConcurrentHashMap<>();
+
+    /**
+     * 消费者所属的consumerGroup，由自动配置设置，用于监控指标等
+     */
+    @Getter
+    @Setter
+    private String group;
+
+    /**
+     * 监控指标，默认不记录
+     */
+    @Getter
+    @Setter
+    private MQMetrics metrics = MQMetrics.NOOP;
+
+    /**
+     * 已成功消费消息的去重缓存，为null时不去重，由@MQConsumer的dedupKey开启
+     */
+    @Getter
+    @Setter
+    private DedupCache dedupCache;
+
+    /**
+     * 取去重key的方式，dedupKey为CUSTOM时可以在子类中设置
+     */
+    @Getter
+    @Setter
+    private DedupKeyExtractor dedupKeyExtractor;
+
+    /**
+     * 接收消息日志的采样与限流策略，默认逐条打印
+     */
+    @Getter
+    @Setter
+    private MessageLogPolicy logPolicy = MessageLogPolicy.ALL;
+
+    /**
+     * @MQHandler方法按tag组成的分发表，由自动配置在启动时构建
+     */
+    @Getter
+    @Setter
+    private MessageHandlerTable handlerTable = MessageHandlerTable.EMPTY;
+
+    /**
+     * 处理失败后的重试策略，由@MQConsumer的maxAttempts、retryBackoff等配置
+     */
+    @Getter
+    @Setter
+    private RetryPolicy retryPolicy = RetryPolicy.DEFAULT;
+
+    /**
+     * 放弃重试的消息转发到的topic，为空时只记录错误日志
+     */
+    @Getter
+    @Setter
+    private String deadLetterTopic;
+
+    /**
+     * 死信转发器，配置了deadLetterTopic时由自动配置设置
+     */
+    @Getter
+    @Setter
+    private DeadLetterForwarder deadLetterForwarder;
+
+    /**
+     * 包在process外的限流器，默认不限流，由@MQConsumer的limiter开启
+     */
+    @Getter
+    @Setter
+    private ConsumeLimiter limiter = ConsumeLimiter.NONE;
+
+    /**process累计耗时与调用次数*/
+    private final LongAdder processNanos = new LongAdder();
+
+    private final LongAdder processCount = new LongAdder();
+
+    /**正在处理的消息数，批量处理时按条数计*/
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**处理完成（不论成败）的消息数*/
+    private final LongAdder completedCount = new LongAdder();
+
+    public void setCodec(MessageCodec codec) {
+        this.codec = codec;
+        this.decoders.clear();
+    }
+
+    /**默认最多处理5次，可以通过@MQConsumer的maxAttempts配置*/
     protected static final int MAX_RETRY_TIMES = 5;
 
     /**
@@ -35,33 +155,253 @@ public abstract class AbstractMQConsumer<T> {
      */
     public abstract boolean process(String messageKey,String tag, T message);
 
+    /**
+     * 按tag分发给@MQHandler方法，没有匹配的handler时调用process
+     *
+     * @param messageKey 消息key
+     * @param tag 消息tag
+     * @param message 解析后的消息
+     * @return 处理结果
+     */
+    protected boolean handle(String messageKey, String tag, T message) {
+        MessageHandlerTable.Handler handler = handlerTable.get(tag);
+        if (handler == null) {
+            return process(messageKey, tag, message);
+        }
+        return handler.invoke(messageKey, tag, message);
+    }
+
+    /**
+     * 调用handler或process并记录耗时
+     *
+     * @param messageExt 原始消息
+     * @param message 解析后的消息
+     * @return process的处理结果
+     */
+    protected boolean invokeProcess(MessageExt messageExt, T message) {
+        ConsumeLimiter consumeLimiter = limiter;
+        boolean permitted = consumeLimiter.acquire(1);
+        long start = System.nanoTime();
+        boolean success = false;
+        beginProcess(1);
+        try {
+            success = handle(messageExt.getKeys(), messageExt.getTags(), message);
+            if (success) {
+                markConsumed(messageExt);
+            }
+            return success;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            endProcess(1);
+            if (permitted) {
+                consumeLimiter.release(nanos, success);
+            }
+            recordProcess(messageExt.getTopic(), messageExt.getTags(), nanos, success);
+        }
+    }
+
+    void beginProcess(int messages) {
+        inFlightCount.addAndGet(messages);
+    }
+
+    void endProcess(int messages) {
+        inFlightCount.addAndGet(-messages);
+        completedCount.add(messages);
+    }
+
+    /**
+     * @return 正在处理的消息数
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * @return 处理完成的消息总数
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * 停止拉取新消息，已经拉取到本地的消息继续处理，关闭前调用
+     */
+    public void suspendConsume() {
+    }
+
+    /**
+     * @return 已经拉取到本地、尚未处理完成的消息数（包含正在处理的），无法统计时返回0
+     */
+    public int getBufferedCount() {
+        return 0;
+    }
+
+    /**
+     * 关闭客户端，关闭时会持久化消费位点
+     */
+    public void shutdownConsumer() {
+    }
+
+    /**
+     * 取消息的去重key，默认使用dedupKeyExtractor，也可以重写此方法
+     *
+     * @param messageExt 消息
+     * @return 去重key，返回null时该消息不去重
+     */
+    protected String dedupKey(MessageExt messageExt) {
+        return dedupKeyExtractor == null ? null : dedupKeyExtractor.extract(messageExt);
+    }
+
+    /**
+     * 判断消息是否已经成功消费过，在解析消息之前调用，重复的消息直接跳过
+     *
+     * @param messageExt 消息
+     * @return 重复消息返回true
+     */
+    protected boolean isDuplicate(MessageExt messageExt) {
+        if (dedupCache == null) {
+            return false;
+        }
+        String key = dedupKey(messageExt);
+        if (StringUtils.isEmpty(key) || !dedupCache.contains(key)) {
+            return false;
+        }
+        if (shouldLog(messageExt)) {
+            log.info("skip duplicate message, msgId: {}, dedupKey: {}", messageExt.getMsgId(), key);
+        }
+        return true;
+    }
+
+    /**
+     * 记录成功消费的消息，之后重复投递的同一条消息会被跳过
+     *
+     * @param messageExt 消息
+     */
+    protected void markConsumed(MessageExt messageExt) {
+        if (dedupCache == null) {
+            return;
+        }
+        String key = dedupKey(messageExt);
+        if (StringUtils.isNotEmpty(key)) {
+            dedupCache.mark(key);
+        }
+    }
+
+    /**
+     * 热点路径上的INFO日志是否输出，被抑制时调用方不应格式化任何日志参数
+     *
+     * @param messageExt 消息
+     * @return 需要输出时返回true
+     */
+    protected boolean shouldLog(MessageExt messageExt) {
+        return log.isInfoEnabled() && logPolicy.shouldLog(messageExt.getTopic());
+    }
+
+    void recordProcess(String topic, String tag, long nanos, boolean success) {
+        processNanos.add(nanos);
+        processCount.increment();
+        metrics.recordProcess(group, topic, tag, nanos, success);
+    }
+
+    /**
+     * 取出上次调用以来process的平均耗时并清零
+     *
+     * @return 平均耗时纳秒数，期间没有消费时返回-1
+     */
+    long takeAverageProcessNanos() {
+        long count = processCount.sumThenReset();
+        long nanos = processNanos.sumThenReset();
+        return count == 0 ? -1 : nanos / count;
+    }
+
     /**
      * 反序列化解析消息
+     * 优先使用消息属性中记录的codec解码，没有该属性的消息（旧版本生产者发送）使用消费者配置的codec
+     * tag有对应的@MQHandler方法时解析为该方法的消息类型
      *
      * @param message  消息体
      * @return 序列化结果
      */
+    @SuppressWarnings("unchecked")
     protected T parseMessage(MessageExt message) {
         if (message == null || message.getBody() == null) {
             return null;
         }
-        final Type type = this.getMessageType();
+        MessageHandlerTable.Handler handler = handlerTable.get(message.getTags());
+        if (handler != null) {
+            return (T) decode(message, handler.getMessageType(), handler.decoders);
+        }
+        final Type type = resolvedMessageType();
         if (type instanceof Class) {
-            String messageBody = null;
-            try {
-                T data = gson.fromJson(messageBody = new String(message.getBody(),"utf-8"), type);
-                return data;
-            } catch (JsonSyntaxException e) {
-                log.error("parse message json fail : {},message body:{}", e.getMessage(),messageBody);
-            } catch (UnsupportedEncodingException e) {
-                log.error("parse message json fail : {},message content:{}", e.getMessage());
-            }
+            return decode(message, type, decoders);
         } else {
             log.warn("Parse msg error. {}", message);
         }
         return null;
     }
 
+    private <R> R decode(MessageExt message, Type type, ConcurrentMap<String, MessageDecoder<R>> decoderCache) {
+        long start = System.nanoTime();
+        R result = null;
+        try {
+            String codecId = message.getUserProperty(MessageCodecs.CODEC_PROPERTY);
+            MessageCodec messageCodec = codecId == null ? codec : MessageCodecs.get(codecId);
+            MessageDecoder<R> decoder = decoderCache.get(messageCodec.getId());
+            if (decoder == null) {
+                decoder = messageCodec.decoder(type);
+                decoderCache.putIfAbsent(messageCodec.getId(), decoder);
+            }
+            String compressionId = message.getUserProperty(MessageCompressors.COMPRESSION_PROPERTY);
+            if (compressionId == null) {
+                result = decoder.decode(message.getBody());
+            } else {
+                // 解压后的数据直接流式交给解码器，不还原出完整的消息体
+                try (InputStream in = MessageCompressors.get(compressionId).decompress(message.getBody())) {
+                    result = decoder.decode(in);
+                }
+            }
+            return result;
+        } catch (MQException | IOException e) {
+            log.error("parse message fail : {}, msgId:{}", e.getMessage(), message.getMsgId());
+        } finally {
+            metrics.recordParse(group, message.getTopic(), message.getTags(), System.nanoTime() - start, message.getBody().length, result != null);
+        }
+        return null;
+    }
+
+    /**
+     * getMessageType()的结果在消费者生命周期内不变，只解析一次
+     */
+    private Type resolvedMessageType() {
+        Type type = messageType;
+        if (type == null) {
+            messageType = type = this.getMessageType();
+        }
+        return type;
+    }
+
+    /**
+     * 拆开批量发送的信封消息，列表中没有信封消息时直接返回原列表
+     *
+     * @param list 消息列表
+     * @return 拆包后的消息列表
+     */
+    protected List<MessageExt> unpack(List<MessageExt> list) {
+        List<MessageExt> unpacked = null;
+        for (int i = 0; i < list.size(); i++) {
+            MessageExt messageExt = list.get(i);
+            if (MessageEnvelope.isEnvelope(messageExt)) {
+                if (unpacked == null) {
+                    unpacked = new ArrayList<>(list.subList(0, i));
+                }
+                unpacked.addAll(MessageEnvelope.unpack(messageExt));
+            } else if (unpacked != null) {
+                unpacked.add(messageExt);
+            }
+        }
+        return unpacked == null ? list : unpacked;
+    }
+
     /**
      * 解析消息类型
      *
@@ -80,13 +420,42 @@ public abstract class AbstractMQConsumer<T> {
         }
     }
 
+    /**
+     * 检查收到的重试消息是否已经用完处理次数，只做判断，用完时由调用方通过{@link #giveUp(MessageExt, Throwable)}放弃重试
+     *
+     * @param messageExt 消息
+     * @return 已经用完处理次数时返回true
+     */
     protected boolean checkReachMaxRetryTimes(MessageExt messageExt) {
-        log.info("re-consume times: {}" , messageExt.getReconsumeTimes());
-        //大于最大重试次数则记录失败日志，并返回ConsumeOrderlyStatus.SUCCESS
-        if(messageExt.getReconsumeTimes() >= MAX_RETRY_TIMES){
-            log.error("Consumer reach the maximum number of retries,please process by manual work,msgId:{},msgKey:{},tags:{}",messageExt.getMsgId(),messageExt.getKeys(),messageExt.getTags());
+        if (shouldLog(messageExt)) {
+            log.info("re-consume times: {}" , messageExt.getReconsumeTimes());
+        }
+        if (!retryPolicy.isExhausted(messageExt)) {
+            metrics.recordRetry(group, messageExt.getTopic(), messageExt.getTags(), false);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 放弃重试：配置了deadLetterTopic时转发到死信topic，否则记录错误日志
+     * 返回false时消息既没有转发也没有记录为放弃，调用方不能确认消费：push模式让broker稍后重新投递，pull模式不提交该消息的位点
+     *
+     * @param messageExt 消息
+     * @param failure 最后一次处理抛出的异常，可以为null
+     * @return 已放弃、可以确认消费时返回true；死信转发器待发送的消息数达到上限或已关闭时返回false
+     */
+    protected boolean giveUp(MessageExt messageExt, Throwable failure) {
+        if (deadLetterForwarder == null || StringUtils.isEmpty(deadLetterTopic)) {
+            metrics.recordRetry(group, messageExt.getTopic(), messageExt.getTags(), true);
+            log.error("Consumer reach the maximum number of retries,please process by manual work,msgId:{},msgKey:{},tags:{}",
+                    messageExt.getMsgId(), messageExt.getKeys(), messageExt.getTags(), failure);
             return true;
         }
-        return false;
+        if (!deadLetterForwarder.forward(messageExt, deadLetterTopic, group, failure)) {
+            return false;
+        }
+        metrics.recordRetry(group, messageExt.getTopic(), messageExt.getTags(), true);
+        return true;
     }
 }
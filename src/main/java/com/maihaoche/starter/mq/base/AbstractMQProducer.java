@@ -1,23 +1,40 @@
 package com.maihaoche.starter.mq.base;
 
-import com.google.gson.Gson;
 import com.maihaoche.starter.mq.MQException;
-import com.maihaoche.starter.mq.annotation.MQKey;
+import com.maihaoche.starter.mq.codec.MessageCodec;
+import com.maihaoche.starter.mq.codec.MessageCodecs;
+import com.maihaoche.starter.mq.compress.CompressionPolicy;
+import com.maihaoche.starter.mq.compress.MessageCompressor;
+import com.maihaoche.starter.mq.compress.MessageCompressors;
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import com.maihaoche.starter.mq.schedule.MessageScheduler;
+import com.maihaoche.starter.mq.spool.CircuitBreaker;
+import com.maihaoche.starter.mq.spool.MessageSpool;
+import com.maihaoche.starter.mq.spool.SendSpool;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.exception.MQClientException;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.client.producer.MessageQueueSelector;
 import org.apache.rocketmq.client.producer.SendCallback;
 import org.apache.rocketmq.client.producer.SendResult;
 import org.apache.rocketmq.client.producer.selector.SelectMessageQueueByHash;
 import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.remoting.exception.RemotingException;
 
 import javax.annotation.PreDestroy;
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Field;
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by yipin on 2017/6/27.
@@ -26,10 +43,26 @@ import java.nio.charset.Charset;
 @Slf4j
 public abstract class AbstractMQProducer {
 
-    private static Gson gson = new Gson();
-
+    /**
+     * 带hashKey发送时选择queue的方式，默认按hashCode取模，可以通过@MQProducer的queueSelector配置
+     */
+    @Setter
+    @Getter
     private MessageQueueSelector messageQueueSelector = new SelectMessageQueueByHash();
 
+    /**
+     * 不带hashKey且未攒批的发送按broker近期延迟选择queue，为null表示使用客户端默认的轮询
+     */
+    @Setter
+    @Getter
+    private LatencyAwareMessageQueueSelector latencySelector;
+
+    /**关闭时等待批量消息发出的最长时间*/
+    private static final long BATCH_CLOSE_TIMEOUT_MS = 3000;
+
+    /**关闭时等待spool回放线程退出的最长时间*/
+    private static final long SPOOL_CLOSE_TIMEOUT_MS = 3000;
+
     public AbstractMQProducer() {
     }
 
@@ -52,9 +85,152 @@ public abstract class AbstractMQProducer {
     @Getter
     private DefaultMQProducer producer;
 
+    /**
+     * 生产者是否被多个bean共用，共用的生产者由创建方在所有bean发送完剩余消息后统一关闭，destroyProducer时不关闭
+     */
+    @Setter
+    @Getter
+    private boolean sharedProducer;
+
+    private final AtomicBoolean destroyed = new AtomicBoolean();
+
+    /**
+     * 消息体编解码方式，默认gson，可以通过@MQProducer的codec或rocketmq.codec配置
+     */
+    @Setter
+    @Getter
+    private MessageCodec codec = MessageCodecs.getDefault();
+
+    /**
+     * 消息体压缩策略，默认不压缩，可以通过@MQProducer的compression或rocketmq.compression配置
+     */
+    @Setter
+    @Getter
+    private CompressionPolicy compressionPolicy = CompressionPolicy.NONE;
+
+    /**
+     * 监控指标，默认不记录
+     */
+    @Getter
+    private MQMetrics metrics = MQMetrics.NOOP;
+
+    /**
+     * 发送成功日志的采样与限流策略，默认逐条打印
+     */
+    @Setter
+    @Getter
+    private MessageLogPolicy logPolicy = MessageLogPolicy.ALL;
+
+    public void setMetrics(MQMetrics metrics) {
+        this.metrics = metrics;
+        metrics.bindInFlight(getClass().getSimpleName(), inFlightCount);
+    }
+
+    /**
+     * 批量发送模式下的累加器，为null表示未开启批量发送
+     */
+    private volatile MessageBatchAccumulator batchAccumulator;
+
+    /**
+     * 开启批量发送，之后sendOneWay和不带hashKey的asynSend会先在本地按topic+tag攒批，再打包成一条消息发送
+     * 消费者基类会自动拆包，process仍然逐条收到消息
+     *
+     * @param maxBatchSize 每批最多条数
+     * @param maxBatchBytes 每批最多字节数
+     * @param lingerMs 消息在本地最多等待的毫秒数
+     */
+    public void enableBatch(int maxBatchSize, int maxBatchBytes, long lingerMs) {
+        if (batchAccumulator != null) {
+            return;
+        }
+        batchAccumulator = new MessageBatchAccumulator(getClass().getSimpleName(), this::getProducer, maxBatchSize, maxBatchBytes, lingerMs);
+    }
+
+    /**
+     * sendAsync在途请求数的许可，为null表示不限制
+     */
+    private volatile Semaphore inFlightPermits;
+
+    private volatile InFlightLimitPolicy inFlightLimitPolicy = InFlightLimitPolicy.BLOCK;
+
+    private volatile long inFlightTimeoutMs;
+
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    /**
+     * 限制sendAsync的在途请求数，避免broker变慢时回调和消息在堆上无限堆积
+     *
+     * @param maxInFlight 最大在途请求数，小于等于0表示不限制
+     * @param policy 达到上限时的处理方式
+     * @param timeoutMs policy为TIMEOUT时最多等待的毫秒数
+     */
+    public void setInFlightLimit(int maxInFlight, InFlightLimitPolicy policy, long timeoutMs) {
+        this.inFlightLimitPolicy = policy;
+        this.inFlightTimeoutMs = timeoutMs;
+        this.inFlightPermits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+    }
+
+    /**
+     * 当前asynSend和sendAsync的在途请求数
+     *
+     * @return 在途请求数
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    /**
+     * broker不可用时的本地发送缓冲，为null表示未开启
+     */
+    @Getter
+    private volatile SendSpool sendSpool;
+
+    /**
+     * 开启本地spool，之后synSend、sendOneWay及其顺序发送在broker不可用时不再抛出异常，而是写入本地文件，由后台线程在broker恢复后按顺序重新发送
+     * 开启批量发送后sendOneWay走攒批，不经过spool
+     *
+     * @param dir spool文件所在的目录，每个生产者一个目录
+     * @param segmentBytes 每个段文件的大小
+     * @param maxBytes spool文件的总大小上限，超过后发送失败照常抛出异常
+     * @param failureThreshold 连续发送失败多少次后熔断，熔断期间的发送直接写入spool
+     * @param openMs 熔断后多久开始用spool中的消息试探broker
+     * @param flushIntervalMs 定时把spool刷到磁盘的间隔
+     * @throws IOException 打开spool文件失败
+     */
+    public void enableSpool(File dir, int segmentBytes, long maxBytes, int failureThreshold, long openMs, long flushIntervalMs) throws IOException {
+        if (sendSpool != null) {
+            return;
+        }
+        String name = getClass().getSimpleName();
+        sendSpool = new SendSpool(name, new MessageSpool(dir, segmentBytes, maxBytes), new CircuitBreaker(failureThreshold, openMs),
+                this::getProducer, this::getMessageQueueSelector, OrderlyLanes.HASH_KEY_PROPERTY, flushIntervalMs);
+        metrics.bindSpool(name, sendSpool);
+    }
+
+    /**
+     * 定时发送，为null表示未开启，可以通过@MQProducer的scheduled开启
+     */
+    @Setter
+    @Getter
+    private MessageScheduler messageScheduler;
+
+    /**
+     * 发送攒批中剩余的消息并等待回调，停止spool回放；生产者不是共用的时关闭生产者，重复调用时不做任何事
+     */
     @PreDestroy
     public void destroyProducer() {
-        if (producer != null) {
+        if (!destroyed.compareAndSet(false, true)) {
+            return;
+        }
+        MessageBatchAccumulator accumulator = batchAccumulator;
+        if (accumulator != null) {
+            accumulator.close(BATCH_CLOSE_TIMEOUT_MS);
+        }
+        SendSpool spool = sendSpool;
+        if (spool != null) {
+            spool.close(SPOOL_CLOSE_TIMEOUT_MS);
+        }
+        if (producer != null && !sharedProducer) {
             synchronized (AbstractMQProducer.class) {
                 if (producer != null) {
                     producer.shutdown();
@@ -78,33 +254,47 @@ public abstract class AbstractMQProducer {
         return this.topic;
     }
 
+    /**
+     * 顺序消息额外记录hashKey，消费端开启并行lane时按hashKey拆分
+     */
+    private Message genOrderlyMessage(String topic, String tag, Object msgObj, String hashKey) {
+        Message message = genMessage(topic, tag, msgObj);
+        if (StringUtils.isNotEmpty(hashKey)) {
+            message.putUserProperty(OrderlyLanes.HASH_KEY_PROPERTY, hashKey);
+        }
+        return message;
+    }
+
     private Message genMessage(String topic, String tag, Object msgObj) {
+        long start = System.nanoTime();
         String messageKey= "";
         try {
-            Field[] fields = msgObj.getClass().getDeclaredFields();
-            for (Field field : fields) {
-                Annotation[] allFAnnos= field.getAnnotations();
-                if(allFAnnos.length > 0) {
-                    for (int i = 0; i < allFAnnos.length; i++) {
-                        if(allFAnnos[i].annotationType().equals(MQKey.class)) {
-                            field.setAccessible(true);
-                            MQKey mqKey = MQKey.class.cast(allFAnnos[i]);
-                            messageKey = StringUtils.isEmpty(mqKey.prefix()) ? field.get(msgObj).toString() : (mqKey.prefix() + field.get(msgObj).toString());
-                        }
-                    }
-                }
-            }
-        } catch (Exception e) {
+            messageKey = MessageKeyResolver.forClass(msgObj.getClass()).resolveKey(msgObj);
+        } catch (Throwable e) {
             log.error("parse key error : {}" , e.getMessage());
         }
-        String str = gson.toJson(msgObj);
+        byte[] body = codec.encode(msgObj);
         if(StringUtils.isEmpty(topic)) {
             if(StringUtils.isEmpty(getTopic())) {
                 throw new RuntimeException("no topic defined to send this message");
             }
             topic = getTopic();
         }
-        Message message = new Message(topic, str.getBytes(Charset.forName("utf-8")));
+        MessageCompressor compressor = compressionPolicy.select(topic, body.length);
+        if (compressor != null) {
+            byte[] compressed = compressor.compress(body);
+            // 压缩后没有变小的消息体（如已经压缩过的数据）按原样发送
+            if (compressed.length < body.length) {
+                body = compressed;
+            } else {
+                compressor = null;
+            }
+        }
+        Message message = new Message(topic, body);
+        message.putUserProperty(MessageCodecs.CODEC_PROPERTY, codec.getId());
+        if (compressor != null) {
+            message.putUserProperty(MessageCompressors.COMPRESSION_PROPERTY, compressor.getId());
+        }
         if (!StringUtils.isEmpty(tag)) {
             message.setTags(tag);
         } else if (!StringUtils.isEmpty(getTag())) {
@@ -113,9 +303,183 @@ public abstract class AbstractMQProducer {
         if(StringUtils.isNotEmpty(messageKey)) {
             message.setKeys(messageKey);
         }
+        metrics.recordEncode(topic, message.getTags(), System.nanoTime() - start, body.length);
         return message;
     }
 
+    /**
+     * 开启latencyAware时通过selector发送，客户端不会重试，这里按retryTimesWhenSendFailed重试，每次跳过已经失败过的broker
+     */
+    private SendResult sendUnordered(Message message) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        LatencyAwareMessageQueueSelector selector = latencySelector;
+        if (selector == null) {
+            return producer.send(message);
+        }
+        LatencyAwareMessageQueueSelector.Selection selection = selector.newSelection();
+        int times = 1 + Math.max(0, producer.getRetryTimesWhenSendFailed());
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                SendResult sendResult = producer.send(message, selector, selection);
+                success = true;
+                return sendResult;
+            } catch (MQClientException | RemotingException | MQBrokerException e) {
+                if (attempt >= times || !LatencyAwareMessageQueueSelector.isRetriable(e)) {
+                    throw e;
+                }
+                log.debug("send message fail, retry another broker, topic : {}, attempt : {}, e : {}", message.getTopic(), attempt, e.getMessage());
+            } finally {
+                selector.complete(selection, System.nanoTime() - start, success);
+            }
+        }
+    }
+
+    private void sendOnewayUnordered(Message message) throws MQClientException, RemotingException, InterruptedException {
+        LatencyAwareMessageQueueSelector selector = latencySelector;
+        if (selector == null) {
+            producer.sendOneway(message);
+            return;
+        }
+        LatencyAwareMessageQueueSelector.Selection selection = selector.newSelection();
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            // oneway只能反馈写出请求的耗时，与客户端默认的oneway发送一样不重试
+            producer.sendOneway(message, selector, selection);
+            success = true;
+        } finally {
+            selector.complete(selection, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * 开启latencyAware时按retryTimesWhenSendAsyncFailed重试，每次跳过已经失败过的broker
+     */
+    private void sendUnordered(Message message, final SendCallback sendCallback) throws MQClientException, RemotingException, InterruptedException {
+        LatencyAwareMessageQueueSelector selector = latencySelector;
+        if (selector == null) {
+            producer.send(message, sendCallback);
+            return;
+        }
+        sendSelected(message, selector, selector.newSelection(), 1 + Math.max(0, producer.getRetryTimesWhenSendAsyncFailed()), sendCallback);
+    }
+
+    private void sendSelected(final Message message, final LatencyAwareMessageQueueSelector selector, final LatencyAwareMessageQueueSelector.Selection selection,
+                              final int remaining, final SendCallback sendCallback) throws MQClientException, RemotingException, InterruptedException {
+        final long start = System.nanoTime();
+        try {
+            producer.send(message, selector, selection, new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    selector.complete(selection, System.nanoTime() - start, true);
+                    if (sendCallback != null) {
+                        sendCallback.onSuccess(sendResult);
+                    }
+                }
+
+                @Override
+                public void onException(Throwable e) {
+                    selector.complete(selection, System.nanoTime() - start, false);
+                    if (remaining > 1 && LatencyAwareMessageQueueSelector.isRetriable(e)) {
+                        try {
+                            sendSelected(message, selector, selection, remaining - 1, sendCallback);
+                            return;
+                        } catch (Exception retryFailure) {
+                            e = retryFailure;
+                        }
+                    }
+                    if (sendCallback != null) {
+                        sendCallback.onException(e);
+                    }
+                }
+            });
+        } catch (MQClientException | RemotingException e) {
+            selector.complete(selection, System.nanoTime() - start, false);
+            if (remaining > 1 && LatencyAwareMessageQueueSelector.isRetriable(e)) {
+                sendSelected(message, selector, selection, remaining - 1, sendCallback);
+                return;
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            selector.complete(selection, System.nanoTime() - start, false);
+            throw e;
+        }
+    }
+
+    private void recordSend(Message message, String topic, String tag, MQMetrics.SendMode mode, long start, boolean success) {
+        if (message != null) {
+            metrics.recordSend(message.getTopic(), message.getTags(), mode, System.nanoTime() - start, success);
+        } else {
+            metrics.recordSend(StringUtils.defaultIfEmpty(topic, getTopic()), StringUtils.defaultIfEmpty(tag, getTag()), mode, System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * 包装异步发送的回调，记录发出到回调的耗时，未开启监控时直接返回原回调
+     */
+    private SendCallback timedCallback(final Message message, final SendCallback sendCallback) {
+        final MQMetrics metrics = this.metrics;
+        if (metrics == MQMetrics.NOOP) {
+            return sendCallback;
+        }
+        final long start = System.nanoTime();
+        return new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                metrics.recordSend(message.getTopic(), message.getTags(), MQMetrics.SendMode.ASYNC, System.nanoTime() - start, true);
+                if (sendCallback != null) {
+                    sendCallback.onSuccess(sendResult);
+                }
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                metrics.recordSend(message.getTopic(), message.getTags(), MQMetrics.SendMode.ASYNC, System.nanoTime() - start, false);
+                if (sendCallback != null) {
+                    sendCallback.onException(e);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * 统计asynSend的在途请求数，回调或者同步抛出异常后释放，只释放一次
+     */
+    private final class InFlightCallback implements SendCallback {
+
+        private final SendCallback sendCallback;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private InFlightCallback(SendCallback sendCallback) {
+            this.sendCallback = sendCallback;
+            inFlightCount.incrementAndGet();
+        }
+
+        @Override
+        public void onSuccess(SendResult sendResult) {
+            release();
+            if (sendCallback != null) {
+                sendCallback.onSuccess(sendResult);
+            }
+        }
+
+        @Override
+        public void onException(Throwable e) {
+            release();
+            if (sendCallback != null) {
+                sendCallback.onException(e);
+            }
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                inFlightCount.decrementAndGet();
+            }
+        }
+    }
 
     /**
      * fire and forget 不关心消息是否送达，可以提高发送tps
@@ -126,13 +490,36 @@ public abstract class AbstractMQProducer {
      * @throws MQException 消息异常
      */
     public void sendOneWay(String topic, String tag, Object msgObj) throws MQException {
+        if(null == msgObj) {
+            return;
+        }
+        long start = System.nanoTime();
+        Message message = null;
         try {
-            if(null == msgObj) {
+            message = genMessage(topic, tag, msgObj);
+            MessageBatchAccumulator accumulator = batchAccumulator;
+            if (accumulator != null) {
+                accumulator.append(message, null);
+                recordSend(message, topic, tag, MQMetrics.SendMode.ONEWAY, start, true);
+                if (shouldLog(message)) {
+                    log.info("append onway message to batch : {}", logPolicy.payload(msgObj));
+                }
+                return;
+            }
+            if (spoolIfBlocked(message)) {
                 return;
             }
-            producer.sendOneway(genMessage(topic, tag, msgObj));
-            log.info("send onway message success : {}", msgObj);
+            sendOnewayUnordered(message);
+            sendSucceeded();
+            recordSend(message, topic, tag, MQMetrics.SendMode.ONEWAY, start, true);
+            if (shouldLog(message)) {
+                log.info("send onway message success : {}", logPolicy.payload(msgObj));
+            }
         } catch (Exception e) {
+            recordSend(message, topic, tag, MQMetrics.SendMode.ONEWAY, start, false);
+            if (spoolOnFailure(message, e)) {
+                return;
+            }
             log.error("消息发送失败，topic : {}, e {}", topic, e);
             throw new MQException("消息发送失败，topic :" + topic + ",e:" + e);
         }
@@ -175,16 +562,66 @@ public abstract class AbstractMQProducer {
         if(StringUtils.isEmpty(hashKey)) {
             // fall back to normal
             sendOneWay(topic, tag, msgObj);
+            return;
         }
+        long start = System.nanoTime();
+        Message message = null;
         try {
-            producer.sendOneway(genMessage(topic, tag, msgObj), messageQueueSelector, hashKey);
-            log.info("send onway message orderly success : {}", msgObj);
+            message = genOrderlyMessage(topic, tag, msgObj, hashKey);
+            if (spoolIfBlocked(message)) {
+                return;
+            }
+            producer.sendOneway(message, messageQueueSelector, hashKey);
+            sendSucceeded();
+            recordSend(message, topic, tag, MQMetrics.SendMode.ONEWAY, start, true);
+            if (shouldLog(message)) {
+                log.info("send onway message orderly success : {}", logPolicy.payload(msgObj));
+            }
         } catch (Exception e) {
+            recordSend(message, topic, tag, MQMetrics.SendMode.ONEWAY, start, false);
+            if (spoolOnFailure(message, e)) {
+                return;
+            }
             log.error("消息发送失败，topic : {}, msgObj {}", topic, msgObj);
             throw new MQException("顺序消息发送失败，topic :" + topic + ",e:" + e.getMessage());
         }
     }
 
+    /**
+     * 开启spool时，熔断期间或还有待回放的消息时直接写入spool，保持发送顺序
+     */
+    private boolean spoolIfBlocked(Message message) {
+        SendSpool spool = sendSpool;
+        if (spool == null || !spool.isBlocked() || !spool.append(message)) {
+            return false;
+        }
+        log.debug("broker unavailable, message spooled, topic : {}, key : {}", message.getTopic(), message.getKeys());
+        return true;
+    }
+
+    private void sendSucceeded() {
+        SendSpool spool = sendSpool;
+        if (spool != null) {
+            spool.onSendSuccess();
+        }
+    }
+
+    /**
+     * 开启spool时，把因broker不可用发送失败的消息写入spool
+     */
+    private boolean spoolOnFailure(Message message, Exception e) {
+        SendSpool spool = sendSpool;
+        if (spool == null || message == null || !spool.onSendFailure(message, e)) {
+            return false;
+        }
+        log.warn("send fail, message spooled, topic : {}, key : {}, e : {}", message.getTopic(), message.getKeys(), e.getMessage());
+        return true;
+    }
+
+    private boolean shouldLog(Message message) {
+        return log.isInfoEnabled() && logPolicy.shouldLog(message.getTopic());
+    }
+
     /**
      * 同步发送消息
      * @param topic  topic
@@ -193,14 +630,28 @@ public abstract class AbstractMQProducer {
      * @throws MQException 消息异常
      */
     public void synSend(String topic, String tag, Object msgObj) throws MQException {
+        if(null == msgObj) {
+            return;
+        }
+        long start = System.nanoTime();
+        Message message = null;
         try {
-            if(null == msgObj) {
+            message = genMessage(topic, tag, msgObj);
+            if (spoolIfBlocked(message)) {
                 return;
             }
-            SendResult sendResult = producer.send(genMessage(topic, tag, msgObj));
-            log.info("send rocketmq message ,messageId : {}", sendResult.getMsgId());
+            SendResult sendResult = sendUnordered(message);
+            sendSucceeded();
+            recordSend(message, topic, tag, MQMetrics.SendMode.SYNC, start, true);
+            if (shouldLog(message)) {
+                log.info("send rocketmq message ,messageId : {}", sendResult.getMsgId());
+            }
             this.doAfterSynSend(sendResult);
         } catch (Exception e) {
+            recordSend(message, topic, tag, MQMetrics.SendMode.SYNC, start, false);
+            if (spoolOnFailure(message, e)) {
+                return;
+            }
             log.error("消息发送失败，topic : {}, msgObj {}", topic, msgObj);
             throw new MQException("消息发送失败，topic :" + topic + ",e:" + e.getMessage());
         }
@@ -240,12 +691,27 @@ public abstract class AbstractMQProducer {
         if(StringUtils.isEmpty(hashKey)) {
             // fall back to normal
             synSend(topic, tag, msgObj);
+            return;
         }
+        long start = System.nanoTime();
+        Message message = null;
         try {
-            SendResult sendResult = producer.send(genMessage(topic, tag, msgObj), messageQueueSelector, hashKey);
-            log.info("send rocketmq message orderly ,messageId : {}", sendResult.getMsgId());
+            message = genOrderlyMessage(topic, tag, msgObj, hashKey);
+            if (spoolIfBlocked(message)) {
+                return;
+            }
+            SendResult sendResult = producer.send(message, messageQueueSelector, hashKey);
+            sendSucceeded();
+            recordSend(message, topic, tag, MQMetrics.SendMode.SYNC, start, true);
+            if (shouldLog(message)) {
+                log.info("send rocketmq message orderly ,messageId : {}", sendResult.getMsgId());
+            }
             this.doAfterSynSend(sendResult);
         } catch (Exception e) {
+            recordSend(message, topic, tag, MQMetrics.SendMode.SYNC, start, false);
+            if (spoolOnFailure(message, e)) {
+                return;
+            }
             log.error("顺序消息发送失败，topic : {}, msgObj {}", topic, msgObj);
             throw new MQException("顺序消息发送失败，topic :" + topic + ",e:" + e.getMessage());
         }
@@ -260,13 +726,32 @@ public abstract class AbstractMQProducer {
      * @throws MQException 消息异常
      */
     public void asynSend(String topic, String tag, Object msgObj, SendCallback sendCallback) throws MQException {
+        if (null == msgObj) {
+            return;
+        }
+        long start = System.nanoTime();
+        Message message = null;
+        InFlightCallback callback = null;
         try {
-            if (null == msgObj) {
+            message = genMessage(topic, tag, msgObj);
+            callback = new InFlightCallback(timedCallback(message, sendCallback));
+            MessageBatchAccumulator accumulator = batchAccumulator;
+            if (accumulator != null) {
+                accumulator.append(message, callback);
+                if (shouldLog(message)) {
+                    log.info("append rocketmq message asyn to batch");
+                }
                 return;
             }
-            producer.send(genMessage(topic, tag, msgObj), sendCallback);
-            log.info("send rocketmq message asyn");
+            sendUnordered(message, callback);
+            if (shouldLog(message)) {
+                log.info("send rocketmq message asyn");
+            }
         } catch (Exception e) {
+            if (callback != null) {
+                callback.release();
+            }
+            recordSend(message, topic, tag, MQMetrics.SendMode.ASYNC, start, false);
             log.error("消息发送失败，topic : {}, msgObj {}", topic, msgObj);
             throw new MQException("消息发送失败，topic :" + topic + ",e:" + e.getMessage());
         }
@@ -309,16 +794,150 @@ public abstract class AbstractMQProducer {
         if(StringUtils.isEmpty(hashKey)) {
             // fall back to normal
             asynSend(topic, tag, msgObj, sendCallback);
+            return;
         }
+        long start = System.nanoTime();
+        Message message = null;
+        InFlightCallback callback = null;
         try {
-            producer.send(genMessage(topic, tag, msgObj), messageQueueSelector, hashKey, sendCallback);
-            log.info("send rocketmq message asyn");
+            message = genOrderlyMessage(topic, tag, msgObj, hashKey);
+            callback = new InFlightCallback(timedCallback(message, sendCallback));
+            producer.send(message, messageQueueSelector, hashKey, callback);
+            if (shouldLog(message)) {
+                log.info("send rocketmq message asyn");
+            }
         } catch (Exception e) {
+            if (callback != null) {
+                callback.release();
+            }
+            recordSend(message, topic, tag, MQMetrics.SendMode.ASYNC, start, false);
             log.error("消息发送失败，topic : {}, msgObj {}", topic, msgObj);
             throw new MQException("消息发送失败，topic :" + topic + ",e:" + e.getMessage());
         }
     }
 
+    /**
+     * 异步发送消息，返回发送结果的future
+     * 配置了在途请求上限时，达到上限后按照{@link InFlightLimitPolicy}阻塞或者返回失败的future
+     *
+     * @param topic topic
+     * @param tag tag
+     * @param msgObj 消息体
+     * @return 发送结果，msgObj为null时结果为null
+     */
+    public CompletableFuture<SendResult> sendAsync(String topic, String tag, Object msgObj) {
+        return sendAsync(topic, tag, msgObj, null);
+    }
+
+    /**
+     * 异步发送消息不带tag和topic
+     *
+     * @param msgObj 消息体
+     * @return 发送结果
+     */
+    public CompletableFuture<SendResult> sendAsync(Object msgObj) {
+        return sendAsync("", "", msgObj, null);
+    }
+
+    /**
+     * 异步发送消息不带topic
+     *
+     * @param tag tag
+     * @param msgObj 消息体
+     * @return 发送结果
+     */
+    public CompletableFuture<SendResult> sendAsync(String tag, Object msgObj) {
+        return sendAsync("", tag, msgObj, null);
+    }
+
+    /**
+     * 异步发送消息，hashKey不为空时相同hashKey的消息投递到同一个queue
+     * 带hashKey的发送与其它顺序发送一样固定按hashKey选择queue，不参与批量发送和latencyAware的选择与重试
+     *
+     * @param topic topic
+     * @param tag tag
+     * @param msgObj 消息体
+     * @param hashKey 用于hash后选择queue的key
+     * @return 发送结果
+     */
+    public CompletableFuture<SendResult> sendAsync(String topic, String tag, Object msgObj, String hashKey) {
+        final CompletableFuture<SendResult> future = new CompletableFuture<>();
+        if (null == msgObj) {
+            future.complete(null);
+            return future;
+        }
+        final Semaphore permits = inFlightPermits;
+        if (permits != null && !acquireInFlightPermit(permits)) {
+            future.completeExceptionally(new MQException("异步发送在途请求数达到上限，topic :" + topic));
+            return future;
+        }
+        inFlightCount.incrementAndGet();
+        // 客户端可能先回调再抛出异常，许可和future只处理一次
+        final AtomicBoolean completed = new AtomicBoolean();
+        SendCallback sendCallback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                if (completed.compareAndSet(false, true)) {
+                    releaseInFlightPermit(permits);
+                    future.complete(sendResult);
+                }
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                if (completed.compareAndSet(false, true)) {
+                    releaseInFlightPermit(permits);
+                    future.completeExceptionally(e);
+                }
+            }
+        };
+        long start = System.nanoTime();
+        Message message = null;
+        try {
+            message = genOrderlyMessage(topic, tag, msgObj, hashKey);
+            SendCallback timed = timedCallback(message, sendCallback);
+            MessageBatchAccumulator accumulator = batchAccumulator;
+            if (StringUtils.isNotEmpty(hashKey)) {
+                producer.send(message, messageQueueSelector, hashKey, timed);
+            } else if (accumulator != null) {
+                accumulator.append(message, timed);
+            } else {
+                sendUnordered(message, timed);
+            }
+        } catch (Exception e) {
+            log.error("消息发送失败，topic : {}, msgObj {}", topic, msgObj);
+            if (!completed.get()) {
+                recordSend(message, topic, tag, MQMetrics.SendMode.ASYNC, start, false);
+                sendCallback.onException(new MQException("消息发送失败，topic :" + topic + ",e:" + e.getMessage(), e));
+            }
+        }
+        return future;
+    }
+
+    private boolean acquireInFlightPermit(Semaphore permits) {
+        try {
+            switch (inFlightLimitPolicy) {
+                case FAIL_FAST:
+                    return permits.tryAcquire();
+                case TIMEOUT:
+                    return permits.tryAcquire(inFlightTimeoutMs, TimeUnit.MILLISECONDS);
+                default:
+                    permits.acquire();
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void releaseInFlightPermit(Semaphore permits) {
+        inFlightCount.decrementAndGet();
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
     /**
      * 兼容buick中的方式
      *
@@ -334,7 +953,96 @@ public abstract class AbstractMQProducer {
     }
 
     /**
-     * 重写此方法处理发送后的逻辑
+     * 在指定时间发送消息，时间已经过去时立即发送
+     * 较长的延时经broker的延时级别跳转，最后一段在本地时间轮中到期后精确发送；进程重启后本地未到期的消息继续定时，可能重复发送
+     *
+     * @param time 发送时间
+     * @param topic topic
+     * @param tag tag
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAt(Instant time, String topic, String tag, Object msgObj) throws MQException {
+        if(null == msgObj) {
+            return;
+        }
+        MessageScheduler scheduler = messageScheduler;
+        if (scheduler == null) {
+            throw new MQException("scheduled send is not enabled, use @MQProducer(scheduled = true)");
+        }
+        try {
+            Message message = genMessage(topic, tag, msgObj);
+            scheduler.schedule(message, time.toEpochMilli());
+            if (shouldLog(message)) {
+                log.info("schedule message at {} : {}", time, logPolicy.payload(msgObj));
+            }
+        } catch (Exception e) {
+            log.error("定时消息发送失败，topic : {}, msgObj {}", topic, msgObj);
+            throw new MQException("定时消息发送失败，topic :" + topic + ",e:" + e.getMessage());
+        }
+    }
+
+    /**
+     * 在指定时间发送消息
+     *
+     * @param time 发送时间
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAt(Instant time, Object msgObj) throws MQException {
+        sendAt(time, "", "", msgObj);
+    }
+
+    /**
+     * 在指定时间发送消息
+     *
+     * @param time 发送时间
+     * @param tag tag
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAt(Instant time, String tag, Object msgObj) throws MQException {
+        sendAt(time, "", tag, msgObj);
+    }
+
+    /**
+     * 延时指定时间后发送消息
+     *
+     * @param delay 延时
+     * @param topic topic
+     * @param tag tag
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAfter(Duration delay, String topic, String tag, Object msgObj) throws MQException {
+        sendAt(Instant.now().plus(delay), topic, tag, msgObj);
+    }
+
+    /**
+     * 延时指定时间后发送消息
+     *
+     * @param delay 延时
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAfter(Duration delay, Object msgObj) throws MQException {
+        sendAfter(delay, "", "", msgObj);
+    }
+
+    /**
+     * 延时指定时间后发送消息
+     *
+     * @param delay 延时
+     * @param tag tag
+     * @param msgObj 消息体
+     * @throws MQException 未开启定时发送或消息异常
+     */
+    public void sendAfter(Duration delay, String tag, Object msgObj) throws MQException {
+        sendAfter(delay, "", tag, msgObj);
+    }
+
+    /**
+     * 重写此方法处理发送后的逻辑，写入spool的消息没有发送结果，不会回调
      *
      * @param sendResult  发送结果
      */
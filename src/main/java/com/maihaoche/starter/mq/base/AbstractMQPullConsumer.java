@@ -1,20 +1,43 @@
 package com.maihaoche.starter.mq.base;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.MessageQueueListener;
+import org.apache.rocketmq.client.consumer.PullCallback;
 import org.apache.rocketmq.client.consumer.PullResult;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageQueue;
 
+import javax.annotation.PreDestroy;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by yipin on 2017/6/27.
- * RocketMQ的消费者(Push模式)处理消息的接口
+ * RocketMQ的消费者(Pull模式)处理消息的接口
+ *
+ * 每个分配到的MessageQueue对应一个拉取任务，通过长轮询（pullBlockIfNotFound）异步拉取，拉到的消息交给有界的工作线程池处理，
+ * 同一个queue同时只有一个拉取或处理中的请求，因此queue内有序；rebalance时自动启动或停止对应queue的拉取任务
  */
 @Slf4j
-public abstract class AbstractMQPullConsumer<T> extends AbstractMQConsumer<T>{
+public abstract class AbstractMQPullConsumer<T> extends AbstractMQConsumer<T> implements MessageQueueListener {
+
+    /**拉取异常后重试的间隔*/
+    private static final long PULL_DELAY_WHEN_EXCEPTION_MS = 3000;
+
+    /**关闭时等待处理中消息的最长时间*/
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
 
     public AbstractMQPullConsumer() {
     }
@@ -23,6 +46,41 @@ public abstract class AbstractMQPullConsumer<T> extends AbstractMQConsumer<T>{
 
     private DefaultMQPullConsumer consumer;
 
+    /**
+     * 订阅的tag表达式，默认订阅所有tag
+     */
+    @Getter
+    @Setter
+    private String subExpression = "*";
+
+    /**
+     * 每次拉取的最大消息条数
+     */
+    @Getter
+    @Setter
+    private int pullBatchSize = 32;
+
+    /**
+     * 处理消息的工作线程数
+     */
+    @Getter
+    @Setter
+    private int pullThreads = 4;
+
+    private final ConcurrentMap<MessageQueue, PullTask> pullTasks = new ConcurrentHashMap<>();
+
+    private ThreadPoolExecutor workers;
+
+    private ScheduledExecutorService scheduler;
+
+    private volatile boolean running;
+
+    /**关闭前暂停拉取后不再创建拉取任务*/
+    private volatile boolean suspended;
+
+    /**已经拉取到本地、尚未处理完成的消息数*/
+    private final AtomicInteger bufferedCount = new AtomicInteger();
+
     public DefaultMQPullConsumer getConsumer() {
         return consumer;
     }
@@ -35,46 +93,232 @@ public abstract class AbstractMQPullConsumer<T> extends AbstractMQConsumer<T>{
         this.consumer = consumer;
     }
 
-    public void startInner() {
-        new Thread(() -> {
+    /**
+     * 启动拉取引擎，需要在consumer.start()之前通过registerMessageQueueListener把当前对象注册为topic的监听器
+     */
+    public synchronized void startInner() {
+        if (running) {
+            return;
+        }
+        final AtomicInteger index = new AtomicInteger();
+        workers = new ThreadPoolExecutor(pullThreads, pullThreads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "MQPullWorker-" + topic + "-" + index.incrementAndGet()));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MQPullScheduler-" + topic);
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        try {
+            updatePullTasks(consumer.fetchMessageQueuesInBalance(topic));
+        } catch (Exception e) {
+            log.error("start pull consumer fail, e : {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 停止拉取并等待处理中的消息完成
+     */
+    @PreDestroy
+    public synchronized void shutdownInner() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        for (PullTask task : pullTasks.values()) {
+            task.stopped = true;
+        }
+        pullTasks.clear();
+        scheduler.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("pull consumer shutdown timeout, topic : {}", topic);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 停止所有queue的拉取，已经交给工作线程的消息继续处理并提交位点
+     */
+    @Override
+    public synchronized void suspendConsume() {
+        suspended = true;
+        for (PullTask task : pullTasks.values()) {
+            task.stopped = true;
+        }
+        pullTasks.clear();
+    }
+
+    @Override
+    public int getBufferedCount() {
+        return bufferedCount.get();
+    }
+
+    @Override
+    public void shutdownConsumer() {
+        shutdownInner();
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+    }
+
+    /**
+     * rebalance后分配到的queue发生变化时由RocketMQ回调
+     */
+    @Override
+    public void messageQueueChanged(String topic, Set<MessageQueue> mqAll, Set<MessageQueue> mqDivided) {
+        if (running) {
+            updatePullTasks(mqDivided);
+        }
+    }
+
+    private synchronized void updatePullTasks(Set<MessageQueue> mqs) {
+        if (!running || suspended) {
+            return;
+        }
+        for (PullTask task : pullTasks.values()) {
+            if (!mqs.contains(task.mq)) {
+                task.stopped = true;
+                pullTasks.remove(task.mq);
+                log.info("stop pulling message queue : {}", task.mq);
+            }
+        }
+        for (MessageQueue mq : mqs) {
+            if (!pullTasks.containsKey(mq)) {
+                PullTask task = new PullTask(mq);
+                pullTasks.put(mq, task);
+                log.info("start pulling message queue : {}", mq);
+                task.start();
+            }
+        }
+    }
+
+    /**
+     * 单个queue的拉取任务
+     */
+    private class PullTask implements PullCallback {
+
+        private final MessageQueue mq;
+
+        private volatile long offset;
+
+        private volatile boolean stopped;
+
+        private PullTask(MessageQueue mq) {
+            this.mq = mq;
+        }
+
+        private void start() {
+            try {
+                offset = Math.max(consumer.fetchConsumeOffset(mq, false), 0);
+                pull();
+            } catch (Exception e) {
+                log.error("fetch consume offset fail, mq : {}, e : {}", mq, e.getMessage());
+                retryLater(this::start);
+            }
+        }
+
+        private void pull() {
+            if (stopped) {
+                return;
+            }
             try {
-                while(true) {
-                    Set<MessageQueue> mqs = consumer.fetchMessageQueuesInBalance(topic);
+                consumer.pullBlockIfNotFound(mq, subExpression, offset, pullBatchSize, this);
+            } catch (Exception e) {
+                log.error("pull message fail, mq : {}, e : {}", mq, e.getMessage());
+                retryLater(this::pull);
+            }
+        }
+
+        @Override
+        public void onSuccess(final PullResult pullResult) {
+            if (stopped) {
+                return;
+            }
+            switch (pullResult.getPullStatus()) {
+                case FOUND:
+                    bufferedCount.addAndGet(pullResult.getMsgFoundList().size());
                     try {
-                        for (MessageQueue mq : mqs) {
-                            SINGLE_MQ:
-                            while (true) {
-                                try {//阻塞的拉去消息，中止时间默认20s
-                                    long offset = consumer.fetchConsumeOffset(mq, false);
-                                    offset = offset < 0 ? 0 : offset;
-                                    PullResult pullResult = consumer.pull(mq, null, offset, 10);
-                                    switch (pullResult.getPullStatus()) {
-                                        case FOUND://pullSataus
-                                            dealMessage(pullResult.getMsgFoundList());
-                                            break;
-                                        case NO_MATCHED_MSG:
-                                            break;
-                                        case NO_NEW_MSG:
-                                            break SINGLE_MQ;
-                                        case OFFSET_ILLEGAL:
-                                            break;
-                                        default:
-                                            break;
-                                    }
-                                    consumer.updateConsumeOffset(mq, pullResult.getNextBeginOffset());
-                                } catch (Exception e) {
-                                    log.error("consume message fail , e : {}", e);
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                        log.error("start pull consumer fail, e : {}", e.getMessage());
+                        workers.execute(() -> consume(pullResult));
+                    } catch (RejectedExecutionException e) {
+                        bufferedCount.addAndGet(-pullResult.getMsgFoundList().size());
+                        log.warn("pull consumer is shutting down, drop pulled messages, mq : {}", mq);
                     }
+                    break;
+                case OFFSET_ILLEGAL:
+                    log.warn("pull offset illegal, mq : {}, offset : {}, next : {}", mq, offset, pullResult.getNextBeginOffset());
+                    commit(pullResult.getNextBeginOffset());
+                    pull();
+                    break;
+                default:
+                    // NO_NEW_MSG为长轮询超时，NO_MATCHED_MSG为tag不匹配，都直接进入下一轮拉取
+                    commit(pullResult.getNextBeginOffset());
+                    pull();
+                    break;
+            }
+        }
+
+        @Override
+        public void onException(Throwable e) {
+            if (stopped) {
+                return;
+            }
+            log.error("pull message fail, mq : {}, e : {}", mq, e.getMessage());
+            retryLater(this::pull);
+        }
+
+        /**
+         * 处理成功后才提交位点；dealMessage抛出异常时不提交，稍后从原位点重新拉取这批消息
+         * queue已经分配给其它实例（stopped）时不再提交，避免覆盖新拉取任务的位点
+         */
+        private void consume(PullResult pullResult) {
+            boolean success = false;
+            long deferredOffset = -1;
+            try {
+                dealMessage(pullResult.getMsgFoundList());
+                success = true;
+            } catch (DeadLetterDeferredException e) {
+                deferredOffset = e.getQueueOffset();
+                log.warn("dead letter queue is full, pull again later, mq : {}, offset : {}", mq, deferredOffset);
+            } catch (Exception e) {
+                log.error("consume message fail, pull again later, mq : {}, offset : {}", mq, offset, e);
+            } finally {
+                bufferedCount.addAndGet(-pullResult.getMsgFoundList().size());
+            }
+            if (stopped) {
+                return;
+            }
+            if (success) {
+                commit(pullResult.getNextBeginOffset());
+                pull();
+            } else {
+                if (deferredOffset > offset) {
+                    // 之前的消息已经处理完成，位点提交到未能放弃的消息为止
+                    commit(deferredOffset);
                 }
+                retryLater(this::pull);
+            }
+        }
+
+        private void commit(long nextOffset) {
+            offset = nextOffset;
+            try {
+                consumer.updateConsumeOffset(mq, nextOffset);
             } catch (Exception e) {
-                log.error("start pull consumer fail, e : {}", e.getMessage());
+                log.error("update consume offset fail, mq : {}, e : {}", mq, e.getMessage());
+            }
+        }
+
+        private void retryLater(Runnable action) {
+            try {
+                scheduler.schedule(action, PULL_DELAY_WHEN_EXCEPTION_MS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                log.debug("pull consumer is shutting down, mq : {}", mq);
             }
-        }).start();
+        }
     }
 
     /**
@@ -83,16 +327,53 @@ public abstract class AbstractMQPullConsumer<T> extends AbstractMQConsumer<T>{
      * @param list 消息列表
      */
     public void dealMessage(List<MessageExt> list) {
-        for(MessageExt messageExt : list) {
-            if(messageExt.getReconsumeTimes() != 0) {
-                //达到最大重试次数则不对消息进行消费
-                if(checkReachMaxRetryTimes(messageExt)){
+        for(MessageExt messageExt : unpack(list)) {
+            if (isDuplicate(messageExt)) {
+                continue;
+            }
+            //达到最大重试次数则不对消息进行消费
+            if(messageExt.getReconsumeTimes() != 0 && checkReachMaxRetryTimes(messageExt)) {
+                if (giveUp(messageExt, null)) {
                     continue;
                 }
+                throw new DeadLetterDeferredException(messageExt.getQueueOffset());
+            }
+            if (shouldLog(messageExt)) {
+                log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
             }
-            log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
             T t = parseMessage(messageExt);
-            process(messageExt.getKeys(),messageExt.getTags(),t);
+            if (null == t) {
+                continue;
+            }
+            Exception failure = null;
+            try {
+                if (invokeProcess(messageExt, t)) {
+                    continue;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+            // pull模式没有重新投递，处理失败直接放弃；死信转发器拒绝时不提交这条消息的位点，稍后重新拉取
+            if (!giveUp(messageExt, failure)) {
+                throw new DeadLetterDeferredException(messageExt.getQueueOffset());
+            }
+        }
+    }
+
+    /**
+     * 死信转发器拒绝放弃某条消息，拉取任务只把位点提交到这条消息之前
+     */
+    static final class DeadLetterDeferredException extends RuntimeException {
+
+        private final long queueOffset;
+
+        DeadLetterDeferredException(long queueOffset) {
+            super("dead letter queue is full, queueOffset : " + queueOffset, null, false, false);
+            this.queueOffset = queueOffset;
+        }
+
+        long getQueueOffset() {
+            return queueOffset;
         }
     }
 }
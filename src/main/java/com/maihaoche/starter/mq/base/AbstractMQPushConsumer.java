@@ -1,5 +1,7 @@
 package com.maihaoche.starter.mq.base;
 
+import com.maihaoche.starter.mq.limit.ConsumeLimiter;
+import com.maihaoche.starter.mq.transport.InMemoryMQPushConsumer;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -8,8 +10,14 @@ import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
 import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.impl.consumer.ProcessQueue;
 import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.core.ResolvableType;
 
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -23,33 +31,318 @@ public abstract class AbstractMQPushConsumer<T> extends AbstractMQConsumer<T>{
     @Setter
     private DefaultMQPushConsumer consumer;
 
+    /**
+     * CONCURRENTLY模式下每次投递给dealMessage的最大消息条数，大于1时按批调用{@link #processBatch(List)}
+     */
+    @Getter
+    @Setter
+    private int consumeMessageBatchMaxSize = 1;
+
+    private ConsumeThreadPoolAdjuster threadPoolAdjuster;
+
+    /**ORDERLY模式下按key拆分的并行lane，为null时整个queue在一个线程中顺序处理*/
+    private volatile OrderlyLanes orderlyLanes;
+
     public AbstractMQPushConsumer() {
     }
 
+    /**
+     * 开启自适应消费线程数，需要在consumer.start()之后调用
+     *
+     * @param consumeThreadMin 最小线程数
+     * @param consumeThreadMax 最大线程数
+     */
+    public synchronized void enableAdaptiveThreadPool(int consumeThreadMin, int consumeThreadMax) {
+        if (threadPoolAdjuster == null) {
+            threadPoolAdjuster = new ConsumeThreadPoolAdjuster(this, consumeThreadMin, consumeThreadMax);
+            threadPoolAdjuster.start();
+        }
+    }
+
+    /**
+     * 开启ORDERLY模式的并行lane，同一个queue的消息按key拆分到多个lane并行处理，只保证同一个key的消息有序
+     * 需要在consumer.start()之前调用
+     *
+     * @param lanes 每个queue的lane数
+     * @param maxThreads 处理lane的最大线程数
+     */
+    public synchronized void enableOrderlyLanes(int lanes, int maxThreads) {
+        if (orderlyLanes == null && lanes > 1) {
+            orderlyLanes = new OrderlyLanes(getClass().getSimpleName(), lanes, maxThreads);
+        }
+    }
+
+    /**
+     * 暂停拉取，已经拉取到本地的消息继续由消费线程处理
+     */
+    @Override
+    public void suspendConsume() {
+        if (consumer != null) {
+            consumer.suspend();
+        }
+    }
+
+    /**
+     * 本地各queue中尚未消费完成的消息数，RocketMQ在消息处理完成后才从ProcessQueue中移除，因此包含正在处理的消息
+     */
+    @Override
+    public int getBufferedCount() {
+        if (consumer == null) {
+            return 0;
+        }
+        if (consumer instanceof InMemoryMQPushConsumer) {
+            return ((InMemoryMQPushConsumer) consumer).getBufferedCount();
+        }
+        try {
+            long count = 0;
+            for (ProcessQueue processQueue : consumer.getDefaultMQPushConsumerImpl().getRebalanceImpl().getProcessQueueTable().values()) {
+                count += processQueue.getMsgCount().get();
+            }
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void shutdownConsumer() {
+        disableAdaptiveThreadPool();
+        if (consumer != null) {
+            consumer.shutdown();
+        }
+        OrderlyLanes lanes = orderlyLanes;
+        if (lanes != null) {
+            lanes.shutdown();
+        }
+    }
+
+    @PreDestroy
+    public synchronized void disableAdaptiveThreadPool() {
+        if (threadPoolAdjuster != null) {
+            threadPoolAdjuster.stop();
+            threadPoolAdjuster = null;
+        }
+    }
+
+
+    /**
+     * 批量处理消息，consumeMessageBatchMaxSize大于1时调用，可以重写此方法做批量入库等操作
+     * 默认逐条调用handler或process，遇到第一条失败的消息即停止；有@MQHandler方法时records中的消息类型按tag各不相同
+     * 处理某条消息时抛出异常，可以通过{@link BatchConsumeException}给出该消息的下标，抛出其它异常时视为第一条消息处理失败
+     *
+     * @param records 消息列表
+     * @return 最后一条处理成功的消息下标，其后的消息交给重试策略；全部失败返回-1
+     */
+    public int processBatch(List<MQRecord<T>> records) {
+        for (int i = 0; i < records.size(); i++) {
+            MQRecord<T> record = records.get(i);
+            boolean success;
+            try {
+                success = handle(record.getMessageKey(), record.getTag(), record.getMessage());
+            } catch (RuntimeException e) {
+                throw new BatchConsumeException(i, e);
+            }
+            if (!success) {
+                return i - 1;
+            }
+        }
+        return records.size() - 1;
+    }
+
+    /**
+     * 批量消费时@MQHandler方法的消息同样放在MQRecord&lt;T&gt;中交给processBatch，启动时检查这些消息类型都可以赋值给T
+     */
+    public void checkBatchRecordTypes() {
+        ResolvableType recordType = ResolvableType.forType(getMessageType());
+        MessageHandlerTable table = getHandlerTable();
+        for (String tag : table.getTags()) {
+            MessageHandlerTable.Handler handler = table.get(tag);
+            if (!recordType.isAssignableFrom(ResolvableType.forType(handler.getMessageType()))) {
+                throw new RuntimeException(handler + " - message type " + handler.getMessageType().getTypeName() + " of tag " + tag
+                        + " can not be passed to processBatch as MQRecord<" + recordType + ">, please use a super type as the consumer's type argument");
+            }
+        }
+    }
+
     /**
      * 原生dealMessage方法，可以重写此方法自定义序列化和返回消费成功的相关逻辑
+     * 批量发送的信封中任一条消息失败时整个信封重新投递，其中已经成功的消息只有开启消费去重时才会跳过
      *
      * @param list 消息列表
      * @param consumeConcurrentlyContext 上下文
      * @return 消费状态
      */
     public ConsumeConcurrentlyStatus dealMessage(List<MessageExt> list, ConsumeConcurrentlyContext consumeConcurrentlyContext) {
-        for(MessageExt messageExt : list) {
-            if(messageExt.getReconsumeTimes() != 0) {
-                if (checkReachMaxRetryTimes(messageExt)) {
-                    return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        if (consumeMessageBatchMaxSize > 1) {
+            return dealMessageBatch(list, consumeConcurrentlyContext);
+        }
+        for(MessageExt messageExt : unpack(list)) {
+            if (isDuplicate(messageExt)) {
+                continue;
+            }
+            if(messageExt.getReconsumeTimes() != 0 && checkReachMaxRetryTimes(messageExt)) {
+                if (giveUp(messageExt, null)) {
+                    continue;
                 }
+                // 死信转发器拒绝时不能确认消费，让broker稍后重新投递
+                log.warn("dead letter queue is full, ask for re-consume , msgId: {}", messageExt.getMsgId());
+                consumeConcurrentlyContext.setDelayLevelWhenNextConsume(getRetryPolicy().delayLevel(messageExt));
+                return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+            }
+            if (shouldLog(messageExt)) {
+                log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
             }
-            log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
             T t = parseMessage(messageExt);
-            if( null != t && !process( messageExt.getKeys(), messageExt.getTags(), t)) {
-                log.warn("consume fail , ask for re-consume , msgId: {}", messageExt.getMsgId());
-                return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+            if (null == t) {
+                continue;
             }
+            Exception failure = null;
+            try {
+                if (invokeProcess(messageExt, t)) {
+                    continue;
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+            if (!getRetryPolicy().shouldRetry(messageExt, failure) && giveUp(messageExt, failure)) {
+                continue;
+            }
+            log.warn("consume fail , ask for re-consume , msgId: {}", messageExt.getMsgId(), failure);
+            consumeConcurrentlyContext.setDelayLevelWhenNextConsume(getRetryPolicy().delayLevel(messageExt));
+            return ConsumeConcurrentlyStatus.RECONSUME_LATER;
         }
         return  ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
     }
 
+    /**
+     * 批量消费，处理失败的消息按重试策略逐条决定重试还是放弃，放弃后继续处理后面的消息；
+     * 通过ackIndex只让需要重试的消息及其之后的消息重新投递
+     *
+     * @param list 消息列表
+     * @param consumeConcurrentlyContext 上下文
+     * @return 消费状态
+     */
+    protected ConsumeConcurrentlyStatus dealMessageBatch(List<MessageExt> list, ConsumeConcurrentlyContext consumeConcurrentlyContext) {
+        List<MQRecord<T>> records = new ArrayList<>(list.size());
+        List<MessageExt> sources = new ArrayList<>(list.size());
+        // 每条record对应的原始消息下标，批量发送的信封拆包后多条record对应同一条原始消息
+        int[] origins = new int[list.size()];
+        // 用完处理次数的消息在处理完其它消息之后再放弃，只放弃不会重新投递的那些，避免重新投递后再次转发到死信topic
+        List<MessageExt> exhausted = new ArrayList<>();
+        List<Integer> exhaustedOrigins = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            for (MessageExt messageExt : unpack(Collections.singletonList(list.get(i)))) {
+                if (isDuplicate(messageExt)) {
+                    continue;
+                }
+                if (messageExt.getReconsumeTimes() != 0 && checkReachMaxRetryTimes(messageExt)) {
+                    exhausted.add(messageExt);
+                    exhaustedOrigins.add(i);
+                    continue;
+                }
+                if (shouldLog(messageExt)) {
+                    log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
+                }
+                T t = parseMessage(messageExt);
+                if (null == t) {
+                    continue;
+                }
+                if (records.size() == origins.length) {
+                    origins = Arrays.copyOf(origins, origins.length << 1);
+                }
+                origins[records.size()] = i;
+                sources.add(messageExt);
+                records.add(new MQRecord<>(messageExt.getKeys(), messageExt.getTags(), messageExt.getMsgId(), messageExt.getReconsumeTimes(), t));
+            }
+        }
+        // 从这条原始消息开始重新投递，等于list.size()时全部确认
+        int redeliverFrom = list.size();
+        MessageExt retried = null;
+        int from = 0;
+        while (from < records.size()) {
+            BatchOutcome outcome = processBatch(records, from, list.get(0).getTopic());
+            for (int i = from; i <= outcome.lastSuccess; i++) {
+                markConsumed(sources.get(i));
+            }
+            if (outcome.lastSuccess == records.size() - 1) {
+                break;
+            }
+            int failed = outcome.lastSuccess + 1;
+            MessageExt failedMessage = sources.get(failed);
+            Throwable failure = outcome.failure;
+            if (getRetryPolicy().shouldRetry(failedMessage, failure) || !giveUp(failedMessage, failure)) {
+                log.warn("consume fail , ask for re-consume , msgId: {}", failedMessage.getMsgId(), failure);
+                redeliverFrom = origins[failed];
+                retried = failedMessage;
+                break;
+            }
+            from = failed + 1;
+        }
+        for (int i = 0; i < exhausted.size() && exhaustedOrigins.get(i) < redeliverFrom; i++) {
+            if (!giveUp(exhausted.get(i), null)) {
+                // 死信转发器拒绝时从这条消息开始重新投递，其后已经处理成功的消息会再投递一次，开启消费去重时会被跳过
+                log.warn("dead letter queue is full, ask for re-consume , msgId: {}", exhausted.get(i).getMsgId());
+                redeliverFrom = exhaustedOrigins.get(i);
+                retried = exhausted.get(i);
+                break;
+            }
+        }
+        if (retried != null) {
+            log.warn("ask for re-consume from msgId: {}", list.get(redeliverFrom).getMsgId());
+            consumeConcurrentlyContext.setDelayLevelWhenNextConsume(getRetryPolicy().delayLevel(retried));
+        }
+        consumeConcurrentlyContext.setAckIndex(redeliverFrom - 1);
+        return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+    }
+
+    /**
+     * 把records中from及其之后的消息交给processBatch，记录耗时和限流
+     *
+     * @return 最后一条处理成功的消息在records中的下标，以及第一条失败的消息抛出的异常
+     */
+    private BatchOutcome processBatch(List<MQRecord<T>> records, int from, String topic) {
+        List<MQRecord<T>> batch = from == 0 ? records : records.subList(from, records.size());
+        ConsumeLimiter limiter = getLimiter();
+        boolean permitted = limiter.acquire(batch.size());
+        long start = System.nanoTime();
+        int lastSuccess = -1;
+        Throwable failure = null;
+        beginProcess(batch.size());
+        try {
+            lastSuccess = Math.min(processBatch(batch), batch.size() - 1);
+        } catch (BatchConsumeException e) {
+            lastSuccess = Math.min(e.getIndex(), batch.size()) - 1;
+            failure = e.getCause();
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            endProcess(batch.size());
+            if (permitted) {
+                limiter.release(System.nanoTime() - start, lastSuccess == batch.size() - 1);
+            }
+        }
+        lastSuccess = Math.max(lastSuccess, -1);
+        // 批量处理的耗时平摊到处理过的消息上，第一条失败的消息之后的消息没有处理
+        int processed = Math.min(lastSuccess + 2, batch.size());
+        long nanos = (System.nanoTime() - start) / processed;
+        for (int i = 0; i < processed; i++) {
+            recordProcess(topic, batch.get(i).getTag(), nanos, i <= lastSuccess);
+        }
+        return new BatchOutcome(from + lastSuccess, failure);
+    }
+
+    private static final class BatchOutcome {
+
+        private final int lastSuccess;
+
+        private final Throwable failure;
+
+        private BatchOutcome(int lastSuccess, Throwable failure) {
+            this.lastSuccess = lastSuccess;
+            this.failure = failure;
+        }
+    }
+
     /**
      * 原生dealMessage方法，可以重写此方法自定义序列化和返回消费成功的相关逻辑
      *
@@ -58,21 +351,63 @@ public abstract class AbstractMQPushConsumer<T> extends AbstractMQConsumer<T>{
      * @return 处理结果
      */
     public ConsumeOrderlyStatus dealMessage(List<MessageExt> list, ConsumeOrderlyContext consumeOrderlyContext) {
-        for(MessageExt messageExt : list) {
-            if(messageExt.getReconsumeTimes() != 0) {
-                if (checkReachMaxRetryTimes(messageExt)) {
-                    return ConsumeOrderlyStatus.SUCCESS;
-                }
-            }
-            log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
-            T t = parseMessage(messageExt);
-            if( null != t && !process(messageExt.getKeys(), messageExt.getTags(), t)) {
-                log.warn("consume fail , ask for re-consume , msgId: {}", messageExt.getMsgId());
+        OrderlyLanes lanes = orderlyLanes;
+        if (lanes != null) {
+            boolean success = lanes.consume(consumeOrderlyContext.getMessageQueue(), unpack(list),
+                    messageExt -> consumeOrderly(messageExt, consumeOrderlyContext));
+            return success ? ConsumeOrderlyStatus.SUCCESS : ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
+        }
+        for(MessageExt messageExt : unpack(list)) {
+            if (!consumeOrderly(messageExt, consumeOrderlyContext)) {
                 return ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT;
             }
         }
         return  ConsumeOrderlyStatus.SUCCESS;
     }
 
-
+    /**
+     * 顺序处理一条消息，开启并行lane时会在多个线程中调用
+     *
+     * @return 可以继续处理后面的消息时返回true，需要暂停当前queue（或lane）时返回false
+     */
+    private boolean consumeOrderly(MessageExt messageExt, ConsumeOrderlyContext consumeOrderlyContext) {
+        if (isDuplicate(messageExt)) {
+            return true;
+        }
+        if(messageExt.getReconsumeTimes() != 0 && checkReachMaxRetryTimes(messageExt)) {
+            if (giveUp(messageExt, null)) {
+                return true;
+            }
+            // 死信转发器拒绝时暂停当前queue，稍后重新处理这条消息
+            log.warn("dead letter queue is full, suspend current queue , msgId: {}", messageExt.getMsgId());
+            return false;
+        }
+        if (shouldLog(messageExt)) {
+            log.info("receive msgId: {}, tags : {}" , messageExt.getMsgId(), messageExt.getTags());
+        }
+        T t = parseMessage(messageExt);
+        if (null == t) {
+            return true;
+        }
+        Exception failure = null;
+        try {
+            if (invokeProcess(messageExt, t)) {
+                return true;
+            }
+        } catch (Exception e) {
+            failure = e;
+        }
+        if (!getRetryPolicy().shouldRetry(messageExt, failure) && giveUp(messageExt, failure)) {
+            return true;
+        }
+        log.warn("consume fail , ask for re-consume , msgId: {}", messageExt.getMsgId(), failure);
+        long suspendMillis = getRetryPolicy().suspendMillis(messageExt);
+        if (suspendMillis > 0) {
+            synchronized (consumeOrderlyContext) {
+                // 多个lane失败时取最长的暂停时间
+                consumeOrderlyContext.setSuspendCurrentQueueTimeMillis(Math.max(suspendMillis, consumeOrderlyContext.getSuspendCurrentQueueTimeMillis()));
+            }
+        }
+        return false;
+    }
 }
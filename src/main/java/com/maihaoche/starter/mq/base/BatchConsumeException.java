@@ -0,0 +1,22 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+
+/**
+ * processBatch处理某条消息时抛出的异常，记录该消息在records中的下标
+ * 重写processBatch时可以抛出该异常，重试策略按cause决定重试还是放弃这一条消息
+ */
+public class BatchConsumeException extends MQException {
+
+    /**处理失败的消息在records中的下标，之前的消息已经处理成功*/
+    private final int index;
+
+    public BatchConsumeException(int index, Throwable cause) {
+        super("consume batch record " + index + " fail : " + cause.getMessage(), cause);
+        this.index = index;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+}
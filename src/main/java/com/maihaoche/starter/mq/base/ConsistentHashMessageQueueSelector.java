@@ -0,0 +1,80 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 基于jump consistent hash的queue选择器，用于带hashKey的顺序发送
+ * 取模hash在queue数变化时几乎所有key都会换queue，jump hash只有约1/n的key迁移到新增的queue上，其余key的顺序不受扩容影响
+ * jump hash要求新增的桶追加在末尾，因此queue先按queueId再按brokerName排序：各broker同时扩容queue时新增的queue都排在末尾；新增broker时迁移的key会多于1/n
+ */
+public class ConsistentHashMessageQueueSelector implements MessageQueueSelector {
+
+    private static final Comparator<MessageQueue> QUEUE_ORDER =
+            Comparator.comparingInt(MessageQueue::getQueueId).thenComparing(MessageQueue::getBrokerName);
+
+    /**topic到排好序的queue，路由未变化时客户端传入的是同一个list实例*/
+    private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+
+    @Override
+    public MessageQueue select(List<MessageQueue> mqs, Message msg, Object arg) {
+        Route route = routes.get(msg.getTopic());
+        if (route == null || route.source != mqs || route.queues.length != mqs.size()) {
+            MessageQueue[] queues = mqs.toArray(new MessageQueue[0]);
+            Arrays.sort(queues, QUEUE_ORDER);
+            route = new Route(mqs, queues);
+            routes.put(msg.getTopic(), route);
+        }
+        return route.queues[jumpConsistentHash(hash(String.valueOf(arg)), route.queues.length)];
+    }
+
+    /**
+     * Lamping & Veach, A Fast, Minimal Memory, Consistent Hash Algorithm
+     */
+    static int jumpConsistentHash(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+
+    /**
+     * FNV-1a后再做一次fmix64，保证短key的高位也足够分散
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static final class Route {
+
+        private final List<MessageQueue> source;
+
+        private final MessageQueue[] queues;
+
+        private Route(List<MessageQueue> source, MessageQueue[] queues) {
+            this.source = source;
+            this.queues = queues;
+        }
+    }
+}
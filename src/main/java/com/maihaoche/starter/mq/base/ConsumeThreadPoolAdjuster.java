@@ -0,0 +1,116 @@
+package com.maihaoche.starter.mq.base;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.impl.consumer.ProcessQueue;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Push消费者的自适应线程数调整
+ * RocketMQ消费线程池使用无界队列，线程数实际只会停留在consumeThreadMin；这里定时根据本地积压的消息条数和process的平均耗时
+ * 在consumeThreadMin和consumeThreadMax之间调整核心线程数：积压多且耗时没有明显上升时扩容，积压很少或耗时明显上升（下游已过载）时缩容
+ */
+@Slf4j
+final class ConsumeThreadPoolAdjuster implements Runnable {
+
+    private static final long ADJUST_INTERVAL_MS = 5000;
+
+    /**平均每个线程积压超过该条数时扩容*/
+    private static final int GROW_BACKLOG_PER_THREAD = 16;
+
+    /**平均耗时超过基线的该倍数时认为下游已过载，不再扩容*/
+    private static final double OVERLOAD_LATENCY_RATIO = 2.0;
+
+    /**基线每个周期向当前耗时回升的比例，避免一次偶然的低耗时长期压住线程数*/
+    private static final double BASELINE_DECAY = 0.1;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "MQConsumeThreadPoolAdjuster");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AbstractMQPushConsumer<?> owner;
+
+    private final int consumeThreadMin;
+
+    /**updateCorePoolSize只接受小于consumeThreadMax的值*/
+    private final int consumeThreadLimit;
+
+    private int poolSize;
+
+    private double baselineNanos = -1;
+
+    private ScheduledFuture<?> future;
+
+    ConsumeThreadPoolAdjuster(AbstractMQPushConsumer<?> owner, int consumeThreadMin, int consumeThreadMax) {
+        this.owner = owner;
+        this.consumeThreadMin = consumeThreadMin;
+        this.consumeThreadLimit = Math.max(consumeThreadMin, consumeThreadMax - 1);
+        this.poolSize = consumeThreadMin;
+    }
+
+    void start() {
+        future = SCHEDULER.scheduleWithFixedDelay(this, ADJUST_INTERVAL_MS, ADJUST_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    void stop() {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+
+    @Override
+    public void run() {
+        DefaultMQPushConsumer consumer = owner.getConsumer();
+        if (consumer == null) {
+            return;
+        }
+        try {
+            adjust(consumer, backlog(consumer), owner.takeAverageProcessNanos());
+        } catch (Exception e) {
+            log.warn("adjust consume thread pool fail, group : {}, e : {}", consumer.getConsumerGroup(), e.getMessage());
+        }
+    }
+
+    private void adjust(DefaultMQPushConsumer consumer, long backlog, long averageNanos) {
+        boolean overloaded = false;
+        if (averageNanos > 0) {
+            if (baselineNanos < 0 || averageNanos < baselineNanos) {
+                baselineNanos = averageNanos;
+            } else {
+                overloaded = averageNanos > baselineNanos * OVERLOAD_LATENCY_RATIO;
+                baselineNanos += (averageNanos - baselineNanos) * BASELINE_DECAY;
+            }
+        }
+        int step = Math.max(1, poolSize / 4);
+        int target = poolSize;
+        if (overloaded) {
+            target = Math.max(consumeThreadMin, poolSize - step);
+        } else if (backlog > (long) poolSize * GROW_BACKLOG_PER_THREAD) {
+            target = Math.min(consumeThreadLimit, poolSize + step);
+        } else if (backlog < poolSize) {
+            target = Math.max(consumeThreadMin, poolSize - step);
+        }
+        if (target != poolSize) {
+            log.info("adjust consume thread pool, group : {}, backlog : {}, avg process ms : {}, threads : {} -> {}",
+                    consumer.getConsumerGroup(), backlog, averageNanos / 1000000, poolSize, target);
+            consumer.updateCorePoolSize(target);
+            poolSize = target;
+        }
+    }
+
+    private static long backlog(DefaultMQPushConsumer consumer) {
+        long backlog = 0;
+        for (ProcessQueue processQueue : consumer.getDefaultMQPushConsumerImpl().getRebalanceImpl().getProcessQueueTable().values()) {
+            if (!processQueue.isDropped()) {
+                backlog += processQueue.getMsgCount().get();
+            }
+        }
+        return backlog;
+    }
+}
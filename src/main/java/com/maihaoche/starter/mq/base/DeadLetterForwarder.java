@@ -0,0 +1,241 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import com.maihaoche.starter.mq.spool.CircuitBreaker;
+import com.maihaoche.starter.mq.spool.MessageSpool;
+import com.maihaoche.starter.mq.spool.SendSpool;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.selector.SelectMessageQueueByHash;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 把放弃重试的消息转发到死信topic
+ * 消费线程只做无锁入队，由{@link MessageBatchAccumulator}在单独的线程中按批打包异步发送，不会阻塞消费
+ * 待发送的消息数达到上限时拒绝转发，消费者改为让broker稍后重新投递，而不是丢弃消息
+ * 原消息在入队后就会确认消费，重试后仍发送失败的死信消息写入本地{@link SendSpool}，由回放线程在broker恢复后继续发送
+ * 死信消息保留原消息的tag、key、消息体和用户属性（codec、压缩方式等），并记录来源信息，可以直接用本starter的消费者订阅处理
+ */
+@Slf4j
+public class DeadLetterForwarder {
+
+    /**原消息的topic*/
+    public static final String ORIGIN_TOPIC_PROPERTY = "DLQ_ORIGIN_TOPIC";
+
+    /**原消息的msgId，重试消息为第一次投递时的msgId*/
+    public static final String ORIGIN_MSG_ID_PROPERTY = "DLQ_ORIGIN_MSG_ID";
+
+    /**放弃重试的consumerGroup*/
+    public static final String CONSUMER_GROUP_PROPERTY = "DLQ_CONSUMER_GROUP";
+
+    /**放弃时已重试的次数*/
+    public static final String RECONSUME_TIMES_PROPERTY = "DLQ_RECONSUME_TIMES";
+
+    /**最后一次处理抛出的异常，process返回false时没有该属性*/
+    public static final String EXCEPTION_PROPERTY = "DLQ_EXCEPTION";
+
+    private static final int MAX_EXCEPTION_LENGTH = 512;
+
+    private final DefaultMQProducer producer;
+
+    private final MessageBatchAccumulator accumulator;
+
+    private final int capacity;
+
+    private final int sendRetries;
+
+    private final MQMetrics metrics;
+
+    /**重试后仍发送失败的死信消息的本地缓冲，为null表示未开启，此时只记录错误日志*/
+    private volatile SendSpool spool;
+
+    /**已入队、尚未发送成功或最终失败的消息数*/
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * @param producer 已启动的生产者，关闭时不会关闭该生产者
+     * @param batchSize 每批最多条数
+     * @param batchBytes 每批最多字节数
+     * @param lingerMs 攒批的最长等待时间
+     * @param capacity 待发送消息数的上限
+     * @param sendRetries 发送失败后重新入队的次数
+     * @param metrics 监控指标
+     */
+    public DeadLetterForwarder(DefaultMQProducer producer, int batchSize, int batchBytes, long lingerMs,
+                               int capacity, int sendRetries, MQMetrics metrics) {
+        this.producer = producer;
+        this.accumulator = new MessageBatchAccumulator("DeadLetter", () -> this.producer, Math.max(1, batchSize), batchBytes, lingerMs);
+        this.capacity = capacity;
+        this.sendRetries = sendRetries;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 开启本地spool，重试后仍发送失败的死信消息写入本地文件，由后台线程在broker恢复后用同一个producer按hashKey顺序重新发送
+     *
+     * @param dir spool文件所在的目录
+     * @param segmentBytes 每个段文件的大小
+     * @param maxBytes spool文件的总大小上限，超过后只记录错误日志
+     * @param failureThreshold 连续发送失败多少次后熔断，熔断期间的死信消息直接写入spool
+     * @param openMs 熔断后多久开始用spool中的消息试探broker
+     * @param flushIntervalMs 定时把spool刷到磁盘的间隔
+     * @throws IOException 打开spool文件失败
+     */
+    public void enableSpool(File dir, int segmentBytes, long maxBytes, int failureThreshold, long openMs, long flushIntervalMs) throws IOException {
+        if (spool != null) {
+            return;
+        }
+        final MessageQueueSelector selector = new SelectMessageQueueByHash();
+        spool = new SendSpool("DeadLetter", new MessageSpool(dir, segmentBytes, maxBytes), new CircuitBreaker(failureThreshold, openMs),
+                () -> producer, () -> selector, OrderlyLanes.HASH_KEY_PROPERTY, flushIntervalMs);
+        metrics.bindSpool("DeadLetter", spool);
+    }
+
+    /**
+     * 转发一条消息，不等待发送结果
+     *
+     * @param messageExt 放弃重试的消息
+     * @param topic 死信topic
+     * @param group consumerGroup
+     * @param failure 最后一次处理抛出的异常，可以为null
+     * @return 已入队返回true；待发送的消息数达到上限或已关闭时返回false
+     */
+    public boolean forward(MessageExt messageExt, String topic, String group, Throwable failure) {
+        if (pendingCount.incrementAndGet() > capacity) {
+            pendingCount.decrementAndGet();
+            metrics.recordDeadLetter(group, topic, "rejected");
+            log.warn("dead letter queue is full ({}), msgId : {} will be re-consumed later", capacity, messageExt.getMsgId());
+            return false;
+        }
+        Message message = toDeadLetter(messageExt, topic, group, failure);
+        // broker不可用期间直接写入spool，不再占用待发送的额度
+        SendSpool spool = this.spool;
+        if (spool != null && spool.isBlocked() && spool.append(message)) {
+            pendingCount.decrementAndGet();
+            metrics.recordDeadLetter(group, topic, "spooled");
+            return true;
+        }
+        try {
+            accumulator.append(message, new ForwardCallback(message, group, messageExt.getMsgId()));
+            return true;
+        } catch (RuntimeException e) {
+            pendingCount.decrementAndGet();
+            metrics.recordDeadLetter(group, topic, "rejected");
+            log.warn("forward to dead letter topic {} fail, msgId : {}, e : {}", topic, messageExt.getMsgId(), e.getMessage());
+            return false;
+        }
+    }
+
+    private static Message toDeadLetter(MessageExt messageExt, String topic, String group, Throwable failure) {
+        Message message = new Message(topic, messageExt.getTags(), messageExt.getKeys(), messageExt.getBody());
+        for (Map.Entry<String, String> property : messageExt.getProperties().entrySet()) {
+            if (!MessageConst.STRING_HASH_SET.contains(property.getKey())) {
+                message.putUserProperty(property.getKey(), property.getValue());
+            }
+        }
+        String originMsgId = messageExt.getProperty(MessageConst.PROPERTY_ORIGIN_MESSAGE_ID);
+        message.putUserProperty(ORIGIN_TOPIC_PROPERTY, messageExt.getTopic());
+        message.putUserProperty(ORIGIN_MSG_ID_PROPERTY, originMsgId != null ? originMsgId : messageExt.getMsgId());
+        message.putUserProperty(CONSUMER_GROUP_PROPERTY, group);
+        message.putUserProperty(RECONSUME_TIMES_PROPERTY, String.valueOf(messageExt.getReconsumeTimes()));
+        if (failure != null) {
+            message.putUserProperty(EXCEPTION_PROPERTY, StringUtils.abbreviate(failure.toString(), MAX_EXCEPTION_LENGTH));
+        }
+        return message;
+    }
+
+    /**
+     * @return 已入队、尚未发送完成的消息数
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * 发送剩余的消息并等待发送完成，消费者关闭之后调用；最终发送失败的消息写入spool，下次启动后继续发送
+     *
+     * @param timeoutMs 最长等待时间
+     */
+    public void close(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        accumulator.close(timeoutMs);
+        try {
+            while (pendingCount.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (pendingCount.get() > 0) {
+            log.error("dead letter forwarder closed with {} messages not sent", pendingCount.get());
+        }
+        if (spool != null) {
+            spool.close(Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        }
+    }
+
+    private final class ForwardCallback implements SendCallback {
+
+        private final Message message;
+
+        private final String group;
+
+        private final String msgId;
+
+        private int attempts;
+
+        private ForwardCallback(Message message, String group, String msgId) {
+            this.message = message;
+            this.group = group;
+            this.msgId = msgId;
+        }
+
+        @Override
+        public void onSuccess(SendResult sendResult) {
+            SendSpool spool = DeadLetterForwarder.this.spool;
+            if (spool != null) {
+                spool.onSendSuccess();
+            }
+            pendingCount.decrementAndGet();
+            metrics.recordDeadLetter(group, message.getTopic(), "forwarded");
+            log.warn("message forwarded to dead letter topic {}, msgId : {}, msgKey : {}, tags : {}",
+                    message.getTopic(), msgId, message.getKeys(), message.getTags());
+        }
+
+        @Override
+        public void onException(Throwable e) {
+            if (attempts++ < sendRetries) {
+                try {
+                    accumulator.append(message, this);
+                    return;
+                } catch (RuntimeException appendFail) {
+                    log.debug("dead letter forwarder is closed, msgId : {}", msgId);
+                }
+            }
+            // 写入spool之后再减少待发送数，close等待期间spool不会先关闭
+            SendSpool spool = DeadLetterForwarder.this.spool;
+            if (spool != null && spool.onSendFailure(message, e)) {
+                pendingCount.decrementAndGet();
+                metrics.recordDeadLetter(group, message.getTopic(), "spooled");
+                log.warn("forward to dead letter topic {} fail, spooled to resend later, msgId : {}, e : {}", message.getTopic(), msgId, e.getMessage());
+                return;
+            }
+            pendingCount.decrementAndGet();
+            metrics.recordDeadLetter(group, message.getTopic(), "failed");
+            log.error("forward to dead letter topic {} fail, please process by manual work, msgId : {}, msgKey : {}, tags : {}, e : {}",
+                    message.getTopic(), msgId, message.getKeys(), message.getTags(), e.getMessage());
+        }
+    }
+}
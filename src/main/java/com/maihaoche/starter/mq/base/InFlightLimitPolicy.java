@@ -0,0 +1,13 @@
+package com.maihaoche.starter.mq.base;
+
+/**
+ * 异步发送在途数量达到上限时的处理方式
+ */
+public enum InFlightLimitPolicy {
+    /**阻塞调用线程直到有在途请求完成*/
+    BLOCK,
+    /**立即失败*/
+    FAIL_FAST,
+    /**最多阻塞指定时间，超时后失败*/
+    TIMEOUT
+}
@@ -0,0 +1,200 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.remoting.exception.RemotingException;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 优先选择近期发送延迟较低的broker上的queue，用于不要求顺序的发送
+ * 每次随机取两个queue，比较所在broker的延迟EWMA乘以在途请求数，选较小的一个；慢broker仍有一定概率被选中，延迟恢复后能及时感知
+ * 发送时arg传入{@link #newSelection()}，发送完成后调用{@link #complete(Selection, long, boolean)}反馈耗时
+ * 通过selector发送时客户端只尝试一次，失败后由调用方用同一个Selection重试，重试时跳过已经失败过的broker
+ */
+public class LatencyAwareMessageQueueSelector implements MessageQueueSelector {
+
+    /**新样本的权重*/
+    private static final double ALPHA = 0.3;
+
+    /**发送失败时按该耗时和当前EWMA的两倍中的较大值计入*/
+    private static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentMap<String, BrokerStats> brokers = new ConcurrentHashMap<>();
+
+    /**
+     * @return 本次发送的选择结果，作为arg传给producer.send
+     */
+    public Selection newSelection() {
+        return new Selection();
+    }
+
+    @Override
+    public MessageQueue select(List<MessageQueue> mqs, Message msg, Object arg) {
+        if (arg instanceof Selection && ((Selection) arg).failedBrokers != null) {
+            mqs = exclude(mqs, ((Selection) arg).failedBrokers);
+        }
+        int size = mqs.size();
+        MessageQueue selected;
+        if (size == 1) {
+            selected = mqs.get(0);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = random.nextInt(size - 1);
+            if (second >= first) {
+                second++;
+            }
+            MessageQueue a = mqs.get(first);
+            MessageQueue b = mqs.get(second);
+            selected = stats(a.getBrokerName()).load() <= stats(b.getBrokerName()).load() ? a : b;
+        }
+        if (arg instanceof Selection) {
+            BrokerStats stats = stats(selected.getBrokerName());
+            stats.inFlight.incrementAndGet();
+            ((Selection) arg).stats = stats;
+            ((Selection) arg).brokerName = selected.getBrokerName();
+        }
+        return selected;
+    }
+
+    /**
+     * 去掉已经失败过的broker上的queue，所有broker都失败过时不再排除
+     */
+    private static List<MessageQueue> exclude(List<MessageQueue> mqs, Set<String> failedBrokers) {
+        List<MessageQueue> candidates = new ArrayList<>(mqs.size());
+        for (MessageQueue mq : mqs) {
+            if (!failedBrokers.contains(mq.getBrokerName())) {
+                candidates.add(mq);
+            }
+        }
+        return candidates.isEmpty() ? mqs : candidates;
+    }
+
+    /**
+     * 与客户端默认发送的重试条件一致：网络异常、客户端异常（消息不合法除外）以及broker暂时不可用类的错误码
+     *
+     * @param e 发送抛出的异常
+     * @return 是否可以换broker重试
+     */
+    static boolean isRetriable(Throwable e) {
+        if (e instanceof RemotingException) {
+            return true;
+        }
+        if (e instanceof MQClientException) {
+            return ((MQClientException) e).getResponseCode() != ResponseCode.MESSAGE_ILLEGAL;
+        }
+        if (e instanceof MQBrokerException) {
+            switch (((MQBrokerException) e).getResponseCode()) {
+                case ResponseCode.TOPIC_NOT_EXIST:
+                case ResponseCode.SERVICE_NOT_AVAILABLE:
+                case ResponseCode.SYSTEM_ERROR:
+                case ResponseCode.NO_PERMISSION:
+                case ResponseCode.NO_BUYER_ID:
+                case ResponseCode.NOT_IN_CURRENT_UNIT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 反馈一次发送的结果，未选出queue（如路由不存在）时忽略
+     *
+     * @param selection 发送时传入的选择结果
+     * @param elapsedNanos 发送耗时
+     * @param success 是否发送成功
+     */
+    public void complete(Selection selection, long elapsedNanos, boolean success) {
+        BrokerStats stats = selection.stats;
+        if (stats == null) {
+            return;
+        }
+        selection.stats = null;
+        if (!success) {
+            if (selection.failedBrokers == null) {
+                selection.failedBrokers = new HashSet<>();
+            }
+            selection.failedBrokers.add(selection.brokerName);
+        }
+        stats.inFlight.decrementAndGet();
+        stats.update(success ? elapsedNanos : Math.max(elapsedNanos, FAILURE_PENALTY_NANOS), !success);
+    }
+
+    /**
+     * @param brokerName broker名称
+     * @return broker近期发送延迟的EWMA，单位纳秒，没有样本时为0
+     */
+    public long getLatencyNanos(String brokerName) {
+        BrokerStats stats = brokers.get(brokerName);
+        return stats == null ? 0 : stats.ewmaNanos.get();
+    }
+
+    private BrokerStats stats(String brokerName) {
+        BrokerStats stats = brokers.get(brokerName);
+        if (stats == null) {
+            stats = brokers.computeIfAbsent(brokerName, key -> new BrokerStats());
+        }
+        return stats;
+    }
+
+    /**
+     * 一次发送（包括重试）选中的broker
+     */
+    public static final class Selection {
+
+        private volatile BrokerStats stats;
+
+        private volatile String brokerName;
+
+        /**发送失败过的broker，重试时跳过，第一次失败时创建*/
+        private volatile Set<String> failedBrokers;
+
+        private Selection() {
+        }
+    }
+
+    private static final class BrokerStats {
+
+        private final AtomicLong ewmaNanos = new AtomicLong();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        /**
+         * 没有样本的broker负载为0，会优先被选中以获得样本
+         */
+        private double load() {
+            return (double) ewmaNanos.get() * (inFlight.get() + 1);
+        }
+
+        private void update(long sampleNanos, boolean failed) {
+            long current;
+            long next;
+            do {
+                current = ewmaNanos.get();
+                if (current == 0) {
+                    next = sampleNanos;
+                } else if (failed) {
+                    next = Math.max(sampleNanos, current * 2);
+                } else {
+                    next = current + (long) ((sampleNanos - current) * ALPHA);
+                }
+            } while (!ewmaNanos.compareAndSet(current, next));
+        }
+    }
+}
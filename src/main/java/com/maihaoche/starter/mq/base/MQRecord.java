@@ -0,0 +1,36 @@
+package com.maihaoche.starter.mq.base;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * 批量消费时的单条消息
+ *
+ * @param <T> 消息范型
+ */
+@Getter
+@ToString
+public class MQRecord<T> {
+
+    /**消息key*/
+    private final String messageKey;
+
+    /**消息tag*/
+    private final String tag;
+
+    private final String msgId;
+
+    /**已重试次数*/
+    private final int reconsumeTimes;
+
+    /**反序列化后的消息*/
+    private final T message;
+
+    public MQRecord(String messageKey, String tag, String msgId, int reconsumeTimes, T message) {
+        this.messageKey = messageKey;
+        this.tag = tag;
+        this.msgId = msgId;
+        this.reconsumeTimes = reconsumeTimes;
+        this.message = message;
+    }
+}
@@ -0,0 +1,272 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 生产者端的批量发送累加器
+ * 发送线程只做无锁入队，按topic+tag分组；攒够条数/字节数或者超过linger时间后，由单独的flush线程打包成一条信封消息异步发送
+ * 同一topic+tag下的消息按入队顺序打包发送
+ */
+@Slf4j
+final class MessageBatchAccumulator {
+
+    private final Supplier<DefaultMQProducer> producerSupplier;
+
+    private final int maxBatchSize;
+
+    private final int maxBatchBytes;
+
+    private final long lingerNanos;
+
+    private final ConcurrentMap<String, BatchQueue> queues = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flusher;
+
+    private volatile boolean closed;
+
+    /**正在追加的线程数，close等这些消息入队后再做最后一次发送，避免消息在最后一次发送之后入队而丢失*/
+    private final AtomicInteger appendsInProgress = new AtomicInteger();
+
+    /**已经发出、还没有回调的批次数，close时等待回调完成后才能关闭生产者*/
+    private final AtomicInteger pendingSends = new AtomicInteger();
+
+    MessageBatchAccumulator(String name, Supplier<DefaultMQProducer> producerSupplier, int maxBatchSize, int maxBatchBytes, long lingerMs) {
+        this.producerSupplier = producerSupplier;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMs);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "MQBatchFlusher-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        long tick = Math.max(1L, lingerMs / 2);
+        this.flusher.scheduleWithFixedDelay(this::flushExpired, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 追加一条消息
+     *
+     * @param message 消息
+     * @param sendCallback 所在信封发送完成后回调，sendOneWay时为null
+     */
+    void append(Message message, SendCallback sendCallback) {
+        appendsInProgress.incrementAndGet();
+        try {
+            if (closed) {
+                throw new MQException("batch accumulator is closed");
+            }
+            enqueue(message, sendCallback);
+        } finally {
+            appendsInProgress.decrementAndGet();
+        }
+    }
+
+    private void enqueue(Message message, SendCallback sendCallback) {
+        String key = message.getTopic() + '\u0001' + StringUtils.defaultString(message.getTags());
+        BatchQueue queue = queues.get(key);
+        if (queue == null) {
+            BatchQueue created = new BatchQueue(message.getTopic(), message.getTags());
+            queue = queues.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        int size = MessageEnvelope.estimateSize(message);
+        queue.entries.offer(new Entry(message, sendCallback, size, System.nanoTime()));
+        int count = queue.count.incrementAndGet();
+        long bytes = queue.bytes.addAndGet(size);
+        if ((count >= maxBatchSize || bytes >= maxBatchBytes) && queue.flushScheduled.compareAndSet(false, true)) {
+            final BatchQueue full = queue;
+            flusher.execute(() -> {
+                full.flushScheduled.set(false);
+                drain(full, true);
+            });
+        }
+    }
+
+    /**
+     * 关闭累加器，发送剩余的消息并等待所有批次的发送回调
+     *
+     * @param timeoutMs 等待剩余消息发送完成的最长时间
+     */
+    void close(long timeoutMs) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 已经通过closed检查的追加很快会入队，等它们完成后再做最后一次发送
+        while (appendsInProgress.get() > 0) {
+            Thread.yield();
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        flusher.execute(() -> {
+            for (BatchQueue queue : queues.values()) {
+                drain(queue, false);
+            }
+        });
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                log.warn("batch accumulator close timeout, some batched messages may be lost");
+                return;
+            }
+            synchronized (pendingSends) {
+                long remaining;
+                while (pendingSends.get() > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    pendingSends.wait(remaining);
+                }
+            }
+            if (pendingSends.get() > 0) {
+                log.warn("batch accumulator close timeout, {} batches still sending", pendingSends.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sendCompleted() {
+        if (pendingSends.decrementAndGet() == 0 && closed) {
+            synchronized (pendingSends) {
+                pendingSends.notifyAll();
+            }
+        }
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        for (BatchQueue queue : queues.values()) {
+            Entry oldest = queue.entries.peek();
+            if (oldest != null && now - oldest.enqueueNanos >= lingerNanos) {
+                drain(queue, false);
+            }
+        }
+    }
+
+    /**
+     * 只在flush线程中调用，因此同一队列的出队与发送是串行的
+     *
+     * @param onlyFull true时只发送攒满条数或字节数的批次，剩余的等待linger超时，否则把队列中的消息全部发出
+     */
+    private void drain(BatchQueue queue, boolean onlyFull) {
+        while (!onlyFull || queue.count.get() >= maxBatchSize || queue.bytes.get() >= maxBatchBytes) {
+            List<Entry> batch = new ArrayList<>(Math.min(maxBatchSize, Math.max(queue.count.get(), 1)));
+            int batchBytes = 0;
+            Entry entry;
+            while (batch.size() < maxBatchSize && (batchBytes < maxBatchBytes || batch.isEmpty()) && (entry = queue.entries.poll()) != null) {
+                batch.add(entry);
+                batchBytes += entry.size;
+                queue.count.decrementAndGet();
+                queue.bytes.addAndGet(-entry.size);
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            send(queue, batch);
+        }
+    }
+
+    private void send(BatchQueue queue, final List<Entry> batch) {
+        Message message;
+        if (batch.size() == 1) {
+            message = batch.get(0).message;
+        } else {
+            List<Message> messages = new ArrayList<>(batch.size());
+            for (Entry entry : batch) {
+                messages.add(entry.message);
+            }
+            message = MessageEnvelope.pack(queue.topic, queue.tag, messages);
+        }
+        SendCallback callback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                try {
+                    for (Entry entry : batch) {
+                        if (entry.sendCallback != null) {
+                            entry.sendCallback.onSuccess(sendResult);
+                        }
+                    }
+                } finally {
+                    sendCompleted();
+                }
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                log.error("批量消息发送失败，topic : {}, 条数 : {}, e {}", queue.topic, batch.size(), e);
+                try {
+                    for (Entry entry : batch) {
+                        if (entry.sendCallback != null) {
+                            entry.sendCallback.onException(e);
+                        }
+                    }
+                } finally {
+                    sendCompleted();
+                }
+            }
+        };
+        pendingSends.incrementAndGet();
+        try {
+            producerSupplier.get().send(message, callback);
+        } catch (Exception e) {
+            callback.onException(e);
+        }
+    }
+
+    private static final class BatchQueue {
+
+        private final String topic;
+
+        private final String tag;
+
+        private final ConcurrentLinkedQueue<Entry> entries = new ConcurrentLinkedQueue<>();
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        private final AtomicLong bytes = new AtomicLong();
+
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        private BatchQueue(String topic, String tag) {
+            this.topic = topic;
+            this.tag = tag;
+        }
+    }
+
+    private static final class Entry {
+
+        private final Message message;
+
+        private final SendCallback sendCallback;
+
+        private final int size;
+
+        private final long enqueueNanos;
+
+        private Entry(Message message, SendCallback sendCallback, int size, long enqueueNanos) {
+            this.message = message;
+            this.sendCallback = sendCallback;
+            this.size = size;
+            this.enqueueNanos = enqueueNanos;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量发送时把多条消息打包成一条信封消息，消费端再拆包还原
+ * 信封消息带有用户属性{@link #BATCH_PROPERTY}（值为打包的消息条数），消息体格式：
+ * [int 条数] 之后每条消息 [int 属性长度][属性][int 消息体长度][消息体]，属性为RocketMQ的properties字符串格式
+ */
+final class MessageEnvelope {
+
+    static final String BATCH_PROPERTY = "MQ_BATCH";
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    /**信封消息上汇总的key总长度上限，超过后不再追加，避免属性超出broker限制*/
+    private static final int MAX_ENVELOPE_KEYS_LENGTH = 4096;
+
+    private MessageEnvelope() {
+    }
+
+    static boolean isEnvelope(Message message) {
+        return message.getUserProperty(BATCH_PROPERTY) != null;
+    }
+
+    /**
+     * 估算消息打包后占用的字节数
+     */
+    static int estimateSize(Message message) {
+        int propertiesSize = 0;
+        for (Map.Entry<String, String> entry : message.getProperties().entrySet()) {
+            propertiesSize += entry.getKey().length() + entry.getValue().length() + 2;
+        }
+        return 8 + propertiesSize + message.getBody().length;
+    }
+
+    /**
+     * 打包同一topic、tag下的多条消息
+     *
+     * @param topic topic
+     * @param tag tag
+     * @param messages 待打包的消息
+     * @return 信封消息
+     */
+    static Message pack(String topic, String tag, List<Message> messages) {
+        int estimated = 4;
+        for (Message message : messages) {
+            estimated += estimateSize(message);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(estimated);
+        DataOutputStream out = new DataOutputStream(bytes);
+        StringBuilder keys = new StringBuilder();
+        try {
+            out.writeInt(messages.size());
+            for (Message message : messages) {
+                byte[] properties = MessageDecoder.messageProperties2String(message.getProperties()).getBytes(UTF_8);
+                out.writeInt(properties.length);
+                out.write(properties);
+                out.writeInt(message.getBody().length);
+                out.write(message.getBody());
+                String key = message.getKeys();
+                if (StringUtils.isNotEmpty(key) && keys.length() + key.length() < MAX_ENVELOPE_KEYS_LENGTH) {
+                    keys.append(key).append(MessageConst.KEY_SEPARATOR);
+                }
+            }
+        } catch (IOException e) {
+            throw new MQException("pack batch message fail : " + e.getMessage(), e);
+        }
+        Message envelope = new Message(topic, bytes.toByteArray());
+        if (StringUtils.isNotEmpty(tag)) {
+            envelope.setTags(tag);
+        }
+        // 汇总每条消息的key，使broker上仍然可以按key查询到信封消息
+        if (keys.length() > 0) {
+            envelope.setKeys(keys.toString().trim());
+        }
+        envelope.putUserProperty(BATCH_PROPERTY, String.valueOf(messages.size()));
+        return envelope;
+    }
+
+    /**
+     * 拆包信封消息，还原出的消息沿用信封的队列、位点、重试次数等信息，msgId为"信封msgId-序号"
+     *
+     * @param envelope 信封消息
+     * @return 打包前的消息
+     */
+    static List<MessageExt> unpack(MessageExt envelope) {
+        ByteBuffer buffer = ByteBuffer.wrap(envelope.getBody());
+        int count = buffer.getInt();
+        List<MessageExt> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] properties = new byte[buffer.getInt()];
+            buffer.get(properties);
+            byte[] body = new byte[buffer.getInt()];
+            buffer.get(body);
+
+            // 重试消息的msgId与原消息相同，因此拆包后的msgId在重新投递时不变，可以用来跳过已经成功的消息
+            MessageExt message = new MessageExt(envelope.getQueueId(), envelope.getBornTimestamp(), envelope.getBornHost(),
+                    envelope.getStoreTimestamp(), envelope.getStoreHost(), envelope.getMsgId() + "-" + i);
+            message.setTopic(envelope.getTopic());
+            message.setSysFlag(envelope.getSysFlag());
+            message.setQueueOffset(envelope.getQueueOffset());
+            message.setCommitLogOffset(envelope.getCommitLogOffset());
+            message.setReconsumeTimes(envelope.getReconsumeTimes());
+            message.setFlag(envelope.getFlag());
+            message.setBody(body);
+            Map<String, String> merged = MessageDecoder.string2messageProperties(new String(properties, UTF_8));
+            // 信封上由broker追加的系统属性（如重试相关）对每条消息都有效
+            for (Map.Entry<String, String> entry : envelope.getProperties().entrySet()) {
+                if (!merged.containsKey(entry.getKey()) && !BATCH_PROPERTY.equals(entry.getKey())
+                        && !MessageConst.PROPERTY_KEYS.equals(entry.getKey())) {
+                    merged.put(entry.getKey(), entry.getValue());
+                }
+            }
+            MessageAccessor.setProperties(message, merged);
+            messages.add(message);
+        }
+        return messages;
+    }
+}
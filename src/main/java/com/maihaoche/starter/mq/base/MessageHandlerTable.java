@@ -0,0 +1,183 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+import com.maihaoche.starter.mq.annotation.MQHandler;
+import com.maihaoche.starter.mq.codec.MessageDecoder;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 消费者bean上@MQHandler方法按tag组成的分发表，启动时构建一次
+ * 每个方法预先适配成(String, String, Object)boolean的MethodHandle，消费时不再做反射查找和参数适配
+ */
+public class MessageHandlerTable {
+
+    /**没有@MQHandler方法，所有消息都交给process*/
+    public static final MessageHandlerTable EMPTY = new MessageHandlerTable(Collections.emptyMap());
+
+    private static final MethodType INVOKER_TYPE = MethodType.methodType(boolean.class, String.class, String.class, Object.class);
+
+    /**返回Boolean的方法返回null时按处理失败处理，避免拆箱时抛出NullPointerException*/
+    private static final MethodHandle NULL_AS_FALSE;
+
+    static {
+        try {
+            NULL_AS_FALSE = MethodHandles.lookup().findStatic(MessageHandlerTable.class, "nullAsFalse", MethodType.methodType(boolean.class, Boolean.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final Map<String, Handler> handlers;
+
+    private MessageHandlerTable(Map<String, Handler> handlers) {
+        this.handlers = handlers;
+    }
+
+    /**
+     * 扫描bean上的@MQHandler方法
+     *
+     * @param bean 消费者bean
+     * @return 分发表，没有@MQHandler方法时返回{@link #EMPTY}
+     */
+    public static MessageHandlerTable build(Object bean) {
+        Map<String, Handler> handlers = new HashMap<>();
+        // 子类重写的方法只保留子类的版本
+        for (Method method : ReflectionUtils.getUniqueDeclaredMethods(ClassUtils.getUserClass(bean))) {
+            MQHandler mqHandler = method.isBridge() ? null : AnnotationUtils.findAnnotation(method, MQHandler.class);
+            if (mqHandler == null) {
+                continue;
+            }
+            Handler handler = new Handler(method, invoker(bean, method));
+            for (String tag : mqHandler.tag()) {
+                if (tag.isEmpty() || "*".equals(tag) || tag.contains("||")) {
+                    throw new RuntimeException(method + " - @MQHandler tag must be a single concrete tag, got : " + tag);
+                }
+                Handler previous = handlers.put(tag, handler);
+                if (previous != null) {
+                    throw new RuntimeException("tag " + tag + " is handled by both " + previous + " and " + method);
+                }
+            }
+        }
+        return handlers.isEmpty() ? EMPTY : new MessageHandlerTable(handlers);
+    }
+
+    /**
+     * 适配成(String messageKey, String tag, Object message)boolean
+     */
+    private static MethodHandle invoker(Object bean, Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        boolean full = parameterTypes.length == 3 && parameterTypes[0] == String.class && parameterTypes[1] == String.class;
+        if (parameterTypes.length != 1 && !full) {
+            throw new RuntimeException(method + " - @MQHandler method parameters must be (message) or (String messageKey, String tag, message)");
+        }
+        Class<?> returnType = method.getReturnType();
+        if (returnType != boolean.class && returnType != Boolean.class && returnType != void.class) {
+            throw new RuntimeException(method + " - @MQHandler method must return boolean or void");
+        }
+        ReflectionUtils.makeAccessible(method);
+        MethodHandle handle;
+        try {
+            handle = MethodHandles.lookup().unreflect(method).bindTo(bean);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(method + " - @MQHandler method is not accessible", e);
+        }
+        if (!full) {
+            handle = MethodHandles.dropArguments(handle, 0, String.class, String.class);
+        }
+        if (returnType == Boolean.class) {
+            handle = MethodHandles.filterReturnValue(handle, NULL_AS_FALSE);
+        } else if (returnType == void.class) {
+            // 先执行方法，再返回常量true
+            MethodHandle success = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, handle.type().parameterList());
+            handle = MethodHandles.foldArguments(success, handle);
+        }
+        return handle.asType(INVOKER_TYPE);
+    }
+
+    private static boolean nullAsFalse(Boolean result) {
+        return result != null && result;
+    }
+
+    public boolean isEmpty() {
+        return handlers.isEmpty();
+    }
+
+    /**
+     * @return 所有handler处理的tag
+     */
+    public Set<String> getTags() {
+        return new LinkedHashSet<>(handlers.keySet());
+    }
+
+    /**
+     * @param tag 消息tag
+     * @return 处理该tag的handler，没有时返回null
+     */
+    public Handler get(String tag) {
+        return tag == null || handlers.isEmpty() ? null : handlers.get(tag);
+    }
+
+    /**
+     * 一个@MQHandler方法
+     */
+    public static final class Handler {
+
+        private final Method method;
+
+        private final MethodHandle invoker;
+
+        private final Type messageType;
+
+        /**按codec id缓存绑定了消息类型的解码器*/
+        final ConcurrentMap<String, MessageDecoder<Object>> decoders = new ConcurrentHashMap<>();
+
+        private Handler(Method method, MethodHandle invoker) {
+            this.method = method;
+            this.invoker = invoker;
+            Type[] parameterTypes = method.getGenericParameterTypes();
+            this.messageType = parameterTypes[parameterTypes.length - 1];
+        }
+
+        public Type getMessageType() {
+            return messageType;
+        }
+
+        /**
+         * 调用handler方法，受检异常包装为MQException抛出
+         *
+         * @param messageKey 消息key
+         * @param tag 消息tag
+         * @param message 解析后的消息
+         * @return 处理结果
+         */
+        public boolean invoke(String messageKey, String tag, Object message) {
+            try {
+                return (boolean) invoker.invokeExact(messageKey, tag, message);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new MQException("invoke " + method + " fail : " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
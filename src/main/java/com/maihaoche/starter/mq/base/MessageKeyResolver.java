@@ -0,0 +1,79 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.annotation.MQKey;
+import org.apache.commons.lang3.StringUtils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * 按消息类缓存@MQKey字段的元数据
+ * 每个消息类只在第一次发送时反射解析一次（包括父类中声明的字段），之后通过预编译的MethodHandle读取字段值
+ */
+final class MessageKeyResolver {
+
+    private static final MessageKeyResolver NONE = new MessageKeyResolver(null, "");
+
+    private static final ClassValue<MessageKeyResolver> CACHE = new ClassValue<MessageKeyResolver>() {
+        @Override
+        protected MessageKeyResolver computeValue(Class<?> type) {
+            return resolve(type);
+        }
+    };
+
+    private final MethodHandle getter;
+
+    private final String prefix;
+
+    private MessageKeyResolver(MethodHandle getter, String prefix) {
+        this.getter = getter;
+        this.prefix = prefix;
+    }
+
+    static MessageKeyResolver forClass(Class<?> type) {
+        return CACHE.get(type);
+    }
+
+    /**
+     * 读取消息对象的key，没有@MQKey字段或字段值为null时返回空串
+     *
+     * @param msgObj 消息体
+     * @return 消息key
+     */
+    String resolveKey(Object msgObj) throws Throwable {
+        if (getter == null) {
+            return "";
+        }
+        Object value = getter.invokeExact(msgObj);
+        if (value == null) {
+            return "";
+        }
+        return prefix.isEmpty() ? value.toString() : prefix + value.toString();
+    }
+
+    private static MessageKeyResolver resolve(Class<?> type) {
+        // 子类字段优先于父类字段，同一个类中有多个@MQKey字段时以最后一个为准
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            Field keyField = null;
+            for (Field field : current.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()) && field.isAnnotationPresent(MQKey.class)) {
+                    keyField = field;
+                }
+            }
+            if (keyField != null) {
+                try {
+                    keyField.setAccessible(true);
+                    MethodHandle getter = MethodHandles.lookup().unreflectGetter(keyField)
+                            .asType(MethodType.methodType(Object.class, Object.class));
+                    return new MessageKeyResolver(getter, StringUtils.defaultString(keyField.getAnnotation(MQKey.class).prefix()));
+                } catch (IllegalAccessException e) {
+                    throw new IllegalStateException("can not access @MQKey field " + keyField, e);
+                }
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,98 @@
+package com.maihaoche.starter.mq.base;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 发送、接收消息这类热点路径上INFO日志的采样与限流策略，错误日志不受影响
+ * 调用方先通过{@link #shouldLog(String)}判断，被抑制的日志不会格式化任何参数；消息体通过{@link #payload(Object)}延迟到真正输出时才toString并截断
+ */
+public class MessageLogPolicy {
+
+    /**不采样、不限流、不截断，与之前逐条打印的行为一致*/
+    public static final MessageLogPolicy ALL = new MessageLogPolicy(1.0, Collections.emptyMap(), 0, 0);
+
+    private final double sampleRatio;
+
+    private final Map<String, Double> topicSampleRatios;
+
+    private final int maxLinesPerSecond;
+
+    private final int maxPayloadLength;
+
+    /**当前限流窗口的起始秒数*/
+    private final AtomicLong window = new AtomicLong();
+
+    private final AtomicInteger lines = new AtomicInteger();
+
+    /**
+     * @param sampleRatio 默认采样比例，0到1之间
+     * @param topicSampleRatios 按topic覆盖的采样比例
+     * @param maxLinesPerSecond 每秒最多输出的日志行数，小于等于0表示不限制
+     * @param maxPayloadLength 消息体toString后保留的最大长度，小于等于0表示不截断
+     */
+    public MessageLogPolicy(double sampleRatio, Map<String, Double> topicSampleRatios, int maxLinesPerSecond, int maxPayloadLength) {
+        this.sampleRatio = sampleRatio;
+        this.topicSampleRatios = topicSampleRatios.isEmpty() ? Collections.emptyMap() : new HashMap<>(topicSampleRatios);
+        this.maxLinesPerSecond = maxLinesPerSecond;
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * 是否输出topic上的一行热点日志，调用方还需自行判断日志级别是否开启
+     *
+     * @param topic topic
+     * @return 需要输出时返回true
+     */
+    public boolean shouldLog(String topic) {
+        Double topicRatio = topicSampleRatios.isEmpty() || topic == null ? null : topicSampleRatios.get(topic);
+        double ratio = topicRatio == null ? sampleRatio : topicRatio;
+        if (ratio <= 0 || (ratio < 1 && ThreadLocalRandom.current().nextDouble() >= ratio)) {
+            return false;
+        }
+        if (maxLinesPerSecond <= 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long current = window.get();
+        if (current != second && window.compareAndSet(current, second)) {
+            lines.set(0);
+        }
+        return lines.incrementAndGet() <= maxLinesPerSecond;
+    }
+
+    /**
+     * 包装消息体，日志框架格式化时才调用toString，超出长度的部分截断
+     *
+     * @param payload 消息体
+     * @return 用于日志参数的对象
+     */
+    public Object payload(Object payload) {
+        return maxPayloadLength <= 0 ? payload : new TruncatedPayload(payload, maxPayloadLength);
+    }
+
+    private static final class TruncatedPayload {
+
+        private final Object payload;
+
+        private final int maxLength;
+
+        private TruncatedPayload(Object payload, int maxLength) {
+            this.payload = payload;
+            this.maxLength = maxLength;
+        }
+
+        @Override
+        public String toString() {
+            String text = String.valueOf(payload);
+            if (text.length() <= maxLength) {
+                return text;
+            }
+            return text.substring(0, maxLength) + "...(" + text.length() + " chars)";
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.maihaoche.starter.mq.base;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * ORDERLY模式下把一个queue的一批消息按key拆分到多个lane并行处理，只保证同一个key的消息有序
+ * key优先取顺序发送时记录的hashKey，其次取消息key，都没有的消息放在第一个lane
+ * 一批消息的所有lane都处理成功才返回成功（提交位点）；有lane失败时整批暂停后重新消费，已经处理成功的消息在重新消费时跳过
+ */
+@Slf4j
+final class OrderlyLanes {
+
+    /**顺序发送时记录hashKey的用户属性*/
+    static final String HASH_KEY_PROPERTY = "MQ_HASH_KEY";
+
+    private final int lanes;
+
+    private final ThreadPoolExecutor executor;
+
+    /**各queue上次暂停前已经处理成功的消息msgId*/
+    private final ConcurrentMap<MessageQueue, Set<String>> consumed = new ConcurrentHashMap<>();
+
+    /**
+     * @param name 线程名后缀
+     * @param lanes lane数
+     * @param maxThreads 处理lane的最大线程数，不够时由消费线程自己处理
+     */
+    OrderlyLanes(String name, int lanes, int maxThreads) {
+        this.lanes = lanes;
+        final AtomicInteger index = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "MQOrderlyLane-" + name + "-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * 按lane并行处理一批消息，同一个lane内遇到处理失败的消息即停止
+     *
+     * @param mq 消息所在的queue
+     * @param messages 按位点排列的消息
+     * @param consumer 处理一条消息，返回false表示该lane需要暂停
+     * @return 所有消息都处理成功时返回true
+     */
+    boolean consume(MessageQueue mq, List<MessageExt> messages, Predicate<MessageExt> consumer) {
+        // 同一个queue同一时刻只有一个消费线程在处理
+        Set<String> done = consumed.remove(mq);
+        if (done == null) {
+            done = ConcurrentHashMap.newKeySet();
+        }
+        List<List<MessageExt>> partitions = new ArrayList<>(lanes);
+        for (int i = 0; i < lanes; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (MessageExt messageExt : messages) {
+            if (!done.contains(messageExt.getMsgId())) {
+                partitions.get(laneOf(messageExt)).add(messageExt);
+            }
+        }
+        final Set<String> succeeded = done;
+        List<Future<Boolean>> futures = new ArrayList<>(lanes - 1);
+        List<MessageExt> inline = null;
+        for (List<MessageExt> partition : partitions) {
+            if (partition.isEmpty()) {
+                continue;
+            }
+            if (inline == null) {
+                // 第一个非空的lane由当前消费线程处理
+                inline = partition;
+            } else {
+                futures.add(executor.submit(() -> consumeLane(partition, consumer, succeeded)));
+            }
+        }
+        boolean success = inline == null || consumeLane(inline, consumer, succeeded);
+        try {
+            for (Future<Boolean> future : futures) {
+                try {
+                    success &= future.get();
+                } catch (ExecutionException e) {
+                    success = false;
+                    log.warn("consume orderly lane fail, mq : {}, e : {}", mq, e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            success = false;
+        }
+        if (!success) {
+            consumed.put(mq, succeeded);
+        }
+        return success;
+    }
+
+    private static boolean consumeLane(List<MessageExt> lane, Predicate<MessageExt> consumer, Set<String> succeeded) {
+        for (MessageExt messageExt : lane) {
+            if (!consumer.test(messageExt)) {
+                return false;
+            }
+            succeeded.add(messageExt.getMsgId());
+        }
+        return true;
+    }
+
+    /**
+     * 生产者按hashCode取模选择queue时，同一个queue中key的hashCode对queue数同余，直接取模会集中到少数lane上，先做一次fmix32打散
+     */
+    int laneOf(MessageExt messageExt) {
+        String key = messageExt.getUserProperty(HASH_KEY_PROPERTY);
+        if (StringUtils.isEmpty(key)) {
+            key = messageExt.getKeys();
+        }
+        if (StringUtils.isEmpty(key)) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return Math.floorMod(h, lanes);
+    }
+
+    int getLanes() {
+        return lanes;
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,569 @@
+package com.maihaoche.starter.mq.base;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.client.QueryResult;
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.remoting.exception.RemotingException;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 由多个客户端实例组成的生产者，每个实例使用不同的instanceName，拥有独立的MQClientInstance和网络连接
+ * 按topic条带化时同一个topic固定使用同一个实例，慢topic只会拖慢与它同实例的topic；也可以轮询使用所有实例
+ * 实例连续发送失败达到阈值后在冷却期内不再被选中，期间消息路由到其它健康的实例，所有实例都不健康时仍使用原本选中的实例
+ */
+@Slf4j
+public class PooledMQProducer extends DefaultMQProducer {
+
+    /**
+     * 选择实例的方式
+     */
+    public enum Strategy {
+        /**按topic的hash固定选择实例*/
+        TOPIC,
+        /**每条消息轮询选择实例*/
+        ROUND_ROBIN
+    }
+
+    private final DefaultMQProducer[] members;
+
+    private final Strategy strategy;
+
+    private final int failureThreshold;
+
+    private final long cooldownMillis;
+
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    private final AtomicIntegerArray consecutiveFailures;
+
+    /**实例恢复可用的时间戳，0表示健康*/
+    private final AtomicLongArray unhealthyUntil;
+
+    /**
+     * @param producerGroup 生产者组
+     * @param members 未启动的客户端实例，instanceName需要互不相同
+     * @param strategy 选择实例的方式
+     * @param failureThreshold 连续失败多少次后标记为不健康
+     * @param cooldownMillis 不健康的实例多久之后重新参与路由
+     */
+    public PooledMQProducer(String producerGroup, List<DefaultMQProducer> members, Strategy strategy, int failureThreshold, long cooldownMillis) {
+        super(producerGroup);
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("producer pool must have at least one member");
+        }
+        this.members = members.toArray(new DefaultMQProducer[0]);
+        this.strategy = strategy;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.cooldownMillis = cooldownMillis;
+        this.consecutiveFailures = new AtomicIntegerArray(this.members.length);
+        this.unhealthyUntil = new AtomicLongArray(this.members.length);
+    }
+
+    /**
+     * @return 池中的实例数
+     */
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * @param index 实例下标
+     * @return 实例当前是否参与路由
+     */
+    public boolean isHealthy(int index) {
+        return unhealthyUntil.get(index) <= System.currentTimeMillis();
+    }
+
+    @Override
+    public void start() throws MQClientException {
+        for (DefaultMQProducer member : members) {
+            member.start();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        for (DefaultMQProducer member : members) {
+            member.shutdown();
+        }
+    }
+
+    // 池本身不发送消息，对池设置的发送参数和客户端参数同时设置到每个实例上，已有的getProducer().setXxx(...)调优仍然生效
+    // 父类构造时members还没有赋值，此时只设置池本身
+
+    @Override
+    public void setProducerGroup(String producerGroup) {
+        super.setProducerGroup(producerGroup);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setProducerGroup(producerGroup);
+            }
+        }
+    }
+
+    @Override
+    public void setCreateTopicKey(String createTopicKey) {
+        super.setCreateTopicKey(createTopicKey);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setCreateTopicKey(createTopicKey);
+            }
+        }
+    }
+
+    @Override
+    public void setSendMsgTimeout(int sendMsgTimeout) {
+        super.setSendMsgTimeout(sendMsgTimeout);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setSendMsgTimeout(sendMsgTimeout);
+            }
+        }
+    }
+
+    @Override
+    public void setCompressMsgBodyOverHowmuch(int compressMsgBodyOverHowmuch) {
+        super.setCompressMsgBodyOverHowmuch(compressMsgBodyOverHowmuch);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setCompressMsgBodyOverHowmuch(compressMsgBodyOverHowmuch);
+            }
+        }
+    }
+
+    @Override
+    public void setRetryAnotherBrokerWhenNotStoreOK(boolean retryAnotherBrokerWhenNotStoreOK) {
+        super.setRetryAnotherBrokerWhenNotStoreOK(retryAnotherBrokerWhenNotStoreOK);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setRetryAnotherBrokerWhenNotStoreOK(retryAnotherBrokerWhenNotStoreOK);
+            }
+        }
+    }
+
+    @Override
+    public void setMaxMessageSize(int maxMessageSize) {
+        super.setMaxMessageSize(maxMessageSize);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setMaxMessageSize(maxMessageSize);
+            }
+        }
+    }
+
+    @Override
+    public void setDefaultTopicQueueNums(int defaultTopicQueueNums) {
+        super.setDefaultTopicQueueNums(defaultTopicQueueNums);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setDefaultTopicQueueNums(defaultTopicQueueNums);
+            }
+        }
+    }
+
+    @Override
+    public void setRetryTimesWhenSendFailed(int retryTimesWhenSendFailed) {
+        super.setRetryTimesWhenSendFailed(retryTimesWhenSendFailed);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setRetryTimesWhenSendFailed(retryTimesWhenSendFailed);
+            }
+        }
+    }
+
+    @Override
+    public void setRetryTimesWhenSendAsyncFailed(int retryTimesWhenSendAsyncFailed) {
+        super.setRetryTimesWhenSendAsyncFailed(retryTimesWhenSendAsyncFailed);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setRetryTimesWhenSendAsyncFailed(retryTimesWhenSendAsyncFailed);
+            }
+        }
+    }
+
+    @Override
+    public void setSendMessageWithVIPChannel(boolean sendMessageWithVIPChannel) {
+        super.setSendMessageWithVIPChannel(sendMessageWithVIPChannel);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setSendMessageWithVIPChannel(sendMessageWithVIPChannel);
+            }
+        }
+    }
+
+    @Override
+    public void setNotAvailableDuration(long[] notAvailableDuration) {
+        super.setNotAvailableDuration(notAvailableDuration);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setNotAvailableDuration(notAvailableDuration);
+            }
+        }
+    }
+
+    @Override
+    public void setLatencyMax(long[] latencyMax) {
+        super.setLatencyMax(latencyMax);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setLatencyMax(latencyMax);
+            }
+        }
+    }
+
+    @Override
+    public void setSendLatencyFaultEnable(boolean sendLatencyFaultEnable) {
+        super.setSendLatencyFaultEnable(sendLatencyFaultEnable);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setSendLatencyFaultEnable(sendLatencyFaultEnable);
+            }
+        }
+    }
+
+    @Override
+    public void setClientIP(String clientIP) {
+        super.setClientIP(clientIP);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setClientIP(clientIP);
+            }
+        }
+    }
+
+    @Override
+    public void setNamesrvAddr(String namesrvAddr) {
+        super.setNamesrvAddr(namesrvAddr);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setNamesrvAddr(namesrvAddr);
+            }
+        }
+    }
+
+    @Override
+    public void setClientCallbackExecutorThreads(int clientCallbackExecutorThreads) {
+        super.setClientCallbackExecutorThreads(clientCallbackExecutorThreads);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setClientCallbackExecutorThreads(clientCallbackExecutorThreads);
+            }
+        }
+    }
+
+    @Override
+    public void setPollNameServerInteval(int pollNameServerInteval) {
+        super.setPollNameServerInteval(pollNameServerInteval);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setPollNameServerInteval(pollNameServerInteval);
+            }
+        }
+    }
+
+    @Override
+    public void setHeartbeatBrokerInterval(int heartbeatBrokerInterval) {
+        super.setHeartbeatBrokerInterval(heartbeatBrokerInterval);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setHeartbeatBrokerInterval(heartbeatBrokerInterval);
+            }
+        }
+    }
+
+    @Override
+    public void setPersistConsumerOffsetInterval(int persistConsumerOffsetInterval) {
+        super.setPersistConsumerOffsetInterval(persistConsumerOffsetInterval);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setPersistConsumerOffsetInterval(persistConsumerOffsetInterval);
+            }
+        }
+    }
+
+    @Override
+    public void setUnitName(String unitName) {
+        super.setUnitName(unitName);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setUnitName(unitName);
+            }
+        }
+    }
+
+    @Override
+    public void setUnitMode(boolean unitMode) {
+        super.setUnitMode(unitMode);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setUnitMode(unitMode);
+            }
+        }
+    }
+
+    @Override
+    public void setVipChannelEnabled(boolean vipChannelEnabled) {
+        super.setVipChannelEnabled(vipChannelEnabled);
+        if (members != null) {
+            for (DefaultMQProducer member : members) {
+                member.setVipChannelEnabled(vipChannelEnabled);
+            }
+        }
+    }
+
+    /**
+     * 每个实例的instanceName必须互不相同，由创建方分别设置
+     */
+    @Override
+    public void setInstanceName(String instanceName) {
+        if (members != null) {
+            throw new UnsupportedOperationException("instanceName of pooled producer members must be set on each member");
+        }
+        super.setInstanceName(instanceName);
+    }
+
+    @Override
+    public List<MessageQueue> fetchPublishMessageQueues(String topic) throws MQClientException {
+        return members[select(topic)].fetchPublishMessageQueues(topic);
+    }
+
+    @Override
+    public SendResult send(Message msg) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg));
+    }
+
+    @Override
+    public SendResult send(Message msg, long timeout) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg, timeout));
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, callback));
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback, long timeout) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, callback, timeout));
+    }
+
+    @Override
+    public void sendOneway(Message msg) throws MQClientException, RemotingException, InterruptedException {
+        invokeOneway(msg, producer -> {
+            producer.sendOneway(msg);
+            return null;
+        });
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueue mq) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg, mq));
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueue mq, long timeout) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg, mq, timeout));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueue mq, SendCallback sendCallback) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, mq, callback));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueue mq, SendCallback sendCallback, long timeout) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, mq, callback, timeout));
+    }
+
+    @Override
+    public void sendOneway(Message msg, MessageQueue mq) throws MQClientException, RemotingException, InterruptedException {
+        invokeOneway(msg, producer -> {
+            producer.sendOneway(msg, mq);
+            return null;
+        });
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueueSelector selector, Object arg) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg, selector, arg));
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueueSelector selector, Object arg, long timeout) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        return invoke(msg, producer -> producer.send(msg, selector, arg, timeout));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueueSelector selector, Object arg, SendCallback sendCallback) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, selector, arg, callback));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueueSelector selector, Object arg, SendCallback sendCallback, long timeout) throws MQClientException, RemotingException, InterruptedException {
+        invokeAsync(msg, sendCallback, (producer, callback) -> producer.send(msg, selector, arg, callback, timeout));
+    }
+
+    @Override
+    public void sendOneway(Message msg, MessageQueueSelector selector, Object arg) throws MQClientException, RemotingException, InterruptedException {
+        invokeOneway(msg, producer -> {
+            producer.sendOneway(msg, selector, arg);
+            return null;
+        });
+    }
+
+    @Override
+    public void createTopic(String key, String newTopic, int queueNum) throws MQClientException {
+        members[0].createTopic(key, newTopic, queueNum);
+    }
+
+    @Override
+    public void createTopic(String key, String newTopic, int queueNum, int topicSysFlag) throws MQClientException {
+        members[0].createTopic(key, newTopic, queueNum, topicSysFlag);
+    }
+
+    @Override
+    public long searchOffset(MessageQueue mq, long timestamp) throws MQClientException {
+        return members[select(mq.getTopic())].searchOffset(mq, timestamp);
+    }
+
+    @Override
+    public long maxOffset(MessageQueue mq) throws MQClientException {
+        return members[select(mq.getTopic())].maxOffset(mq);
+    }
+
+    @Override
+    public long minOffset(MessageQueue mq) throws MQClientException {
+        return members[select(mq.getTopic())].minOffset(mq);
+    }
+
+    @Override
+    public long earliestMsgStoreTime(MessageQueue mq) throws MQClientException {
+        return members[select(mq.getTopic())].earliestMsgStoreTime(mq);
+    }
+
+    @Override
+    public MessageExt viewMessage(String offsetMsgId) throws RemotingException, MQBrokerException, InterruptedException, MQClientException {
+        return members[0].viewMessage(offsetMsgId);
+    }
+
+    @Override
+    public MessageExt viewMessage(String topic, String msgId) throws RemotingException, MQBrokerException, InterruptedException, MQClientException {
+        return members[select(topic)].viewMessage(topic, msgId);
+    }
+
+    @Override
+    public QueryResult queryMessage(String topic, String key, int maxNum, long begin, long end) throws MQClientException, InterruptedException {
+        return members[select(topic)].queryMessage(topic, key, maxNum, begin, end);
+    }
+
+    /**
+     * 选择实例，优先选中的实例不健康时顺延到下一个健康的实例
+     */
+    private int select(String topic) {
+        int n = members.length;
+        if (n == 1) {
+            return 0;
+        }
+        int preferred;
+        if (strategy == Strategy.TOPIC) {
+            int hash = topic.hashCode();
+            preferred = ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % n;
+        } else {
+            preferred = (sequence.getAndIncrement() & Integer.MAX_VALUE) % n;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < n; i++) {
+            int index = (preferred + i) % n;
+            if (unhealthyUntil.get(index) <= now) {
+                return index;
+            }
+        }
+        return preferred;
+    }
+
+    private void succeeded(int index) {
+        if (consecutiveFailures.get(index) != 0) {
+            consecutiveFailures.set(index, 0);
+        }
+    }
+
+    private void failed(int index, Throwable e) {
+        // 消息本身不合法与实例是否健康无关
+        if (e instanceof MQClientException && ((MQClientException) e).getResponseCode() == ResponseCode.MESSAGE_ILLEGAL) {
+            return;
+        }
+        if (consecutiveFailures.incrementAndGet(index) >= failureThreshold) {
+            consecutiveFailures.set(index, 0);
+            unhealthyUntil.set(index, System.currentTimeMillis() + cooldownMillis);
+            log.warn("producer {} member {} is unhealthy for {} ms after {} consecutive failures, e : {}",
+                    getProducerGroup(), members[index].getInstanceName(), cooldownMillis, failureThreshold, e.getMessage());
+        }
+    }
+
+    private <R> R invoke(Message msg, Send<R> send) throws MQClientException, RemotingException, MQBrokerException, InterruptedException {
+        int index = select(msg.getTopic());
+        try {
+            R result = send.apply(members[index]);
+            succeeded(index);
+            return result;
+        } catch (MQClientException | RemotingException | MQBrokerException e) {
+            failed(index, e);
+            throw e;
+        }
+    }
+
+    private void invokeOneway(Message msg, Send<Void> send) throws MQClientException, RemotingException, InterruptedException {
+        try {
+            invoke(msg, send);
+        } catch (MQBrokerException e) {
+            // sendOneway不会抛出MQBrokerException
+            throw new MQClientException("send oneway message fail", e);
+        }
+    }
+
+    private void invokeAsync(Message msg, SendCallback sendCallback, AsyncSend send) throws MQClientException, RemotingException, InterruptedException {
+        final int index = select(msg.getTopic());
+        SendCallback callback = new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+                succeeded(index);
+                sendCallback.onSuccess(sendResult);
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                failed(index, e);
+                sendCallback.onException(e);
+            }
+        };
+        try {
+            send.apply(members[index], callback);
+        } catch (MQClientException | RemotingException e) {
+            failed(index, e);
+            throw e;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Send<R> {
+        R apply(DefaultMQProducer producer) throws MQClientException, RemotingException, MQBrokerException, InterruptedException;
+    }
+
+    @FunctionalInterface
+    private interface AsyncSend {
+        void apply(DefaultMQProducer producer, SendCallback callback) throws MQClientException, RemotingException, InterruptedException;
+    }
+}
@@ -0,0 +1,185 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.util.Arrays;
+
+/**
+ * 消费失败后的重试策略：最多处理次数、每次重试的退避时间，以及按异常类型决定重试还是直接放弃
+ * 退避时间在CONCURRENTLY模式下换算为broker的延时级别（delayTimeLevel），ORDERLY模式下作为暂停当前queue的时间
+ */
+public class RetryPolicy {
+
+    /**不按异常类型区分时使用的空列表*/
+    @SuppressWarnings("unchecked")
+    private static final Class<? extends Throwable>[] NO_EXCEPTIONS = (Class<? extends Throwable>[]) new Class<?>[0];
+
+    /**默认最多处理5次，重试间隔使用broker按重试次数递增的延时级别*/
+    public static final RetryPolicy DEFAULT = new RetryPolicy(AbstractMQConsumer.MAX_RETRY_TIMES, new long[0], new int[0], NO_EXCEPTIONS, NO_EXCEPTIONS);
+
+    /**最多处理次数，包含第一次消费*/
+    private final int maxAttempts;
+
+    /**第n次重试前等待的毫秒数，超出长度时使用最后一个*/
+    private final long[] backoffMillis;
+
+    /**backoffMillis换算成的延时级别，从1开始*/
+    private final int[] backoffLevels;
+
+    private final Class<? extends Throwable>[] retryOn;
+
+    private final Class<? extends Throwable>[] noRetryOn;
+
+    private RetryPolicy(int maxAttempts, long[] backoffMillis, int[] backoffLevels,
+                        Class<? extends Throwable>[] retryOn, Class<? extends Throwable>[] noRetryOn) {
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.backoffLevels = backoffLevels;
+        this.retryOn = retryOn;
+        this.noRetryOn = noRetryOn;
+    }
+
+    /**
+     * @param maxAttempts 最多处理次数，包含第一次消费
+     * @param backoff 重试的退避时间，空格分隔，如"5s 30s 2m"，为空时使用broker默认的递增延时
+     * @param messageDelayLevel broker的延时级别配置，格式与broker的messageDelayLevel相同
+     * @param retryOn 只对这些异常（包括cause链上的异常）重试，为空或null时所有异常都重试
+     * @param noRetryOn 遇到这些异常直接放弃，优先于retryOn，可以为null
+     * @return 重试策略
+     */
+    public static RetryPolicy of(int maxAttempts, String backoff, String messageDelayLevel,
+                                 Class<? extends Throwable>[] retryOn, Class<? extends Throwable>[] noRetryOn) {
+        if (maxAttempts < 1) {
+            throw new RuntimeException("maxAttempts must be at least 1, got : " + maxAttempts);
+        }
+        long[] backoffMillis = parseDurations(backoff);
+        long[] levelMillis = parseDurations(messageDelayLevel);
+        int[] backoffLevels = new int[backoffMillis.length];
+        for (int i = 0; i < backoffMillis.length; i++) {
+            if (levelMillis.length == 0) {
+                throw new RuntimeException("message delay level is empty, can not map retry backoff " + backoff);
+            }
+            backoffLevels[i] = delayLevel(levelMillis, backoffMillis[i]);
+        }
+        return new RetryPolicy(maxAttempts, backoffMillis, backoffLevels,
+                retryOn == null ? NO_EXCEPTIONS : retryOn, noRetryOn == null ? NO_EXCEPTIONS : noRetryOn);
+    }
+
+    /**
+     * 不小于退避时间的最小延时级别，都小于退避时间时使用最大的级别
+     */
+    private static int delayLevel(long[] levelMillis, long millis) {
+        for (int i = 0; i < levelMillis.length; i++) {
+            if (levelMillis[i] >= millis) {
+                return i + 1;
+            }
+        }
+        return levelMillis.length;
+    }
+
+    /**
+     * 解析空格分隔的时长，单位支持ms、s、m、h、d
+     */
+    public static long[] parseDurations(String durations) {
+        String[] items = StringUtils.split(StringUtils.trimToEmpty(durations), ' ');
+        long[] millis = new long[items.length];
+        for (int i = 0; i < items.length; i++) {
+            String item = items[i];
+            int unitLength = item.endsWith("ms") ? 2 : 1;
+            long unit;
+            switch (item.substring(item.length() - unitLength)) {
+                case "ms":
+                    unit = 1L;
+                    break;
+                case "s":
+                    unit = 1000L;
+                    break;
+                case "m":
+                    unit = 60 * 1000L;
+                    break;
+                case "h":
+                    unit = 60 * 60 * 1000L;
+                    break;
+                case "d":
+                    unit = 24 * 60 * 60 * 1000L;
+                    break;
+                default:
+                    throw new RuntimeException("illegal duration " + item + " in : " + durations);
+            }
+            try {
+                millis[i] = Long.parseLong(item.substring(0, item.length() - unitLength)) * unit;
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("illegal duration " + item + " in : " + durations);
+            }
+        }
+        return millis;
+    }
+
+    /**
+     * 收到的消息是否已经用完处理次数，用于处理策略调整前已经在重试队列中的消息
+     *
+     * @param messageExt 消息
+     * @return 用完时返回true
+     */
+    public boolean isExhausted(MessageExt messageExt) {
+        return messageExt.getReconsumeTimes() >= maxAttempts;
+    }
+
+    /**
+     * 处理失败后是否重试
+     *
+     * @param messageExt 处理失败的消息
+     * @param failure 处理时抛出的异常，process返回false时为null
+     * @return 重试返回true，放弃返回false
+     */
+    public boolean shouldRetry(MessageExt messageExt, Throwable failure) {
+        if (failure != null) {
+            if (matches(failure, noRetryOn)) {
+                return false;
+            }
+            if (retryOn.length > 0 && !matches(failure, retryOn)) {
+                return false;
+            }
+        }
+        return messageExt.getReconsumeTimes() + 1 < maxAttempts;
+    }
+
+    private static boolean matches(Throwable failure, Class<? extends Throwable>[] types) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            for (Class<? extends Throwable> type : types) {
+                if (type.isInstance(cause)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param messageExt 处理失败的消息
+     * @return 下次重试的延时级别，0表示由broker按重试次数决定
+     */
+    public int delayLevel(MessageExt messageExt) {
+        return backoffLevels.length == 0 ? 0 : backoffLevels[Math.min(messageExt.getReconsumeTimes(), backoffLevels.length - 1)];
+    }
+
+    /**
+     * @param messageExt 处理失败的消息
+     * @return ORDERLY模式下暂停当前queue的毫秒数，-1表示使用消费者的默认值
+     */
+    public long suspendMillis(MessageExt messageExt) {
+        return backoffMillis.length == 0 ? -1 : Math.max(1, backoffMillis[Math.min(messageExt.getReconsumeTimes(), backoffMillis.length - 1)]);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{maxAttempts=" + maxAttempts + ", backoffMillis=" + Arrays.toString(backoffMillis)
+                + ", backoffLevels=" + Arrays.toString(backoffLevels) + ", retryOn=" + Arrays.toString(retryOn)
+                + ", noRetryOn=" + Arrays.toString(noRetryOn) + "}";
+    }
+}
@@ -0,0 +1,113 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.maihaoche.starter.mq.MQException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+/**
+ * 基于Gson的JSON编解码，默认codec，与旧版本发送的消息体完全兼容
+ * 编码时直接写入线程内复用的字节缓冲区，解码时直接从消息体byte数组读取，不经过中间的String
+ */
+public class GsonMessageCodec implements MessageCodec {
+
+    public static final String ID = "gson";
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    /**超过该大小的缓冲区用完后不再复用，避免线程长期持有大块内存*/
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<Utf8ByteArrayWriter> ENCODE_BUFFER = ThreadLocal.withInitial(() -> new Utf8ByteArrayWriter(1024));
+
+    private final Gson gson;
+
+    public GsonMessageCodec() {
+        this(new Gson());
+    }
+
+    public GsonMessageCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object msgObj) {
+        Utf8ByteArrayWriter buffer = ENCODE_BUFFER.get();
+        try {
+            gson.toJson(msgObj, msgObj.getClass(), gson.newJsonWriter(buffer));
+            return buffer.toByteArray();
+        } catch (IOException | RuntimeException e) {
+            throw new MQException("encode message json fail : " + e.getMessage(), e);
+        } finally {
+            if (buffer.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+                ENCODE_BUFFER.remove();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Type type) {
+        return this.<T>decoder(type).decode(body);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> MessageDecoder<T> decoder(Type type) {
+        final TypeAdapter<T> adapter = (TypeAdapter<T>) gson.getAdapter(TypeToken.get(type));
+        return new MessageDecoder<T>() {
+            @Override
+            public T decode(byte[] body) {
+                try {
+                    return read(adapter, new Utf8ByteArrayReader(body));
+                } catch (IOException | RuntimeException e) {
+                    throw new MQException("parse message json fail : " + e.getMessage() + ",message body:" + new String(body, UTF_8), e);
+                }
+            }
+
+            @Override
+            public T decode(InputStream in) {
+                try {
+                    return read(adapter, new InputStreamReader(in, UTF_8));
+                } catch (IOException | RuntimeException e) {
+                    throw new MQException("parse message json fail : " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    /**
+     * 与Gson.fromJson保持一致：宽松模式，空消息体返回null，且必须完整消费整个JSON文档
+     */
+    private <T> T read(TypeAdapter<T> adapter, Reader reader) throws IOException {
+        JsonReader jsonReader = gson.newJsonReader(reader);
+        jsonReader.setLenient(true);
+        try {
+            jsonReader.peek();
+        } catch (EOFException e) {
+            return null;
+        }
+        T data = adapter.read(jsonReader);
+        if (jsonReader.peek() != JsonToken.END_DOCUMENT) {
+            throw new JsonSyntaxException("JSON document was not fully consumed.");
+        }
+        return data;
+    }
+}
@@ -0,0 +1,73 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.maihaoche.starter.mq.MQException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Type;
+
+/**
+ * 基于Jackson的JSON编解码，比Gson更快，消息体仍然是JSON文本
+ * 需要classpath中存在jackson-databind
+ */
+public class JacksonMessageCodec implements MessageCodec {
+
+    public static final String ID = "jackson";
+
+    private final ObjectMapper objectMapper;
+
+    public JacksonMessageCodec() {
+        this(new ObjectMapper());
+    }
+
+    public JacksonMessageCodec(ObjectMapper objectMapper) {
+        // 与Gson保持一致，忽略消息体中多余的字段
+        this.objectMapper = objectMapper.copy().configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object msgObj) {
+        try {
+            return objectMapper.writeValueAsBytes(msgObj);
+        } catch (IOException e) {
+            throw new MQException("encode message fail : " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Type type) {
+        return this.<T>decoder(type).decode(body);
+    }
+
+    @Override
+    public <T> MessageDecoder<T> decoder(Type type) {
+        final ObjectReader reader = objectMapper.readerFor(objectMapper.getTypeFactory().constructType(type));
+        return new MessageDecoder<T>() {
+            @Override
+            public T decode(byte[] body) {
+                try {
+                    return reader.readValue(body);
+                } catch (IOException e) {
+                    throw new MQException("decode message fail : " + e.getMessage(), e);
+                }
+            }
+
+            @Override
+            public T decode(InputStream in) {
+                try {
+                    return reader.readValue(in);
+                } catch (IOException e) {
+                    throw new MQException("decode message fail : " + e.getMessage(), e);
+                }
+            }
+        };
+    }
+}
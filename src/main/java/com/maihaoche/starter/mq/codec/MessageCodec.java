@@ -0,0 +1,49 @@
+package com.maihaoche.starter.mq.codec;
+
+import java.lang.reflect.Type;
+
+/**
+ * 消息体编解码SPI
+ * 生产者编码时会把codec id写入消息的用户属性{@link MessageCodecs#CODEC_PROPERTY}，
+ * 消费者按该属性选择对应的codec解码，因此同一个topic可以在滚动升级期间切换编码格式
+ *
+ * 自定义codec可以注册为Spring bean，或者通过META-INF/services/com.maihaoche.starter.mq.codec.MessageCodec声明
+ */
+public interface MessageCodec {
+
+    /**
+     * codec的唯一标识，会随消息一起发送，一旦使用不要修改
+     *
+     * @return codec id
+     */
+    String getId();
+
+    /**
+     * 把消息对象编码为消息体
+     *
+     * @param msgObj 消息对象
+     * @return 消息体
+     */
+    byte[] encode(Object msgObj);
+
+    /**
+     * 把消息体解码为指定类型的对象
+     *
+     * @param body 消息体
+     * @param type 消息类型
+     * @param <T> 消息范型
+     * @return 消息对象
+     */
+    <T> T decode(byte[] body, Type type);
+
+    /**
+     * 创建绑定了消息类型的解码器，实现类可以在这里预先解析类型相关的元数据
+     *
+     * @param type 消息类型
+     * @param <T> 消息范型
+     * @return 解码器
+     */
+    default <T> MessageDecoder<T> decoder(Type type) {
+        return body -> decode(body, type);
+    }
+}
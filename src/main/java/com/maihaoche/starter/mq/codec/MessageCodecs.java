@@ -0,0 +1,74 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.maihaoche.starter.mq.MQException;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.util.ClassUtils;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 全局的codec注册表
+ * 内置gson，classpath中存在对应依赖时注册jackson和smile，另外加载通过ServiceLoader声明的codec
+ */
+@Slf4j
+public final class MessageCodecs {
+
+    /**消息用户属性中记录codec id的key*/
+    public static final String CODEC_PROPERTY = "MQ_CODEC";
+
+    private static final ConcurrentMap<String, MessageCodec> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(new GsonMessageCodec());
+        ClassLoader classLoader = MessageCodecs.class.getClassLoader();
+        if (ClassUtils.isPresent("com.fasterxml.jackson.databind.ObjectMapper", classLoader)) {
+            register(new JacksonMessageCodec());
+            if (ClassUtils.isPresent("com.fasterxml.jackson.dataformat.smile.SmileFactory", classLoader)) {
+                register(new SmileMessageCodec());
+            }
+        }
+        for (MessageCodec codec : ServiceLoader.load(MessageCodec.class, classLoader)) {
+            register(codec);
+        }
+    }
+
+    private MessageCodecs() {
+    }
+
+    /**
+     * 注册codec，相同id的codec会被覆盖
+     *
+     * @param codec codec
+     */
+    public static void register(MessageCodec codec) {
+        MessageCodec previous = CODECS.put(codec.getId(), codec);
+        if (previous != null && previous != codec) {
+            log.info("message codec {} is replaced by {}", codec.getId(), codec.getClass().getName());
+        }
+    }
+
+    /**
+     * 按id查找codec，id为空时返回默认的gson codec
+     *
+     * @param id codec id
+     * @return codec
+     * @throws MQException codec未注册
+     */
+    public static MessageCodec get(String id) throws MQException {
+        if (StringUtils.isEmpty(id)) {
+            return getDefault();
+        }
+        MessageCodec codec = CODECS.get(id);
+        if (codec == null) {
+            throw new MQException("unknown message codec : " + id + ", registered codecs : " + CODECS.keySet());
+        }
+        return codec;
+    }
+
+    public static MessageCodec getDefault() {
+        return CODECS.get(GsonMessageCodec.ID);
+    }
+}
@@ -0,0 +1,45 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.maihaoche.starter.mq.MQException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 绑定了消息类型的解码器，由{@link MessageCodec#decoder(java.lang.reflect.Type)}创建
+ * 类型相关的解析工作（如Gson的TypeAdapter）在创建时完成一次，消费者按类型缓存后每条消息直接解码
+ *
+ * @param <T> 消息范型
+ */
+public interface MessageDecoder<T> {
+
+    /**
+     * 解码消息体
+     *
+     * @param body 消息体
+     * @return 消息对象
+     */
+    T decode(byte[] body);
+
+    /**
+     * 从输入流解码消息体，用于解压缩后的消息体，实现类应直接从流中解析以避免中间的byte数组
+     * 默认读出完整的消息体后调用{@link #decode(byte[])}
+     *
+     * @param in 消息体输入流，由调用方关闭
+     * @return 消息对象
+     */
+    default T decode(InputStream in) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return decode(out.toByteArray());
+        } catch (IOException e) {
+            throw new MQException("read message body fail : " + e.getMessage(), e);
+        }
+    }
+}
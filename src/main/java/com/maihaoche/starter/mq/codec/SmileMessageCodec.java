@@ -0,0 +1,22 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * 基于Jackson Smile的二进制编解码，消息体比JSON文本更紧凑，编解码也更快
+ * 需要classpath中存在jackson-dataformat-smile
+ */
+public class SmileMessageCodec extends JacksonMessageCodec {
+
+    public static final String ID = "smile";
+
+    public SmileMessageCodec() {
+        super(new ObjectMapper(new SmileFactory()));
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+}
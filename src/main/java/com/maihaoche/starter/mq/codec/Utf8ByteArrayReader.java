@@ -0,0 +1,69 @@
+package com.maihaoche.starter.mq.codec;
+
+import java.io.Reader;
+
+/**
+ * 直接从byte数组按UTF-8解码字符的Reader
+ * 与new String(body, "utf-8")或InputStreamReader相比，不会额外分配整份消息大小的char数组或8K的解码缓冲区
+ * 非法的UTF-8首字节解码为U+FFFD
+ */
+final class Utf8ByteArrayReader extends Reader {
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final byte[] buf;
+
+    private final int limit;
+
+    private int pos;
+
+    /**四字节字符解码出的低位代理项，上一次read的cbuf放不下时暂存*/
+    private char pendingLowSurrogate;
+
+    Utf8ByteArrayReader(byte[] buf) {
+        this.buf = buf;
+        this.limit = buf.length;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        if (pendingLowSurrogate != 0) {
+            cbuf[off + n++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (n < len && pos < limit) {
+            int b = buf[pos];
+            if (b >= 0) {
+                cbuf[off + n++] = (char) b;
+                pos++;
+            } else if ((b & 0xE0) == 0xC0 && pos + 1 < limit) {
+                cbuf[off + n++] = (char) (((b & 0x1F) << 6) | (buf[pos + 1] & 0x3F));
+                pos += 2;
+            } else if ((b & 0xF0) == 0xE0 && pos + 2 < limit) {
+                cbuf[off + n++] = (char) (((b & 0x0F) << 12) | ((buf[pos + 1] & 0x3F) << 6) | (buf[pos + 2] & 0x3F));
+                pos += 3;
+            } else if ((b & 0xF8) == 0xF0 && pos + 3 < limit) {
+                int codePoint = ((b & 0x07) << 18) | ((buf[pos + 1] & 0x3F) << 12) | ((buf[pos + 2] & 0x3F) << 6) | (buf[pos + 3] & 0x3F);
+                pos += 4;
+                cbuf[off + n++] = Character.highSurrogate(codePoint);
+                if (n < len) {
+                    cbuf[off + n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    pendingLowSurrogate = Character.lowSurrogate(codePoint);
+                }
+            } else {
+                cbuf[off + n++] = REPLACEMENT;
+                pos++;
+            }
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,112 @@
+package com.maihaoche.starter.mq.codec;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * 把字符按UTF-8直接编码进可复用byte数组的Writer
+ * OutputStreamWriter每次write(String)都会复制出一个新的char数组，这里逐字符编码，不产生中间对象
+ * 非线程安全，由{@link GsonMessageCodec}按线程复用
+ */
+final class Utf8ByteArrayWriter extends Writer {
+
+    private byte[] buf;
+
+    private int count;
+
+    /**上一次写入以高位代理项结尾时暂存，等待下一个低位代理项*/
+    private char pendingHighSurrogate;
+
+    Utf8ByteArrayWriter(int initialCapacity) {
+        this.buf = new byte[initialCapacity];
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(4);
+        encode((char) c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) {
+        ensureCapacity(len * 3 + 1);
+        for (int i = off, end = off + len; i < end; i++) {
+            encode(cbuf[i]);
+        }
+    }
+
+    @Override
+    public void write(String str, int off, int len) {
+        ensureCapacity(len * 3 + 1);
+        for (int i = off, end = off + len; i < end; i++) {
+            encode(str.charAt(i));
+        }
+    }
+
+    /**
+     * 调用方需要预先保证剩余空间足够（每个char最多3字节，代理对合计4字节）
+     */
+    private void encode(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                buf[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buf[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buf[count++] = (byte) (0x80 | (codePoint & 0x3F));
+                return;
+            }
+            // 孤立的高位代理项与String.getBytes一样编码为'?'
+            buf[count++] = '?';
+        }
+        if (c < 0x80) {
+            buf[count++] = (byte) c;
+        } else if (c < 0x800) {
+            buf[count++] = (byte) (0xC0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            buf[count++] = '?';
+        } else {
+            buf[count++] = (byte) (0xE0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buf[count++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        int required = count + extra;
+        if (required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length << 1, required));
+        }
+    }
+
+    byte[] toByteArray() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            ensureCapacity(1);
+            buf[count++] = '?';
+        }
+        return Arrays.copyOf(buf, count);
+    }
+
+    int capacity() {
+        return buf.length;
+    }
+
+    void reset() {
+        count = 0;
+        pendingHighSurrogate = 0;
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+}
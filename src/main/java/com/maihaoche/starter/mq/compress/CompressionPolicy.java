@@ -0,0 +1,59 @@
+package com.maihaoche.starter.mq.compress;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 生产者的压缩策略：按topic选择压缩算法，消息体不小于阈值时才压缩
+ */
+public class CompressionPolicy {
+
+    /**不压缩*/
+    public static final CompressionPolicy NONE = new CompressionPolicy(null, 0, Collections.emptyMap());
+
+    private final Rule defaultRule;
+
+    private final Map<String, Rule> topicRules;
+
+    /**
+     * @param compressor 默认的压缩算法，为null表示不压缩
+     * @param minSize 默认的压缩阈值（字节）
+     * @param topicRules 按topic覆盖的规则
+     */
+    public CompressionPolicy(MessageCompressor compressor, int minSize, Map<String, Rule> topicRules) {
+        this.defaultRule = new Rule(compressor, minSize);
+        this.topicRules = topicRules.isEmpty() ? Collections.emptyMap() : new HashMap<>(topicRules);
+    }
+
+    /**
+     * 选择消息体的压缩算法
+     *
+     * @param topic topic
+     * @param size 编码后的消息体大小
+     * @return 压缩算法，不需要压缩时返回null
+     */
+    public MessageCompressor select(String topic, int size) {
+        Rule rule = topicRules.isEmpty() ? defaultRule : topicRules.getOrDefault(topic, defaultRule);
+        return rule.compressor != null && size >= rule.minSize ? rule.compressor : null;
+    }
+
+    /**
+     * 单个topic的压缩规则
+     */
+    public static class Rule {
+
+        private final MessageCompressor compressor;
+
+        private final int minSize;
+
+        /**
+         * @param compressor 压缩算法，为null表示不压缩
+         * @param minSize 压缩阈值（字节）
+         */
+        public Rule(MessageCompressor compressor, int minSize) {
+            this.compressor = compressor;
+            this.minSize = minSize;
+        }
+    }
+}
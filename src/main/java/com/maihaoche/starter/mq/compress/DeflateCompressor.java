@@ -0,0 +1,113 @@
+package com.maihaoche.starter.mq.compress;
+
+import com.maihaoche.starter.mq.MQException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JDK自带的DEFLATE（zlib格式）压缩，不需要额外依赖，压缩率高于lz4
+ * 压缩时复用线程内的Deflater；解压时把整个消息体一次性交给Inflater，解码器读取时才逐段解压
+ */
+public class DeflateCompressor implements MessageCompressor {
+
+    public static final String ID = "deflate";
+
+    private final ThreadLocal<Deflater> deflaters;
+
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level 压缩级别，0到9
+     */
+    public DeflateCompressor(int level) {
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] body) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] out = new byte[Math.max(64, body.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == out.length) {
+                out = Arrays.copyOf(out, out.length << 1);
+            }
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    @Override
+    public InputStream decompress(byte[] body) {
+        Inflater inflater = new Inflater();
+        inflater.setInput(body);
+        return new InflatingInputStream(inflater);
+    }
+
+    /**
+     * 与InflaterInputStream相比不需要把压缩数据再复制到内部缓冲区
+     */
+    private static final class InflatingInputStream extends InputStream {
+
+        private final Inflater inflater;
+
+        private boolean closed;
+
+        private InflatingInputStream(Inflater inflater) {
+            this.inflater = inflater;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            try {
+                int n;
+                while ((n = inflater.inflate(b, off, len)) == 0) {
+                    if (inflater.finished() || inflater.needsInput()) {
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new MQException("deflate dictionary is not supported");
+                    }
+                }
+                return n;
+            } catch (DataFormatException e) {
+                throw new IOException("invalid deflate data : " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                inflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.maihaoche.starter.mq.compress;
+
+import com.maihaoche.starter.mq.MQException;
+import net.jpountz.lz4.LZ4BlockInputStream;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 基于lz4-java的LZ4压缩，压缩率低于deflate，但压缩和解压都快得多
+ * 按64KB分块，解压时解码器每次只需要一个块大小的缓冲区；需要classpath中存在lz4-java
+ */
+public class Lz4Compressor implements MessageCompressor {
+
+    public static final String ID = "lz4";
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private final LZ4Factory factory = LZ4Factory.fastestInstance();
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 2));
+        try (LZ4BlockOutputStream lz4 = new LZ4BlockOutputStream(out, Math.min(BLOCK_SIZE, Math.max(64, body.length)), factory.fastCompressor())) {
+            lz4.write(body);
+        } catch (IOException e) {
+            throw new MQException("lz4 compress fail : " + e.getMessage(), e);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public InputStream decompress(byte[] body) {
+        return new LZ4BlockInputStream(new ByteArrayInputStream(body), factory.fastDecompressor());
+    }
+}
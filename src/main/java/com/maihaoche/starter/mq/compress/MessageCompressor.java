@@ -0,0 +1,35 @@
+package com.maihaoche.starter.mq.compress;
+
+import java.io.InputStream;
+
+/**
+ * 消息体压缩SPI
+ * 生产者压缩后把算法id写入消息的用户属性{@link MessageCompressors#COMPRESSION_PROPERTY}，消费者按该属性解压
+ *
+ * 自定义算法可以注册为Spring bean，或者通过META-INF/services/com.maihaoche.starter.mq.compress.MessageCompressor声明
+ */
+public interface MessageCompressor {
+
+    /**
+     * 算法的唯一标识，会随消息一起发送，一旦使用不要修改
+     *
+     * @return 算法id
+     */
+    String getId();
+
+    /**
+     * 压缩消息体
+     *
+     * @param body 编码后的消息体
+     * @return 压缩后的消息体
+     */
+    byte[] compress(byte[] body);
+
+    /**
+     * 解压消息体，返回的流直接交给解码器读取，不需要先解压出完整的byte数组
+     *
+     * @param body 压缩后的消息体
+     * @return 解压后的输入流，由调用方关闭
+     */
+    InputStream decompress(byte[] body);
+}
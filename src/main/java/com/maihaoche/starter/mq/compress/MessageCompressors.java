@@ -0,0 +1,66 @@
+package com.maihaoche.starter.mq.compress;
+
+import com.maihaoche.starter.mq.MQException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.util.ClassUtils;
+
+import java.util.ServiceLoader;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 全局的压缩算法注册表
+ * 内置deflate，classpath中存在lz4-java时注册lz4，另外加载通过ServiceLoader声明的算法
+ */
+@Slf4j
+public final class MessageCompressors {
+
+    /**消息用户属性中记录压缩算法id的key*/
+    public static final String COMPRESSION_PROPERTY = "MQ_COMPRESSION";
+
+    /**表示不压缩的算法名*/
+    public static final String NONE = "none";
+
+    private static final ConcurrentMap<String, MessageCompressor> COMPRESSORS = new ConcurrentHashMap<>();
+
+    static {
+        register(new DeflateCompressor());
+        ClassLoader classLoader = MessageCompressors.class.getClassLoader();
+        if (ClassUtils.isPresent("net.jpountz.lz4.LZ4Factory", classLoader)) {
+            register(new Lz4Compressor());
+        }
+        for (MessageCompressor compressor : ServiceLoader.load(MessageCompressor.class, classLoader)) {
+            register(compressor);
+        }
+    }
+
+    private MessageCompressors() {
+    }
+
+    /**
+     * 注册压缩算法，相同id的算法会被覆盖
+     *
+     * @param compressor 压缩算法
+     */
+    public static void register(MessageCompressor compressor) {
+        MessageCompressor previous = COMPRESSORS.put(compressor.getId(), compressor);
+        if (previous != null && previous != compressor) {
+            log.info("message compressor {} is replaced by {}", compressor.getId(), compressor.getClass().getName());
+        }
+    }
+
+    /**
+     * 按id查找压缩算法
+     *
+     * @param id 算法id
+     * @return 压缩算法
+     * @throws MQException 算法未注册
+     */
+    public static MessageCompressor get(String id) throws MQException {
+        MessageCompressor compressor = COMPRESSORS.get(id);
+        if (compressor == null) {
+            throw new MQException("unknown message compressor : " + id + ", registered compressors : " + COMPRESSORS.keySet());
+        }
+        return compressor;
+    }
+}
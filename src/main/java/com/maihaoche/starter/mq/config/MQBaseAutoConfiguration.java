@@ -3,14 +3,35 @@ package com.maihaoche.starter.mq.config;
 import com.maihaoche.starter.mq.annotation.EnableMQConfiguration;
 import com.maihaoche.starter.mq.base.AbstractMQProducer;
 import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import com.maihaoche.starter.mq.base.MessageLogPolicy;
+import com.maihaoche.starter.mq.codec.MessageCodec;
+import com.maihaoche.starter.mq.codec.MessageCodecs;
+import com.maihaoche.starter.mq.compress.MessageCompressor;
+import com.maihaoche.starter.mq.compress.MessageCompressors;
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import com.maihaoche.starter.mq.metrics.MicrometerMQMetrics;
+import com.maihaoche.starter.mq.transport.ClientInstanceAllocator;
+import com.maihaoche.starter.mq.transport.InMemoryBroker;
+import com.maihaoche.starter.mq.transport.InMemoryTransport;
+import com.maihaoche.starter.mq.transport.MQTransport;
+import com.maihaoche.starter.mq.transport.RocketMQTransport;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import org.apache.commons.lang3.StringUtils;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
+import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.util.ClassUtils;
+
+import javax.annotation.PostConstruct;
+import java.util.Map;
 
 /**
  * Created by yipin on 2017/6/28.
@@ -25,8 +46,151 @@ public class MQBaseAutoConfiguration implements ApplicationContextAware {
     protected MQProperties mqProperties;
     protected ApplicationContext applicationContext;
 
+    private MQMetrics metrics;
+
+    private MessageLogPolicy logPolicy;
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = applicationContext;
     }
+
+    /**
+     * 注册容器中自定义的MessageCodec和MessageCompressor
+     */
+    @PostConstruct
+    public void registerCodecs() {
+        for (MessageCodec codec : applicationContext.getBeansOfType(MessageCodec.class).values()) {
+            MessageCodecs.register(codec);
+        }
+        for (MessageCompressor compressor : applicationContext.getBeansOfType(MessageCompressor.class).values()) {
+            MessageCompressors.register(compressor);
+        }
+    }
+
+    /**
+     * 按rocketmq.transport创建传输层，容器中已有MQTransport时使用容器中的
+     * 容器关闭时会调用shutdown释放资源
+     *
+     * @return 传输层
+     */
+    @Bean
+    @ConditionalOnMissingBean(MQTransport.class)
+    public MQTransport mqTransport() {
+        if ("memory".equalsIgnoreCase(mqProperties.getTransport())) {
+            MQProperties.Memory memory = mqProperties.getMemory();
+            return new InMemoryTransport(new InMemoryBroker(memory.getQueueNums(), memory.getMessageDelayLevel(), memory.getMaxMessagesPerQueue()));
+        }
+        if (!"rocketmq".equalsIgnoreCase(mqProperties.getTransport())) {
+            throw new RuntimeException("unknown transport " + mqProperties.getTransport() + " ! only support rocketmq and memory");
+        }
+        return new RocketMQTransport(mqProperties.getNameServerAddress());
+    }
+
+    /**
+     * 按rocketmq.client-instance为生产者、消费者分配instanceName，容器中已有ClientInstanceAllocator时使用容器中的
+     *
+     * @return instanceName分配器
+     */
+    @Bean
+    @ConditionalOnMissingBean(ClientInstanceAllocator.class)
+    public ClientInstanceAllocator mqClientInstanceAllocator() {
+        MQProperties.ClientInstance clientInstance = mqProperties.getClientInstance();
+        return new ClientInstanceAllocator(clientInstance.getMode(), clientInstance.getCount(), clientInstance.isIncludeProducers());
+    }
+
+    /**
+     * 生产者和消费者共用的instanceName分配器
+     *
+     * @return instanceName分配器
+     */
+    protected ClientInstanceAllocator resolveInstanceAllocator() {
+        return applicationContext.getBean(ClientInstanceAllocator.class);
+    }
+
+    /**
+     * 创建生产者和消费者使用的传输层
+     *
+     * @return 传输层
+     */
+    protected MQTransport resolveTransport() {
+        return applicationContext.getBean(MQTransport.class);
+    }
+
+    /**
+     * broker的延时级别配置，transport为memory时使用进程内broker的配置
+     *
+     * @return 延时级别，格式与broker的messageDelayLevel相同
+     */
+    protected String resolveMessageDelayLevel() {
+        return "memory".equalsIgnoreCase(mqProperties.getTransport())
+                ? mqProperties.getMemory().getMessageDelayLevel() : mqProperties.getRetry().getMessageDelayLevel();
+    }
+
+    /**
+     * 优先使用注解上指定的codec，其次使用rocketmq.codec配置
+     *
+     * @param codecId 注解上指定的codec id
+     * @return codec
+     */
+    protected MessageCodec resolveCodec(String codecId) {
+        return MessageCodecs.get(StringUtils.isEmpty(codecId) ? mqProperties.getCodec() : codecId);
+    }
+
+    /**
+     * 按rocketmq.logging创建日志策略，同一个自动配置下的生产者（或消费者）共享限流额度
+     *
+     * @return 日志策略
+     */
+    protected MessageLogPolicy resolveLogPolicy() {
+        if (logPolicy == null) {
+            MQProperties.Logging logging = mqProperties.getLogging();
+            logPolicy = new MessageLogPolicy(logging.getSampleRatio(), logging.getTopicSampleRatios(),
+                    logging.getMaxLinesPerSecond(), logging.getMaxPayloadLength());
+        }
+        return logPolicy;
+    }
+
+    /**
+     * classpath中有Micrometer并且容器中存在MeterRegistry时记录监控指标，否则返回不做任何事的实现
+     *
+     * @return 监控指标
+     */
+    protected MQMetrics resolveMetrics() {
+        if (metrics == null) {
+            metrics = MQMetrics.NOOP;
+            if (ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry", getClass().getClassLoader())) {
+                metrics = MicrometerMetricsFactory.create(applicationContext);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * 隔离对Micrometer类的引用，没有Micrometer依赖时不会加载
+     */
+    private static class MicrometerMetricsFactory {
+
+        private static MQMetrics create(ApplicationContext applicationContext) {
+            Map<String, MeterRegistry> registries = applicationContext.getBeansOfType(MeterRegistry.class);
+            if (registries.isEmpty()) {
+                return MQMetrics.NOOP;
+            }
+            if (registries.size() == 1) {
+                return new MicrometerMQMetrics(registries.values().iterator().next());
+            }
+            MeterRegistry primary = null;
+            for (MeterRegistry registry : registries.values()) {
+                if (registry instanceof CompositeMeterRegistry) {
+                    primary = registry;
+                }
+            }
+            if (primary == null) {
+                CompositeMeterRegistry composite = new CompositeMeterRegistry();
+                registries.values().forEach(composite::add);
+                primary = composite;
+            }
+            return new MicrometerMQMetrics(primary);
+        }
+    }
 }
@@ -4,6 +4,18 @@ import com.maihaoche.starter.mq.annotation.MQConsumer;
 import com.maihaoche.starter.mq.base.AbstractMQConsumer;
 import com.maihaoche.starter.mq.base.AbstractMQPullConsumer;
 import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import com.maihaoche.starter.mq.base.DeadLetterForwarder;
+import com.maihaoche.starter.mq.base.MessageHandlerTable;
+import com.maihaoche.starter.mq.base.RetryPolicy;
+import com.maihaoche.starter.mq.dedup.DedupCache;
+import com.maihaoche.starter.mq.dedup.DedupKeyExtractor;
+import com.maihaoche.starter.mq.dedup.HeapDedupCache;
+import com.maihaoche.starter.mq.dedup.OffHeapDedupCache;
+import com.maihaoche.starter.mq.limit.AdaptiveConcurrencyLimiter;
+import com.maihaoche.starter.mq.limit.ConsumeLimiter;
+import com.maihaoche.starter.mq.limit.TokenBucketLimiter;
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
@@ -12,24 +24,63 @@ import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
 import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
 import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
 import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by suclogger on 2017/6/28.
  * 自动装配消息消费者
+ * 消费者在@PostConstruct中完成配置，容器刷新完成后在SmartLifecycle阶段并行启动，启动前不会收到消息；容器关闭时排空本地消息后关闭
  */
 @Slf4j
 @Configuration
 @ConditionalOnBean(MQBaseAutoConfiguration.class)
-public class MQConsumerAutoConfiguration extends MQBaseAutoConfiguration {
+public class MQConsumerAutoConfiguration extends MQBaseAutoConfiguration implements SmartLifecycle {
+
+    /**关闭时检查本地消息是否处理完成的间隔*/
+    private static final long DRAIN_CHECK_INTERVAL_MS = 50;
+
+    /**broker默认的最大重试次数，超过后broker把消息转入%DLQ%consumerGroup*/
+    private static final int BROKER_MAX_RECONSUME_TIMES = 16;
+
+    /**开启并行lane时每批消息数至少为lane数的倍数，否则每个lane分到的消息太少*/
+    private static final int ORDERLY_LANE_BATCH_FACTOR = 8;
+
+    /**客户端允许的consumeMessageBatchMaxSize上限*/
+    private static final int MAX_CONSUME_MESSAGE_BATCH_SIZE = 1024;
+
+    /**按注册顺序排列的消费者，在{@link #start()}中启动*/
+    private final List<PendingConsumer> pendingConsumers = new ArrayList<>();
+
+    private volatile boolean running;
+
+    /**消费者客户端关闭后（stop或启动失败）不能再次启动，RocketMQ客户端关闭后无法重新start*/
+    private volatile boolean closed;
+
+    /**转发死信消息的生产者，有消费者配置了deadLetterTopic时创建，在{@link #start()}中启动*/
+    private DefaultMQProducer deadLetterProducer;
+
+    private DeadLetterForwarder deadLetterForwarder;
+
     @PostConstruct
     public void init() throws Exception {
         Map<String, Object> beans = applicationContext.getBeansWithAnnotation(MQConsumer.class);
@@ -40,9 +91,6 @@ public class MQConsumerAutoConfiguration extends MQBaseAutoConfiguration {
 
     private void publishConsumer(String beanName, Object bean) throws Exception {
         MQConsumer mqConsumer = applicationContext.findAnnotationOnBean(beanName, MQConsumer.class);
-        if(StringUtils.isEmpty(mqProperties.getNameServerAddress())) {
-            throw new RuntimeException("name server address must be defined");
-        }
         final Field consumerGroupField = FieldUtils.getDeclaredField(bean.getClass(), "consumerGroup", true);
         //优先使用@MQConsumer注解定义的consumerGroup值
         String consumerGroup = mqConsumer.consumerGroup();
@@ -91,42 +139,447 @@ public class MQConsumerAutoConfiguration extends MQBaseAutoConfiguration {
         if(StringUtils.isNotEmpty(topicEnv)) {
             topic = topicEnv;
         }
+        AbstractMQConsumer<?> abstractMQConsumer = (AbstractMQConsumer<?>) bean;
+        abstractMQConsumer.setCodec(resolveCodec(mqConsumer.codec()));
+        abstractMQConsumer.setGroup(consumerGroup);
+        abstractMQConsumer.setMetrics(resolveMetrics());
+        abstractMQConsumer.setLogPolicy(resolveLogPolicy());
+        MessageHandlerTable handlerTable = MessageHandlerTable.build(bean);
+        abstractMQConsumer.setHandlerTable(handlerTable);
+        String subExpression = subExpression(mqConsumer.tag(), handlerTable);
+        //rocketmq.consumers.<consumerGroup>下的配置优先于注解上的值
+        MQProperties.ConsumerProperties overrides = mqProperties.getConsumers().get(consumerGroup);
+        if (overrides == null) {
+            overrides = new MQProperties.ConsumerProperties();
+        }
+        configureDedup(abstractMQConsumer, consumerGroup, mqConsumer, overrides);
+        configureRetry(abstractMQConsumer, mqConsumer, overrides);
+        int pullBatchSize = choose(overrides.getPullBatchSize(), mqConsumer.pullBatchSize());
         // 配置push consumer
         if(AbstractMQPushConsumer.class.isAssignableFrom(bean.getClass())) {
-            DefaultMQPushConsumer consumer = new DefaultMQPushConsumer(consumerGroup);
-            consumer.setNamesrvAddr(mqProperties.getNameServerAddress());
+            DefaultMQPushConsumer consumer = resolveTransport().createPushConsumer(consumerGroup);
             consumer.setMessageModel(MessageModel.valueOf(mqConsumer.messageMode()));
-            consumer.subscribe(topic, StringUtils.join(mqConsumer.tag(),"||"));
-            consumer.setInstanceName(UUID.randomUUID().toString());
-            AbstractMQPushConsumer abstractMQPushConsumer = (AbstractMQPushConsumer) bean;
+            consumer.subscribe(topic, subExpression);
+            resolveInstanceAllocator().assignConsumer(consumer, consumerGroup);
+            int consumeMessageBatchMaxSize = choose(overrides.getConsumeMessageBatchMaxSize(), mqConsumer.consumeMessageBatchMaxSize());
+            int consumeThreadMin = choose(overrides.getConsumeThreadMin(), mqConsumer.consumeThreadMin());
+            int consumeThreadMax = choose(overrides.getConsumeThreadMax(), mqConsumer.consumeThreadMax());
+            if (consumeThreadMin > consumeThreadMax) {
+                throw new RuntimeException("consumer " + consumerGroup + " consumeThreadMin must not be greater than consumeThreadMax");
+            }
+            configureLimiter(abstractMQConsumer, consumerGroup, mqConsumer, overrides, consumeThreadMin, consumeThreadMax);
+            consumer.setConsumeMessageBatchMaxSize(consumeMessageBatchMaxSize);
+            consumer.setConsumeThreadMin(consumeThreadMin);
+            consumer.setConsumeThreadMax(consumeThreadMax);
+            consumer.setPullBatchSize(pullBatchSize);
+            consumer.setPullInterval(choose(overrides.getPullInterval(), mqConsumer.pullInterval()));
+            consumer.setPullThresholdForQueue(choose(overrides.getPullThresholdForQueue(), mqConsumer.pullThresholdForQueue()));
+            consumer.setConsumeConcurrentlyMaxSpan(choose(overrides.getConsumeConcurrentlyMaxSpan(), mqConsumer.consumeConcurrentlyMaxSpan()));
+            int maxAttempts = abstractMQConsumer.getRetryPolicy().getMaxAttempts();
+            if (maxAttempts > BROKER_MAX_RECONSUME_TIMES) {
+                // 避免broker在重试策略放弃之前把消息转入%DLQ%
+                consumer.setMaxReconsumeTimes(maxAttempts);
+            }
+            AbstractMQPushConsumer<?> abstractMQPushConsumer = (AbstractMQPushConsumer<?>) bean;
+            abstractMQPushConsumer.setConsumeMessageBatchMaxSize(consumeMessageBatchMaxSize);
             if(mqConsumer.consumeMode().equals("CONCURRENTLY")) {
+                if (consumeMessageBatchMaxSize > 1) {
+                    abstractMQPushConsumer.checkBatchRecordTypes();
+                }
                 consumer.registerMessageListener((List<MessageExt> list, ConsumeConcurrentlyContext consumeConcurrentlyContext) ->
                         abstractMQPushConsumer.dealMessage(list, consumeConcurrentlyContext));
             } else if(mqConsumer.consumeMode().equals("ORDERLY")) {
+                int orderlyLanes = choose(overrides.getOrderlyLanes(), mqConsumer.orderlyLanes());
+                if (orderlyLanes > 1) {
+                    consumer.setConsumeMessageBatchMaxSize(Math.max(consumeMessageBatchMaxSize,
+                            Math.min(orderlyLanes * ORDERLY_LANE_BATCH_FACTOR, MAX_CONSUME_MESSAGE_BATCH_SIZE)));
+                    // 消费线程自己处理一个lane，其余lane交给lane线程
+                    abstractMQPushConsumer.enableOrderlyLanes(orderlyLanes, consumeThreadMax * (orderlyLanes - 1));
+                }
                 consumer.registerMessageListener((List<MessageExt> list, ConsumeOrderlyContext consumeOrderlyContext) ->
                         abstractMQPushConsumer.dealMessage(list, consumeOrderlyContext));
             } else {
                 throw new RuntimeException("unknown consume mode ! only support CONCURRENTLY and ORDERLY");
             }
             abstractMQPushConsumer.setConsumer(consumer);
-            consumer.start();
+            boolean adaptiveThreadPool = choose(overrides.getAdaptiveThreadPool(), mqConsumer.adaptiveThreadPool()) && consumeThreadMax > consumeThreadMin;
+            pendingConsumers.add(new PendingConsumer(beanName, consumerGroup, abstractMQConsumer, () -> {
+                consumer.start();
+                if (adaptiveThreadPool) {
+                    abstractMQPushConsumer.enableAdaptiveThreadPool(consumeThreadMin, consumeThreadMax);
+                }
+            }));
         } else if (AbstractMQPullConsumer.class.isAssignableFrom(bean.getClass())) {
 
             // 配置pull consumer
 
-            AbstractMQPullConsumer abstractMQPullConsumer = AbstractMQPullConsumer.class.cast(bean);
+            AbstractMQPullConsumer<?> abstractMQPullConsumer = (AbstractMQPullConsumer<?>) bean;
 
-            DefaultMQPullConsumer consumer = new DefaultMQPullConsumer(consumerGroup);
-            consumer.setNamesrvAddr(mqProperties.getNameServerAddress());
+            DefaultMQPullConsumer consumer = resolveTransport().createPullConsumer(consumerGroup);
             consumer.setMessageModel(MessageModel.valueOf(mqConsumer.messageMode()));
-            consumer.setInstanceName(UUID.randomUUID().toString());
-            consumer.start();
+            resolveInstanceAllocator().assignConsumer(consumer, consumerGroup);
+            // 注册queue变化的监听，rebalance后由拉取引擎启停对应queue的拉取任务
+            consumer.registerMessageQueueListener(topic, abstractMQPullConsumer);
 
             abstractMQPullConsumer.setTopic(topic);
+            abstractMQPullConsumer.setSubExpression(subExpression);
+            abstractMQPullConsumer.setPullBatchSize(pullBatchSize);
+            int pullThreads = choose(overrides.getPullThreads(), mqConsumer.pullThreads());
+            abstractMQPullConsumer.setPullThreads(pullThreads);
+            configureLimiter(abstractMQConsumer, consumerGroup, mqConsumer, overrides, pullThreads, pullThreads);
             abstractMQPullConsumer.setConsumer(consumer);
-            abstractMQPullConsumer.startInner();
+            pendingConsumers.add(new PendingConsumer(beanName, consumerGroup, abstractMQConsumer, () -> {
+                consumer.start();
+                abstractMQPullConsumer.startInner();
+            }));
         }
 
         log.info(String.format("%s is ready to subscribe message", bean.getClass().getName()));
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return mqProperties.getConsumerStartup().getPhase();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * 容器刷新完成后在有界线程池上并行启动所有消费者，超时或任何一个消费者启动失败时容器启动失败
+     * 消费者关闭后不支持再次启动，需要重新创建容器
+     */
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        if (pendingConsumers.isEmpty()) {
+            running = true;
+            return;
+        }
+        if (closed) {
+            throw new IllegalStateException("consumers have been shutdown and can not be restarted, please create a new application context");
+        }
+        running = true;
+        if (deadLetterProducer != null) {
+            try {
+                deadLetterProducer.start();
+            } catch (Exception e) {
+                running = false;
+                throw new RuntimeException("start dead letter producer fail", e);
+            }
+        }
+        MQProperties.ConsumerStartup startup = mqProperties.getConsumerStartup();
+        int threads = Math.max(1, Math.min(startup.getThreads(), pendingConsumers.size()));
+        final AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "MQConsumerStartup-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        long begin = System.nanoTime();
+        // DefaultMQPushConsumer.start()不响应中断，超时后才完成的启动由任务自己检查该标记并关闭
+        final AtomicBoolean startupFailed = new AtomicBoolean();
+        List<Future<Long>> futures = new ArrayList<>(pendingConsumers.size());
+        for (PendingConsumer pending : pendingConsumers) {
+            futures.add(executor.submit(() -> {
+                long start = System.nanoTime();
+                pending.starter.start();
+                synchronized (pending) {
+                    if (startupFailed.get()) {
+                        shutdown(pending);
+                        throw new IllegalStateException("consumer startup aborted");
+                    }
+                    pending.started = true;
+                }
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }));
+        }
+        executor.shutdown();
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(startup.getTimeoutMs());
+        List<String> failed = new ArrayList<>();
+        Throwable cause = null;
+        boolean interrupted = false;
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                PendingConsumer pending = pendingConsumers.get(i);
+                try {
+                    long millis = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                    log.info("consumer {} ({}) started in {} ms", pending.beanName, pending.consumerGroup, millis);
+                } catch (TimeoutException e) {
+                    futures.get(i).cancel(true);
+                    failed.add(pending.beanName);
+                    log.error("consumer {} ({}) not started within {} ms", pending.beanName, pending.consumerGroup, startup.getTimeoutMs());
+                } catch (ExecutionException e) {
+                    failed.add(pending.beanName);
+                    cause = cause == null ? e.getCause() : cause;
+                    log.error("consumer {} ({}) start fail, e : {}", pending.beanName, pending.consumerGroup, e.getCause().getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            interrupted = true;
+            cause = e;
+        } finally {
+            executor.shutdownNow();
+        }
+        if (interrupted || !failed.isEmpty()) {
+            // 启动失败时容器不会调用stop，已经启动的消费者在这里关闭，之后才启动完成的消费者由启动任务自己关闭
+            running = false;
+            closed = true;
+            startupFailed.set(true);
+            for (PendingConsumer pending : pendingConsumers) {
+                synchronized (pending) {
+                    if (pending.started) {
+                        pending.started = false;
+                        shutdown(pending);
+                    }
+                }
+            }
+            closeDeadLetterForwarder();
+            throw new RuntimeException(interrupted ? "interrupted while starting consumers" : "start consumers fail : " + failed, cause);
+        }
+        log.info("{} consumers started in {} ms with {} threads", pendingConsumers.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), threads);
+    }
+
+    /**
+     * 容器关闭时先停止所有消费者拉取，在rocketmq.consumer-shutdown.timeout-ms内等待本地消息处理完成，再按启动的逆序关闭客户端
+     * 消费者先于生产者（@PreDestroy）关闭，process中仍然可以发送消息
+     */
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closed = true;
+        List<PendingConsumer> started = new ArrayList<>();
+        for (PendingConsumer pending : pendingConsumers) {
+            synchronized (pending) {
+                if (pending.started) {
+                    pending.started = false;
+                    started.add(pending);
+                }
+            }
+        }
+        if (started.isEmpty()) {
+            closeDeadLetterForwarder();
+            return;
+        }
+        long begin = System.nanoTime();
+        long[] completedBefore = new long[started.size()];
+        for (int i = 0; i < started.size(); i++) {
+            PendingConsumer pending = started.get(i);
+            completedBefore[i] = pending.consumer.getCompletedCount();
+            try {
+                pending.consumer.suspendConsume();
+            } catch (Exception e) {
+                log.warn("suspend consumer {} fail, e : {}", pending.beanName, e.getMessage());
+            }
+        }
+        long deadline = begin + TimeUnit.MILLISECONDS.toNanos(mqProperties.getConsumerShutdown().getTimeoutMs());
+        try {
+            while (System.nanoTime() < deadline && hasPendingMessages(started)) {
+                Thread.sleep(DRAIN_CHECK_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        long totalDrained = 0;
+        long totalAbandoned = 0;
+        for (int i = started.size() - 1; i >= 0; i--) {
+            PendingConsumer pending = started.get(i);
+            long drained = pending.consumer.getCompletedCount() - completedBefore[i];
+            // push模式的本地消息数包含正在处理的消息
+            long abandoned = Math.max(pending.consumer.getInFlightCount(), pending.consumer.getBufferedCount());
+            resolveMetrics().recordDrain(pending.consumerGroup, drained, abandoned);
+            totalDrained += drained;
+            totalAbandoned += abandoned;
+            if (abandoned > 0) {
+                log.warn("consumer {} ({}) abandoned {} messages after drain timeout", pending.beanName, pending.consumerGroup, abandoned);
+            }
+            shutdown(pending);
+        }
+        closeDeadLetterForwarder();
+        log.info("{} consumers shutdown in {} ms, drained {} messages, abandoned {} messages", started.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin), totalDrained, totalAbandoned);
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        try {
+            stop();
+        } finally {
+            callback.run();
+        }
+    }
+
+    /**
+     * 消费者全部关闭后发出剩余的死信消息，再关闭生产者
+     * 消费者仍然持有转发器，关闭后的转发器拒绝转发，因此不清空引用
+     */
+    private void closeDeadLetterForwarder() {
+        if (deadLetterForwarder == null) {
+            return;
+        }
+        deadLetterForwarder.close(mqProperties.getDeadLetter().getCloseTimeoutMs());
+        deadLetterProducer.shutdown();
+    }
+
+    private static boolean hasPendingMessages(List<PendingConsumer> consumers) {
+        for (PendingConsumer pending : consumers) {
+            if (pending.consumer.getInFlightCount() > 0 || pending.consumer.getBufferedCount() > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void shutdown(PendingConsumer pending) {
+        try {
+            pending.consumer.shutdownConsumer();
+        } catch (Exception e) {
+            log.warn("shutdown consumer {} fail, e : {}", pending.beanName, e.getMessage());
+        }
+    }
+
+    /**
+     * 有@MQHandler方法时订阅handler的tag，再加上@MQConsumer中显式列出的tag（交给process处理）；*不会再订阅
+     */
+    private static String subExpression(String[] tags, MessageHandlerTable handlerTable) {
+        if (handlerTable.isEmpty()) {
+            return StringUtils.join(tags, "||");
+        }
+        Set<String> subscribed = new LinkedHashSet<>();
+        for (String tag : tags) {
+            if (!"*".equals(tag)) {
+                subscribed.add(tag);
+            }
+        }
+        subscribed.addAll(handlerTable.getTags());
+        return StringUtils.join(subscribed, "||");
+    }
+
+    private void configureDedup(AbstractMQConsumer<?> consumer, String consumerGroup, MQConsumer mqConsumer, MQProperties.ConsumerProperties overrides) {
+        String dedupKey = choose(overrides.getDedupKey(), mqConsumer.dedupKey());
+        if ("NONE".equals(dedupKey)) {
+            return;
+        }
+        if ("MESSAGE_KEY".equals(dedupKey)) {
+            consumer.setDedupKeyExtractor(DedupKeyExtractor.MESSAGE_KEY);
+        } else if ("MSG_ID".equals(dedupKey)) {
+            consumer.setDedupKeyExtractor(DedupKeyExtractor.MSG_ID);
+        } else if (!"CUSTOM".equals(dedupKey)) {
+            throw new RuntimeException("unknown dedup key ! only support NONE, MESSAGE_KEY, MSG_ID and CUSTOM");
+        }
+        int capacity = choose(overrides.getDedupCapacity(), mqConsumer.dedupCapacity());
+        long ttlMs = choose(overrides.getDedupTtlMs(), mqConsumer.dedupTtlMs());
+        String store = choose(overrides.getDedupStore(), mqConsumer.dedupStore());
+        DedupCache dedupCache;
+        if ("HEAP".equals(store)) {
+            dedupCache = new HeapDedupCache(capacity, ttlMs);
+        } else if ("OFF_HEAP".equals(store)) {
+            dedupCache = new OffHeapDedupCache(capacity, ttlMs);
+        } else {
+            throw new RuntimeException("unknown dedup store ! only support HEAP and OFF_HEAP");
+        }
+        consumer.setDedupCache(dedupCache);
+        resolveMetrics().bindDedup(consumerGroup, dedupCache);
+    }
+
+    /**
+     * @param initialConcurrency 自适应限流的初始并发数
+     * @param maxConcurrency 未配置limitMaxConcurrency时的最大并发数
+     */
+    private void configureLimiter(AbstractMQConsumer<?> consumer, String consumerGroup, MQConsumer mqConsumer,
+                                  MQProperties.ConsumerProperties overrides, int initialConcurrency, int maxConcurrency) {
+        String type = choose(overrides.getLimiter(), mqConsumer.limiter());
+        ConsumeLimiter limiter;
+        if ("NONE".equals(type)) {
+            return;
+        } else if ("RATE".equals(type)) {
+            double rate = choose(overrides.getLimitRate(), mqConsumer.limitRate());
+            limiter = new TokenBucketLimiter(rate, rate);
+        } else if ("AIMD".equals(type) || "GRADIENT".equals(type)) {
+            int minConcurrency = choose(overrides.getLimitMinConcurrency(), mqConsumer.limitMinConcurrency());
+            int configuredMax = choose(overrides.getLimitMaxConcurrency(), mqConsumer.limitMaxConcurrency());
+            int max = configuredMax > 0 ? configuredMax : Math.max(maxConcurrency, minConcurrency);
+            limiter = new AdaptiveConcurrencyLimiter("GRADIENT".equals(type), initialConcurrency, minConcurrency, max,
+                    choose(overrides.getLimitLatencyMs(), mqConsumer.limitLatencyMs()));
+        } else {
+            throw new RuntimeException("unknown limiter ! only support NONE, RATE, AIMD and GRADIENT");
+        }
+        consumer.setLimiter(limiter);
+        resolveMetrics().bindLimiter(consumerGroup, type, limiter);
+    }
+
+    private void configureRetry(AbstractMQConsumer<?> consumer, MQConsumer mqConsumer, MQProperties.ConsumerProperties overrides) throws IOException {
+        consumer.setRetryPolicy(RetryPolicy.of(choose(overrides.getMaxAttempts(), mqConsumer.maxAttempts()),
+                choose(overrides.getRetryBackoff(), mqConsumer.retryBackoff()), resolveMessageDelayLevel(), mqConsumer.retryOn(), mqConsumer.noRetryOn()));
+        String deadLetterTopic = choose(overrides.getDeadLetterTopic(), mqConsumer.deadLetterTopic());
+        if (StringUtils.isNotEmpty(deadLetterTopic)) {
+            consumer.setDeadLetterTopic(deadLetterTopic);
+            consumer.setDeadLetterForwarder(deadLetterForwarder());
+        }
+    }
+
+    /**
+     * 所有消费者共用一个死信转发器
+     */
+    private DeadLetterForwarder deadLetterForwarder() throws IOException {
+        if (deadLetterForwarder == null) {
+            MQProperties.DeadLetter deadLetter = mqProperties.getDeadLetter();
+            deadLetterProducer = resolveTransport().createProducer(deadLetter.getProducerGroup());
+            resolveInstanceAllocator().assignProducer(deadLetterProducer, deadLetter.getProducerGroup(), null);
+            deadLetterForwarder = new DeadLetterForwarder(deadLetterProducer, deadLetter.getBatchSize(), deadLetter.getBatchBytes(),
+                    deadLetter.getLingerMs(), deadLetter.getCapacity(), deadLetter.getSendRetries(), resolveMetrics());
+            if (StringUtils.isNotEmpty(deadLetter.getSpoolDir())) {
+                MQProperties.Spool spool = mqProperties.getSpool();
+                deadLetterForwarder.enableSpool(new File(deadLetter.getSpoolDir()), spool.getSegmentBytes(), deadLetter.getSpoolMaxBytes(),
+                        spool.getFailureThreshold(), spool.getOpenMs(), spool.getFlushIntervalMs());
+            }
+        }
+        return deadLetterForwarder;
+    }
+
+    private static <V> V choose(V configured, V annotated) {
+        return configured != null ? configured : annotated;
+    }
+
+    @FunctionalInterface
+    private interface Starter {
+        void start() throws Exception;
+    }
+
+    /**
+     * 已经配置好、等待在SmartLifecycle阶段启动的消费者
+     */
+    private static final class PendingConsumer {
+
+        private final String beanName;
+
+        private final String consumerGroup;
+
+        private final AbstractMQConsumer<?> consumer;
+
+        private final Starter starter;
+
+        private volatile boolean started;
+
+        private PendingConsumer(String beanName, String consumerGroup, AbstractMQConsumer<?> consumer, Starter starter) {
+            this.beanName = beanName;
+            this.consumerGroup = consumerGroup;
+            this.consumer = consumer;
+            this.starter = starter;
+        }
+    }
+}
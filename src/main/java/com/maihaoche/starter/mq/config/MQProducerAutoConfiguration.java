@@ -2,28 +2,68 @@ package com.maihaoche.starter.mq.config;
 
 import com.maihaoche.starter.mq.annotation.MQProducer;
 import com.maihaoche.starter.mq.base.AbstractMQProducer;
+import com.maihaoche.starter.mq.base.ConsistentHashMessageQueueSelector;
+import com.maihaoche.starter.mq.base.InFlightLimitPolicy;
+import com.maihaoche.starter.mq.base.LatencyAwareMessageQueueSelector;
+import com.maihaoche.starter.mq.base.PooledMQProducer;
+import com.maihaoche.starter.mq.base.RetryPolicy;
+import com.maihaoche.starter.mq.compress.CompressionPolicy;
+import com.maihaoche.starter.mq.compress.MessageCompressor;
+import com.maihaoche.starter.mq.compress.MessageCompressors;
+import com.maihaoche.starter.mq.schedule.MessageScheduler;
+import com.maihaoche.starter.mq.transport.ClientInstanceAllocator;
+import com.maihaoche.starter.mq.transport.MQTransport;
+import java.io.File;
 import java.lang.reflect.Field;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.exception.MQClientException;
 import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.selector.SelectMessageQueueByHash;
+import org.apache.rocketmq.common.message.MessageExt;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
+import org.springframework.context.SmartLifecycle;
 import org.springframework.context.annotation.Configuration;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import org.springframework.util.CollectionUtils;
 
 /**
  * Created by yipin on 2017/6/29.
  * 自动装配消息生产者
+ * 有生产者开启定时发送时，hop消费者和本地时间轮在SmartLifecycle阶段启动，比消费者早启动、晚停止，消费者的process中仍然可以定时发送
  */
 @Slf4j
 @Configuration
 @ConditionalOnBean(MQBaseAutoConfiguration.class)
-public class MQProducerAutoConfiguration extends MQBaseAutoConfiguration {
+public class MQProducerAutoConfiguration extends MQBaseAutoConfiguration implements SmartLifecycle {
 
-    private DefaultMQProducer producer;
+    /**producerGroup到客户端实例*/
+    private final Map<String, DefaultMQProducer> producers = new HashMap<>();
+
+    /**使用上面客户端实例的生产者bean*/
+    private final List<AbstractMQProducer> producerBeans = new ArrayList<>();
+
+    /**定时发送使用的生产者，有生产者开启定时发送时创建，随其它生产者一起关闭*/
+    private DefaultMQProducer scheduleProducer;
+
+    /**生产者bean持有该对象，停止后再启动时原地重新打开，不会替换*/
+    private MessageScheduler messageScheduler;
+
+    /**消费hop topic的消费者，每次{@link #start()}时创建，停止后不能再启动*/
+    private DefaultMQPushConsumer hopConsumer;
+
+    private volatile boolean running;
 
     @PostConstruct
     public void init() throws Exception {
@@ -32,30 +72,62 @@ public class MQProducerAutoConfiguration extends MQBaseAutoConfiguration {
         if(CollectionUtils.isEmpty(beans)){
             return;
         }
-        if(producer == null) {
-            if(StringUtils.isEmpty(mqProperties.getProducerGroup())) {
-                throw new RuntimeException("producer group must be defined");
-            }
-            if(StringUtils.isEmpty(mqProperties.getNameServerAddress())) {
-                throw new RuntimeException("name server address must be defined");
-            }
-            producer = new DefaultMQProducer(mqProperties.getProducerGroup());
-            producer.setNamesrvAddr(mqProperties.getNameServerAddress());
-            producer.start();
-        }
         for (Map.Entry<String, Object> entry : beans.entrySet()) {
             publishProducer(entry.getKey(), entry.getValue());
         }
     }
 
+    /**
+     * 取producerGroup对应的客户端实例，第一次使用时创建并启动
+     */
+    private DefaultMQProducer producerFor(String producerGroup) throws MQClientException {
+        DefaultMQProducer producer = producers.get(producerGroup);
+        if (producer != null) {
+            return producer;
+        }
+        MQTransport transport = resolveTransport();
+        MQProperties.ProducerPool pool = mqProperties.getProducerPool();
+        ClientInstanceAllocator allocator = resolveInstanceAllocator();
+        if (pool.getSize() <= 1) {
+            producer = transport.createProducer(producerGroup);
+            allocator.assignProducer(producer, producerGroup, null);
+        } else {
+            List<DefaultMQProducer> members = new ArrayList<>(pool.getSize());
+            for (int i = 0; i < pool.getSize(); i++) {
+                DefaultMQProducer member = transport.createProducer(producerGroup);
+                // 不同的instanceName对应不同的MQClientInstance
+                allocator.assignProducer(member, producerGroup, producerGroup + "-" + i);
+                members.add(member);
+            }
+            producer = new PooledMQProducer(producerGroup, members, PooledMQProducer.Strategy.valueOf(pool.getStrategy()),
+                    pool.getFailureThreshold(), pool.getCooldownMs());
+        }
+        producer.start();
+        producers.put(producerGroup, producer);
+        return producer;
+    }
+
     private void publishProducer(String beanName, Object bean) throws Exception {
         if(!AbstractMQProducer.class.isAssignableFrom(bean.getClass())) {
             throw new RuntimeException(beanName + " - producer未继承AbstractMQProducer");
         }
         AbstractMQProducer abstractMQProducer = (AbstractMQProducer) bean;
-        abstractMQProducer.setProducer(producer);
-        // begin build producer level topic
         MQProducer mqProducer = applicationContext.findAnnotationOnBean(beanName, MQProducer.class);
+        //优先使用@MQProducer注解指定的producerGroup，环境变量有对应配置时使用环境变量的值
+        String producerGroup = mqProducer.producerGroup();
+        if(StringUtils.isNotEmpty(producerGroup)) {
+            String producerGroupEnv = applicationContext.getEnvironment().getProperty(producerGroup);
+            producerGroup = StringUtils.isEmpty(producerGroupEnv) ? producerGroup : producerGroupEnv;
+        } else {
+            producerGroup = mqProperties.getProducerGroup();
+        }
+        if(StringUtils.isEmpty(producerGroup)) {
+            throw new RuntimeException("producer group must be defined");
+        }
+        abstractMQProducer.setProducer(producerFor(producerGroup));
+        abstractMQProducer.setSharedProducer(true);
+        producerBeans.add(abstractMQProducer);
+        // begin build producer level topic
 
         //优先使用MQProducer注解指定的topic值
         String topic = mqProducer.topic();
@@ -88,6 +160,187 @@ public class MQProducerAutoConfiguration extends MQBaseAutoConfiguration {
             tag = StringUtils.isEmpty(transTag) ? tag : transTag;
         }
         abstractMQProducer.setTag(tag);
+        abstractMQProducer.setCodec(resolveCodec(mqProducer.codec()));
+        abstractMQProducer.setMetrics(resolveMetrics());
+        abstractMQProducer.setLogPolicy(resolveLogPolicy());
+        abstractMQProducer.setCompressionPolicy(resolveCompression(mqProducer));
+        abstractMQProducer.setMessageQueueSelector(resolveQueueSelector(mqProducer.queueSelector()));
+        if(mqProducer.latencyAware()) {
+            abstractMQProducer.setLatencySelector(new LatencyAwareMessageQueueSelector());
+        }
+        if(mqProducer.batchMaxSize() > 1) {
+            abstractMQProducer.enableBatch(mqProducer.batchMaxSize(), mqProducer.batchMaxBytes(), mqProducer.batchLingerMs());
+        }
+        if(mqProducer.maxInFlight() > 0) {
+            abstractMQProducer.setInFlightLimit(mqProducer.maxInFlight(), InFlightLimitPolicy.valueOf(mqProducer.inFlightPolicy()), mqProducer.inFlightTimeoutMs());
+        }
+        if(mqProducer.scheduled()) {
+            abstractMQProducer.setMessageScheduler(messageScheduler());
+        }
+        if(mqProducer.spool()) {
+            MQProperties.Spool spool = mqProperties.getSpool();
+            abstractMQProducer.enableSpool(new File(spool.getDir(), beanName), spool.getSegmentBytes(), spool.getMaxBytes(),
+                    spool.getFailureThreshold(), spool.getOpenMs(), spool.getFlushIntervalMs());
+        }
         log.info(String.format("%s is ready to produce message", beanName));
     }
+
+    /**
+     * 所有开启定时发送的生产者共用一个时间轮和hop消费者
+     */
+    private MessageScheduler messageScheduler() throws Exception {
+        if (messageScheduler != null) {
+            return messageScheduler;
+        }
+        MQProperties.Schedule schedule = mqProperties.getSchedule();
+        MQTransport transport = resolveTransport();
+        scheduleProducer = transport.createProducer(schedule.getProducerGroup());
+        resolveInstanceAllocator().assignProducer(scheduleProducer, schedule.getProducerGroup(), null);
+        scheduleProducer.start();
+        MessageScheduler scheduler = new MessageScheduler(scheduleProducer, schedule.getHopTopic(),
+                RetryPolicy.parseDurations(resolveMessageDelayLevel()), schedule.getLocalHorizonMs(), new File(schedule.getDir()),
+                schedule.getTickMs(), schedule.getCompactBytes(), schedule.getFlushIntervalMs(), schedule.getMaxFireAttempts());
+        resolveMetrics().bindScheduler(scheduler);
+        messageScheduler = scheduler;
+        return scheduler;
+    }
+
+    private DefaultMQPushConsumer createHopConsumer(final MessageScheduler scheduler) throws MQClientException {
+        MQProperties.Schedule schedule = mqProperties.getSchedule();
+        DefaultMQPushConsumer consumer = resolveTransport().createPushConsumer(schedule.getConsumerGroup());
+        consumer.subscribe(schedule.getHopTopic(), "*");
+        resolveInstanceAllocator().assignConsumer(consumer, schedule.getConsumerGroup());
+        consumer.registerMessageListener((MessageListenerConcurrently) (list, context) -> {
+            for (MessageExt messageExt : list) {
+                if (!scheduler.receive(messageExt)) {
+                    return ConsumeConcurrentlyStatus.RECONSUME_LATER;
+                }
+            }
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        });
+        return consumer;
+    }
+
+    /**
+     * 同一个producerGroup的客户端实例被多个bean共用，先让所有bean发送完攒批中的消息，再统一关闭客户端实例
+     */
+    @PreDestroy
+    public void shutdownProducers() {
+        for (AbstractMQProducer producerBean : producerBeans) {
+            producerBean.destroyProducer();
+        }
+        for (DefaultMQProducer producer : producers.values()) {
+            producer.shutdown();
+        }
+        producers.clear();
+        if (scheduleProducer != null) {
+            scheduleProducer.shutdown();
+            scheduleProducer = null;
+        }
+    }
+
+    @Override
+    public boolean isAutoStartup() {
+        return true;
+    }
+
+    @Override
+    public int getPhase() {
+        return mqProperties.getConsumerStartup().getPhase() - 1;
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        if (messageScheduler == null) {
+            return;
+        }
+        try {
+            // 停止后再启动时重新打开journal
+            messageScheduler.start();
+            hopConsumer = createHopConsumer(messageScheduler);
+            hopConsumer.start();
+        } catch (MQClientException | RuntimeException e) {
+            running = false;
+            closeMessageScheduler();
+            throw new RuntimeException("start message scheduler fail", e);
+        }
+        log.info("message scheduler started, hop topic : {}", mqProperties.getSchedule().getHopTopic());
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        closeMessageScheduler();
+    }
+
+    @Override
+    public void stop(Runnable callback) {
+        try {
+            stop();
+        } finally {
+            callback.run();
+        }
+    }
+
+    /**
+     * 先停止hop消费者，再停止时间轮，未到期的消息保留在journal中；生产者bean仍持有时间轮，再次启动时原地重新打开
+     */
+    private void closeMessageScheduler() {
+        if (messageScheduler == null) {
+            return;
+        }
+        if (hopConsumer != null) {
+            hopConsumer.shutdown();
+            hopConsumer = null;
+        }
+        messageScheduler.close(mqProperties.getSchedule().getCloseTimeoutMs());
+    }
+
+    private static MessageQueueSelector resolveQueueSelector(String queueSelector) {
+        switch (queueSelector) {
+            case "HASH":
+                return new SelectMessageQueueByHash();
+            case "CONSISTENT_HASH":
+                return new ConsistentHashMessageQueueSelector();
+            default:
+                throw new RuntimeException("unknown queue selector : " + queueSelector);
+        }
+    }
+
+    /**
+     * 压缩算法和阈值：rocketmq.compression.topics下的配置优先，其次@MQProducer，最后rocketmq.compression的默认值
+     */
+    private CompressionPolicy resolveCompression(MQProducer mqProducer) {
+        MQProperties.Compression compression = mqProperties.getCompression();
+        String algorithm = StringUtils.isEmpty(mqProducer.compression()) ? compression.getAlgorithm() : mqProducer.compression();
+        int minSize = mqProducer.compressMinSize() < 0 ? compression.getMinSize() : mqProducer.compressMinSize();
+        Map<String, CompressionPolicy.Rule> topicRules = new HashMap<>();
+        for (Map.Entry<String, MQProperties.TopicCompression> entry : compression.getTopics().entrySet()) {
+            MQProperties.TopicCompression topicCompression = entry.getValue();
+            topicRules.put(entry.getKey(), new CompressionPolicy.Rule(
+                    compressor(StringUtils.defaultIfEmpty(topicCompression.getAlgorithm(), algorithm)),
+                    topicCompression.getMinSize() == null ? minSize : topicCompression.getMinSize()));
+        }
+        MessageCompressor compressor = compressor(algorithm);
+        if (compressor == null && topicRules.isEmpty()) {
+            return CompressionPolicy.NONE;
+        }
+        return new CompressionPolicy(compressor, minSize, topicRules);
+    }
+
+    private static MessageCompressor compressor(String algorithm) {
+        return StringUtils.isEmpty(algorithm) || MessageCompressors.NONE.equals(algorithm) ? null : MessageCompressors.get(algorithm);
+    }
 }
\ No newline at end of file
@@ -1,8 +1,13 @@
 package com.maihaoche.starter.mq.config;
 
+import com.maihaoche.starter.mq.codec.GsonMessageCodec;
+import com.maihaoche.starter.mq.transport.InMemoryBroker;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by yipin on 2017/6/28.
  * RocketMQ的配置参数
@@ -12,4 +17,241 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 public class MQProperties {
     private String nameServerAddress;
     private String producerGroup;
+    /**每个producerGroup的客户端实例池*/
+    private ProducerPool producerPool = new ProducerPool();
+    /**默认的消息体编码方式，内置gson、jackson、smile*/
+    private String codec = GsonMessageCodec.ID;
+    /**按consumerGroup覆盖@MQConsumer上的消费参数，如rocketmq.consumers.CID_DEMO.consume-thread-max=32*/
+    private Map<String, ConsumerProperties> consumers = new HashMap<>();
+    /**传输层，rocketmq连接namesrv，memory使用进程内的broker（用于测试和本地调试）*/
+    private String transport = "rocketmq";
+    /**生产者的消息体压缩*/
+    private Compression compression = new Compression();
+    /**发送、接收消息的INFO日志采样与限流，错误日志不受影响*/
+    private Logging logging = new Logging();
+    /**transport为memory时进程内broker的参数*/
+    private Memory memory = new Memory();
+    /**客户端共享MQClientInstance的方式*/
+    private ClientInstance clientInstance = new ClientInstance();
+    /**容器刷新完成后启动消费者的方式*/
+    private ConsumerStartup consumerStartup = new ConsumerStartup();
+    /**容器关闭时排空消费者的方式*/
+    private ConsumerShutdown consumerShutdown = new ConsumerShutdown();
+    /**消费失败重试的公共参数*/
+    private Retry retry = new Retry();
+    /**转发死信消息的生产者参数*/
+    private DeadLetter deadLetter = new DeadLetter();
+    /**生产者本地spool的参数，@MQProducer(spool = true)时生效*/
+    private Spool spool = new Spool();
+    /**定时发送的参数，有@MQProducer(scheduled = true)时生效*/
+    private Schedule schedule = new Schedule();
+
+    /**
+     * 单个消费者的参数，未配置的项使用@MQConsumer注解上的值
+     */
+    @Data
+    public static class ConsumerProperties {
+        private Integer consumeThreadMin;
+        private Integer consumeThreadMax;
+        private Integer pullBatchSize;
+        private Long pullInterval;
+        private Integer pullThresholdForQueue;
+        private Integer consumeConcurrentlyMaxSpan;
+        private Integer consumeMessageBatchMaxSize;
+        private Integer pullThreads;
+        private Boolean adaptiveThreadPool;
+        private Integer orderlyLanes;
+        private String limiter;
+        private Double limitRate;
+        private Integer limitMinConcurrency;
+        private Integer limitMaxConcurrency;
+        private Long limitLatencyMs;
+        private String dedupKey;
+        private String dedupStore;
+        private Integer dedupCapacity;
+        private Long dedupTtlMs;
+        private Integer maxAttempts;
+        private String retryBackoff;
+        private String deadLetterTopic;
+    }
+
+    /**
+     * 生产者客户端实例池参数，size为1时与之前一样每个producerGroup只有一个DefaultMQProducer
+     */
+    @Data
+    public static class ProducerPool {
+        /**每个producerGroup的客户端实例数*/
+        private int size = 1;
+        /**选择实例的方式：TOPIC按topic固定实例，ROUND_ROBIN轮询*/
+        private String strategy = "TOPIC";
+        /**实例连续发送失败多少次后暂时不再使用*/
+        private int failureThreshold = 3;
+        /**不健康的实例多久之后重新参与路由*/
+        private long cooldownMs = 30000;
+    }
+
+    /**
+     * 消息体压缩参数，@MQProducer上的配置优先于默认值，topics下的配置优先于两者
+     */
+    @Data
+    public static class Compression {
+        /**默认压缩算法，none、deflate、lz4（需要lz4-java依赖）或自定义算法的id*/
+        private String algorithm = "none";
+        /**消息体不小于该字节数时才压缩*/
+        private int minSize = 4096;
+        /**按topic覆盖，如rocketmq.compression.topics.TP_ORDER.algorithm=lz4*/
+        private Map<String, TopicCompression> topics = new HashMap<>();
+    }
+
+    /**
+     * 单个topic的压缩参数，未配置的项使用生产者的配置
+     */
+    @Data
+    public static class TopicCompression {
+        private String algorithm;
+        private Integer minSize;
+    }
+
+    /**
+     * 热点路径日志的采样与限流参数，默认逐条打印
+     */
+    @Data
+    public static class Logging {
+        /**默认采样比例，0到1之间，0表示不打印*/
+        private double sampleRatio = 1.0;
+        /**按topic覆盖采样比例，如rocketmq.logging.topic-sample-ratios.TP_ORDER=0.01*/
+        private Map<String, Double> topicSampleRatios = new HashMap<>();
+        /**生产者、消费者各自每秒最多打印的行数，0表示不限制*/
+        private int maxLinesPerSecond = 0;
+        /**日志中消息体的最大长度，0表示不截断*/
+        private int maxPayloadLength = 512;
+    }
+
+    /**
+     * 进程内broker的参数
+     */
+    @Data
+    public static class Memory {
+        /**自动创建topic时的queue数量*/
+        private int queueNums = 4;
+        /**延时级别，与broker的messageDelayLevel格式相同*/
+        private String messageDelayLevel = InMemoryBroker.DEFAULT_MESSAGE_DELAY_LEVEL;
+        /**每个queue最多保留的消息数，超过后丢弃最早的消息*/
+        private int maxMessagesPerQueue = 100000;
+    }
+
+    /**
+     * MQClientInstance的分配方式，默认每个消费者独立一个实例
+     */
+    @Data
+    public static class ClientInstance {
+        /**PER_CONSUMER每个消费者独立的实例，SHARED消费者分摊到count个共享实例上*/
+        private String mode = "PER_CONSUMER";
+        /**SHARED模式下的共享实例数，同一个consumerGroup的多个消费者会额外占用实例*/
+        private int count = 1;
+        /**SHARED模式下生产者是否也使用共享实例*/
+        private boolean includeProducers = false;
+    }
+
+    /**
+     * 消费者在SmartLifecycle阶段并行启动的参数
+     */
+    @Data
+    public static class ConsumerStartup {
+        /**并行启动消费者的线程数*/
+        private int threads = 8;
+        /**所有消费者启动的最长等待时间，超时后容器启动失败*/
+        private long timeoutMs = 60000;
+        /**SmartLifecycle的phase，越大越晚启动、越早停止*/
+        private int phase = Integer.MAX_VALUE - 1000;
+    }
+
+    /**
+     * 消费者关闭前排空本地消息的参数
+     */
+    @Data
+    public static class ConsumerShutdown {
+        /**停止拉取后等待本地消息处理完成的最长时间，超时后未处理完的消息由broker重新投递*/
+        private long timeoutMs = 30000;
+    }
+
+    /**
+     * 重试退避时间换算为延时级别的参数
+     */
+    @Data
+    public static class Retry {
+        /**broker的messageDelayLevel，需要与broker配置一致；transport为memory时使用rocketmq.memory.message-delay-level*/
+        private String messageDelayLevel = InMemoryBroker.DEFAULT_MESSAGE_DELAY_LEVEL;
+    }
+
+    /**
+     * 死信转发的参数，只有消费者配置了deadLetterTopic时才会创建生产者
+     */
+    @Data
+    public static class DeadLetter {
+        /**转发死信消息的producerGroup*/
+        private String producerGroup = "PID_DEAD_LETTER";
+        /**每批最多条数，为1时不打包*/
+        private int batchSize = 32;
+        /**每批最多字节数*/
+        private int batchBytes = 512 * 1024;
+        /**攒批的最长等待时间*/
+        private long lingerMs = 50;
+        /**待发送消息数的上限，达到后消息改由broker稍后重新投递*/
+        private int capacity = 10000;
+        /**发送失败后重新发送的次数，仍失败时写入本地spool*/
+        private int sendRetries = 2;
+        /**消费者关闭后等待剩余死信消息发出的最长时间*/
+        private long closeTimeoutMs = 5000;
+        /**重试后仍发送失败的死信消息写入的本地spool目录，为空时只记录错误日志；同一台机器上的多个进程需要配置不同的目录，段大小、熔断和刷盘参数使用rocketmq.spool的配置*/
+        private String spoolDir = System.getProperty("java.io.tmpdir") + "/rocketmq-dead-letter";
+        /**死信spool文件的总大小上限，超过后只记录错误日志*/
+        private long spoolMaxBytes = 256L * 1024 * 1024;
+    }
+
+    /**
+     * 生产者本地spool的参数
+     */
+    @Data
+    public static class Spool {
+        /**spool文件的根目录，每个生产者bean使用以bean名称命名的子目录*/
+        private String dir = System.getProperty("java.io.tmpdir") + "/rocketmq-spool";
+        /**每个段文件的大小*/
+        private int segmentBytes = 64 * 1024 * 1024;
+        /**每个生产者spool文件的总大小上限，超过后发送失败照常抛出异常*/
+        private long maxBytes = 1024L * 1024 * 1024;
+        /**连续发送失败多少次后熔断*/
+        private int failureThreshold = 3;
+        /**熔断后多久开始试探broker是否恢复*/
+        private long openMs = 10000;
+        /**定时把spool刷到磁盘的间隔*/
+        private long flushIntervalMs = 1000;
+    }
+
+    /**
+     * 定时发送的参数，broker的延时级别使用rocketmq.retry.message-delay-level
+     */
+    @Data
+    public static class Schedule {
+        /**发送hop消息和到期消息的producerGroup*/
+        private String producerGroup = "PID_SCHEDULE";
+        /**内部hop topic，需要在broker上创建*/
+        private String hopTopic = "TP_SCHEDULE_HOP";
+        /**消费hop topic的consumerGroup*/
+        private String consumerGroup = "CID_SCHEDULE_HOP";
+        /**离发送时间少于该毫秒数的消息放入本地时间轮，否则经broker延时级别跳转*/
+        private long localHorizonMs = 10000;
+        /**本地时间轮的精度*/
+        private long tickMs = 1;
+        /**本地定时消息journal所在的目录，同一台机器上的多个进程需要配置不同的目录*/
+        private String dir = System.getProperty("java.io.tmpdir") + "/rocketmq-schedule";
+        /**journal超过该大小时只保留未发送的消息重写*/
+        private long compactBytes = 64 * 1024 * 1024;
+        /**定时把journal刷到磁盘的间隔，只影响发送成功后的删除记录，新加入的定时消息写入时就会刷盘*/
+        private long flushIntervalMs = 1000;
+        /**到期后最多发送的次数，失败后按1秒起翻倍、最长1分钟的间隔重新发送，仍失败时移到dir下的timers.dead文件*/
+        private int maxFireAttempts = 30;
+        /**关闭时等待时间轮线程退出的最长时间*/
+        private long closeTimeoutMs = 3000;
+    }
 }
@@ -0,0 +1,43 @@
+package com.maihaoche.starter.mq.dedup;
+
+/**
+ * 已成功消费消息的去重缓存
+ * 处理前用{@link #contains(String)}判断是否重复，process成功后才调用{@link #mark(String)}，处理失败的消息重新投递时仍会被处理
+ */
+public interface DedupCache {
+
+    /**
+     * 是否已经成功消费过，同时计入命中或未命中次数
+     *
+     * @param key 去重的key
+     * @return 在有效期内消费过返回true
+     */
+    boolean contains(String key);
+
+    /**
+     * 记录成功消费的key
+     *
+     * @param key 去重的key
+     */
+    void mark(String key);
+
+    /**
+     * @return 命中（判定为重复）的次数
+     */
+    long getHitCount();
+
+    /**
+     * @return 未命中的次数
+     */
+    long getMissCount();
+
+    /**
+     * @return 因过期或容量不足被淘汰的key数量
+     */
+    long getEvictionCount();
+
+    /**
+     * @return 当前缓存的key数量，可能包含尚未清理的过期key
+     */
+    long size();
+}
@@ -0,0 +1,24 @@
+package com.maihaoche.starter.mq.dedup;
+
+import org.apache.rocketmq.common.message.MessageExt;
+
+/**
+ * 从消息中取出去重的key
+ */
+@FunctionalInterface
+public interface DedupKeyExtractor {
+
+    /**使用消息key（生产者通过@MQKey设置的值）去重*/
+    DedupKeyExtractor MESSAGE_KEY = MessageExt::getKeys;
+
+    /**使用msgId去重，重试消息的msgId与原消息相同*/
+    DedupKeyExtractor MSG_ID = MessageExt::getMsgId;
+
+    /**
+     * 取出去重的key
+     *
+     * @param messageExt 消息
+     * @return 去重的key，返回null或空字符串时该消息不去重
+     */
+    String extract(MessageExt messageExt);
+}
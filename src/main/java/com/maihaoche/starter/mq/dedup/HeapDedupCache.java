@@ -0,0 +1,120 @@
+package com.maihaoche.starter.mq.dedup;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆内的去重缓存，按key的hash分段加锁，每段是按写入顺序排列的LinkedHashMap
+ * 写入时从最早的key开始清理过期和超出容量的key，因此不需要后台清理线程
+ */
+public class HeapDedupCache implements DedupCache {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private final long ttlMillis;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxSize 最多缓存的key数量
+     * @param ttlMillis key的有效期
+     */
+    public HeapDedupCache(int maxSize, long ttlMillis) {
+        if (maxSize <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("maxSize and ttlMillis must be positive");
+        }
+        this.ttlMillis = ttlMillis;
+        int segmentSize = (maxSize + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        Segment segment = segmentFor(key);
+        long now = System.currentTimeMillis();
+        boolean hit;
+        synchronized (segment) {
+            Long expireAt = segment.entries.get(key);
+            hit = expireAt != null && expireAt > now;
+            if (expireAt != null && !hit) {
+                segment.entries.remove(key);
+                evictions.increment();
+            }
+        }
+        (hit ? hits : misses).increment();
+        return hit;
+    }
+
+    @Override
+    public void mark(String key) {
+        Segment segment = segmentFor(key);
+        long now = System.currentTimeMillis();
+        synchronized (segment) {
+            // 先删除再写入，使key移动到队尾
+            segment.entries.remove(key);
+            segment.entries.put(key, now + ttlMillis);
+            Iterator<Map.Entry<String, Long>> iterator = segment.entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Map.Entry<String, Long> eldest = iterator.next();
+                if (segment.entries.size() <= segment.capacity && eldest.getValue() > now) {
+                    break;
+                }
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    private static final class Segment {
+
+        private final int capacity;
+
+        /**key到过期时间*/
+        private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>();
+
+        private Segment(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.maihaoche.starter.mq.dedup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 堆外的去重缓存，适合需要很大去重窗口、又不希望给GC增加负担的场景
+ * 只保存key的64位指纹和过期时间，每个key占16字节；4个槽位组成一个64字节的桶，桶满时淘汰最早过期的槽位
+ * 不同key的指纹相同时会被误判为重复，概率约为 缓存key数量 / 2^64，可以忽略
+ */
+public class OffHeapDedupCache implements DedupCache {
+
+    private static final int SLOT_BYTES = 16;
+
+    private static final int SLOTS_PER_BUCKET = 4;
+
+    private static final int BUCKET_BYTES = SLOT_BYTES * SLOTS_PER_BUCKET;
+
+    /**桶数量上限，对应1GB堆外内存；桶数量是2的幂，再翻一倍就会超过单个ByteBuffer的int容量*/
+    private static final int MAX_BUCKETS = 1 << 24;
+
+    /**最多缓存的key数量*/
+    public static final int MAX_CAPACITY = MAX_BUCKETS * SLOTS_PER_BUCKET;
+
+    private static final int LOCKS = 64;
+
+    private final ByteBuffer table;
+
+    private final int bucketMask;
+
+    private final Object[] locks = new Object[LOCKS];
+
+    private final long ttlMillis;
+
+    private final AtomicLong occupied = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity 最多缓存的key数量，按桶的数量向上取整到2的幂，不能超过{@link #MAX_CAPACITY}
+     * @param ttlMillis key的有效期
+     */
+    public OffHeapDedupCache(int capacity, long ttlMillis) {
+        if (capacity <= 0 || ttlMillis <= 0) {
+            throw new IllegalArgumentException("capacity and ttlMillis must be positive");
+        }
+        if (capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("capacity " + capacity + " of off-heap dedup cache exceeds max " + MAX_CAPACITY);
+        }
+        long minBuckets = ((long) capacity + SLOTS_PER_BUCKET - 1) / SLOTS_PER_BUCKET;
+        int buckets = (int) Math.min(Long.highestOneBit(minBuckets * 2 - 1), MAX_BUCKETS);
+        this.table = ByteBuffer.allocateDirect(buckets * BUCKET_BYTES);
+        this.bucketMask = buckets - 1;
+        this.ttlMillis = ttlMillis;
+        for (int i = 0; i < LOCKS; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    @Override
+    public boolean contains(String key) {
+        long fingerprint = fingerprint(key);
+        int bucket = (int) fingerprint & bucketMask;
+        long now = System.currentTimeMillis();
+        boolean hit = false;
+        synchronized (locks[bucket & (LOCKS - 1)]) {
+            int base = bucket * BUCKET_BYTES;
+            for (int slot = base; slot < base + BUCKET_BYTES; slot += SLOT_BYTES) {
+                if (table.getLong(slot) == fingerprint) {
+                    hit = table.getLong(slot + 8) > now;
+                    if (!hit) {
+                        table.putLong(slot, 0L);
+                        occupied.decrementAndGet();
+                        evictions.increment();
+                    }
+                    break;
+                }
+            }
+        }
+        (hit ? hits : misses).increment();
+        return hit;
+    }
+
+    @Override
+    public void mark(String key) {
+        long fingerprint = fingerprint(key);
+        int bucket = (int) fingerprint & bucketMask;
+        long now = System.currentTimeMillis();
+        synchronized (locks[bucket & (LOCKS - 1)]) {
+            int base = bucket * BUCKET_BYTES;
+            int target = -1;
+            long targetExpireAt = Long.MAX_VALUE;
+            for (int slot = base; slot < base + BUCKET_BYTES; slot += SLOT_BYTES) {
+                long stored = table.getLong(slot);
+                if (stored == fingerprint) {
+                    target = slot;
+                    break;
+                }
+                if (stored == 0L) {
+                    if (targetExpireAt > Long.MIN_VALUE) {
+                        target = slot;
+                        targetExpireAt = Long.MIN_VALUE;
+                    }
+                    continue;
+                }
+                long expireAt = table.getLong(slot + 8);
+                if (expireAt < targetExpireAt) {
+                    target = slot;
+                    targetExpireAt = expireAt;
+                }
+            }
+            long stored = table.getLong(target);
+            if (stored == 0L) {
+                occupied.incrementAndGet();
+            } else if (stored != fingerprint) {
+                evictions.increment();
+            }
+            table.putLong(target, fingerprint);
+            table.putLong(target + 8, now + ttlMillis);
+        }
+    }
+
+    @Override
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long size() {
+        return occupied.get();
+    }
+
+    /**
+     * FNV-1a后再做一次murmur3的fmix64，0保留给空槽位
+     */
+    private static long fingerprint(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0L ? 1L : hash;
+    }
+}
@@ -0,0 +1,114 @@
+package com.maihaoche.starter.mq.limit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 根据process耗时自适应调整的并发数限制
+ * AIMD：处理失败或耗时超过阈值时限制乘以0.9，否则在并发数接近限制时加1
+ * GRADIENT：以观察到的最小耗时作为无负载耗时，短期耗时均值超过它的1.5倍后按比例（不低于0.5）收缩限制，并留出sqrt(limit)的余量用于探测更高的并发；
+ * 最小耗时每个样本缓慢上浮，下游整体变慢后能重新找到基准
+ * 只有实际并发数达到限制的一半以上时才会放大限制，避免流量低时限制无限增长
+ */
+public class AdaptiveConcurrencyLimiter implements ConsumeLimiter {
+
+    /**AIMD过载时的收缩比例*/
+    private static final double BACKOFF_RATIO = 0.9;
+
+    /**GRADIENT允许短期耗时超过无负载耗时的倍数*/
+    private static final double TOLERANCE = 1.5;
+
+    /**GRADIENT新限制的平滑系数*/
+    private static final double SMOOTHING = 0.2;
+
+    /**无负载耗时每个样本上浮的比例，约700个样本翻倍*/
+    private static final double NO_LOAD_DRIFT = 1.001;
+
+    private final boolean gradient;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long latencyThresholdNanos;
+
+    private volatile double limit;
+
+    private int inFlight;
+
+    private double shortRttNanos;
+
+    private double noLoadRttNanos;
+
+    /**
+     * @param gradient true为GRADIENT，false为AIMD
+     * @param initialLimit 初始并发数
+     * @param minLimit 最小并发数
+     * @param maxLimit 最大并发数
+     * @param latencyThresholdMs AIMD模式下视为过载的处理耗时
+     */
+    public AdaptiveConcurrencyLimiter(boolean gradient, int initialLimit, int minLimit, int maxLimit, long latencyThresholdMs) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new RuntimeException("illegal concurrency limit range [" + minLimit + ", " + maxLimit + "]");
+        }
+        this.gradient = gradient;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMs);
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    @Override
+    public synchronized boolean acquire(int messages) {
+        try {
+            while (inFlight >= (int) limit) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    @Override
+    public synchronized void release(long nanos, boolean success) {
+        boolean saturated = inFlight * 2 >= limit;
+        inFlight--;
+        double next = gradient ? gradientLimit(nanos, success, saturated) : aimdLimit(nanos, success, saturated);
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+        notifyAll();
+    }
+
+    private double aimdLimit(long nanos, boolean success, boolean saturated) {
+        if (!success || nanos > latencyThresholdNanos) {
+            return limit * BACKOFF_RATIO;
+        }
+        return saturated ? limit + 1 : limit;
+    }
+
+    private double gradientLimit(long nanos, boolean success, boolean saturated) {
+        // 失败的耗时通常偏短，按短期均值的两倍计入，避免失败时反而放大限制
+        double rtt = success || shortRttNanos == 0 ? Math.max(nanos, 1) : Math.max(nanos, shortRttNanos * 2);
+        shortRttNanos = shortRttNanos == 0 ? rtt : shortRttNanos * 0.9 + rtt * 0.1;
+        noLoadRttNanos = noLoadRttNanos == 0 ? rtt : Math.min(noLoadRttNanos * NO_LOAD_DRIFT, rtt);
+        double ratio = Math.max(0.5, Math.min(1.0, TOLERANCE * noLoadRttNanos / shortRttNanos));
+        double target = limit * ratio + Math.sqrt(limit);
+        if (target > limit && !saturated) {
+            return limit;
+        }
+        return limit * (1 - SMOOTHING) + target * SMOOTHING;
+    }
+
+    @Override
+    public double getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return 正在处理的并发数
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -0,0 +1,46 @@
+package com.maihaoche.starter.mq.limit;
+
+/**
+ * 包在process外的限流器，达到限制时阻塞消费线程而不是让消息失败
+ * 消费线程阻塞后本地缓存的消息堆积，push模式由客户端的流控（pullThresholdForQueue）放慢拉取，pull模式在处理完当前批次后才发起下一次拉取
+ */
+public interface ConsumeLimiter {
+
+    /**不限流*/
+    ConsumeLimiter NONE = new ConsumeLimiter() {
+        @Override
+        public boolean acquire(int messages) {
+            return false;
+        }
+
+        @Override
+        public void release(long nanos, boolean success) {
+        }
+
+        @Override
+        public double getLimit() {
+            return 0;
+        }
+    };
+
+    /**
+     * 处理消息前调用，达到限制时阻塞
+     *
+     * @param messages 本次处理的消息条数，批量处理时大于1
+     * @return 获得许可时返回true，处理完成后需要调用{@link #release(long, boolean)}；不限流或等待被中断时返回false
+     */
+    boolean acquire(int messages);
+
+    /**
+     * 处理完成后调用，自适应的限流器根据耗时和结果调整限制
+     *
+     * @param nanos 本次处理的耗时
+     * @param success 是否处理成功
+     */
+    void release(long nanos, boolean success);
+
+    /**
+     * @return 当前的限制：RATE为每秒消息数，AIMD、GRADIENT为并发数
+     */
+    double getLimit();
+}
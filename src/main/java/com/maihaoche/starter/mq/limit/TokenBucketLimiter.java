@@ -0,0 +1,76 @@
+package com.maihaoche.starter.mq.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 固定速率的令牌桶，空闲时最多积攒burst个令牌
+ * 每次获取时预约下一个令牌的发放时间，再在锁外等待，等待中的线程不会阻塞其它线程预约
+ */
+public class TokenBucketLimiter implements ConsumeLimiter {
+
+    private final double ratePerSecond;
+
+    private final double intervalNanos;
+
+    private final double burst;
+
+    /**当前积攒的令牌数*/
+    private double storedPermits;
+
+    /**下一个令牌可以发放的时间*/
+    private long nextFreeNanos = System.nanoTime();
+
+    /**
+     * @param ratePerSecond 每秒发放的令牌数
+     * @param burst 最多积攒的令牌数
+     */
+    public TokenBucketLimiter(double ratePerSecond, double burst) {
+        if (ratePerSecond <= 0) {
+            throw new RuntimeException("limit rate must be positive, got : " + ratePerSecond);
+        }
+        this.ratePerSecond = ratePerSecond;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        this.burst = Math.max(1, burst);
+    }
+
+    @Override
+    public boolean acquire(int messages) {
+        long waitNanos = reserve(Math.max(1, messages));
+        long deadline = System.nanoTime() + waitNanos;
+        while (waitNanos > 0) {
+            LockSupport.parkNanos(this, waitNanos);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            waitNanos = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    /**
+     * @return 需要等待的纳秒数
+     */
+    private synchronized long reserve(int permits) {
+        long now = System.nanoTime();
+        if (now > nextFreeNanos) {
+            storedPermits = Math.min(burst, storedPermits + (now - nextFreeNanos) / intervalNanos);
+            nextFreeNanos = now;
+        }
+        long waitNanos = nextFreeNanos - now;
+        double fromStored = Math.min(permits, storedPermits);
+        storedPermits -= fromStored;
+        nextFreeNanos += (long) ((permits - fromStored) * intervalNanos);
+        return waitNanos;
+    }
+
+    @Override
+    public void release(long nanos, boolean success) {
+    }
+
+    @Override
+    public double getLimit() {
+        return ratePerSecond;
+    }
+}
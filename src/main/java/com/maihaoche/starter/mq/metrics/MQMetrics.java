@@ -0,0 +1,149 @@
+package com.maihaoche.starter.mq.metrics;
+
+import com.maihaoche.starter.mq.dedup.DedupCache;
+import com.maihaoche.starter.mq.limit.ConsumeLimiter;
+import com.maihaoche.starter.mq.schedule.MessageScheduler;
+import com.maihaoche.starter.mq.spool.SendSpool;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 生产、消费热点路径的监控指标
+ * 容器中存在Micrometer的MeterRegistry时使用{@link MicrometerMQMetrics}，否则使用不做任何事的{@link #NOOP}
+ */
+public interface MQMetrics {
+
+    MQMetrics NOOP = new MQMetrics() {
+    };
+
+    /**
+     * 发送方式
+     */
+    enum SendMode {
+        SYNC, ASYNC, ONEWAY
+    }
+
+    /**
+     * 构造消息（解析key并编码消息体）
+     *
+     * @param topic topic
+     * @param tag tag
+     * @param nanos 耗时纳秒数
+     * @param bytes 消息体字节数
+     */
+    default void recordEncode(String topic, String tag, long nanos, int bytes) {
+    }
+
+    /**
+     * 发送消息，异步发送的耗时为发出到回调的时间
+     *
+     * @param topic topic
+     * @param tag tag
+     * @param mode 发送方式
+     * @param nanos 耗时纳秒数
+     * @param success 是否成功
+     */
+    default void recordSend(String topic, String tag, SendMode mode, long nanos, boolean success) {
+    }
+
+    /**
+     * 解码消息体
+     *
+     * @param group consumerGroup
+     * @param topic topic
+     * @param tag tag
+     * @param nanos 耗时纳秒数
+     * @param bytes 消息体字节数
+     * @param success 是否解码成功
+     */
+    default void recordParse(String group, String topic, String tag, long nanos, int bytes, boolean success) {
+    }
+
+    /**
+     * 调用process处理消息
+     *
+     * @param group consumerGroup
+     * @param topic topic
+     * @param tag tag
+     * @param nanos 耗时纳秒数
+     * @param success process是否返回true
+     */
+    default void recordProcess(String group, String topic, String tag, long nanos, boolean success) {
+    }
+
+    /**
+     * 收到重试的消息
+     *
+     * @param group consumerGroup
+     * @param topic topic
+     * @param tag tag
+     * @param reachMaxRetryTimes 是否已达到最大重试次数
+     */
+    default void recordRetry(String group, String topic, String tag, boolean reachMaxRetryTimes) {
+    }
+
+    /**
+     * 转发到死信topic的结果
+     *
+     * @param group consumerGroup
+     * @param topic 死信topic
+     * @param result forwarded发送成功，rejected待发送消息数达到上限被拒绝，failed重试后仍发送失败
+     */
+    default void recordDeadLetter(String group, String topic, String result) {
+    }
+
+    /**
+     * 关闭消费者时排空本地消息的结果
+     *
+     * @param group consumerGroup
+     * @param drained 关闭期间处理完成的消息数
+     * @param abandoned 超时后仍未处理完成、将被重新投递的消息数
+     */
+    default void recordDrain(String group, long drained, long abandoned) {
+    }
+
+    /**
+     * 注册生产者sendAsync的在途请求数
+     *
+     * @param producer 生产者名称
+     * @param inFlightCount 在途请求数
+     */
+    default void bindInFlight(String producer, AtomicInteger inFlightCount) {
+    }
+
+    /**
+     * 注册生产者本地spool的待回放消息数、字节数，以及写入和回放的次数
+     *
+     * @param producer 生产者名称
+     * @param spool 本地spool
+     */
+    default void bindSpool(String producer, SendSpool spool) {
+    }
+
+    /**
+     * 注册定时发送的本地待发送消息数，以及hop和到期发送的次数
+     *
+     * @param scheduler 定时发送
+     */
+    default void bindScheduler(MessageScheduler scheduler) {
+    }
+
+    /**
+     * 注册消费者限流器的当前限制
+     *
+     * @param group consumerGroup
+     * @param type 限流方式
+     * @param limiter 限流器
+     */
+    default void bindLimiter(String group, String type, ConsumeLimiter limiter) {
+    }
+
+    /**
+     * 绑定去重缓存的命中、未命中、淘汰次数和缓存大小
+     *
+     * @param group consumerGroup
+     * @param dedupCache 去重缓存
+     */
+    default void bindDedup(String group, DedupCache dedupCache) {
+    }
+}
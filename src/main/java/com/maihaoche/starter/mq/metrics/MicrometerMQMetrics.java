@@ -0,0 +1,331 @@
+package com.maihaoche.starter.mq.metrics;
+
+import com.maihaoche.starter.mq.dedup.DedupCache;
+import com.maihaoche.starter.mq.limit.ConsumeLimiter;
+import com.maihaoche.starter.mq.schedule.MessageScheduler;
+import com.maihaoche.starter.mq.spool.SendSpool;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * 基于Micrometer的监控指标，按topic、tag、consumerGroup打tag
+ * 每次记录都通过Meter的builder查找会产生不少临时对象，这里按topic、tag逐层缓存已注册的Meter，热点路径上只有几次map查找，不分配对象
+ */
+public class MicrometerMQMetrics implements MQMetrics {
+
+    private static final String NONE = "none";
+
+    private static final String[] MODE_TAGS = {"sync", "async", "oneway"};
+
+    private final MeterRegistry registry;
+
+    /**topic -> tag -> 生产者的Meter*/
+    private final ConcurrentMap<String, ConcurrentMap<String, ProducerMeters>> producerMeters = new ConcurrentHashMap<>();
+
+    /**consumerGroup -> topic -> tag -> 消费者的Meter*/
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, ConsumerMeters>>> consumerMeters = new ConcurrentHashMap<>();
+
+    public MicrometerMQMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void recordEncode(String topic, String tag, long nanos, int bytes) {
+        ProducerMeters meters = producerMeters(topic, tag);
+        Timer encodeTimer = meters.encodeTimer;
+        if (encodeTimer == null) {
+            encodeTimer = meters.encodeTimer = Timer.builder("rocketmq.producer.encode")
+                    .description("构造消息的耗时")
+                    .tags("topic", meters.topic, "tag", meters.tag)
+                    .register(registry);
+        }
+        encodeTimer.record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary payload = meters.payload;
+        if (payload == null) {
+            payload = meters.payload = DistributionSummary.builder("rocketmq.producer.payload")
+                    .description("发送的消息体大小")
+                    .baseUnit("bytes")
+                    .publishPercentileHistogram()
+                    .tags("topic", meters.topic, "tag", meters.tag)
+                    .register(registry);
+        }
+        payload.record(bytes);
+    }
+
+    @Override
+    public void recordSend(String topic, String tag, SendMode mode, long nanos, boolean success) {
+        ProducerMeters meters = producerMeters(topic, tag);
+        int index = mode.ordinal() * 2 + (success ? 0 : 1);
+        Timer sendTimer = meters.sendTimers.get(index);
+        if (sendTimer == null) {
+            sendTimer = Timer.builder("rocketmq.producer.send")
+                    .description("发送消息的耗时")
+                    .publishPercentileHistogram()
+                    .tags("mode", MODE_TAGS[mode.ordinal()], "topic", meters.topic, "tag", meters.tag, "result", result(success))
+                    .register(registry);
+            meters.sendTimers.set(index, sendTimer);
+        }
+        sendTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordParse(String group, String topic, String tag, long nanos, int bytes, boolean success) {
+        ConsumerMeters meters = consumerMeters(group, topic, tag);
+        int index = success ? 0 : 1;
+        Timer parseTimer = meters.parseTimers.get(index);
+        if (parseTimer == null) {
+            parseTimer = Timer.builder("rocketmq.consumer.parse")
+                    .description("解码消息体的耗时")
+                    .tags("group", meters.group, "topic", meters.topic, "tag", meters.tag, "result", result(success))
+                    .register(registry);
+            meters.parseTimers.set(index, parseTimer);
+        }
+        parseTimer.record(nanos, TimeUnit.NANOSECONDS);
+        DistributionSummary payload = meters.payload;
+        if (payload == null) {
+            payload = meters.payload = DistributionSummary.builder("rocketmq.consumer.payload")
+                    .description("收到的消息体大小")
+                    .baseUnit("bytes")
+                    .publishPercentileHistogram()
+                    .tags("group", meters.group, "topic", meters.topic, "tag", meters.tag)
+                    .register(registry);
+        }
+        payload.record(bytes);
+    }
+
+    @Override
+    public void recordProcess(String group, String topic, String tag, long nanos, boolean success) {
+        ConsumerMeters meters = consumerMeters(group, topic, tag);
+        int index = success ? 0 : 1;
+        Timer processTimer = meters.processTimers.get(index);
+        if (processTimer == null) {
+            processTimer = Timer.builder("rocketmq.consumer.process")
+                    .description("process处理消息的耗时")
+                    .publishPercentileHistogram()
+                    .tags("group", meters.group, "topic", meters.topic, "tag", meters.tag, "result", result(success))
+                    .register(registry);
+            meters.processTimers.set(index, processTimer);
+        }
+        processTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordRetry(String group, String topic, String tag, boolean reachMaxRetryTimes) {
+        ConsumerMeters meters = consumerMeters(group, topic, tag);
+        int index = reachMaxRetryTimes ? 1 : 0;
+        Counter retryCounter = meters.retryCounters.get(index);
+        if (retryCounter == null) {
+            retryCounter = Counter.builder("rocketmq.consumer.retry")
+                    .description("收到的重试消息数")
+                    .tags("group", meters.group, "topic", meters.topic, "tag", meters.tag, "result", reachMaxRetryTimes ? "max_reached" : "retry")
+                    .register(registry);
+            meters.retryCounters.set(index, retryCounter);
+        }
+        retryCounter.increment();
+    }
+
+    @Override
+    public void recordDeadLetter(String group, String topic, String result) {
+        final ConsumerMeters meters = consumerMeters(group, topic, null);
+        meters.deadLetterCounters.computeIfAbsent(result == null ? NONE : result, r -> Counter.builder("rocketmq.consumer.deadletter")
+                .description("转发到死信topic的消息数")
+                .tags("group", meters.group, "topic", meters.topic, "result", r)
+                .register(registry)).increment();
+    }
+
+    @Override
+    public void recordDrain(String group, long drained, long abandoned) {
+        drainCounter(group, "drained").increment(drained);
+        drainCounter(group, "abandoned").increment(abandoned);
+    }
+
+    private Counter drainCounter(String group, String result) {
+        return Counter.builder("rocketmq.consumer.shutdown")
+                .description("关闭消费者时处理完成和放弃的本地消息数")
+                .tags("group", group, "result", result)
+                .register(registry);
+    }
+
+    @Override
+    public void bindInFlight(String producer, AtomicInteger inFlightCount) {
+        Gauge.builder("rocketmq.producer.inflight", inFlightCount, AtomicInteger::get)
+                .description("异步发送（asynSend、sendAsync）的在途请求数")
+                .tag("producer", producer)
+                .register(registry);
+    }
+
+    @Override
+    public void bindSpool(String producer, SendSpool spool) {
+        Gauge.builder("rocketmq.producer.spool.depth", spool, SendSpool::getDepth)
+                .description("本地spool中待回放的消息数")
+                .tag("producer", producer)
+                .register(registry);
+        Gauge.builder("rocketmq.producer.spool.bytes", spool, SendSpool::getBytes)
+                .description("本地spool中待回放的字节数")
+                .baseUnit("bytes")
+                .tag("producer", producer)
+                .register(registry);
+        Gauge.builder("rocketmq.producer.spool.state", spool, s -> s.getState().ordinal())
+                .description("发送熔断器的状态，0关闭，1打开，2半开")
+                .tag("producer", producer)
+                .register(registry);
+        String appendDescription = "写入本地spool的消息数，rejected为spool已满或写入失败";
+        String replayDescription = "回放本地spool的消息数，dropped为消息不合法被丢弃";
+        bindSpoolCounter("rocketmq.producer.spool.append", appendDescription, producer, "accepted", spool, SendSpool::getAppendedCount);
+        bindSpoolCounter("rocketmq.producer.spool.append", appendDescription, producer, "rejected", spool, SendSpool::getRejectedCount);
+        bindSpoolCounter("rocketmq.producer.spool.replay", replayDescription, producer, "success", spool, SendSpool::getReplayedCount);
+        bindSpoolCounter("rocketmq.producer.spool.replay", replayDescription, producer, "failure", spool, SendSpool::getReplayFailedCount);
+        bindSpoolCounter("rocketmq.producer.spool.replay", replayDescription, producer, "dropped", spool, SendSpool::getDroppedCount);
+    }
+
+    private void bindSpoolCounter(String name, String description, String producer, String result,
+                                  SendSpool spool, ToDoubleFunction<SendSpool> count) {
+        FunctionCounter.builder(name, spool, count)
+                .description(description)
+                .tags("producer", producer, "result", result)
+                .register(registry);
+    }
+
+    @Override
+    public void bindScheduler(MessageScheduler scheduler) {
+        Gauge.builder("rocketmq.producer.schedule.pending", scheduler, MessageScheduler::getPendingCount)
+                .description("本地时间轮中等待到期的定时消息数")
+                .register(registry);
+        FunctionCounter.builder("rocketmq.producer.schedule.hop", scheduler, MessageScheduler::getHopCount)
+                .description("经broker延时级别跳转的次数")
+                .register(registry);
+        FunctionCounter.builder("rocketmq.producer.schedule.fire", scheduler, MessageScheduler::getFiredCount)
+                .description("到期发送的定时消息数")
+                .tag("result", "success")
+                .register(registry);
+        FunctionCounter.builder("rocketmq.producer.schedule.fire", scheduler, MessageScheduler::getFireFailedCount)
+                .description("到期发送的定时消息数")
+                .tag("result", "failure")
+                .register(registry);
+        FunctionCounter.builder("rocketmq.producer.schedule.fire", scheduler, MessageScheduler::getDeadCount)
+                .description("到期发送的定时消息数")
+                .tag("result", "dead")
+                .register(registry);
+    }
+
+    @Override
+    public void bindLimiter(String group, String type, ConsumeLimiter limiter) {
+        Gauge.builder("rocketmq.consumer.limit", limiter, ConsumeLimiter::getLimit)
+                .description("消费限流器的当前限制，RATE为每秒消息数，AIMD、GRADIENT为并发数")
+                .tags("group", group, "type", type)
+                .register(registry);
+    }
+
+    @Override
+    public void bindDedup(String group, DedupCache dedupCache) {
+        bindDedupCounter(group, "hit", dedupCache, DedupCache::getHitCount);
+        bindDedupCounter(group, "miss", dedupCache, DedupCache::getMissCount);
+        bindDedupCounter(group, "eviction", dedupCache, DedupCache::getEvictionCount);
+        Gauge.builder("rocketmq.consumer.dedup.size", dedupCache, DedupCache::size)
+                .description("去重缓存中的key数量")
+                .tag("group", group)
+                .register(registry);
+    }
+
+    private void bindDedupCounter(String group, String result, DedupCache dedupCache, ToDoubleFunction<DedupCache> count) {
+        FunctionCounter.builder("rocketmq.consumer.dedup", dedupCache, count)
+                .description("去重缓存的命中、未命中和淘汰次数")
+                .tags("group", group, "result", result)
+                .register(registry);
+    }
+
+    private ProducerMeters producerMeters(String topic, String tag) {
+        ConcurrentMap<String, ProducerMeters> byTag = child(producerMeters, tagValue(topic), t -> new ConcurrentHashMap<>());
+        ProducerMeters meters = byTag.get(tagValue(tag));
+        return meters != null ? meters : byTag.computeIfAbsent(tagValue(tag), t -> new ProducerMeters(tagValue(topic), t));
+    }
+
+    private ConsumerMeters consumerMeters(String group, String topic, String tag) {
+        ConcurrentMap<String, ConcurrentMap<String, ConsumerMeters>> byTopic = child(consumerMeters, tagValue(group), g -> new ConcurrentHashMap<>());
+        ConcurrentMap<String, ConsumerMeters> byTag = child(byTopic, tagValue(topic), t -> new ConcurrentHashMap<>());
+        ConsumerMeters meters = byTag.get(tagValue(tag));
+        return meters != null ? meters : byTag.computeIfAbsent(tagValue(tag), t -> new ConsumerMeters(tagValue(group), tagValue(topic), t));
+    }
+
+    /**
+     * 已存在时直接get，避免computeIfAbsent在热点路径上加锁
+     */
+    private static <V> V child(ConcurrentMap<String, V> map, String key, Function<String, V> factory) {
+        V value = map.get(key);
+        return value != null ? value : map.computeIfAbsent(key, factory);
+    }
+
+    private static String tagValue(String value) {
+        return value == null || value.isEmpty() ? NONE : value;
+    }
+
+    private static String result(boolean success) {
+        return success ? "success" : "failure";
+    }
+
+    /**
+     * 同一topic+tag下生产者的Meter，第一次记录时注册；并发注册时registry返回同一个Meter
+     */
+    private static final class ProducerMeters {
+
+        private final String topic;
+
+        private final String tag;
+
+        private volatile Timer encodeTimer;
+
+        private volatile DistributionSummary payload;
+
+        /**下标为发送方式*2+（成功0，失败1）*/
+        private final AtomicReferenceArray<Timer> sendTimers = new AtomicReferenceArray<>(MODE_TAGS.length * 2);
+
+        private ProducerMeters(String topic, String tag) {
+            this.topic = topic;
+            this.tag = tag;
+        }
+    }
+
+    /**
+     * 同一consumerGroup+topic+tag下消费者的Meter
+     */
+    private static final class ConsumerMeters {
+
+        private final String group;
+
+        private final String topic;
+
+        private final String tag;
+
+        /**下标0为成功，1为失败*/
+        private final AtomicReferenceArray<Timer> parseTimers = new AtomicReferenceArray<>(2);
+
+        private volatile DistributionSummary payload;
+
+        /**下标0为成功，1为失败*/
+        private final AtomicReferenceArray<Timer> processTimers = new AtomicReferenceArray<>(2);
+
+        /**下标0为重试，1为达到最大重试次数*/
+        private final AtomicReferenceArray<Counter> retryCounters = new AtomicReferenceArray<>(2);
+
+        /**死信转发结果 -> Counter，只用tag为none的实例*/
+        private final ConcurrentMap<String, Counter> deadLetterCounters = new ConcurrentHashMap<>();
+
+        private ConsumerMeters(String group, String topic, String tag) {
+            this.group = group;
+            this.topic = topic;
+            this.tag = tag;
+        }
+    }
+}
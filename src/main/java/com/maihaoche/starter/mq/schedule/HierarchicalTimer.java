@@ -0,0 +1,83 @@
+package com.maihaoche.starter.mq.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 基于{@link TimingWheel}的定时器，由一个工作线程循环调用{@link #advance(long)}推进时钟，到期的消息交给expire处理
+ */
+final class HierarchicalTimer {
+
+    private static final int WHEEL_SIZE = 64;
+
+    private final DelayQueue<TimingWheel.Bucket> queue = new DelayQueue<>();
+
+    private final TimingWheel wheel;
+
+    private final Consumer<TimerEntry> expire;
+
+    private int size;
+
+    /**
+     * @param tickMs 最低一层时间轮的精度
+     * @param expire 处理到期的消息，不能阻塞
+     */
+    HierarchicalTimer(long tickMs, Consumer<TimerEntry> expire) {
+        this.wheel = new TimingWheel(Math.max(1, tickMs), WHEEL_SIZE, System.currentTimeMillis(), queue);
+        this.expire = expire;
+    }
+
+    /**
+     * 添加定时消息，已经到期的消息在当前线程交给expire
+     */
+    void add(TimerEntry entry) {
+        synchronized (this) {
+            if (wheel.add(entry)) {
+                size++;
+                return;
+            }
+        }
+        expire.accept(entry);
+    }
+
+    /**
+     * 等待最早的槽到期并处理，高层时间轮的消息降到低一层，到期的消息交给expire
+     *
+     * @param timeoutMs 最长等待时间
+     * @return 有槽到期返回true
+     * @throws InterruptedException 等待时被中断
+     */
+    boolean advance(long timeoutMs) throws InterruptedException {
+        TimingWheel.Bucket bucket = queue.poll(timeoutMs, TimeUnit.MILLISECONDS);
+        if (bucket == null) {
+            return false;
+        }
+        List<TimerEntry> expired = new ArrayList<>();
+        synchronized (this) {
+            while (bucket != null) {
+                wheel.advanceClock(bucket.getExpiration());
+                for (TimerEntry entry : bucket.flush()) {
+                    if (!wheel.add(entry)) {
+                        size--;
+                        expired.add(entry);
+                    }
+                }
+                bucket = queue.poll();
+            }
+        }
+        for (TimerEntry entry : expired) {
+            expire.accept(entry);
+        }
+        return true;
+    }
+
+    /**
+     * @return 时间轮中未到期的消息数
+     */
+    synchronized int size() {
+        return size;
+    }
+}
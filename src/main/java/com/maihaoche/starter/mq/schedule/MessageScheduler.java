@@ -0,0 +1,355 @@
+package com.maihaoche.starter.mq.schedule;
+
+import com.maihaoche.starter.mq.MQException;
+import com.maihaoche.starter.mq.spool.SendSpool;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 任意时间的定时发送
+ * 离到期时间不少于localHorizonMs的消息按不超过剩余时间的最大延时级别发送到内部的hop topic，由broker保存；
+ * hop消费者收到后重新计算剩余时间，仍然较长时再跳一次，否则放入本地的分层时间轮，到期时精确发送到原topic
+ * 本地时间轮中的消息先写入{@link TimerJournal}并刷盘，之后才确认hop消息或从{@link #schedule(Message, long)}返回，重启后继续定时；
+ * 发送成功后才从journal删除，因此进程退出时可能重复发送
+ * 到期发送失败后按指数退避重新发送，消息本身不合法或失败次数达到上限时移到journal目录下的timers.dead文件
+ */
+@Slf4j
+public class MessageScheduler {
+
+    /**hop消息记录的原topic*/
+    public static final String TOPIC_PROPERTY = "MQ_SCHEDULE_TOPIC";
+
+    /**hop消息记录的到期时间，epoch毫秒*/
+    public static final String FIRE_AT_PROPERTY = "MQ_SCHEDULE_AT";
+
+    /**到期发送失败后第一次重新发送的间隔，之后每次翻倍*/
+    private static final long RETRY_DELAY_MS = 1000;
+
+    /**重新发送间隔的上限*/
+    private static final long MAX_RETRY_DELAY_MS = 60000;
+
+    /**工作线程每次等待时间轮到期的最长时间，到时检查是否需要刷盘和退出*/
+    private static final long ADVANCE_TIMEOUT_MS = 200;
+
+    private final DefaultMQProducer producer;
+
+    private final String hopTopic;
+
+    /**broker各延时级别的毫秒数，从级别1开始*/
+    private final long[] delayLevelMillis;
+
+    private final long localHorizonMs;
+
+    private final long flushIntervalMs;
+
+    private final int maxFireAttempts;
+
+    private final File dir;
+
+    private final long tickMs;
+
+    private final long compactBytes;
+
+    /**关闭后重新启动时重新打开，到期发送的回调只处理同一个journal中的消息*/
+    private volatile TimerJournal journal;
+
+    private volatile HierarchicalTimer timer;
+
+    private Thread worker;
+
+    private volatile boolean closed;
+
+    private final AtomicLong hopCount = new AtomicLong();
+
+    private final AtomicLong firedCount = new AtomicLong();
+
+    private final AtomicLong fireFailedCount = new AtomicLong();
+
+    private final AtomicLong deadCount = new AtomicLong();
+
+    /**
+     * @param producer 已启动的生产者，用于发送hop消息和到期的消息，关闭时不会关闭该生产者
+     * @param hopTopic 内部hop topic
+     * @param delayLevelMillis broker各延时级别的毫秒数
+     * @param localHorizonMs 离到期时间少于该毫秒数的消息放入本地时间轮
+     * @param dir journal所在的目录
+     * @param tickMs 本地时间轮的精度
+     * @param compactBytes journal超过该大小时重写
+     * @param flushIntervalMs 定时把journal中的删除记录刷到磁盘的间隔
+     * @param maxFireAttempts 到期后最多发送的次数，仍失败时移到dead文件
+     * @throws IOException 打开journal失败
+     */
+    public MessageScheduler(DefaultMQProducer producer, String hopTopic, long[] delayLevelMillis, long localHorizonMs,
+                            File dir, long tickMs, long compactBytes, long flushIntervalMs, int maxFireAttempts) throws IOException {
+        this.producer = producer;
+        this.hopTopic = hopTopic;
+        this.delayLevelMillis = delayLevelMillis;
+        this.localHorizonMs = localHorizonMs;
+        this.flushIntervalMs = flushIntervalMs;
+        this.maxFireAttempts = Math.max(1, maxFireAttempts);
+        this.dir = dir;
+        this.tickMs = tickMs;
+        this.compactBytes = compactBytes;
+        this.journal = new TimerJournal(dir, compactBytes);
+        this.timer = new HierarchicalTimer(tickMs, this::fire);
+    }
+
+    /**
+     * 恢复journal中未发送的消息并启动时间轮，已经到期的消息立即发送；{@link #close(long)}之后可以再次启动
+     *
+     * @throws IllegalStateException 重新打开journal失败
+     */
+    public synchronized void start() {
+        if (worker != null && !closed) {
+            return;
+        }
+        if (closed) {
+            try {
+                journal = new TimerJournal(dir, compactBytes);
+            } catch (IOException e) {
+                throw new IllegalStateException("reopen schedule journal fail, dir : " + dir, e);
+            }
+            timer = new HierarchicalTimer(tickMs, this::fire);
+            closed = false;
+        }
+        final TimerJournal current = journal;
+        final HierarchicalTimer currentTimer = timer;
+        List<TimerEntry> entries = current.entries();
+        for (TimerEntry entry : entries) {
+            currentTimer.add(entry);
+        }
+        worker = new Thread(() -> advanceLoop(current, currentTimer), "MQScheduler");
+        worker.setDaemon(true);
+        worker.start();
+        if (!entries.isEmpty()) {
+            log.info("message scheduler recovered {} pending timers", entries.size());
+        }
+    }
+
+    /**
+     * 在指定时间发送消息
+     *
+     * @param message 消息
+     * @param fireAt 发送时间，epoch毫秒，已经过去时立即发送
+     * @throws MQException 发送hop消息或写journal、刷盘失败
+     */
+    public void schedule(Message message, long fireAt) throws MQException {
+        if (closed) {
+            throw new MQException("message scheduler is closed");
+        }
+        long remaining = fireAt - System.currentTimeMillis();
+        int level = remaining >= localHorizonMs ? delayLevel(remaining) : 0;
+        try {
+            if (level > 0) {
+                producer.send(hopMessage(message, fireAt, level));
+                hopCount.incrementAndGet();
+                return;
+            }
+            TimerJournal current = journal;
+            TimerEntry entry = current.add(fireAt, message);
+            try {
+                current.sync();
+            } catch (IOException e) {
+                current.remove(entry.id);
+                throw e;
+            }
+            timer.add(entry);
+        } catch (Exception e) {
+            throw new MQException("schedule message fail, topic : " + message.getTopic() + ", e : " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 不超过剩余时间的最大延时级别，0表示没有合适的级别
+     */
+    private int delayLevel(long remaining) {
+        for (int i = delayLevelMillis.length - 1; i >= 0; i--) {
+            if (delayLevelMillis[i] <= remaining) {
+                return i + 1;
+            }
+        }
+        return 0;
+    }
+
+    private Message hopMessage(Message message, long fireAt, int level) {
+        Message hop = new Message(hopTopic, message.getBody());
+        hop.setFlag(message.getFlag());
+        MessageAccessor.setProperties(hop, new HashMap<>(message.getProperties()));
+        hop.putUserProperty(TOPIC_PROPERTY, message.getTopic());
+        hop.putUserProperty(FIRE_AT_PROPERTY, String.valueOf(fireAt));
+        hop.setDelayTimeLevel(level);
+        return hop;
+    }
+
+    /**
+     * 处理hop topic上的消息，继续跳或者放入本地时间轮
+     *
+     * @param messageExt hop消息
+     * @return 处理成功返回true，失败时需要broker重新投递
+     */
+    public boolean receive(MessageExt messageExt) {
+        String topic = messageExt.getUserProperty(TOPIC_PROPERTY);
+        String fireAt = messageExt.getUserProperty(FIRE_AT_PROPERTY);
+        if (StringUtils.isEmpty(topic) || !NumberUtils.isDigits(fireAt)) {
+            log.error("drop illegal scheduled message, msgId : {}, topic : {}, fireAt : {}", messageExt.getMsgId(), topic, fireAt);
+            return true;
+        }
+        Message message = new Message(topic, messageExt.getBody());
+        message.setFlag(messageExt.getFlag());
+        for (Map.Entry<String, String> property : messageExt.getProperties().entrySet()) {
+            if (!MessageConst.STRING_HASH_SET.contains(property.getKey())
+                    && !TOPIC_PROPERTY.equals(property.getKey()) && !FIRE_AT_PROPERTY.equals(property.getKey())) {
+                message.putUserProperty(property.getKey(), property.getValue());
+            }
+        }
+        if (StringUtils.isNotEmpty(messageExt.getTags())) {
+            message.setTags(messageExt.getTags());
+        }
+        if (StringUtils.isNotEmpty(messageExt.getKeys())) {
+            message.setKeys(messageExt.getKeys());
+        }
+        try {
+            schedule(message, Long.parseLong(fireAt));
+            return true;
+        } catch (MQException e) {
+            log.warn("reschedule message fail, msgId : {}, e : {}", messageExt.getMsgId(), e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 到期的消息异步发送，不阻塞时间轮
+     */
+    private void fire(final TimerEntry entry) {
+        final TimerJournal owner = journal;
+        try {
+            producer.send(entry.message, new SendCallback() {
+                @Override
+                public void onSuccess(SendResult sendResult) {
+                    firedCount.incrementAndGet();
+                    // 关闭后才返回的结果，id在重新打开的journal中不变
+                    journal.remove(entry.id);
+                }
+
+                @Override
+                public void onException(Throwable e) {
+                    retry(owner, entry, e);
+                }
+            });
+        } catch (Exception e) {
+            retry(owner, entry, e);
+        }
+    }
+
+    private void retry(TimerJournal owner, TimerEntry entry, Throwable e) {
+        fireFailedCount.incrementAndGet();
+        if (closed || owner != journal) {
+            // 仍然在journal中，重新启动后发送
+            return;
+        }
+        int failures = entry.failures + 1;
+        if (failures >= maxFireAttempts || !SendSpool.isRetriable(e)) {
+            try {
+                owner.bury(entry);
+                deadCount.incrementAndGet();
+                log.error("send scheduled message fail {} times, moved to dead file, topic : {}, key : {}, e : {}",
+                        failures, entry.message.getTopic(), entry.message.getKeys(), e.getMessage());
+                return;
+            } catch (IOException buryFail) {
+                log.error("move scheduled message to dead file fail, topic : {}, key : {}, e : {}",
+                        entry.message.getTopic(), entry.message.getKeys(), buryFail.getMessage());
+            }
+        } else {
+            log.warn("send scheduled message fail, retry later, topic : {}, key : {}, failures : {}, e : {}",
+                    entry.message.getTopic(), entry.message.getKeys(), failures, e.getMessage());
+        }
+        long delay = Math.min(MAX_RETRY_DELAY_MS, RETRY_DELAY_MS << Math.min(failures - 1, 16));
+        timer.add(new TimerEntry(entry.id, System.currentTimeMillis() + delay, entry.message, failures));
+    }
+
+    private void advanceLoop(TimerJournal journal, HierarchicalTimer timer) {
+        long lastFlush = System.currentTimeMillis();
+        while (!closed && journal == this.journal) {
+            try {
+                timer.advance(ADVANCE_TIMEOUT_MS);
+                if (System.currentTimeMillis() - lastFlush >= flushIntervalMs) {
+                    journal.flush();
+                    lastFlush = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable e) {
+                log.error("message scheduler error", e);
+            }
+        }
+    }
+
+    /**
+     * 停止时间轮并刷盘，未发送的消息保留在journal中，下次启动后继续定时
+     *
+     * @param timeoutMs 等待工作线程退出的最长时间
+     */
+    public synchronized void close(long timeoutMs) {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (worker != null) {
+            worker.interrupt();
+            try {
+                worker.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        journal.close();
+        if (journal.size() > 0) {
+            log.info("message scheduler closed with {} timers to resume after restart", journal.size());
+        }
+    }
+
+    /**
+     * @return 本地等待到期的消息数，包含正在发送的消息
+     */
+    public int getPendingCount() {
+        return journal.size();
+    }
+
+    /**
+     * @return 发送到hop topic的次数
+     */
+    public long getHopCount() {
+        return hopCount.get();
+    }
+
+    public long getFiredCount() {
+        return firedCount.get();
+    }
+
+    public long getFireFailedCount() {
+        return fireFailedCount.get();
+    }
+
+    /**
+     * @return 移到dead文件的定时消息数
+     */
+    public long getDeadCount() {
+        return deadCount.get();
+    }
+}
@@ -0,0 +1,31 @@
+package com.maihaoche.starter.mq.schedule;
+
+import org.apache.rocketmq.common.message.Message;
+
+/**
+ * 本地时间轮中的一条定时消息
+ */
+final class TimerEntry {
+
+    /**journal中的记录id*/
+    final long id;
+
+    /**到期时间，epoch毫秒*/
+    final long fireAt;
+
+    final Message message;
+
+    /**到期后已经发送失败的次数*/
+    final int failures;
+
+    TimerEntry(long id, long fireAt, Message message) {
+        this(id, fireAt, message, 0);
+    }
+
+    TimerEntry(long id, long fireAt, Message message, int failures) {
+        this.id = id;
+        this.fireAt = fireAt;
+        this.message = message;
+        this.failures = failures;
+    }
+}
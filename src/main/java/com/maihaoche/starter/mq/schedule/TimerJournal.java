@@ -0,0 +1,345 @@
+package com.maihaoche.starter.mq.schedule;
+
+import com.maihaoche.starter.mq.spool.MessageRecords;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.Message;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * 本地定时消息的持久化日志，只追加：添加时写ADD记录（id、到期时间和消息），发送成功后写REMOVE记录
+ * 记录格式：[int 长度][int CRC32][byte 类型][long id][long 到期时间][消息]，REMOVE记录只有类型和id；消息格式见{@link MessageRecords}
+ * 启动时重放日志得到未发送的消息，截断末尾写了一半的记录；文件超过compactBytes后只保留未发送的消息重写一次
+ * ADD记录由调用方{@link #sync()}刷盘后才算接收，同时写入的记录合并为一次刷盘；REMOVE记录定时刷盘，丢失时重启后会再发送一次
+ */
+@Slf4j
+final class TimerJournal {
+
+    private static final String JOURNAL_FILE = "timers.journal";
+
+    private static final String COMPACT_FILE = "timers.journal.compact";
+
+    /**无法发送的定时消息，格式与日志相同，只有ADD记录，供人工处理*/
+    private static final String DEAD_FILE = "timers.dead";
+
+    private static final String LOCK_FILE = "lock";
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte ADD = 1;
+
+    private static final byte REMOVE = 2;
+
+    private final File journalFile;
+
+    private final File compactFile;
+
+    private final File deadFile;
+
+    /**防止多个进程使用同一个目录*/
+    private final FileChannel lockChannel;
+
+    /**未发送的消息，按添加顺序排列*/
+    private final Map<Long, TimerEntry> live = new LinkedHashMap<>();
+
+    private final CRC32 crc = new CRC32();
+
+    private final long compactBytes;
+
+    /**文件超过该大小时重写，重写后仍然很大时按重写后大小的两倍推迟下一次重写*/
+    private long compactThreshold;
+
+    private FileChannel channel;
+
+    private long fileBytes;
+
+    /**写入当前日志的总字节数，重写后不清零*/
+    private long appendedBytes;
+
+    /**已经刷盘的appendedBytes*/
+    private long syncedBytes;
+
+    private long nextId;
+
+    private boolean closed;
+
+    /**
+     * @param dir 日志所在的目录
+     * @param compactBytes 日志文件超过该大小时重写
+     * @throws IOException 读写文件失败
+     */
+    TimerJournal(File dir, long compactBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create schedule dir " + dir);
+        }
+        this.journalFile = new File(dir, JOURNAL_FILE);
+        this.compactFile = new File(dir, COMPACT_FILE);
+        this.deadFile = new File(dir, DEAD_FILE);
+        this.compactBytes = compactBytes;
+        this.compactThreshold = compactBytes;
+        this.lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+        if (tryLock(lockChannel) == null) {
+            lockChannel.close();
+            throw new IOException("schedule dir " + dir + " is used by another process or another scheduler in this process");
+        }
+        // 重写到一半时进程退出，原日志仍然完整
+        Files.deleteIfExists(compactFile.toPath());
+        load();
+    }
+
+    /**
+     * 逐条读取记录，不把整个文件读进内存
+     */
+    private void load() throws IOException {
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long pos = 0;
+        while (pos + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(header, pos);
+            int length = header.getInt(0);
+            // 最短的REMOVE记录也有类型和id
+            if (length < 9 || pos + HEADER_SIZE + length > size) {
+                break;
+            }
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(record, pos + HEADER_SIZE);
+            if (crc(record, 0, length) != header.getInt(4)) {
+                break;
+            }
+            long id = record.getLong(1);
+            if (record.get(0) == ADD) {
+                live.put(id, new TimerEntry(id, record.getLong(9), MessageRecords.decode(record, 17, length - 17)));
+            } else {
+                live.remove(id);
+            }
+            nextId = Math.max(nextId, id + 1);
+            pos += HEADER_SIZE + length;
+        }
+        if (pos < size) {
+            log.warn("truncate schedule journal {} from {} to {} bytes", journalFile, size, pos);
+            channel.truncate(pos);
+        }
+        fileBytes = pos;
+        channel.position(pos);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("unexpected end of schedule journal " + journalFile);
+            }
+        }
+    }
+
+    /**
+     * 同一个进程内已经加锁时tryLock抛出异常而不是返回null
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 记录一条定时消息
+     *
+     * @param fireAt 到期时间，epoch毫秒
+     * @param message 消息
+     * @return 定时消息
+     * @throws IOException 写文件失败或已关闭
+     */
+    synchronized TimerEntry add(long fireAt, Message message) throws IOException {
+        if (closed) {
+            throw new IOException("schedule journal is closed");
+        }
+        TimerEntry entry = new TimerEntry(nextId++, fireAt, message);
+        try {
+            write(channel, entry);
+        } catch (IOException e) {
+            // 去掉写了一半的记录，否则重启时会丢掉它之后的所有记录
+            channel.truncate(fileBytes);
+            channel.position(fileBytes);
+            throw e;
+        }
+        live.put(entry.id, entry);
+        return entry;
+    }
+
+    /**
+     * 记录定时消息已经发送
+     *
+     * @param id 定时消息id
+     */
+    synchronized void remove(long id) {
+        if (closed || live.remove(id) == null) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 9);
+        record.position(HEADER_SIZE);
+        record.put(REMOVE).putLong(id);
+        try {
+            int written = writeRecord(channel, record);
+            fileBytes += written;
+            appendedBytes += written;
+            if (fileBytes > compactThreshold) {
+                compact();
+            }
+        } catch (IOException e) {
+            // 重启后会再发送一次
+            log.warn("write schedule journal fail, e : {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 把无法发送的定时消息追加到dead文件并刷盘，然后从日志删除
+     *
+     * @param entry 定时消息
+     * @throws IOException 写dead文件失败或已关闭，此时消息仍在日志中
+     */
+    synchronized void bury(TimerEntry entry) throws IOException {
+        if (closed) {
+            throw new IOException("schedule journal is closed");
+        }
+        try (FileChannel dead = FileChannel.open(deadFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            write(dead, entry);
+            dead.force(false);
+        }
+        remove(entry.id);
+    }
+
+    private void write(FileChannel target, TimerEntry entry) throws IOException {
+        byte[] message = MessageRecords.encode(entry.message);
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + 17 + message.length);
+        record.position(HEADER_SIZE);
+        record.put(ADD).putLong(entry.id).putLong(entry.fireAt).put(message);
+        long written = writeRecord(target, record);
+        if (target == channel) {
+            fileBytes += written;
+            appendedBytes += written;
+        }
+    }
+
+    private int writeRecord(FileChannel target, ByteBuffer record) throws IOException {
+        int length = record.position() - HEADER_SIZE;
+        record.putInt(0, length);
+        record.putInt(4, crc(record, HEADER_SIZE, length));
+        record.flip();
+        while (record.hasRemaining()) {
+            target.write(record);
+        }
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * 把未发送的消息写入新文件，刷盘后替换原日志
+     */
+    private void compact() throws IOException {
+        long begin = System.currentTimeMillis();
+        long before = fileBytes;
+        try (FileChannel compacted = FileChannel.open(compactFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (TimerEntry entry : live.values()) {
+                write(compacted, entry);
+            }
+            compacted.force(true);
+        }
+        // 替换失败时继续使用原日志
+        Files.move(compactFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel.close();
+        channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        fileBytes = channel.size();
+        channel.position(fileBytes);
+        compactThreshold = Math.max(compactBytes, fileBytes * 2);
+        // 未发送的消息都已经在新文件中刷盘
+        syncedBytes = appendedBytes;
+        log.info("schedule journal compacted from {} to {} bytes in {} ms, {} timers pending",
+                before, fileBytes, System.currentTimeMillis() - begin, live.size());
+    }
+
+    /**
+     * @return 未发送的定时消息
+     */
+    synchronized List<TimerEntry> entries() {
+        return new ArrayList<>(live.values());
+    }
+
+    /**
+     * @return 未发送的定时消息数
+     */
+    synchronized int size() {
+        return live.size();
+    }
+
+    /**
+     * 把已经写入的记录刷到磁盘，返回后之前{@link #add(long, Message)}的消息在掉电后也不会丢失
+     * 多个线程同时调用时，先拿到锁的线程一次刷完所有记录，其余线程直接返回
+     *
+     * @throws IOException 刷盘失败或已关闭
+     */
+    synchronized void sync() throws IOException {
+        if (closed) {
+            throw new IOException("schedule journal is closed");
+        }
+        if (syncedBytes < appendedBytes) {
+            channel.force(false);
+            syncedBytes = appendedBytes;
+        }
+    }
+
+    /**
+     * 把日志刷到磁盘
+     */
+    synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        try {
+            sync();
+        } catch (IOException e) {
+            log.warn("flush schedule journal fail, e : {}", e.getMessage());
+        }
+    }
+
+    synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        try {
+            channel.close();
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("close schedule journal fail, e : {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.maihaoche.starter.mq.schedule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分层时间轮：每层wheelSize个槽，上一层一个槽的跨度等于下一层一整圈，添加、到期都是O(1)
+ * 只有非空的槽会放进DelayQueue，没有定时消息时工作线程不会空转；到期的槽重新插入时会降到更低一层，最后在最低一层精确到tickMs
+ * 不是线程安全的，由{@link HierarchicalTimer}加锁调用
+ */
+final class TimingWheel {
+
+    private final long tickMs;
+
+    private final int wheelSize;
+
+    /**一圈的跨度*/
+    private final long interval;
+
+    private final Bucket[] buckets;
+
+    private final DelayQueue<Bucket> queue;
+
+    /**当前时间，tickMs的整数倍*/
+    private long currentTime;
+
+    /**上一层时间轮，第一次需要时创建*/
+    private TimingWheel overflowWheel;
+
+    TimingWheel(long tickMs, int wheelSize, long startMs, DelayQueue<Bucket> queue) {
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.interval = tickMs * wheelSize;
+        this.queue = queue;
+        this.currentTime = startMs - startMs % tickMs;
+        this.buckets = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            buckets[i] = new Bucket();
+        }
+    }
+
+    /**
+     * @param entry 定时消息
+     * @return 放入时间轮返回true；已经在当前tick内到期时返回false，由调用方立即发送
+     */
+    boolean add(TimerEntry entry) {
+        long expiration = entry.fireAt;
+        if (expiration < currentTime + tickMs) {
+            return false;
+        }
+        if (expiration < currentTime + interval) {
+            long virtualId = expiration / tickMs;
+            Bucket bucket = buckets[(int) (virtualId % wheelSize)];
+            bucket.add(entry);
+            // 槽被复用（到期后重新放入下一圈的消息）时需要重新加入DelayQueue
+            if (bucket.setExpiration(virtualId * tickMs)) {
+                queue.offer(bucket);
+            }
+            return true;
+        }
+        if (overflowWheel == null) {
+            overflowWheel = new TimingWheel(interval, wheelSize, currentTime, queue);
+        }
+        return overflowWheel.add(entry);
+    }
+
+    void advanceClock(long timeMs) {
+        if (timeMs >= currentTime + tickMs) {
+            currentTime = timeMs - timeMs % tickMs;
+            if (overflowWheel != null) {
+                overflowWheel.advanceClock(currentTime);
+            }
+        }
+    }
+
+    /**
+     * 时间轮的一个槽，槽内的消息在同一个tick内到期
+     */
+    static final class Bucket implements Delayed {
+
+        private List<TimerEntry> entries = new ArrayList<>();
+
+        private volatile long expiration = -1;
+
+        private void add(TimerEntry entry) {
+            entries.add(entry);
+        }
+
+        private boolean setExpiration(long expiration) {
+            if (this.expiration == expiration) {
+                return false;
+            }
+            this.expiration = expiration;
+            return true;
+        }
+
+        long getExpiration() {
+            return expiration;
+        }
+
+        /**
+         * 取出槽内所有消息并清空
+         */
+        List<TimerEntry> flush() {
+            List<TimerEntry> flushed = entries;
+            entries = new ArrayList<>();
+            expiration = -1;
+            return flushed;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(Math.max(0, expiration - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(expiration, ((Bucket) other).expiration);
+        }
+    }
+}
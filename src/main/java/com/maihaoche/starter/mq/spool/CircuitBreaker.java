@@ -0,0 +1,97 @@
+package com.maihaoche.starter.mq.spool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发送熔断器：连续失败达到阈值后打开，打开期间的发送直接进入本地spool，不再等待发送超时
+ * 打开openMs之后由回放线程用spool中的第一条消息试探，成功则关闭，失败则重新打开；试探超过openMs仍没有结果时也重新打开，避免一直停在半开
+ */
+@Slf4j
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openMillis;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private volatile State state = State.CLOSED;
+
+    private volatile long openedAt;
+
+    /**转为半开的时间*/
+    private long probedAt;
+
+    /**
+     * @param failureThreshold 连续失败多少次后打开
+     * @param openMillis 打开后多久开始试探
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return 关闭状态下返回true，可以直接发送
+     */
+    public boolean isClosed() {
+        return state == State.CLOSED;
+    }
+
+    /**
+     * 打开时间超过openMs后转为半开，只有一个调用方能拿到试探的机会；半开超过openMs没有结果时视为试探失败，重新打开
+     *
+     * @return 可以发送一条试探消息时返回true
+     */
+    public synchronized boolean tryProbe() {
+        long now = System.currentTimeMillis();
+        if (state == State.HALF_OPEN && now - probedAt >= openMillis) {
+            log.warn("send circuit breaker probe got no result in {} ms, reopen", openMillis);
+            state = State.OPEN;
+            openedAt = now;
+            return false;
+        }
+        if (state == State.OPEN && now - openedAt >= openMillis) {
+            state = State.HALF_OPEN;
+            probedAt = now;
+            return true;
+        }
+        return false;
+    }
+
+    public void onSuccess() {
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+        if (state != State.CLOSED) {
+            synchronized (this) {
+                if (state != State.CLOSED) {
+                    state = State.CLOSED;
+                    log.info("send circuit breaker closed");
+                }
+            }
+        }
+    }
+
+    public void onFailure() {
+        if (consecutiveFailures.incrementAndGet() >= failureThreshold || state == State.HALF_OPEN) {
+            synchronized (this) {
+                if (state == State.CLOSED) {
+                    log.warn("send circuit breaker opened for {} ms after {} consecutive failures", openMillis, consecutiveFailures.get());
+                }
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+}
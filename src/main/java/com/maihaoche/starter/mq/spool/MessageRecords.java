@@ -0,0 +1,55 @@
+package com.maihaoche.starter.mq.spool;
+
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageDecoder;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * 本地文件中消息的序列化格式：[short topic长度][topic][int flag][int 属性长度][属性][消息体]
+ * 属性包含tag、key和用户属性（codec、压缩方式等），还原后可以直接发送
+ */
+public final class MessageRecords {
+
+    private static final Charset UTF_8 = Charset.forName("utf-8");
+
+    private MessageRecords() {
+    }
+
+    /**
+     * @param message 消息
+     * @return 序列化后的字节
+     */
+    public static byte[] encode(Message message) {
+        byte[] topic = message.getTopic().getBytes(UTF_8);
+        byte[] properties = MessageDecoder.messageProperties2String(message.getProperties()).getBytes(UTF_8);
+        byte[] body = message.getBody() == null ? new byte[0] : message.getBody();
+        ByteBuffer buffer = ByteBuffer.allocate(2 + topic.length + 4 + 4 + properties.length + body.length);
+        buffer.putShort((short) topic.length).put(topic).putInt(message.getFlag()).putInt(properties.length).put(properties).put(body);
+        return buffer.array();
+    }
+
+    /**
+     * @param source 数据所在的buffer，不会修改它的position
+     * @param offset 记录的起始位置
+     * @param length 记录的长度
+     * @return 消息
+     */
+    public static Message decode(ByteBuffer source, int offset, int length) {
+        ByteBuffer buffer = source.duplicate();
+        buffer.position(offset);
+        byte[] topic = new byte[buffer.getShort()];
+        buffer.get(topic);
+        int flag = buffer.getInt();
+        byte[] properties = new byte[buffer.getInt()];
+        buffer.get(properties);
+        byte[] body = new byte[offset + length - buffer.position()];
+        buffer.get(body);
+        Message message = new Message(new String(topic, UTF_8), body);
+        message.setFlag(flag);
+        MessageAccessor.setProperties(message, MessageDecoder.string2messageProperties(new String(properties, UTF_8)));
+        return message;
+    }
+}
@@ -0,0 +1,408 @@
+package com.maihaoche.starter.mq.spool;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.message.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 基于内存映射文件的本地消息日志，按固定大小分段，顺序追加、顺序读取
+ * 记录格式：[int 长度][int CRC32][数据]，数据格式见{@link MessageRecords}；长度为0表示该段后面没有记录
+ * 读取位置保存在checkpoint文件中，读完的段文件直接删除；重启时从checkpoint开始恢复，截断最后一段中写了一半的记录
+ */
+@Slf4j
+public class MessageSpool {
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final String LOCK_FILE = "lock";
+
+    /**无法回放的记录移到该文件，格式与段文件相同，供人工处理*/
+    private static final String QUARANTINE_FILE = "quarantine";
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File dir;
+
+    private final int segmentBytes;
+
+    private final long maxBytes;
+
+    /**按序号排列的段，第一个是正在读的段，最后一个是正在写的段*/
+    private final List<Segment> segments = new ArrayList<>();
+
+    private final MappedByteBuffer checkpoint;
+
+    /**防止多个进程使用同一个目录*/
+    private final FileChannel lockChannel;
+
+    private final CRC32 crc = new CRC32();
+
+    private int readPos;
+
+    private int writePos;
+
+    /**读取位置对应的记录长度，commit时跳过*/
+    private int peekedSize = -1;
+
+    private volatile long pendingCount;
+
+    private volatile long pendingBytes;
+
+    private long corruptedCount;
+
+    /**关闭后映射已经释放，不能再访问*/
+    private boolean closed;
+
+    /**
+     * 打开或创建目录下的日志
+     *
+     * @param dir 目录
+     * @param segmentBytes 每个段文件的大小
+     * @param maxBytes 所有段文件的总大小上限
+     * @throws IOException 读写文件失败
+     */
+    public MessageSpool(File dir, int segmentBytes, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can not create spool dir " + dir);
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = Math.max(maxBytes, segmentBytes);
+        this.lockChannel = new RandomAccessFile(new File(dir, LOCK_FILE), "rw").getChannel();
+        if (tryLock(lockChannel) == null) {
+            lockChannel.close();
+            throw new IOException("spool dir " + dir + " is used by another process or another spool in this process");
+        }
+        try (RandomAccessFile file = new RandomAccessFile(new File(dir, CHECKPOINT_FILE), "rw")) {
+            this.checkpoint = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 12);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        long checkpointSeq = checkpoint.getLong(0);
+        int checkpointPos = checkpoint.getInt(8);
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        long[] seqs = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < seqs.length; i++) {
+            seqs[i] = Long.parseLong(files[i].getName().substring(0, files[i].getName().length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(seqs);
+        for (long seq : seqs) {
+            File file = segmentFile(seq);
+            if (seq < checkpointSeq || file.length() != segmentBytes) {
+                // 已经读完或者大小与配置不一致（segmentBytes调整过）的段无法继续使用
+                if (seq >= checkpointSeq) {
+                    log.error("spool segment {} size {} not match segment bytes {}, discard it", file, file.length(), segmentBytes);
+                }
+                deleteFile(file);
+                continue;
+            }
+            segments.add(new Segment(seq, file));
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(checkpointSeq, segmentFile(checkpointSeq)));
+            checkpointPos = 0;
+        } else if (segments.get(0).seq != checkpointSeq) {
+            checkpointPos = 0;
+        }
+        readPos = checkpointPos;
+        saveCheckpoint();
+        // 统计待读取的记录，并找到最后一段的写入位置
+        for (int i = 0; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            boolean last = i == segments.size() - 1;
+            int pos = i == 0 ? readPos : 0;
+            int size;
+            while ((size = recordSize(segment.buffer, pos, last)) > 0) {
+                pendingCount++;
+                pendingBytes += size;
+                pos += size;
+            }
+            if (last) {
+                writePos = pos;
+                // 清掉写了一半的记录，避免之后追加的短记录后面残留旧数据
+                for (int p = pos; p < segmentBytes; p++) {
+                    segment.buffer.put(p, (byte) 0);
+                }
+            }
+        }
+        if (pendingCount > 0) {
+            log.info("spool {} recovered {} messages ({} bytes) to replay", dir, pendingCount, pendingBytes);
+        }
+    }
+
+    /**
+     * 已写满的段中CRC错误的记录计入待读取，读取时跳过；正在写的段中CRC错误的记录视为写了一半，连同之后的数据一起截断
+     *
+     * @return 从pos开始的记录大小（包含记录头），没有时返回0
+     */
+    private int recordSize(MappedByteBuffer buffer, int pos, boolean writing) {
+        if (pos + HEADER_SIZE > segmentBytes) {
+            return 0;
+        }
+        int length = buffer.getInt(pos);
+        if (length <= 0 || pos + HEADER_SIZE + length > segmentBytes) {
+            return 0;
+        }
+        if (writing && crc(buffer, pos + HEADER_SIZE, length) != buffer.getInt(pos + 4)) {
+            return 0;
+        }
+        return HEADER_SIZE + length;
+    }
+
+    /**
+     * 同一个进程内已经加锁时tryLock抛出异常而不是返回null
+     */
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            return null;
+        }
+    }
+
+    private int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset);
+        slice.limit(offset + length);
+        crc.reset();
+        crc.update(slice);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 追加一条消息
+     *
+     * @param message 消息
+     * @return 写入成功返回true；超过总大小上限或单条消息超过段大小时返回false
+     * @throws IOException 创建段文件失败
+     */
+    public synchronized boolean append(Message message) throws IOException {
+        byte[] record = MessageRecords.encode(message);
+        int length = record.length;
+        int size = HEADER_SIZE + length;
+        if (closed) {
+            return false;
+        }
+        if (size > segmentBytes) {
+            log.error("message of {} bytes is larger than spool segment", size);
+            return false;
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (writePos + size > segmentBytes) {
+            if ((long) (segments.size() + 1) * segmentBytes > maxBytes) {
+                return false;
+            }
+            segment = new Segment(segment.seq + 1, segmentFile(segment.seq + 1));
+            segments.add(segment);
+            writePos = 0;
+        }
+        ByteBuffer buffer = segment.buffer.duplicate();
+        buffer.position(writePos + HEADER_SIZE);
+        buffer.put(record);
+        segment.buffer.putInt(writePos + 4, crc(segment.buffer, writePos + HEADER_SIZE, length));
+        // 最后写长度，读到非0长度时记录已经完整
+        segment.buffer.putInt(writePos, length);
+        writePos += size;
+        pendingBytes += size;
+        pendingCount++;
+        return true;
+    }
+
+    /**
+     * 取读取位置的消息，不移动读取位置；CRC校验失败的记录会被跳过
+     *
+     * @return 消息，没有待读取的记录时返回null
+     */
+    public synchronized Message peek() {
+        while (!closed) {
+            Segment segment = segments.get(0);
+            boolean writing = segments.size() == 1;
+            if (writing && readPos >= writePos) {
+                return null;
+            }
+            if (readPos + HEADER_SIZE <= segmentBytes) {
+                int length = segment.buffer.getInt(readPos);
+                if (length > 0 && readPos + HEADER_SIZE + length <= segmentBytes) {
+                    if (crc(segment.buffer, readPos + HEADER_SIZE, length) == segment.buffer.getInt(readPos + 4)) {
+                        peekedSize = HEADER_SIZE + length;
+                        return MessageRecords.decode(segment.buffer, readPos + HEADER_SIZE, length);
+                    }
+                    corruptedCount++;
+                    log.error("spool record crc mismatch, segment : {}, position : {}, skip it", segment.file, readPos);
+                    skip(HEADER_SIZE + length);
+                    continue;
+                }
+            }
+            if (writing) {
+                return null;
+            }
+            // 当前段已经读完
+            segments.remove(0);
+            segment.close();
+            deleteFile(segment.file);
+            readPos = 0;
+            saveCheckpoint();
+        }
+        return null;
+    }
+
+    /**
+     * 确认{@link #peek()}返回的消息已经处理，移动读取位置
+     */
+    public synchronized void commit() {
+        if (!closed && peekedSize > 0) {
+            skip(peekedSize);
+        }
+    }
+
+    /**
+     * 把{@link #peek()}返回的记录原样追加到quarantine文件并刷盘，然后移动读取位置
+     *
+     * @throws IOException 写quarantine文件失败，此时读取位置不变
+     */
+    public synchronized void quarantine() throws IOException {
+        if (closed || peekedSize <= 0) {
+            return;
+        }
+        ByteBuffer record = segments.get(0).buffer.duplicate();
+        record.position(readPos);
+        record.limit(readPos + peekedSize);
+        try (FileChannel channel = FileChannel.open(new File(dir, QUARANTINE_FILE).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            channel.force(false);
+        }
+        skip(peekedSize);
+    }
+
+    private void skip(int size) {
+        readPos += size;
+        pendingCount--;
+        pendingBytes -= size;
+        peekedSize = -1;
+        saveCheckpoint();
+    }
+
+    private void saveCheckpoint() {
+        checkpoint.putLong(0, segments.get(0).seq);
+        checkpoint.putInt(8, readPos);
+    }
+
+    /**
+     * 把修改过的页刷到磁盘
+     */
+    public synchronized void flush() {
+        if (closed) {
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        checkpoint.force();
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        unmap(checkpoint);
+        try {
+            lockChannel.close();
+        } catch (IOException e) {
+            log.warn("release spool lock fail : {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return 待读取的记录数
+     */
+    public long getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * @return 待读取的记录字节数
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * @return CRC校验失败被跳过的记录数
+     */
+    public synchronized long getCorruptedCount() {
+        return corruptedCount;
+    }
+
+    private File segmentFile(long seq) {
+        return new File(dir, String.format("%020d%s", seq, SEGMENT_SUFFIX));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            log.warn("delete spool file {} fail", file);
+        }
+    }
+
+    /**
+     * 主动释放映射，否则要等到GC回收后才会释放
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("unmap spool buffer fail, wait for gc : {}", e.getMessage());
+        }
+    }
+
+    private final class Segment {
+
+        private final long seq;
+
+        private final File file;
+
+        private final MappedByteBuffer buffer;
+
+        private Segment(long seq, File file) throws IOException {
+            this.seq = seq;
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            }
+        }
+
+        private void close() {
+            unmap(buffer);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.maihaoche.starter.mq.spool;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.remoting.exception.RemotingException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 生产者的本地发送缓冲：broker不可用时把同步和oneway发送写入{@link MessageSpool}，由回放线程在broker恢复后按写入顺序重新发送
+ * 熔断器打开期间以及spool中还有未回放的消息时，新的发送直接写入spool，保证回放顺序与发送顺序一致
+ * 顺序消息回放时按记录的hashKey重新选择queue
+ * 消息本身不合法，或者回放连续抛出{@link #MAX_REPLAY_ATTEMPTS}次非broker异常的消息移到spool目录下的quarantine文件，不再阻塞后面的消息
+ */
+@Slf4j
+public class SendSpool {
+
+    /**回放线程空闲或失败后的等待时间*/
+    private static final long IDLE_WAIT_MS = 100;
+
+    /**队首消息回放抛出非broker异常（序列化、选择queue出错等）的最大次数，broker不可用导致的失败不计入*/
+    static final int MAX_REPLAY_ATTEMPTS = 5;
+
+    private final String name;
+
+    private final MessageSpool spool;
+
+    private final CircuitBreaker breaker;
+
+    private final Supplier<DefaultMQProducer> producer;
+
+    private final Supplier<MessageQueueSelector> selector;
+
+    private final String hashKeyProperty;
+
+    private final long flushIntervalMs;
+
+    private final Thread replayer;
+
+    private final Object signal = new Object();
+
+    private volatile boolean closed;
+
+    private final AtomicLong appendedCount = new AtomicLong();
+
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    private final AtomicLong replayedCount = new AtomicLong();
+
+    private final AtomicLong replayFailedCount = new AtomicLong();
+
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**队首消息连续抛出非broker异常的次数，只在回放线程中访问*/
+    private int headFailures;
+
+    /**
+     * @param name 生产者名称，用于线程名和日志
+     * @param spool 本地消息日志
+     * @param breaker 熔断器
+     * @param producer 回放使用的生产者
+     * @param selector 回放顺序消息时选择queue的方式
+     * @param hashKeyProperty 顺序消息记录hashKey的属性
+     * @param flushIntervalMs 定时刷盘的间隔
+     */
+    public SendSpool(String name, MessageSpool spool, CircuitBreaker breaker, Supplier<DefaultMQProducer> producer,
+                     Supplier<MessageQueueSelector> selector, String hashKeyProperty, long flushIntervalMs) {
+        this.name = name;
+        this.spool = spool;
+        this.breaker = breaker;
+        this.producer = producer;
+        this.selector = selector;
+        this.hashKeyProperty = hashKeyProperty;
+        this.flushIntervalMs = flushIntervalMs;
+        this.replayer = new Thread(this::replayLoop, "MQSpoolReplayer-" + name);
+        this.replayer.setDaemon(true);
+        this.replayer.start();
+    }
+
+    /**
+     * @return 熔断器打开或spool中还有未回放的消息时返回true，此时新的发送应直接写入spool
+     */
+    public boolean isBlocked() {
+        return !breaker.isClosed() || spool.getPendingCount() > 0;
+    }
+
+    /**
+     * 写入spool，由回放线程发送
+     *
+     * @param message 消息
+     * @return 写入成功返回true；spool已满、已关闭或写文件失败时返回false
+     */
+    public boolean append(Message message) {
+        if (closed) {
+            return false;
+        }
+        boolean accepted;
+        try {
+            accepted = spool.append(message);
+        } catch (IOException e) {
+            log.error("append message to spool fail, producer : {}, e : {}", name, e.getMessage());
+            accepted = false;
+        }
+        if (!accepted) {
+            rejectedCount.incrementAndGet();
+            return false;
+        }
+        appendedCount.incrementAndGet();
+        synchronized (signal) {
+            signal.notify();
+        }
+        return true;
+    }
+
+    public void onSendSuccess() {
+        breaker.onSuccess();
+    }
+
+    /**
+     * 直接发送失败后尝试写入spool，消息本身不合法等与broker是否可用无关的失败不写入
+     *
+     * @param message 发送失败的消息
+     * @param failure 发送抛出的异常
+     * @return 写入成功返回true，调用方不再需要处理该消息
+     */
+    public boolean onSendFailure(Message message, Throwable failure) {
+        if (!isRetriable(failure)) {
+            return false;
+        }
+        breaker.onFailure();
+        return append(message);
+    }
+
+    /**
+     * @param failure 发送抛出的异常
+     * @return broker不可用等稍后重新发送可能成功的失败返回true，消息本身不合法或非MQ异常返回false
+     */
+    public static boolean isRetriable(Throwable failure) {
+        if (failure instanceof MQClientException) {
+            return ((MQClientException) failure).getResponseCode() != ResponseCode.MESSAGE_ILLEGAL;
+        }
+        if (failure instanceof MQBrokerException) {
+            return ((MQBrokerException) failure).getResponseCode() != ResponseCode.MESSAGE_ILLEGAL;
+        }
+        return failure instanceof RemotingException;
+    }
+
+    private void replayLoop() {
+        long lastFlush = System.currentTimeMillis();
+        while (!closed) {
+            try {
+                if (System.currentTimeMillis() - lastFlush >= flushIntervalMs) {
+                    spool.flush();
+                    lastFlush = System.currentTimeMillis();
+                }
+                if (spool.getPendingCount() == 0 || (!breaker.isClosed() && !breaker.tryProbe())) {
+                    synchronized (signal) {
+                        signal.wait(IDLE_WAIT_MS);
+                    }
+                    continue;
+                }
+                if (!replayOne()) {
+                    Thread.sleep(IDLE_WAIT_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable e) {
+                log.error("spool replayer of {} error", name, e);
+            }
+        }
+    }
+
+    /**
+     * @return 发送成功或消息被丢弃返回true，发送失败返回false
+     */
+    private boolean replayOne() throws InterruptedException {
+        Message message = spool.peek();
+        if (message == null) {
+            return true;
+        }
+        try {
+            String hashKey = message.getUserProperty(hashKeyProperty);
+            if (StringUtils.isEmpty(hashKey)) {
+                producer.get().send(message);
+            } else {
+                producer.get().send(message, selector.get(), hashKey);
+            }
+            spool.commit();
+            headFailures = 0;
+            breaker.onSuccess();
+            replayedCount.incrementAndGet();
+            return true;
+        } catch (MQClientException | RemotingException | MQBrokerException e) {
+            if (!isRetriable(e)) {
+                return quarantine(message, e);
+            }
+            breaker.onFailure();
+            replayFailedCount.incrementAndGet();
+            log.debug("replay spooled message fail, producer : {}, e : {}", name, e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            // 不处理时会一直停在半开，回放线程不再试探
+            breaker.onFailure();
+            replayFailedCount.incrementAndGet();
+            log.warn("replay spooled message error, producer : {}, topic : {}, key : {}, e : {}",
+                    name, message.getTopic(), message.getKeys(), e.toString());
+            if (++headFailures >= MAX_REPLAY_ATTEMPTS) {
+                return quarantine(message, e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 把无法回放的队首消息移到quarantine文件
+     *
+     * @return 移动成功返回true
+     */
+    private boolean quarantine(Message message, Exception cause) {
+        try {
+            spool.quarantine();
+        } catch (IOException e) {
+            log.error("quarantine spooled message fail, producer : {}, e : {}", name, e.getMessage());
+            return false;
+        }
+        headFailures = 0;
+        droppedCount.incrementAndGet();
+        log.error("spooled message can not be replayed, moved to quarantine, producer : {}, topic : {}, key : {}, e : {}",
+                name, message.getTopic(), message.getKeys(), cause.toString());
+        return true;
+    }
+
+    /**
+     * 停止回放并刷盘，未回放的消息保留在磁盘上，下次启动后继续回放
+     *
+     * @param timeoutMs 等待回放线程退出的最长时间
+     */
+    public void close(long timeoutMs) {
+        closed = true;
+        synchronized (signal) {
+            signal.notify();
+        }
+        try {
+            replayer.join(timeoutMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (replayer.isAlive()) {
+            replayer.interrupt();
+        }
+        spool.close();
+        if (spool.getPendingCount() > 0) {
+            log.warn("spool of {} closed with {} messages to replay after restart", name, spool.getPendingCount());
+        }
+    }
+
+    /**
+     * @return 待回放的消息数
+     */
+    public long getDepth() {
+        return spool.getPendingCount();
+    }
+
+    /**
+     * @return 待回放的字节数
+     */
+    public long getBytes() {
+        return spool.getPendingBytes();
+    }
+
+    public long getAppendedCount() {
+        return appendedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    public long getReplayFailedCount() {
+        return replayFailedCount.get();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public CircuitBreaker.State getState() {
+        return breaker.getState();
+    }
+}
@@ -0,0 +1,214 @@
+package com.maihaoche.starter.mq.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.rocketmq.client.ClientConfig;
+import org.apache.rocketmq.client.impl.MQClientManager;
+import org.apache.rocketmq.client.impl.factory.MQClientInstance;
+import org.apache.rocketmq.common.ServiceState;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 为生产者、消费者分配instanceName，相同instanceName的客户端共享同一个MQClientInstance（Netty客户端、rebalance、心跳线程和连接）
+ * 默认每个消费者使用随机的instanceName，各自拥有独立的MQClientInstance；共享模式下消费者（可选包括生产者）分摊到固定数量的实例上
+ * 同一个MQClientInstance中一个group只能注册一次，同group的客户端会分到不同的实例，实例不够时额外创建
+ * 容器启动完成后打印实例数、RocketMQ客户端线程数和估算的连接数
+ */
+@Slf4j
+public class ClientInstanceAllocator implements ApplicationListener<ContextRefreshedEvent> {
+
+    /**每个消费者独立的MQClientInstance*/
+    public static final String PER_CONSUMER = "PER_CONSUMER";
+
+    /**共享固定数量的MQClientInstance*/
+    public static final String SHARED = "SHARED";
+
+    private static final String SHARED_INSTANCE_PREFIX = "MQ-SHARED-";
+
+    /**RocketMQ客户端创建的线程名前缀*/
+    private static final String[] CLIENT_THREAD_PREFIXES = {"NettyClient", "MQClientFactoryScheduledThread", "PullMessageService",
+            "RebalanceService", "ConsumeMessage", "ClientHouseKeepingService"};
+
+    private final boolean shared;
+
+    private final int instances;
+
+    private final boolean includeProducers;
+
+    /**共享实例下标到已分配的客户端*/
+    private final List<Slot> slots = new ArrayList<>();
+
+    /**所有分配过的客户端，用于启动后统计*/
+    private final List<Client> clients = new ArrayList<>();
+
+    private boolean reported;
+
+    /**
+     * @param mode PER_CONSUMER或SHARED
+     * @param instances 共享模式下的实例数
+     * @param includeProducers 共享模式下生产者是否也使用共享实例
+     */
+    public ClientInstanceAllocator(String mode, int instances, boolean includeProducers) {
+        if (!PER_CONSUMER.equals(mode) && !SHARED.equals(mode)) {
+            throw new RuntimeException("unknown client instance mode " + mode + " ! only support PER_CONSUMER and SHARED");
+        }
+        this.shared = SHARED.equals(mode);
+        this.instances = Math.max(1, instances);
+        this.includeProducers = includeProducers;
+    }
+
+    /**
+     * 为消费者设置instanceName，需要在start之前调用
+     *
+     * @param consumer 消费者
+     * @param consumerGroup 消费者组
+     */
+    public synchronized void assignConsumer(ClientConfig consumer, String consumerGroup) {
+        consumer.setInstanceName(shared ? sharedInstanceName("C:" + consumerGroup) : UUID.randomUUID().toString());
+        clients.add(new Client(consumer, consumerGroup));
+    }
+
+    /**
+     * 为生产者设置instanceName，需要在start之前调用
+     *
+     * @param producer 生产者
+     * @param producerGroup 生产者组
+     * @param defaultInstanceName 不使用共享实例时的instanceName，为null时保持客户端的默认值
+     */
+    public synchronized void assignProducer(ClientConfig producer, String producerGroup, String defaultInstanceName) {
+        if (shared && includeProducers) {
+            producer.setInstanceName(sharedInstanceName("P:" + producerGroup));
+        } else if (defaultInstanceName != null) {
+            producer.setInstanceName(defaultInstanceName);
+        }
+        clients.add(new Client(producer, producerGroup));
+    }
+
+    /**
+     * 选择客户端最少、并且没有注册过该group的共享实例
+     */
+    private String sharedInstanceName(String group) {
+        Slot target = null;
+        for (int i = 0; i < slots.size() || i < instances; i++) {
+            if (i == slots.size()) {
+                slots.add(new Slot(SHARED_INSTANCE_PREFIX + i));
+            }
+            Slot slot = slots.get(i);
+            if (!slot.groups.contains(group) && (target == null || slot.groups.size() < target.groups.size())) {
+                target = slot;
+            }
+        }
+        if (target == null) {
+            target = new Slot(SHARED_INSTANCE_PREFIX + slots.size());
+            slots.add(target);
+        }
+        target.groups.add(group);
+        return target.instanceName;
+    }
+
+    @Override
+    public synchronized void onApplicationEvent(ContextRefreshedEvent event) {
+        if (reported || clients.isEmpty()) {
+            return;
+        }
+        reported = true;
+        Map<String, List<String>> groupsByClientId = new LinkedHashMap<>();
+        Set<String> brokerAddresses = new HashSet<>();
+        int connections = 0;
+        for (Client client : clients) {
+            String clientId = client.config.buildMQClientId();
+            List<String> groups = groupsByClientId.get(clientId);
+            if (groups == null) {
+                groups = new ArrayList<>();
+                groupsByClientId.put(clientId, groups);
+                if (StringUtils.isNotEmpty(client.config.getNamesrvAddr())) {
+                    // 一个namesrv连接，加上路由中每个broker地址一个连接
+                    int brokers = brokerAddresses(clientId, brokerAddresses);
+                    if (brokers >= 0) {
+                        connections += 1 + brokers;
+                    }
+                }
+            }
+            groups.add(client.group);
+        }
+        log.info("rocketmq clients : {}, client instances : {} ({} mode), client threads : {}, estimated connections : {} ({} brokers)",
+                clients.size(), groupsByClientId.size(), shared ? SHARED : PER_CONSUMER, countClientThreads(), connections, brokerAddresses.size());
+        if (log.isDebugEnabled()) {
+            for (Map.Entry<String, List<String>> entry : groupsByClientId.entrySet()) {
+                log.debug("client instance {} : {}", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 只统计MQClientManager中已有并且在运行的实例，不会为尚未启动或已经关闭的客户端创建实例
+     *
+     * @return 实例连接的broker地址数，实例不存在或没有运行时返回-1
+     */
+    @SuppressWarnings("unchecked")
+    private static int brokerAddresses(String clientId, Set<String> all) {
+        try {
+            Map<String, MQClientInstance> factoryTable = (Map<String, MQClientInstance>) FieldUtils.readField(MQClientManager.getInstance(), "factoryTable", true);
+            MQClientInstance instance = factoryTable.get(clientId);
+            if (instance == null || FieldUtils.readField(instance, "serviceState", true) != ServiceState.RUNNING) {
+                return -1;
+            }
+            Map<String, Map<Long, String>> brokerAddrTable = (Map<String, Map<Long, String>>) FieldUtils.readField(instance, "brokerAddrTable", true);
+            int count = 0;
+            for (Map<Long, String> addresses : brokerAddrTable.values()) {
+                count += addresses.size();
+                all.addAll(addresses.values());
+            }
+            return count;
+        } catch (Exception e) {
+            log.warn("count broker connections fail : {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    private static int countClientThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            for (String prefix : CLIENT_THREAD_PREFIXES) {
+                if (thread.getName().startsWith(prefix)) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static final class Slot {
+
+        private final String instanceName;
+
+        private final Set<String> groups = new HashSet<>();
+
+        private Slot(String instanceName) {
+            this.instanceName = instanceName;
+        }
+    }
+
+    private static final class Client {
+
+        private final ClientConfig config;
+
+        private final String group;
+
+        private Client(ClientConfig config, String group) {
+            this.config = config;
+            this.group = group;
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package com.maihaoche.starter.mq.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.consumer.PullCallback;
+import org.apache.rocketmq.client.consumer.PullResult;
+import org.apache.rocketmq.client.consumer.PullStatus;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.client.producer.SendStatus;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的消息存储，模拟broker的topic、queue、tag过滤、消费位点、延时消息、重试和死信
+ * 每个queue是一个有界的环形缓冲区，超过上限后丢弃最早的消息；消费位点按consumerGroup保存（广播模式由消费者自己保存）
+ * 新的consumerGroup从queue中最早的消息开始消费
+ */
+@Slf4j
+public class InMemoryBroker {
+
+    public static final String BROKER_NAME = "memory-broker";
+
+    /**与broker的messageDelayLevel默认值相同*/
+    public static final String DEFAULT_MESSAGE_DELAY_LEVEL = "1s 5s 10s 30s 1m 2m 3m 4m 5m 6m 7m 8m 9m 10m 20m 30m 1h 2h";
+
+    /**重试消息未指定延时级别时从该级别开始，与broker一致*/
+    private static final int RETRY_DELAY_LEVEL_BASE = 3;
+
+    /**broker默认的最大重试次数*/
+    private static final int DEFAULT_MAX_RECONSUME_TIMES = 16;
+
+    private static final InetSocketAddress STORE_HOST = new InetSocketAddress("127.0.0.1", 10911);
+
+    private final int defaultQueueNums;
+
+    private final int maxMessagesPerQueue;
+
+    private final long[] delayLevelMillis;
+
+    private final ConcurrentMap<String, TopicStore> topics = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, GroupState> groups = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, TagFilter> tagFilters = new ConcurrentHashMap<>();
+
+    private final AtomicLong messageSequence = new AtomicLong();
+
+    private final AtomicLong commitLogOffset = new AtomicLong();
+
+    private final ScheduledExecutorService scheduler;
+
+    private final ExecutorService pullExecutor;
+
+    public InMemoryBroker() {
+        this(4, DEFAULT_MESSAGE_DELAY_LEVEL, 100000);
+    }
+
+    /**
+     * @param defaultQueueNums 自动创建topic时的queue数量
+     * @param messageDelayLevel 延时级别，格式与broker的messageDelayLevel相同
+     * @param maxMessagesPerQueue 每个queue最多保留的消息条数
+     */
+    public InMemoryBroker(int defaultQueueNums, String messageDelayLevel, int maxMessagesPerQueue) {
+        this.defaultQueueNums = defaultQueueNums;
+        this.maxMessagesPerQueue = maxMessagesPerQueue;
+        this.delayLevelMillis = parseDelayLevel(messageDelayLevel);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "InMemoryBrokerScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger index = new AtomicInteger();
+        this.pullExecutor = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors() / 2), r -> {
+            Thread thread = new Thread(r, "InMemoryBrokerPull-" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        pullExecutor.shutdownNow();
+    }
+
+    /**
+     * topic的queue列表，topic不存在时自动创建
+     */
+    public List<MessageQueue> getMessageQueues(String topic) {
+        return topic(topic).messageQueues;
+    }
+
+    /**
+     * 写入消息，消息设置了延时级别时到期后才写入
+     *
+     * @param message 消息
+     * @param mq 目标queue
+     * @return 发送结果
+     */
+    public SendResult put(Message message, MessageQueue mq) {
+        QueueStore queue = queue(mq);
+        long now = System.currentTimeMillis();
+        String msgId = nextMsgId();
+        MessageExt messageExt = new MessageExt(mq.getQueueId(), now, STORE_HOST, now, STORE_HOST, msgId);
+        messageExt.setTopic(message.getTopic());
+        messageExt.setFlag(message.getFlag());
+        messageExt.setBody(message.getBody());
+        Map<String, String> properties = new HashMap<>(message.getProperties());
+        properties.remove(MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+        MessageAccessor.setProperties(messageExt, properties);
+        int delayLevel = message.getDelayTimeLevel();
+        if (delayLevel > 0) {
+            schedule(queue, messageExt, delayLevel);
+            return new SendResult(SendStatus.SEND_OK, msgId, msgId, mq, -1);
+        }
+        return new SendResult(SendStatus.SEND_OK, msgId, msgId, mq, queue.append(messageExt));
+    }
+
+    /**
+     * 消费失败的消息投递到consumerGroup的重试topic，超过最大重试次数后投递到死信topic
+     *
+     * @param message 消费失败的消息
+     * @param group consumerGroup
+     * @param delayLevel 延时级别，0表示按重试次数递增
+     * @param maxReconsumeTimes 最大重试次数，小于0时使用broker的默认值16
+     */
+    public void sendBack(MessageExt message, String group, int delayLevel, int maxReconsumeTimes) {
+        int reconsumeTimes = message.getReconsumeTimes() + 1;
+        int maxTimes = maxReconsumeTimes < 0 ? DEFAULT_MAX_RECONSUME_TIMES : maxReconsumeTimes;
+        boolean dead = reconsumeTimes > maxTimes || delayLevel < 0;
+        String topic = dead ? MixAll.getDLQTopic(group) : MixAll.getRetryTopic(group);
+        QueueStore queue = topic(topic).queues[0];
+        long now = System.currentTimeMillis();
+        MessageExt retry = new MessageExt(0, message.getBornTimestamp(), message.getBornHost(), now, STORE_HOST, message.getMsgId());
+        retry.setTopic(topic);
+        retry.setFlag(message.getFlag());
+        retry.setBody(message.getBody());
+        retry.setReconsumeTimes(reconsumeTimes);
+        Map<String, String> properties = new HashMap<>(message.getProperties());
+        if (!properties.containsKey(MessageConst.PROPERTY_RETRY_TOPIC)) {
+            properties.put(MessageConst.PROPERTY_RETRY_TOPIC, message.getTopic());
+        }
+        properties.put(MessageConst.PROPERTY_ORIGIN_MESSAGE_ID, message.getMsgId());
+        MessageAccessor.setProperties(retry, properties);
+        if (dead) {
+            log.warn("message reach max reconsume times, move to {}, msgId : {}", topic, message.getMsgId());
+            queue.append(retry);
+        } else {
+            schedule(queue, retry, delayLevel == 0 ? RETRY_DELAY_LEVEL_BASE + reconsumeTimes : delayLevel);
+        }
+    }
+
+    /**
+     * 从queue中读取消息并按tag过滤
+     *
+     * @param mq queue
+     * @param subExpression tag表达式
+     * @param offset 起始位点
+     * @param maxNums 最多读取的条数（过滤前）
+     * @return 拉取结果，位点小于最早保留的消息时返回OFFSET_ILLEGAL
+     */
+    public PullResult pull(MessageQueue mq, String subExpression, long offset, int maxNums) {
+        return queue(mq).read(offset, maxNums, tagFilter(subExpression));
+    }
+
+    /**
+     * 长轮询拉取，没有新消息时挂起请求，直到有新消息或者超时；回调总是在broker的拉取线程中执行
+     */
+    public void pullAsync(final MessageQueue mq, final String subExpression, final long offset, final int maxNums,
+                          final PullCallback pullCallback, long suspendMillis) {
+        final QueueStore queue = queue(mq);
+        final TagFilter filter = tagFilter(subExpression);
+        PullResult result;
+        synchronized (queue) {
+            result = queue.read(offset, maxNums, filter);
+            if (result.getPullStatus() == PullStatus.NO_NEW_MSG && suspendMillis > 0) {
+                final PendingPull pending = new PendingPull(offset, maxNums, filter, pullCallback);
+                queue.pendingPulls.add(pending);
+                try {
+                    scheduler.schedule(() -> {
+                        boolean expired;
+                        synchronized (queue) {
+                            expired = queue.pendingPulls.remove(pending);
+                        }
+                        if (expired) {
+                            respond(pending, queue.read(offset, maxNums, filter));
+                        }
+                    }, suspendMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    log.debug("in-memory broker is shutting down, drop pull request of {}", mq);
+                }
+                return;
+            }
+        }
+        respond(new PendingPull(offset, maxNums, filter, pullCallback), result);
+    }
+
+    /**
+     * 注册消费者，同一consumerGroup的所有消费者会重新分配queue
+     */
+    void register(Member member) {
+        GroupState group = group(member.getConsumerGroup(), member.getMessageModel());
+        group.members.add(member);
+        for (String topic : member.getTopics()) {
+            topic(topic).listeners.add(member);
+        }
+        rebalance(group);
+    }
+
+    void unregister(Member member) {
+        GroupState group = groups.get(member.getConsumerGroup());
+        if (group == null) {
+            return;
+        }
+        group.members.remove(member);
+        for (String topic : member.getTopics()) {
+            topic(topic).listeners.remove(member);
+        }
+        rebalance(group);
+    }
+
+    /**
+     * 集群模式下consumerGroup在queue上的消费位点
+     *
+     * @return 位点，没有记录时返回-1
+     */
+    long fetchOffset(String group, MessageQueue mq) {
+        GroupState state = groups.get(group);
+        if (state == null) {
+            return -1;
+        }
+        AtomicLong offset = state.offsets.get(mq);
+        return offset == null ? -1 : offset.get();
+    }
+
+    void commitOffset(String group, MessageQueue mq, long offset) {
+        GroupState state = group(group, MessageModel.CLUSTERING);
+        AtomicLong stored = state.offsets.get(mq);
+        if (stored == null) {
+            AtomicLong created = new AtomicLong(offset);
+            stored = state.offsets.putIfAbsent(mq, created);
+            if (stored == null) {
+                return;
+            }
+        }
+        stored.set(offset);
+    }
+
+    long minOffset(MessageQueue mq) {
+        QueueStore queue = queue(mq);
+        synchronized (queue) {
+            return queue.minOffset;
+        }
+    }
+
+    long maxOffset(MessageQueue mq) {
+        QueueStore queue = queue(mq);
+        synchronized (queue) {
+            return queue.maxOffset;
+        }
+    }
+
+    TagFilter tagFilter(String subExpression) {
+        String expression = StringUtils.defaultIfEmpty(subExpression, "*");
+        TagFilter filter = tagFilters.get(expression);
+        if (filter == null) {
+            filter = new TagFilter(expression);
+            tagFilters.putIfAbsent(expression, filter);
+        }
+        return filter;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    private synchronized void rebalance(GroupState group) {
+        Set<String> groupTopics = new LinkedHashSet<>();
+        for (Member member : group.members) {
+            groupTopics.addAll(member.getTopics());
+        }
+        for (String topic : groupTopics) {
+            List<Member> subscribers = new ArrayList<>();
+            for (Member member : group.members) {
+                if (member.getTopics().contains(topic)) {
+                    subscribers.add(member);
+                }
+            }
+            subscribers.sort((a, b) -> a.getClientId().compareTo(b.getClientId()));
+            List<MessageQueue> all = topic(topic).messageQueues;
+            Set<MessageQueue> allSet = new HashSet<>(all);
+            for (int i = 0; i < subscribers.size(); i++) {
+                Set<MessageQueue> divided;
+                if (group.messageModel == MessageModel.BROADCASTING) {
+                    divided = allSet;
+                } else {
+                    divided = new HashSet<>(allocate(all, i, subscribers.size()));
+                }
+                subscribers.get(i).assign(topic, allSet, divided);
+            }
+        }
+    }
+
+    /**
+     * 与AllocateMessageQueueAveragely相同的平均分配
+     */
+    private static List<MessageQueue> allocate(List<MessageQueue> all, int index, int consumers) {
+        int mod = all.size() % consumers;
+        int averageSize = all.size() <= consumers ? 1 : (mod > 0 && index < mod ? all.size() / consumers + 1 : all.size() / consumers);
+        int startIndex = (mod > 0 && index < mod) ? index * averageSize : index * averageSize + mod;
+        int range = Math.min(averageSize, all.size() - startIndex);
+        List<MessageQueue> result = new ArrayList<>();
+        for (int i = 0; i < range; i++) {
+            result.add(all.get((startIndex + i) % all.size()));
+        }
+        return result;
+    }
+
+    private void schedule(final QueueStore queue, final MessageExt messageExt, int delayLevel) {
+        long delay = delayLevelMillis[Math.min(delayLevel, delayLevelMillis.length) - 1];
+        try {
+            scheduler.schedule(() -> {
+                messageExt.setStoreTimestamp(System.currentTimeMillis());
+                queue.append(messageExt);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.warn("in-memory broker is shutting down, drop delayed message : {}", messageExt.getMsgId());
+        }
+    }
+
+    private void respond(final PendingPull pending, final PullResult result) {
+        try {
+            pullExecutor.execute(() -> {
+                try {
+                    pending.callback.onSuccess(result);
+                } catch (Throwable e) {
+                    log.error("pull callback fail, e : {}", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("in-memory broker is shutting down, drop pull response");
+        }
+    }
+
+    private String nextMsgId() {
+        return String.format("MEM%029X", messageSequence.incrementAndGet());
+    }
+
+    private TopicStore topic(String topic) {
+        TopicStore store = topics.get(topic);
+        if (store == null) {
+            // 重试和死信topic与broker一样只有一个queue
+            int queueNums = topic.startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX) || topic.startsWith(MixAll.DLQ_GROUP_TOPIC_PREFIX) ? 1 : defaultQueueNums;
+            TopicStore created = new TopicStore(topic, queueNums);
+            store = topics.putIfAbsent(topic, created);
+            if (store == null) {
+                store = created;
+            }
+        }
+        return store;
+    }
+
+    private QueueStore queue(MessageQueue mq) {
+        TopicStore store = topic(mq.getTopic());
+        if (mq.getQueueId() < 0 || mq.getQueueId() >= store.queues.length) {
+            throw new IllegalArgumentException("queue not exist : " + mq);
+        }
+        return store.queues[mq.getQueueId()];
+    }
+
+    private GroupState group(String group, MessageModel messageModel) {
+        GroupState state = groups.get(group);
+        if (state == null) {
+            GroupState created = new GroupState(messageModel);
+            state = groups.putIfAbsent(group, created);
+            if (state == null) {
+                state = created;
+            }
+        }
+        return state;
+    }
+
+    private static long[] parseDelayLevel(String messageDelayLevel) {
+        String[] levels = StringUtils.split(messageDelayLevel, ' ');
+        long[] millis = new long[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            long unit;
+            switch (level.charAt(level.length() - 1)) {
+                case 's':
+                    unit = 1000L;
+                    break;
+                case 'm':
+                    unit = 60 * 1000L;
+                    break;
+                case 'h':
+                    unit = 60 * 60 * 1000L;
+                    break;
+                case 'd':
+                    unit = 24 * 60 * 60 * 1000L;
+                    break;
+                default:
+                    throw new IllegalArgumentException("illegal message delay level : " + messageDelayLevel);
+            }
+            millis[i] = Long.parseLong(level.substring(0, level.length() - 1)) * unit;
+        }
+        return millis;
+    }
+
+    /**
+     * 注册到broker的消费者
+     */
+    interface Member {
+
+        String getClientId();
+
+        String getConsumerGroup();
+
+        MessageModel getMessageModel();
+
+        Set<String> getTopics();
+
+        /**
+         * rebalance后分配到的queue
+         */
+        void assign(String topic, Set<MessageQueue> all, Set<MessageQueue> divided);
+
+        /**
+         * 订阅的topic有新消息
+         */
+        void wakeup();
+    }
+
+    /**
+     * tag过滤，"*"匹配所有消息，否则为"||"分隔的tag列表
+     */
+    static final class TagFilter {
+
+        private final Set<String> tags;
+
+        private TagFilter(String expression) {
+            if ("*".equals(expression.trim())) {
+                tags = null;
+            } else {
+                Set<String> parsed = new HashSet<>();
+                for (String tag : expression.split("\\|\\|")) {
+                    if (StringUtils.isNotBlank(tag)) {
+                        parsed.add(tag.trim());
+                    }
+                }
+                tags = parsed;
+            }
+        }
+
+        boolean matches(MessageExt message) {
+            return tags == null || tags.contains(message.getTags());
+        }
+    }
+
+    private final class TopicStore {
+
+        private final QueueStore[] queues;
+
+        private final List<MessageQueue> messageQueues;
+
+        private final List<Member> listeners = new CopyOnWriteArrayList<>();
+
+        private TopicStore(String topic, int queueNums) {
+            queues = new QueueStore[queueNums];
+            MessageQueue[] mqs = new MessageQueue[queueNums];
+            for (int i = 0; i < queueNums; i++) {
+                mqs[i] = new MessageQueue(topic, BROKER_NAME, i);
+                queues[i] = new QueueStore(this, mqs[i]);
+            }
+            messageQueues = Collections.unmodifiableList(Arrays.asList(mqs));
+        }
+    }
+
+    /**
+     * 单个queue的环形缓冲区，容量按需翻倍直到maxMessagesPerQueue
+     */
+    private final class QueueStore {
+
+        private final TopicStore topic;
+
+        private final MessageQueue mq;
+
+        private MessageExt[] ring = new MessageExt[Math.max(1, Math.min(16, maxMessagesPerQueue))];
+
+        /**最早保留的消息位点*/
+        private long minOffset;
+
+        /**下一条消息的位点*/
+        private long maxOffset;
+
+        private final List<PendingPull> pendingPulls = new ArrayList<>();
+
+        private QueueStore(TopicStore topic, MessageQueue mq) {
+            this.topic = topic;
+            this.mq = mq;
+        }
+
+        private long append(MessageExt message) {
+            List<PendingPull> woken = null;
+            long offset;
+            synchronized (this) {
+                if (maxOffset - minOffset == ring.length) {
+                    if (ring.length < maxMessagesPerQueue) {
+                        grow();
+                    } else {
+                        ring[(int) (minOffset % ring.length)] = null;
+                        minOffset++;
+                    }
+                }
+                offset = maxOffset;
+                message.setQueueId(mq.getQueueId());
+                message.setQueueOffset(offset);
+                message.setCommitLogOffset(commitLogOffset.getAndIncrement());
+                ring[(int) (offset % ring.length)] = message;
+                maxOffset++;
+                if (!pendingPulls.isEmpty()) {
+                    woken = new ArrayList<>(pendingPulls);
+                    pendingPulls.clear();
+                }
+            }
+            if (woken != null) {
+                for (PendingPull pending : woken) {
+                    respond(pending, read(pending.offset, pending.maxNums, pending.filter));
+                }
+            }
+            for (Member member : topic.listeners) {
+                member.wakeup();
+            }
+            return offset;
+        }
+
+        private void grow() {
+            MessageExt[] grown = new MessageExt[(int) Math.min((long) ring.length << 1, maxMessagesPerQueue)];
+            for (long offset = minOffset; offset < maxOffset; offset++) {
+                grown[(int) (offset % grown.length)] = ring[(int) (offset % ring.length)];
+            }
+            ring = grown;
+        }
+
+        private synchronized PullResult read(long offset, int maxNums, TagFilter filter) {
+            if (offset < minOffset || offset > maxOffset) {
+                return new PullResult(PullStatus.OFFSET_ILLEGAL, offset < minOffset ? minOffset : maxOffset, minOffset, maxOffset, null);
+            }
+            if (offset == maxOffset) {
+                return new PullResult(PullStatus.NO_NEW_MSG, offset, minOffset, maxOffset, null);
+            }
+            long end = Math.min(maxOffset, offset + maxNums);
+            List<MessageExt> found = new ArrayList<>((int) (end - offset));
+            for (long i = offset; i < end; i++) {
+                MessageExt message = ring[(int) (i % ring.length)];
+                if (filter.matches(message)) {
+                    found.add(message);
+                }
+            }
+            if (found.isEmpty()) {
+                return new PullResult(PullStatus.NO_MATCHED_MSG, end, minOffset, maxOffset, null);
+            }
+            return new PullResult(PullStatus.FOUND, end, minOffset, maxOffset, found);
+        }
+    }
+
+    private static final class PendingPull {
+
+        private final long offset;
+
+        private final int maxNums;
+
+        private final TagFilter filter;
+
+        private final PullCallback callback;
+
+        private PendingPull(long offset, int maxNums, TagFilter filter, PullCallback callback) {
+            this.offset = offset;
+            this.maxNums = maxNums;
+            this.filter = filter;
+            this.callback = callback;
+        }
+    }
+
+    private static final class GroupState {
+
+        private final MessageModel messageModel;
+
+        private final List<Member> members = new CopyOnWriteArrayList<>();
+
+        private final ConcurrentMap<MessageQueue, AtomicLong> offsets = new ConcurrentHashMap<>();
+
+        private GroupState(MessageModel messageModel) {
+            this.messageModel = messageModel;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.rocketmq.client.Validators;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 发送到{@link InMemoryBroker}的生产者，不连接namesrv和broker
+ * 与RocketMQ客户端一样，不指定queue时轮询选择，异步发送的回调在发送线程中直接执行
+ */
+public class InMemoryMQProducer extends DefaultMQProducer {
+
+    private final InMemoryBroker broker;
+
+    private final AtomicInteger sendWhichQueue = new AtomicInteger();
+
+    public InMemoryMQProducer(String producerGroup, InMemoryBroker broker) {
+        super(producerGroup);
+        this.broker = broker;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void shutdown() {
+    }
+
+    @Override
+    public List<MessageQueue> fetchPublishMessageQueues(String topic) {
+        return broker.getMessageQueues(topic);
+    }
+
+    @Override
+    public SendResult send(Message msg) throws MQClientException {
+        Validators.checkMessage(msg, this);
+        List<MessageQueue> mqs = broker.getMessageQueues(msg.getTopic());
+        return broker.put(msg, mqs.get((sendWhichQueue.getAndIncrement() & Integer.MAX_VALUE) % mqs.size()));
+    }
+
+    @Override
+    public SendResult send(Message msg, long timeout) throws MQClientException {
+        return send(msg);
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback) throws MQClientException {
+        SendResult sendResult;
+        try {
+            sendResult = send(msg);
+        } catch (MQClientException e) {
+            throw e;
+        } catch (Exception e) {
+            sendCallback.onException(e);
+            return;
+        }
+        sendCallback.onSuccess(sendResult);
+    }
+
+    @Override
+    public void send(Message msg, SendCallback sendCallback, long timeout) throws MQClientException {
+        send(msg, sendCallback);
+    }
+
+    @Override
+    public void sendOneway(Message msg) throws MQClientException {
+        send(msg);
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueue mq) throws MQClientException {
+        Validators.checkMessage(msg, this);
+        if (!msg.getTopic().equals(mq.getTopic())) {
+            throw new MQClientException("message's topic not equal mq's topic", null);
+        }
+        return broker.put(msg, mq);
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueue mq, long timeout) throws MQClientException {
+        return send(msg, mq);
+    }
+
+    @Override
+    public void send(Message msg, MessageQueue mq, SendCallback sendCallback) throws MQClientException {
+        sendCallback.onSuccess(send(msg, mq));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueue mq, SendCallback sendCallback, long timeout) throws MQClientException {
+        send(msg, mq, sendCallback);
+    }
+
+    @Override
+    public void sendOneway(Message msg, MessageQueue mq) throws MQClientException {
+        send(msg, mq);
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueueSelector selector, Object arg) throws MQClientException {
+        Validators.checkMessage(msg, this);
+        List<MessageQueue> mqs = broker.getMessageQueues(msg.getTopic());
+        MessageQueue mq = selector.select(mqs, msg, arg);
+        if (mq == null) {
+            throw new MQClientException("select message queue return null.", null);
+        }
+        return broker.put(msg, mq);
+    }
+
+    @Override
+    public SendResult send(Message msg, MessageQueueSelector selector, Object arg, long timeout) throws MQClientException {
+        return send(msg, selector, arg);
+    }
+
+    @Override
+    public void send(Message msg, MessageQueueSelector selector, Object arg, SendCallback sendCallback) throws MQClientException {
+        sendCallback.onSuccess(send(msg, selector, arg));
+    }
+
+    @Override
+    public void send(Message msg, MessageQueueSelector selector, Object arg, SendCallback sendCallback, long timeout) throws MQClientException {
+        send(msg, selector, arg, sendCallback);
+    }
+
+    @Override
+    public void sendOneway(Message msg, MessageQueueSelector selector, Object arg) throws MQClientException {
+        send(msg, selector, arg);
+    }
+}
@@ -0,0 +1,186 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.MessageQueueListener;
+import org.apache.rocketmq.client.consumer.PullCallback;
+import org.apache.rocketmq.client.consumer.PullResult;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 从{@link InMemoryBroker}消费的Pull消费者
+ * rebalance的结果通过registerMessageQueueListener注册的监听器通知，pullBlockIfNotFound在broker上长轮询
+ */
+public class InMemoryMQPullConsumer extends DefaultMQPullConsumer implements InMemoryBroker.Member {
+
+    private final InMemoryBroker broker;
+
+    private final ConcurrentMap<String, Set<MessageQueue>> assigned = new ConcurrentHashMap<>();
+
+    /**广播模式下的消费位点*/
+    private final ConcurrentMap<MessageQueue, Long> localOffsets = new ConcurrentHashMap<>();
+
+    private String clientId;
+
+    private volatile boolean running;
+
+    public InMemoryMQPullConsumer(String consumerGroup, InMemoryBroker broker) {
+        super(consumerGroup);
+        this.broker = broker;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        clientId = buildMQClientId();
+        running = true;
+        broker.register(this);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        broker.unregister(this);
+        assigned.clear();
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public Set<String> getTopics() {
+        return getRegisterTopics();
+    }
+
+    @Override
+    public void assign(String topic, Set<MessageQueue> all, Set<MessageQueue> divided) {
+        assigned.put(topic, divided);
+        MessageQueueListener listener = getMessageQueueListener();
+        if (listener != null) {
+            listener.messageQueueChanged(topic, all, divided);
+        }
+    }
+
+    @Override
+    public void wakeup() {
+        // 新消息由broker直接响应挂起的长轮询请求
+    }
+
+    @Override
+    public Set<MessageQueue> fetchSubscribeMessageQueues(String topic) {
+        return new HashSet<>(broker.getMessageQueues(topic));
+    }
+
+    @Override
+    public Set<MessageQueue> fetchMessageQueuesInBalance(String topic) {
+        return assigned.getOrDefault(topic, Collections.emptySet());
+    }
+
+    @Override
+    public long fetchConsumeOffset(MessageQueue mq, boolean fromStore) {
+        if (getMessageModel() == MessageModel.CLUSTERING) {
+            return broker.fetchOffset(getConsumerGroup(), mq);
+        }
+        return localOffsets.getOrDefault(mq, -1L);
+    }
+
+    @Override
+    public void updateConsumeOffset(MessageQueue mq, long offset) {
+        if (getMessageModel() == MessageModel.CLUSTERING) {
+            broker.commitOffset(getConsumerGroup(), mq, offset);
+        } else {
+            localOffsets.put(mq, offset);
+        }
+    }
+
+    @Override
+    public long minOffset(MessageQueue mq) {
+        return broker.minOffset(mq);
+    }
+
+    @Override
+    public long maxOffset(MessageQueue mq) {
+        return broker.maxOffset(mq);
+    }
+
+    @Override
+    public PullResult pull(MessageQueue mq, String subExpression, long offset, int maxNums) {
+        return broker.pull(mq, subExpression, offset, maxNums);
+    }
+
+    @Override
+    public PullResult pull(MessageQueue mq, String subExpression, long offset, int maxNums, long timeout) {
+        return pull(mq, subExpression, offset, maxNums);
+    }
+
+    @Override
+    public void pull(MessageQueue mq, String subExpression, long offset, int maxNums, PullCallback pullCallback) {
+        broker.pullAsync(mq, subExpression, offset, maxNums, pullCallback, 0);
+    }
+
+    @Override
+    public void pull(MessageQueue mq, String subExpression, long offset, int maxNums, PullCallback pullCallback, long timeout) {
+        pull(mq, subExpression, offset, maxNums, pullCallback);
+    }
+
+    @Override
+    public PullResult pullBlockIfNotFound(MessageQueue mq, String subExpression, long offset, int maxNums) throws MQClientException, InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<Object> outcome = new AtomicReference<>();
+        pullBlockIfNotFound(mq, subExpression, offset, maxNums, new PullCallback() {
+            @Override
+            public void onSuccess(PullResult pullResult) {
+                outcome.set(pullResult);
+                latch.countDown();
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                outcome.set(e);
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (outcome.get() instanceof Throwable) {
+            throw new MQClientException("pull message fail", (Throwable) outcome.get());
+        }
+        return (PullResult) outcome.get();
+    }
+
+    @Override
+    public void pullBlockIfNotFound(MessageQueue mq, String subExpression, long offset, int maxNums, PullCallback pullCallback) {
+        broker.pullAsync(mq, subExpression, offset, maxNums, pullCallback, getBrokerSuspendMaxTimeMillis());
+    }
+
+    @Override
+    public void sendMessageBack(MessageExt msg, int delayLevel) {
+        sendMessageBack(msg, delayLevel, null, getConsumerGroup());
+    }
+
+    @Override
+    public void sendMessageBack(MessageExt msg, int delayLevel, String brokerName) {
+        sendMessageBack(msg, delayLevel, brokerName, getConsumerGroup());
+    }
+
+    @Override
+    public void sendMessageBack(MessageExt msg, int delayLevel, String brokerName, String consumerGroup) {
+        broker.sendBack(msg, consumerGroup, delayLevel, getMaxReconsumeTimes());
+    }
+}
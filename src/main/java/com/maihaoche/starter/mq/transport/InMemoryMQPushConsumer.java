@@ -0,0 +1,462 @@
+package com.maihaoche.starter.mq.transport;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.PullResult;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListener;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 从{@link InMemoryBroker}消费的Push消费者
+ * 一个分发线程轮询分配到的queue，把拉到的消息交给消费线程池；沿用DefaultMQPushConsumer上的线程数、拉取条数、
+ * pullThresholdForQueue、consumeConcurrentlyMaxSpan、consumeMessageBatchMaxSize等参数
+ * CONCURRENTLY模式消费失败的消息按延时级别投递到重试topic；ORDERLY模式在本地挂起queue后重试，queue内严格有序
+ */
+@Slf4j
+public class InMemoryMQPushConsumer extends DefaultMQPushConsumer implements InMemoryBroker.Member {
+
+    /**没有新消息时分发线程最长的等待时间*/
+    private static final long IDLE_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final InMemoryBroker broker;
+
+    /**topic到tag表达式*/
+    private final ConcurrentMap<String, String> subscriptions = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<MessageQueue, QueueState> assigned = new ConcurrentHashMap<>();
+
+    /**广播模式下的消费位点*/
+    private final ConcurrentMap<MessageQueue, Long> localOffsets = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean signalled = new AtomicBoolean();
+
+    private ThreadPoolExecutor consumeExecutor;
+
+    private Thread dispatcher;
+
+    private String clientId;
+
+    private volatile boolean running;
+
+    private volatile boolean paused;
+
+    public InMemoryMQPushConsumer(String consumerGroup, InMemoryBroker broker) {
+        super(consumerGroup);
+        this.broker = broker;
+    }
+
+    @Override
+    public void subscribe(String topic, String subExpression) {
+        subscriptions.put(topic, StringUtils.defaultIfEmpty(subExpression, "*"));
+    }
+
+    @Override
+    public void subscribe(String topic, String fullClassName, String filterClassSource) throws MQClientException {
+        throw new MQClientException("class filter is not supported by in-memory transport", null);
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        subscriptions.remove(topic);
+    }
+
+    @Override
+    public Map<String, String> getSubscription() {
+        return subscriptions;
+    }
+
+    @Override
+    public synchronized void start() throws MQClientException {
+        if (running) {
+            return;
+        }
+        if (getMessageListener() == null) {
+            throw new MQClientException("messageListener is null", null);
+        }
+        if (getMessageModel() == MessageModel.CLUSTERING) {
+            subscriptions.put(MixAll.getRetryTopic(getConsumerGroup()), "*");
+        }
+        clientId = buildMQClientId();
+        final AtomicInteger index = new AtomicInteger();
+        consumeExecutor = new ThreadPoolExecutor(getConsumeThreadMin(), Math.max(getConsumeThreadMin(), getConsumeThreadMax()),
+                60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "ConsumeMessageThread_" + index.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        dispatcher = new Thread(this::dispatchLoop, "InMemoryPushDispatcher-" + getConsumerGroup());
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+        broker.register(this);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        broker.unregister(this);
+        for (QueueState queue : assigned.values()) {
+            queue.dropped = true;
+        }
+        assigned.clear();
+        LockSupport.unpark(dispatcher);
+        consumeExecutor.shutdown();
+    }
+
+    @Override
+    public void suspend() {
+        paused = true;
+    }
+
+    @Override
+    public void resume() {
+        paused = false;
+        wakeup();
+    }
+
+    /**
+     * 已经拉取到本地、尚未消费完成的消息数，ORDERLY模式下正在消费的批次按1条计
+     *
+     * @return 本地消息数
+     */
+    public int getBufferedCount() {
+        int count = 0;
+        for (QueueState queue : assigned.values()) {
+            synchronized (queue) {
+                count += queue.inFlight.size() + (queue.consuming ? 1 : 0);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void updateCorePoolSize(int corePoolSize) {
+        if (corePoolSize > 0 && corePoolSize <= Short.MAX_VALUE && corePoolSize < getConsumeThreadMax() && consumeExecutor != null) {
+            consumeExecutor.setCorePoolSize(corePoolSize);
+        }
+    }
+
+    @Override
+    public String getClientId() {
+        return clientId;
+    }
+
+    @Override
+    public Set<String> getTopics() {
+        return subscriptions.keySet();
+    }
+
+    @Override
+    public void assign(String topic, Set<MessageQueue> all, Set<MessageQueue> divided) {
+        for (QueueState queue : assigned.values()) {
+            if (queue.mq.getTopic().equals(topic) && !divided.contains(queue.mq)) {
+                queue.dropped = true;
+                assigned.remove(queue.mq);
+            }
+        }
+        for (MessageQueue mq : divided) {
+            if (!assigned.containsKey(mq)) {
+                assigned.put(mq, new QueueState(mq, subscriptions.get(topic), startOffset(mq)));
+            }
+        }
+        wakeup();
+    }
+
+    @Override
+    public void wakeup() {
+        signalled.set(true);
+        Thread thread = dispatcher;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private long startOffset(MessageQueue mq) {
+        long offset;
+        if (getMessageModel() == MessageModel.CLUSTERING) {
+            offset = broker.fetchOffset(getConsumerGroup(), mq);
+        } else {
+            offset = localOffsets.getOrDefault(mq, -1L);
+        }
+        return offset < 0 ? broker.minOffset(mq) : offset;
+    }
+
+    private void commit(MessageQueue mq, long offset) {
+        if (getMessageModel() == MessageModel.CLUSTERING) {
+            broker.commitOffset(getConsumerGroup(), mq, offset);
+        } else {
+            localOffsets.put(mq, offset);
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running) {
+            signalled.set(false);
+            boolean progress = false;
+            if (!paused) {
+                for (QueueState queue : assigned.values()) {
+                    try {
+                        progress |= queue.dispatch();
+                    } catch (RejectedExecutionException e) {
+                        log.debug("consumer is shutting down, group : {}", getConsumerGroup());
+                    } catch (Exception e) {
+                        log.error("dispatch message fail, mq : {}, e : {}", queue.mq, e);
+                    }
+                }
+            }
+            if (!progress && !signalled.get()) {
+                LockSupport.parkNanos(this, IDLE_WAIT_NANOS);
+            }
+        }
+    }
+
+    /**
+     * 单个queue的消费状态，pullOffset只由分发线程修改
+     */
+    private final class QueueState {
+
+        private final MessageQueue mq;
+
+        private final String subExpression;
+
+        private final boolean retryTopic;
+
+        private volatile long pullOffset;
+
+        /**CONCURRENTLY模式下已拉取未消费完成的消息，按位点排序，最小位点即可提交的位点*/
+        private final TreeMap<Long, MessageExt> inFlight = new TreeMap<>();
+
+        /**ORDERLY模式下是否有正在消费的批次*/
+        private boolean consuming;
+
+        private volatile boolean dropped;
+
+        private QueueState(MessageQueue mq, String subExpression, long pullOffset) {
+            this.mq = mq;
+            this.subExpression = subExpression;
+            this.retryTopic = mq.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX);
+            this.pullOffset = pullOffset;
+        }
+
+        private boolean dispatch() {
+            if (dropped) {
+                return false;
+            }
+            MessageListener listener = getMessageListener();
+            boolean orderly = listener instanceof MessageListenerOrderly;
+            int batchSize = Math.max(1, getConsumeMessageBatchMaxSize());
+            synchronized (this) {
+                if (orderly) {
+                    if (consuming) {
+                        return false;
+                    }
+                } else if (inFlight.size() >= getPullThresholdForQueue()
+                        || (!inFlight.isEmpty() && inFlight.lastKey() - inFlight.firstKey() > getConsumeConcurrentlyMaxSpan())) {
+                    return false;
+                }
+            }
+            PullResult result = broker.pull(mq, subExpression, pullOffset, orderly ? batchSize : getPullBatchSize());
+            switch (result.getPullStatus()) {
+                case FOUND:
+                    List<MessageExt> messages = result.getMsgFoundList();
+                    if (retryTopic) {
+                        for (MessageExt message : messages) {
+                            String topic = message.getProperty(MessageConst.PROPERTY_RETRY_TOPIC);
+                            if (topic != null) {
+                                message.setTopic(topic);
+                            }
+                        }
+                    }
+                    if (orderly) {
+                        synchronized (this) {
+                            consuming = true;
+                            pullOffset = result.getNextBeginOffset();
+                        }
+                        consumeExecutor.execute(new OrderlyTask(messages, result.getNextBeginOffset()));
+                    } else {
+                        synchronized (this) {
+                            for (MessageExt message : messages) {
+                                inFlight.put(message.getQueueOffset(), message);
+                            }
+                            pullOffset = result.getNextBeginOffset();
+                        }
+                        for (int i = 0; i < messages.size(); i += batchSize) {
+                            consumeExecutor.execute(new ConcurrentlyTask(messages.subList(i, Math.min(i + batchSize, messages.size()))));
+                        }
+                    }
+                    return true;
+                case NO_MATCHED_MSG:
+                case OFFSET_ILLEGAL:
+                    synchronized (this) {
+                        pullOffset = result.getNextBeginOffset();
+                        if (inFlight.isEmpty() && !consuming) {
+                            commit(mq, pullOffset);
+                        }
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private final class ConcurrentlyTask implements Runnable {
+
+            private final List<MessageExt> messages;
+
+            private ConcurrentlyTask(List<MessageExt> messages) {
+                this.messages = messages;
+            }
+
+            @Override
+            public void run() {
+                if (!dropped) {
+                    consume();
+                }
+                synchronized (QueueState.this) {
+                    for (MessageExt message : messages) {
+                        inFlight.remove(message.getQueueOffset());
+                    }
+                    if (!dropped) {
+                        commit(mq, inFlight.isEmpty() ? pullOffset : inFlight.firstKey());
+                    }
+                }
+                wakeup();
+            }
+
+            private void consume() {
+                ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(mq);
+                ConsumeConcurrentlyStatus status = null;
+                try {
+                    status = ((MessageListenerConcurrently) getMessageListener()).consumeMessage(Collections.unmodifiableList(messages), context);
+                } catch (Throwable e) {
+                    log.warn("consume message exception, group : {}, mq : {}, e : {}", getConsumerGroup(), mq, e);
+                }
+                int ackIndex = status == ConsumeConcurrentlyStatus.CONSUME_SUCCESS ? Math.min(context.getAckIndex(), messages.size() - 1) : -1;
+                for (int i = ackIndex + 1; i < messages.size(); i++) {
+                    if (getMessageModel() == MessageModel.CLUSTERING) {
+                        broker.sendBack(messages.get(i), getConsumerGroup(), context.getDelayLevelWhenNextConsume(), getMaxReconsumeTimes());
+                    } else {
+                        log.warn("BROADCASTING, the message consume failed, drop it, {}", messages.get(i));
+                    }
+                }
+            }
+        }
+
+        private final class OrderlyTask implements Runnable {
+
+            private List<MessageExt> messages;
+
+            private final long nextOffset;
+
+            private OrderlyTask(List<MessageExt> messages, long nextOffset) {
+                this.messages = messages;
+                this.nextOffset = nextOffset;
+            }
+
+            @Override
+            public void run() {
+                if (dropped) {
+                    finish(false);
+                    return;
+                }
+                ConsumeOrderlyContext context = new ConsumeOrderlyContext(mq);
+                ConsumeOrderlyStatus status = null;
+                try {
+                    status = ((MessageListenerOrderly) getMessageListener()).consumeMessage(Collections.unmodifiableList(messages), context);
+                } catch (Throwable e) {
+                    log.warn("consume message exception, group : {}, mq : {}, e : {}", getConsumerGroup(), mq, e);
+                }
+                if (status == ConsumeOrderlyStatus.SUCCESS) {
+                    finish(true);
+                    return;
+                }
+                int maxReconsumeTimes = getMaxReconsumeTimes() < 0 ? Integer.MAX_VALUE : getMaxReconsumeTimes();
+                // 存储中的消息对象被所有consumerGroup共享，本地重试时复制后再累加重试次数
+                List<MessageExt> retries = new ArrayList<>(messages.size());
+                boolean exceeded = false;
+                for (MessageExt message : messages) {
+                    MessageExt retry = copy(message);
+                    retry.setReconsumeTimes(message.getReconsumeTimes() + 1);
+                    exceeded |= retry.getReconsumeTimes() >= maxReconsumeTimes;
+                    retries.add(retry);
+                }
+                if (exceeded) {
+                    for (MessageExt message : messages) {
+                        broker.sendBack(message, getConsumerGroup(), -1, maxReconsumeTimes);
+                    }
+                    finish(true);
+                    return;
+                }
+                messages = retries;
+                long suspendMillis = context.getSuspendCurrentQueueTimeMillis() > 0 ? context.getSuspendCurrentQueueTimeMillis() : getSuspendCurrentQueueTimeMillis();
+                try {
+                    broker.getScheduler().schedule(() -> {
+                        try {
+                            consumeExecutor.execute(this);
+                        } catch (RejectedExecutionException e) {
+                            finish(false);
+                        }
+                    }, suspendMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    finish(false);
+                }
+            }
+
+            private void finish(boolean commit) {
+                synchronized (QueueState.this) {
+                    consuming = false;
+                    if (commit && !dropped) {
+                        commit(mq, nextOffset);
+                    }
+                }
+                wakeup();
+            }
+        }
+    }
+
+    private static MessageExt copy(MessageExt message) {
+        MessageExt copy = new MessageExt(message.getQueueId(), message.getBornTimestamp(), message.getBornHost(),
+                message.getStoreTimestamp(), message.getStoreHost(), message.getMsgId());
+        copy.setTopic(message.getTopic());
+        copy.setFlag(message.getFlag());
+        copy.setBody(message.getBody());
+        copy.setQueueOffset(message.getQueueOffset());
+        copy.setCommitLogOffset(message.getCommitLogOffset());
+        copy.setReconsumeTimes(message.getReconsumeTimes());
+        MessageAccessor.setProperties(copy, new HashMap<>(message.getProperties()));
+        return copy;
+    }
+}
@@ -0,0 +1,44 @@
+package com.maihaoche.starter.mq.transport;
+
+import lombok.Getter;
+import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+
+/**
+ * 进程内的传输层，所有客户端共享同一个{@link InMemoryBroker}
+ * 客户端继承自RocketMQ的Default*类，生产者和消费者基类不需要区分传输层
+ */
+public class InMemoryTransport implements MQTransport {
+
+    @Getter
+    private final InMemoryBroker broker;
+
+    public InMemoryTransport() {
+        this(new InMemoryBroker());
+    }
+
+    public InMemoryTransport(InMemoryBroker broker) {
+        this.broker = broker;
+    }
+
+    @Override
+    public DefaultMQProducer createProducer(String producerGroup) {
+        return new InMemoryMQProducer(producerGroup, broker);
+    }
+
+    @Override
+    public DefaultMQPushConsumer createPushConsumer(String consumerGroup) {
+        return new InMemoryMQPushConsumer(consumerGroup, broker);
+    }
+
+    @Override
+    public DefaultMQPullConsumer createPullConsumer(String consumerGroup) {
+        return new InMemoryMQPullConsumer(consumerGroup, broker);
+    }
+
+    @Override
+    public void shutdown() {
+        broker.shutdown();
+    }
+}
@@ -0,0 +1,43 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+
+/**
+ * 创建RocketMQ客户端的传输层，自动配置通过它创建生产者和消费者
+ * 默认连接namesrv，配置rocketmq.transport=memory时使用进程内的{@link InMemoryBroker}，便于单元测试和本地调试
+ * 也可以在容器中声明自己的MQTransport覆盖默认实现
+ */
+public interface MQTransport {
+
+    /**
+     * 创建未启动的生产者
+     *
+     * @param producerGroup 生产者组
+     * @return 生产者
+     */
+    DefaultMQProducer createProducer(String producerGroup);
+
+    /**
+     * 创建未启动的push消费者
+     *
+     * @param consumerGroup 消费者组
+     * @return push消费者
+     */
+    DefaultMQPushConsumer createPushConsumer(String consumerGroup);
+
+    /**
+     * 创建未启动的pull消费者
+     *
+     * @param consumerGroup 消费者组
+     * @return pull消费者
+     */
+    DefaultMQPullConsumer createPullConsumer(String consumerGroup);
+
+    /**
+     * 释放传输层持有的资源，容器关闭时调用
+     */
+    default void shutdown() {
+    }
+}
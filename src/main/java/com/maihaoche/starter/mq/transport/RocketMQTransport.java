@@ -0,0 +1,42 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+
+/**
+ * 连接namesrv的默认传输层
+ */
+public class RocketMQTransport implements MQTransport {
+
+    private final String nameServerAddress;
+
+    public RocketMQTransport(String nameServerAddress) {
+        if (StringUtils.isEmpty(nameServerAddress)) {
+            throw new RuntimeException("name server address must be defined");
+        }
+        this.nameServerAddress = nameServerAddress;
+    }
+
+    @Override
+    public DefaultMQProducer createProducer(String producerGroup) {
+        DefaultMQProducer producer = new DefaultMQProducer(producerGroup);
+        producer.setNamesrvAddr(nameServerAddress);
+        return producer;
+    }
+
+    @Override
+    public DefaultMQPushConsumer createPushConsumer(String consumerGroup) {
+        DefaultMQPushConsumer consumer = new DefaultMQPushConsumer(consumerGroup);
+        consumer.setNamesrvAddr(nameServerAddress);
+        return consumer;
+    }
+
+    @Override
+    public DefaultMQPullConsumer createPullConsumer(String consumerGroup) {
+        DefaultMQPullConsumer consumer = new DefaultMQPullConsumer(consumerGroup);
+        consumer.setNamesrvAddr(nameServerAddress);
+        return consumer;
+    }
+}
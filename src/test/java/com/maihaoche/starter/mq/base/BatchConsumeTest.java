@@ -0,0 +1,175 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.annotation.MQHandler;
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class BatchConsumeTest {
+
+    private final RecordingProducer producer = new RecordingProducer();
+
+    private final DeadLetterForwarder forwarder = new DeadLetterForwarder(producer, 1, 1 << 20, 0, 100, 0, MQMetrics.NOOP);
+
+    private final ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(new MessageQueue("TP_TEST", "broker-a", 0));
+
+    @After
+    public void closeForwarder() {
+        forwarder.close(1000);
+    }
+
+    @Test
+    public void redeliverFromRecordToRetry() {
+        BatchConsumer consumer = consumer(5);
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(list(message("a", 0), message("fail", 0), message("c", 0)), context));
+        assertEquals(0, context.getAckIndex());
+        assertEquals(Arrays.asList("a", "fail"), consumer.processed);
+        assertEquals(Collections.emptyList(), producer.sent);
+    }
+
+    @Test
+    public void continueAfterRecordGivenUp() throws InterruptedException {
+        BatchConsumer consumer = consumer(1);
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(list(message("a", 0), message("fail", 0), message("c", 0)), context));
+        assertEquals(2, context.getAckIndex());
+        assertEquals(Arrays.asList("a", "fail", "c"), consumer.processed);
+        waitForSent(1);
+        assertEquals("fail", producer.sent.get(0).getKeys());
+    }
+
+    @Test
+    public void giveUpOnNoRetryException() throws InterruptedException {
+        BatchConsumer consumer = consumer(5);
+        consumer.setRetryPolicy(RetryPolicy.of(5, "", "", null, classes(IllegalArgumentException.class)));
+        consumer.dealMessage(list(message("a", 0), message("illegal", 0), message("c", 0)), context);
+        assertEquals(2, context.getAckIndex());
+        assertEquals(Arrays.asList("a", "illegal", "c"), consumer.processed);
+        waitForSent(1);
+        assertEquals("illegal", producer.sent.get(0).getKeys());
+    }
+
+    @Test
+    public void retryOnOtherException() {
+        BatchConsumer consumer = consumer(5);
+        consumer.setRetryPolicy(RetryPolicy.of(5, "", "", null, classes(IllegalStateException.class)));
+        consumer.dealMessage(list(message("a", 0), message("illegal", 0), message("c", 0)), context);
+        assertEquals(0, context.getAckIndex());
+        assertEquals(Collections.emptyList(), producer.sent);
+    }
+
+    @Test
+    public void keepExhaustedRecordsThatAreRedelivered() throws InterruptedException {
+        BatchConsumer consumer = consumer(3);
+        // 第一条用完处理次数，第三条也用完处理次数但会随第二条重新投递
+        consumer.dealMessage(list(message("a", 3), message("fail", 0), message("c", 3)), context);
+        assertEquals(0, context.getAckIndex());
+        assertEquals(Collections.singletonList("fail"), consumer.processed);
+        waitForSent(1);
+        Thread.sleep(50);
+        assertEquals(1, producer.sent.size());
+        assertEquals("a", producer.sent.get(0).getKeys());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectHandlerTypeNotAssignableToRecordType() {
+        NumberConsumer consumer = new NumberConsumer();
+        consumer.setHandlerTable(MessageHandlerTable.build(consumer));
+        consumer.checkBatchRecordTypes();
+    }
+
+    private BatchConsumer consumer(int maxAttempts) {
+        BatchConsumer consumer = new BatchConsumer();
+        consumer.setGroup("CG_TEST");
+        consumer.setConsumeMessageBatchMaxSize(32);
+        consumer.setRetryPolicy(RetryPolicy.of(maxAttempts, "", "", null, null));
+        consumer.setDeadLetterTopic("TP_DLQ");
+        consumer.setDeadLetterForwarder(forwarder);
+        return consumer;
+    }
+
+    private void waitForSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, producer.sent.size());
+    }
+
+    @SafeVarargs
+    private static Class<? extends Throwable>[] classes(Class<? extends Throwable>... types) {
+        return types;
+    }
+
+    private static List<MessageExt> list(MessageExt... messages) {
+        return new ArrayList<>(Arrays.asList(messages));
+    }
+
+    private static MessageExt message(String key, int reconsumeTimes) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags("A");
+        message.setKeys(key);
+        message.setMsgId("MSG-" + key);
+        message.setReconsumeTimes(reconsumeTimes);
+        message.setBody(("\"" + key + "\"").getBytes(StandardCharsets.UTF_8));
+        return message;
+    }
+
+    /**
+     * "fail"返回false，"illegal"抛出IllegalArgumentException
+     */
+    private static final class BatchConsumer extends AbstractMQPushConsumer<String> {
+
+        private final List<String> processed = new ArrayList<>();
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            processed.add(message);
+            if ("illegal".equals(message)) {
+                throw new IllegalArgumentException(message);
+            }
+            return !"fail".equals(message);
+        }
+    }
+
+    private static final class NumberConsumer extends AbstractMQPushConsumer<String> {
+
+        @MQHandler(tag = "NUMBER")
+        public boolean onNumber(Integer number) {
+            return true;
+        }
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return true;
+        }
+    }
+
+    private static final class RecordingProducer extends DefaultMQProducer {
+
+        private final List<Message> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            sent.add(msg);
+            sendCallback.onSuccess(new SendResult());
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConsistentHashMessageQueueSelectorTest {
+
+    private static final int KEYS = 10000;
+
+    @Test
+    public void jumpHashOnlyMovesKeysToNewBucket() {
+        Random random = new Random(42);
+        for (int buckets = 1; buckets < 64; buckets++) {
+            int moved = 0;
+            for (int i = 0; i < KEYS; i++) {
+                long key = random.nextLong();
+                int before = ConsistentHashMessageQueueSelector.jumpConsistentHash(key, buckets);
+                int after = ConsistentHashMessageQueueSelector.jumpConsistentHash(key, buckets + 1);
+                assertTrue(before >= 0 && before < buckets);
+                if (before != after) {
+                    assertEquals(buckets, after);
+                    moved++;
+                }
+            }
+            // 期望迁移 1/(n+1) 的key
+            double expected = (double) KEYS / (buckets + 1);
+            assertTrue("moved " + moved + " keys from " + buckets + " buckets", Math.abs(moved - expected) < expected * 0.2 + 50);
+        }
+    }
+
+    @Test
+    public void sameKeySameQueueRegardlessOfRouteOrder() {
+        ConsistentHashMessageQueueSelector selector = new ConsistentHashMessageQueueSelector();
+        List<MessageQueue> route = queues(8, "broker-a", "broker-b");
+        List<MessageQueue> shuffled = new ArrayList<>(route);
+        Collections.shuffle(shuffled, new Random(7));
+        Message message = new Message("TP_TEST", new byte[0]);
+        for (int i = 0; i < 1000; i++) {
+            String key = "order-" + i;
+            assertEquals(selector.select(route, message, key), selector.select(shuffled, message, key));
+        }
+    }
+
+    @Test
+    public void expandQueuesKeepsMostKeys() {
+        ConsistentHashMessageQueueSelector selector = new ConsistentHashMessageQueueSelector();
+        Message message = new Message("TP_TEST", new byte[0]);
+        List<MessageQueue> before = queues(4, "broker-a", "broker-b");
+        List<MessageQueue> after = queues(5, "broker-a", "broker-b");
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            String key = "order-" + i;
+            MessageQueue oldQueue = selector.select(before, message, key);
+            MessageQueue newQueue = selector.select(after, message, key);
+            if (!oldQueue.equals(newQueue)) {
+                // 只会迁移到新增的queue
+                assertEquals(4, newQueue.getQueueId());
+                moved++;
+            }
+        }
+        assertTrue("moved " + moved, moved < KEYS * 0.3);
+    }
+
+    private static List<MessageQueue> queues(int perBroker, String... brokers) {
+        List<MessageQueue> queues = new ArrayList<>();
+        for (String broker : brokers) {
+            for (int i = 0; i < perBroker; i++) {
+                queues.add(new MessageQueue("TP_TEST", broker, i));
+            }
+        }
+        return queues;
+    }
+}
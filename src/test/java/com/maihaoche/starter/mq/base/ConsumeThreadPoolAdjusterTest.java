@@ -0,0 +1,126 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.impl.consumer.ProcessQueue;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConsumeThreadPoolAdjusterTest {
+
+    private static final MessageQueue QUEUE = new MessageQueue("TP_TEST", "broker-a", 0);
+
+    private final RecordingPushConsumer client = new RecordingPushConsumer();
+
+    private final DemoConsumer consumer = new DemoConsumer();
+
+    private final ConsumeThreadPoolAdjuster adjuster;
+
+    private final ProcessQueue processQueue = new ProcessQueue();
+
+    public ConsumeThreadPoolAdjusterTest() {
+        consumer.setConsumer(client);
+        client.getDefaultMQPushConsumerImpl().getRebalanceImpl().getProcessQueueTable().put(QUEUE, processQueue);
+        adjuster = new ConsumeThreadPoolAdjuster(consumer, 4, 10);
+    }
+
+    @Test
+    public void growWhenBacklogIsHigh() {
+        backlog(1000);
+        adjuster.run();
+        adjuster.run();
+        assertEquals(list(5, 6), client.poolSizes);
+    }
+
+    @Test
+    public void neverReachConsumeThreadMax() {
+        backlog(100000);
+        for (int i = 0; i < 10; i++) {
+            adjuster.run();
+        }
+        // updateCorePoolSize只接受小于consumeThreadMax的值
+        assertEquals(9, (int) client.poolSizes.get(client.poolSizes.size() - 1));
+    }
+
+    @Test
+    public void shrinkBackToMinWhenBacklogDrains() {
+        backlog(1000);
+        adjuster.run();
+        backlog(0);
+        adjuster.run();
+        adjuster.run();
+        assertEquals(list(5, 4), client.poolSizes);
+    }
+
+    @Test
+    public void ignoreDroppedQueues() {
+        backlog(1000);
+        processQueue.setDropped(true);
+        adjuster.run();
+        assertEquals(Collections.emptyList(), client.poolSizes);
+    }
+
+    @Test
+    public void shrinkWhenProcessLatencyRises() {
+        backlog(1000);
+        consumer.sleepMs = 1;
+        consume();
+        adjuster.run();
+        // 积压仍然很高，但处理耗时明显上升，说明下游已过载
+        consumer.sleepMs = 20;
+        consume();
+        adjuster.run();
+        assertEquals(list(5, 4), client.poolSizes);
+    }
+
+    private void backlog(long count) {
+        processQueue.getMsgCount().set(count);
+    }
+
+    private void consume() {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setMsgId("MSG-1");
+        message.setBody("\"a\"".getBytes(StandardCharsets.UTF_8));
+        consumer.dealMessage(new ArrayList<>(Collections.singletonList(message)), new ConsumeConcurrentlyContext(QUEUE));
+    }
+
+    private static List<Integer> list(Integer... sizes) {
+        List<Integer> list = new ArrayList<>();
+        Collections.addAll(list, sizes);
+        return list;
+    }
+
+    private static final class DemoConsumer extends AbstractMQPushConsumer<String> {
+
+        private volatile long sleepMs;
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            try {
+                Thread.sleep(sleepMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    private static final class RecordingPushConsumer extends DefaultMQPushConsumer {
+
+        private final List<Integer> poolSizes = new ArrayList<>();
+
+        @Override
+        public void updateCorePoolSize(int corePoolSize) {
+            poolSizes.add(corePoolSize);
+        }
+    }
+}
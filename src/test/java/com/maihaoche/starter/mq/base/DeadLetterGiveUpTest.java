@@ -0,0 +1,173 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.metrics.MQMetrics;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class DeadLetterGiveUpTest {
+
+    private static final MessageQueue QUEUE = new MessageQueue("TP_TEST", "broker-a", 0);
+
+    private final RecordingProducer producer = new RecordingProducer();
+
+    private DeadLetterForwarder forwarder;
+
+    @After
+    public void closeForwarder() {
+        if (forwarder != null) {
+            forwarder.close(1000);
+        }
+    }
+
+    @Test
+    public void concurrentReconsumeWhenForwarderFull() {
+        PushConsumer consumer = pushConsumer(0);
+        ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(QUEUE);
+        // 已经用完处理次数的重试消息
+        assertEquals(ConsumeConcurrentlyStatus.RECONSUME_LATER, consumer.dealMessage(list(message("a", 0, 5)), context));
+        // 处理失败、不再重试的消息
+        assertEquals(ConsumeConcurrentlyStatus.RECONSUME_LATER, consumer.dealMessage(list(message("b", 0, 4)), context));
+        assertEquals(Collections.singletonList("b"), consumer.processed);
+    }
+
+    @Test
+    public void concurrentGiveUpWhenForwarderAccepts() throws InterruptedException {
+        PushConsumer consumer = pushConsumer(10);
+        ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(QUEUE);
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(list(message("a", 0, 5)), context));
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(list(message("b", 0, 4)), context));
+        waitForSent(2);
+        assertEquals("a", producer.sent.get(0).getKeys());
+        assertEquals("TP_DLQ", producer.sent.get(0).getTopic());
+    }
+
+    @Test
+    public void batchAckBeforeMessageForwarderRefused() {
+        PushConsumer consumer = pushConsumer(0);
+        consumer.setConsumeMessageBatchMaxSize(3);
+        ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(QUEUE);
+        List<MessageExt> list = list(message("a", 0, 0), message("b", 1, 5), message("c", 2, 0));
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(list, context));
+        assertEquals(0, context.getAckIndex());
+        assertEquals(Arrays.asList("a", "c"), consumer.processed);
+    }
+
+    @Test
+    public void orderlySuspendWhenForwarderFull() {
+        PushConsumer consumer = pushConsumer(0);
+        ConsumeOrderlyContext context = new ConsumeOrderlyContext(QUEUE);
+        assertEquals(ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT, consumer.dealMessage(list(message("a", 0, 5)), context));
+        assertEquals(ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT, consumer.dealMessage(list(message("b", 0, 4)), context));
+        assertEquals(Collections.singletonList("b"), consumer.processed);
+    }
+
+    @Test
+    public void pullKeepsOffsetOfMessageForwarderRefused() {
+        PullConsumer consumer = new PullConsumer();
+        consumer.setGroup("CG_TEST");
+        consumer.setRetryPolicy(RetryPolicy.of(1, "", "", null, null));
+        consumer.setDeadLetterTopic("TP_DLQ");
+        consumer.setDeadLetterForwarder(forwarder(0));
+        try {
+            consumer.dealMessage(list(message("a", 7, 0), message("b", 8, 0), message("c", 9, 0)));
+            fail();
+        } catch (AbstractMQPullConsumer.DeadLetterDeferredException e) {
+            assertEquals(8, e.getQueueOffset());
+        }
+        assertEquals(Arrays.asList("a", "b"), consumer.processed);
+    }
+
+    private PushConsumer pushConsumer(int capacity) {
+        PushConsumer consumer = new PushConsumer();
+        consumer.setGroup("CG_TEST");
+        consumer.setRetryPolicy(RetryPolicy.of(5, "", "", null, null));
+        consumer.setDeadLetterTopic("TP_DLQ");
+        consumer.setDeadLetterForwarder(forwarder(capacity));
+        return consumer;
+    }
+
+    private DeadLetterForwarder forwarder(int capacity) {
+        forwarder = new DeadLetterForwarder(producer, 1, 1 << 20, 0, capacity, 0, MQMetrics.NOOP);
+        return forwarder;
+    }
+
+    private void waitForSent(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (producer.sent.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, producer.sent.size());
+    }
+
+    private static List<MessageExt> list(MessageExt... messages) {
+        return new ArrayList<>(Arrays.asList(messages));
+    }
+
+    /**
+     * key为"b"的消息处理失败
+     */
+    private static MessageExt message(String key, long queueOffset, int reconsumeTimes) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags("A");
+        message.setKeys(key);
+        message.setMsgId("MSG-" + key);
+        message.setQueueOffset(queueOffset);
+        message.setReconsumeTimes(reconsumeTimes);
+        message.setBody(("\"" + key + "\"").getBytes(StandardCharsets.UTF_8));
+        return message;
+    }
+
+    private static final class PushConsumer extends AbstractMQPushConsumer<String> {
+
+        private final List<String> processed = new ArrayList<>();
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            processed.add(message);
+            return !"b".equals(message);
+        }
+    }
+
+    private static final class PullConsumer extends AbstractMQPullConsumer<String> {
+
+        private final List<String> processed = new ArrayList<>();
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            processed.add(message);
+            return !"b".equals(message);
+        }
+    }
+
+    private static final class RecordingProducer extends DefaultMQProducer {
+
+        private final List<Message> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            sent.add(msg);
+            sendCallback.onSuccess(new SendResult());
+        }
+    }
+}
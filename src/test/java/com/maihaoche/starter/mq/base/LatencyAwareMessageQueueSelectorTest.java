@@ -0,0 +1,82 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.remoting.exception.RemotingConnectException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyAwareMessageQueueSelectorTest {
+
+    private final Message message = new Message("TP_TEST", new byte[0]);
+
+    @Test
+    public void retrySkipsFailedBroker() {
+        LatencyAwareMessageQueueSelector selector = new LatencyAwareMessageQueueSelector();
+        List<MessageQueue> queues = queues("broker-a", "broker-b");
+        LatencyAwareMessageQueueSelector.Selection selection = selector.newSelection();
+        MessageQueue first = selector.select(queues, message, selection);
+        selector.complete(selection, 1000, false);
+        for (int i = 0; i < 10; i++) {
+            assertNotEquals(first.getBrokerName(), selector.select(queues, message, selection).getBrokerName());
+        }
+    }
+
+    @Test
+    public void preferFasterBroker() {
+        LatencyAwareMessageQueueSelector selector = new LatencyAwareMessageQueueSelector();
+        List<MessageQueue> queues = queues("broker-a", "broker-b");
+        for (int i = 0; i < 5; i++) {
+            for (MessageQueue queue : queues) {
+                LatencyAwareMessageQueueSelector.Selection selection = selector.newSelection();
+                selector.select(Collections.singletonList(queue), message, selection);
+                selector.complete(selection, "broker-a".equals(queue.getBrokerName()) ? 100_000_000 : 1_000_000, true);
+            }
+        }
+        assertTrue(selector.getLatencyNanos("broker-b") < selector.getLatencyNanos("broker-a"));
+        int fast = 0;
+        for (int i = 0; i < 100; i++) {
+            if ("broker-b".equals(selector.select(queues, message, selector.newSelection()).getBrokerName())) {
+                fast++;
+            }
+        }
+        assertTrue("broker-b selected " + fast + " times", fast > 50);
+    }
+
+    @Test
+    public void classifyRetriableFailures() {
+        assertTrue(LatencyAwareMessageQueueSelector.isRetriable(new RemotingConnectException("127.0.0.1:10911")));
+        assertTrue(LatencyAwareMessageQueueSelector.isRetriable(new MQBrokerException(ResponseCode.SYSTEM_ERROR, "busy")));
+        assertFalse(LatencyAwareMessageQueueSelector.isRetriable(new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "too large")));
+        assertFalse(LatencyAwareMessageQueueSelector.isRetriable(new MQBrokerException(ResponseCode.MESSAGE_ILLEGAL, "too large")));
+        assertFalse(LatencyAwareMessageQueueSelector.isRetriable(new IllegalArgumentException()));
+    }
+
+    private static List<MessageQueue> queues(String... brokers) {
+        List<MessageQueue> queues = new ArrayList<>();
+        for (String broker : brokers) {
+            for (int i = 0; i < 4; i++) {
+                queues.add(new MessageQueue("TP_TEST", broker, i));
+            }
+        }
+        return queues;
+    }
+
+    @Test
+    public void unknownArgFallsBackToAllQueues() {
+        LatencyAwareMessageQueueSelector selector = new LatencyAwareMessageQueueSelector();
+        List<MessageQueue> queues = queues("broker-a");
+        assertEquals("broker-a", selector.select(queues, message, null).getBrokerName());
+    }
+}
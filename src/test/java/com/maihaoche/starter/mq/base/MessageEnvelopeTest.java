@@ -0,0 +1,114 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.dedup.DedupKeyExtractor;
+import com.maihaoche.starter.mq.dedup.HeapDedupCache;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageEnvelopeTest {
+
+    @Test
+    public void packAndUnpackRoundTrip() {
+        List<Message> messages = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Message message = new Message("TP_TEST", "A", "key-" + i, ("body-" + i).getBytes(StandardCharsets.UTF_8));
+            message.putUserProperty("seq", String.valueOf(i));
+            messages.add(message);
+        }
+        messages.add(new Message("TP_TEST", "A", new byte[0]));
+
+        Message envelope = MessageEnvelope.pack("TP_TEST", "A", messages);
+        assertTrue(MessageEnvelope.isEnvelope(envelope));
+        assertEquals("A", envelope.getTags());
+        assertEquals("4", envelope.getUserProperty(MessageEnvelope.BATCH_PROPERTY));
+        assertTrue(envelope.getKeys().contains("key-0") && envelope.getKeys().contains("key-2"));
+
+        List<MessageExt> unpacked = MessageEnvelope.unpack(received(envelope));
+        assertEquals(4, unpacked.size());
+        for (int i = 0; i < 3; i++) {
+            MessageExt message = unpacked.get(i);
+            assertEquals("body-" + i, new String(message.getBody(), StandardCharsets.UTF_8));
+            assertEquals("key-" + i, message.getKeys());
+            assertEquals(String.valueOf(i), message.getUserProperty("seq"));
+            assertEquals("A", message.getTags());
+            assertEquals("ENVELOPE-" + i, message.getMsgId());
+            assertEquals(2, message.getReconsumeTimes());
+            assertEquals(100, message.getQueueOffset());
+            // broker追加在信封上的属性对每条消息都有效
+            assertEquals("1", message.getProperty("RETRY_TOPIC"));
+            assertFalse(MessageEnvelope.isEnvelope(message));
+        }
+        assertEquals(0, unpacked.get(3).getBody().length);
+        assertNull(unpacked.get(3).getKeys());
+    }
+
+    @Test
+    public void estimateCoversPackedSize() {
+        Message message = new Message("TP_TEST", "A", "key", new byte[100]);
+        message.putUserProperty("seq", "1");
+        Message envelope = MessageEnvelope.pack("TP_TEST", "A", Arrays.asList(message, message));
+        assertTrue(envelope.getBody().length <= 4 + MessageEnvelope.estimateSize(message) * 2);
+    }
+
+    @Test
+    public void skipSucceededMessagesWhenEnvelopeRedelivered() {
+        List<Message> messages = new ArrayList<>();
+        for (String body : Arrays.asList("a", "fail", "c")) {
+            messages.add(new Message("TP_TEST", "A", body, ("\"" + body + "\"").getBytes(StandardCharsets.UTF_8)));
+        }
+        Message envelope = MessageEnvelope.pack("TP_TEST", "A", messages);
+        RecordingConsumer consumer = new RecordingConsumer();
+        consumer.setDedupCache(new HeapDedupCache(100, 60000));
+        consumer.setDedupKeyExtractor(DedupKeyExtractor.MSG_ID);
+        ConsumeConcurrentlyContext context = new ConsumeConcurrentlyContext(new MessageQueue("TP_TEST", "broker-a", 0));
+
+        assertEquals(ConsumeConcurrentlyStatus.RECONSUME_LATER, consumer.dealMessage(new ArrayList<>(Arrays.asList(received(envelope))), context));
+        assertEquals(Arrays.asList("a", "fail"), consumer.processed);
+        consumer.processed.clear();
+        consumer.failing = false;
+        // 重新投递的信封msgId不变，已经成功的第一条消息被跳过
+        assertEquals(ConsumeConcurrentlyStatus.CONSUME_SUCCESS, consumer.dealMessage(new ArrayList<>(Arrays.asList(received(envelope))), context));
+        assertEquals(Arrays.asList("fail", "c"), consumer.processed);
+    }
+
+    private static final class RecordingConsumer extends AbstractMQPushConsumer<String> {
+
+        private final List<String> processed = new ArrayList<>();
+
+        private boolean failing = true;
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            processed.add(message);
+            return !(failing && "fail".equals(message));
+        }
+    }
+
+    private static MessageExt received(Message envelope) {
+        MessageExt received = new MessageExt();
+        received.setTopic(envelope.getTopic());
+        received.setBody(envelope.getBody());
+        received.setMsgId("ENVELOPE");
+        received.setReconsumeTimes(2);
+        received.setQueueOffset(100);
+        MessageAccessor.setProperties(received, new HashMap<>(envelope.getProperties()));
+        MessageAccessor.putProperty(received, "RETRY_TOPIC", "1");
+        return received;
+    }
+}
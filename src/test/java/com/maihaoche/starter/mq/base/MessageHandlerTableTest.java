@@ -0,0 +1,209 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+import com.maihaoche.starter.mq.annotation.MQHandler;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageHandlerTableTest {
+
+    @Test
+    public void dispatchByTagWithHandlerMessageType() {
+        DemoConsumer consumer = consumer();
+        assertTrue(consume(consumer, "NUMBER", "42"));
+        assertTrue(consume(consumer, "ORDER", "{\"id\":7}"));
+        assertEquals(Arrays.asList("number:42", "order:K-ORDER:ORDER:7"), consumer.handled);
+    }
+
+    @Test
+    public void fallBackToProcessWithoutHandler() {
+        DemoConsumer consumer = consumer();
+        assertTrue(consume(consumer, "OTHER", "\"text\""));
+        assertTrue(consume(consumer, null, "\"text\""));
+        assertEquals(Arrays.asList("process:OTHER:text", "process:null:text"), consumer.handled);
+    }
+
+    @Test
+    public void voidHandlerSucceedsAndNullBooleanFails() {
+        DemoConsumer consumer = consumer();
+        assertTrue(consume(consumer, "VOID", "\"v\""));
+        assertFalse(consume(consumer, "NULLABLE", "\"n\""));
+        assertEquals(Arrays.asList("void:v", "nullable:n"), consumer.handled);
+    }
+
+    @Test
+    public void propagateRuntimeExceptionFromHandler() {
+        DemoConsumer consumer = consumer();
+        try {
+            consume(consumer, "RUNTIME", "\"r\"");
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("r", e.getMessage());
+        }
+    }
+
+    @Test
+    public void wrapCheckedExceptionFromHandler() {
+        DemoConsumer consumer = consumer();
+        try {
+            consume(consumer, "CHECKED", "\"c\"");
+            fail();
+        } catch (MQException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void collectHandlerTags() {
+        assertEquals(new LinkedHashSet<>(Arrays.asList("NUMBER", "ORDER", "VOID", "NULLABLE", "RUNTIME", "CHECKED")),
+                MessageHandlerTable.build(new DemoConsumer()).getTags());
+    }
+
+    @Test
+    public void emptyWithoutHandlers() {
+        assertSame(MessageHandlerTable.EMPTY, MessageHandlerTable.build(new PlainConsumer()));
+        assertNull(MessageHandlerTable.EMPTY.get("A"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectWildcardTag() {
+        MessageHandlerTable.build(new WildcardConsumer());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectTagHandledTwice() {
+        MessageHandlerTable.build(new DuplicateConsumer());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectUnsupportedParameters() {
+        MessageHandlerTable.build(new BadParametersConsumer());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectUnsupportedReturnType() {
+        MessageHandlerTable.build(new BadReturnConsumer());
+    }
+
+    private static DemoConsumer consumer() {
+        DemoConsumer consumer = new DemoConsumer();
+        consumer.setHandlerTable(MessageHandlerTable.build(consumer));
+        return consumer;
+    }
+
+    private static <T> boolean consume(AbstractMQPushConsumer<T> consumer, String tag, String body) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags(tag);
+        message.setKeys("K-" + tag);
+        message.setBody(body.getBytes(StandardCharsets.UTF_8));
+        return consumer.handle(message.getKeys(), message.getTags(), consumer.parseMessage(message));
+    }
+
+    static class Order {
+        long id;
+    }
+
+    static class DemoConsumer extends AbstractMQPushConsumer<String> {
+
+        final List<String> handled = new ArrayList<>();
+
+        @MQHandler(tag = "NUMBER")
+        public boolean onNumber(Integer number) {
+            handled.add("number:" + number);
+            return true;
+        }
+
+        @MQHandler(tag = "ORDER")
+        public boolean onOrder(String messageKey, String tag, Order order) {
+            handled.add("order:" + messageKey + ":" + tag + ":" + order.id);
+            return true;
+        }
+
+        @MQHandler(tag = "VOID")
+        public void onVoid(String message) {
+            handled.add("void:" + message);
+        }
+
+        @MQHandler(tag = "NULLABLE")
+        public Boolean onNullable(String message) {
+            handled.add("nullable:" + message);
+            return null;
+        }
+
+        @MQHandler(tag = "RUNTIME")
+        public boolean onRuntime(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        @MQHandler(tag = "CHECKED")
+        public boolean onChecked(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            handled.add("process:" + tag + ":" + message);
+            return true;
+        }
+    }
+
+    static class PlainConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return true;
+        }
+    }
+
+    static class WildcardConsumer extends PlainConsumer {
+
+        @MQHandler(tag = "*")
+        public boolean onAll(String message) {
+            return true;
+        }
+    }
+
+    static class DuplicateConsumer extends PlainConsumer {
+
+        @MQHandler(tag = "A")
+        public boolean onA(String message) {
+            return true;
+        }
+
+        @MQHandler(tag = {"B", "A"})
+        public boolean onAOrB(String message) {
+            return true;
+        }
+    }
+
+    static class BadParametersConsumer extends PlainConsumer {
+
+        @MQHandler(tag = "A")
+        public boolean onA(String tag, String message) {
+            return true;
+        }
+    }
+
+    static class BadReturnConsumer extends PlainConsumer {
+
+        @MQHandler(tag = "A")
+        public String onA(String message) {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.annotation.MQKey;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MessageKeyResolverTest {
+
+    @Test
+    public void resolveKeyWithPrefix() throws Throwable {
+        assertEquals("order_42", MessageKeyResolver.forClass(Order.class).resolveKey(new Order(42L)));
+    }
+
+    @Test
+    public void resolveKeyDeclaredInSuperclass() throws Throwable {
+        assertEquals("order_7", MessageKeyResolver.forClass(PaidOrder.class).resolveKey(new PaidOrder(7L)));
+    }
+
+    @Test
+    public void subclassKeyOverridesSuperclassKey() throws Throwable {
+        RefundOrder order = new RefundOrder(7L);
+        order.refundNo = "R1";
+        assertEquals("R1", MessageKeyResolver.forClass(RefundOrder.class).resolveKey(order));
+    }
+
+    @Test
+    public void emptyKeyWhenValueIsNull() throws Throwable {
+        assertEquals("", MessageKeyResolver.forClass(Order.class).resolveKey(new Order(null)));
+    }
+
+    @Test
+    public void emptyKeyWithoutAnnotatedField() throws Throwable {
+        assertEquals("", MessageKeyResolver.forClass(String.class).resolveKey("demo"));
+    }
+
+    @Test
+    public void resolveOncePerClass() {
+        assertSame(MessageKeyResolver.forClass(Order.class), MessageKeyResolver.forClass(Order.class));
+    }
+
+    static class Order {
+
+        @MQKey(prefix = "order_")
+        private final Long id;
+
+        Order(Long id) {
+            this.id = id;
+        }
+    }
+
+    static class PaidOrder extends Order {
+
+        PaidOrder(Long id) {
+            super(id);
+        }
+    }
+
+    static class RefundOrder extends Order {
+
+        @MQKey
+        private String refundNo;
+
+        RefundOrder(Long id) {
+            super(id);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.maihaoche.starter.mq.base;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogPolicyTest {
+
+    @Test
+    public void logEveryLineByDefault() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(MessageLogPolicy.ALL.shouldLog("TP_TEST"));
+        }
+        Object payload = new Object();
+        assertSame(payload, MessageLogPolicy.ALL.payload(payload));
+    }
+
+    @Test
+    public void overrideSampleRatioPerTopic() {
+        MessageLogPolicy policy = new MessageLogPolicy(1.0, Collections.singletonMap("TP_QUIET", 0.0), 0, 0);
+        assertFalse(policy.shouldLog("TP_QUIET"));
+        assertTrue(policy.shouldLog("TP_TEST"));
+        assertTrue(policy.shouldLog(null));
+    }
+
+    @Test
+    public void sampleRoughlyByRatio() {
+        MessageLogPolicy policy = new MessageLogPolicy(0.5, Collections.emptyMap(), 0, 0);
+        int logged = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (policy.shouldLog("TP_TEST")) {
+                logged++;
+            }
+        }
+        assertTrue(String.valueOf(logged), logged > 4000 && logged < 6000);
+    }
+
+    @Test
+    public void limitLinesPerSecond() throws InterruptedException {
+        MessageLogPolicy policy = new MessageLogPolicy(1.0, Collections.emptyMap(), 3, 0);
+        // 从一秒的开头开始，避免跨越限流窗口
+        while (System.currentTimeMillis() % 1000 > 500) {
+            Thread.sleep(10);
+        }
+        int logged = 0;
+        for (int i = 0; i < 100; i++) {
+            if (policy.shouldLog("TP_TEST")) {
+                logged++;
+            }
+        }
+        assertEquals(3, logged);
+        Thread.sleep(1000);
+        assertTrue(policy.shouldLog("TP_TEST"));
+    }
+
+    @Test
+    public void truncatePayloadLazily() {
+        final AtomicInteger formatted = new AtomicInteger();
+        Object payload = new Object() {
+            @Override
+            public String toString() {
+                formatted.incrementAndGet();
+                return "0123456789";
+            }
+        };
+        Object wrapped = new MessageLogPolicy(1.0, Collections.emptyMap(), 0, 4).payload(payload);
+        assertEquals(0, formatted.get());
+        assertEquals("0123...(10 chars)", wrapped.toString());
+        assertEquals("0123456789", new MessageLogPolicy(1.0, Collections.emptyMap(), 0, 10).payload(payload).toString());
+    }
+}
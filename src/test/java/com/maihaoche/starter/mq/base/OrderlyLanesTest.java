@@ -0,0 +1,167 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OrderlyLanesTest {
+
+    private static final MessageQueue QUEUE = new MessageQueue("TP_TEST", "broker-a", 0);
+
+    private final OrderlyLanes lanes = new OrderlyLanes("TEST", 4, 4);
+
+    @After
+    public void shutdown() {
+        lanes.shutdown();
+    }
+
+    @Test
+    public void keepOrderPerKey() {
+        List<MessageExt> messages = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            messages.add(message("M" + i, "K" + (i % 8), null));
+        }
+        Map<String, List<String>> processed = new ConcurrentHashMap<>();
+        assertTrue(lanes.consume(QUEUE, messages, messageExt -> {
+            processed.computeIfAbsent(messageExt.getKeys(), key -> new CopyOnWriteArrayList<>()).add(messageExt.getMsgId());
+            return true;
+        }));
+        for (int k = 0; k < 8; k++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = k; i < 40; i += 8) {
+                expected.add("M" + i);
+            }
+            assertEquals(expected, processed.get("K" + k));
+        }
+    }
+
+    @Test
+    public void preferHashKeyOverMessageKey() {
+        String[] keys = keysInDistinctLanes(2);
+        assertEquals(lanes.laneOf(message("M0", keys[1], null)), lanes.laneOf(message("M1", keys[0], keys[1])));
+        assertEquals(0, lanes.laneOf(message("M2", null, null)));
+    }
+
+    @Test
+    public void spreadKeysOfSameQueue() {
+        // 按hashCode取模选择queue时同一个queue中的key，hashCode对queue数同余
+        Set<Integer> used = new HashSet<>();
+        for (int i = 0; used.size() < 4 && i < 1000; i++) {
+            String key = "order-" + i;
+            if (Math.floorMod(key.hashCode(), 4) == 0) {
+                used.add(lanes.laneOf(message("M" + i, key, null)));
+            }
+        }
+        assertEquals(4, used.size());
+    }
+
+    @Test
+    public void runLanesInParallel() {
+        String[] keys = keysInDistinctLanes(2);
+        // 两个lane都开始处理后才能完成，串行处理时第一个lane会等待超时
+        CountDownLatch barrier = new CountDownLatch(2);
+        assertTrue(lanes.consume(QUEUE, Arrays.asList(message("M0", keys[0], null), message("M1", keys[1], null)), messageExt -> {
+            barrier.countDown();
+            try {
+                return barrier.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }));
+    }
+
+    @Test
+    public void stopLaneAtFailureAndSkipSucceededOnRedelivery() {
+        String[] keys = keysInDistinctLanes(2);
+        List<MessageExt> messages = Arrays.asList(message("A1", keys[0], null), message("B1", keys[1], null),
+                message("A2", keys[0], null), message("B2", keys[1], null), message("A3", keys[0], null));
+        List<String> processed = new CopyOnWriteArrayList<>();
+        Set<String> failing = ConcurrentHashMap.newKeySet();
+        failing.add("A2");
+        assertFalse(lanes.consume(QUEUE, messages, messageExt -> {
+            processed.add(messageExt.getMsgId());
+            return !failing.contains(messageExt.getMsgId());
+        }));
+        // 失败的lane停止处理后面的消息，其它lane照常处理完成
+        assertEquals(new HashSet<>(Arrays.asList("A1", "A2", "B1", "B2")), new HashSet<>(processed));
+
+        processed.clear();
+        failing.clear();
+        assertTrue(lanes.consume(QUEUE, messages, messageExt -> {
+            processed.add(messageExt.getMsgId());
+            return true;
+        }));
+        assertEquals(Arrays.asList("A2", "A3"), processed);
+
+        // 成功后不再记录，同一批消息再次投递时全部重新处理
+        processed.clear();
+        assertTrue(lanes.consume(QUEUE, messages, messageExt -> {
+            processed.add(messageExt.getMsgId());
+            return true;
+        }));
+        assertEquals(5, processed.size());
+    }
+
+    @Test
+    public void failWhenLaneThrows() {
+        String[] keys = keysInDistinctLanes(2);
+        List<MessageExt> messages = Arrays.asList(message("A1", keys[0], null), message("B1", keys[1], null));
+        // 第一个lane由消费线程处理，第二个lane在lane线程上抛出异常
+        assertFalse(lanes.consume(QUEUE, messages, messageExt -> {
+            if ("B1".equals(messageExt.getMsgId())) {
+                throw new IllegalStateException("lane fail");
+            }
+            return true;
+        }));
+        List<String> processed = new CopyOnWriteArrayList<>();
+        assertTrue(lanes.consume(QUEUE, messages, messageExt -> {
+            processed.add(messageExt.getMsgId());
+            return true;
+        }));
+        assertEquals(Collections.singletonList("B1"), processed);
+    }
+
+    /**
+     * 按lane下标升序排列、分属不同lane的key
+     */
+    private String[] keysInDistinctLanes(int count) {
+        Map<Integer, String> byLane = new TreeMap<>();
+        for (int i = 0; byLane.size() < count; i++) {
+            String key = "K" + i;
+            byLane.putIfAbsent(lanes.laneOf(message("M", key, null)), key);
+        }
+        return byLane.values().toArray(new String[0]);
+    }
+
+    private static MessageExt message(String msgId, String key, String hashKey) {
+        MessageExt message = new MessageExt();
+        message.setTopic(QUEUE.getTopic());
+        message.setMsgId(msgId);
+        if (key != null) {
+            message.setKeys(key);
+        }
+        if (hashKey != null) {
+            message.putUserProperty(OrderlyLanes.HASH_KEY_PROPERTY, hashKey);
+        }
+        return message;
+    }
+}
@@ -0,0 +1,126 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.codec.MessageCodec;
+import com.maihaoche.starter.mq.codec.MessageCodecs;
+import com.maihaoche.starter.mq.compress.CompressionPolicy;
+import com.maihaoche.starter.mq.compress.DeflateCompressor;
+import com.maihaoche.starter.mq.compress.MessageCompressors;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ParseMessageTest {
+
+    private final DemoConsumer consumer = new DemoConsumer();
+
+    @Test
+    public void decodeWithCodecRecordedOnMessage() {
+        MessageCodec smile = MessageCodecs.get("smile");
+        MessageExt message = message(smile.encode(new Demo("a", 1)));
+        message.putUserProperty(MessageCodecs.CODEC_PROPERTY, smile.getId());
+        assertEquals("a", consumer.parseMessage(message).name);
+    }
+
+    @Test
+    public void decodeWithConsumerCodecWithoutProperty() {
+        consumer.setCodec(MessageCodecs.get("jackson"));
+        Demo demo = consumer.parseMessage(message("{\"name\":\"a\",\"count\":2}".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, demo.count);
+    }
+
+    @Test
+    public void nullWhenCodecUnknown() {
+        MessageExt message = message("{}".getBytes(StandardCharsets.UTF_8));
+        message.putUserProperty(MessageCodecs.CODEC_PROPERTY, "unknown");
+        assertNull(consumer.parseMessage(message));
+    }
+
+    @Test
+    public void nullWhenBodyMalformed() {
+        assertNull(consumer.parseMessage(message("{\"name\":".getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void decodeCompressedMessageFromProducer() {
+        RecordingProducer client = new RecordingProducer();
+        AbstractMQProducer producer = new AbstractMQProducer() {
+        };
+        producer.setProducer(client);
+        producer.setCompressionPolicy(new CompressionPolicy(MessageCompressors.get(DeflateCompressor.ID), 64, Collections.emptyMap()));
+        Demo large = new Demo(StringUtils.repeat("a", 1024), 1);
+        producer.synSend("TP_TEST", "A", large);
+        assertEquals(DeflateCompressor.ID, client.last.getUserProperty(MessageCompressors.COMPRESSION_PROPERTY));
+        assertEquals(large.name, consumer.parseMessage(delivered(client.last)).name);
+        // 小于阈值的消息不压缩
+        producer.synSend("TP_TEST", "A", new Demo("a", 1));
+        assertNull(client.last.getUserProperty(MessageCompressors.COMPRESSION_PROPERTY));
+        assertEquals("a", consumer.parseMessage(delivered(client.last)).name);
+    }
+
+    @Test
+    public void nullWhenCompressedBodyCorrupt() {
+        MessageExt message = message(new byte[]{1, 2, 3});
+        message.putUserProperty(MessageCompressors.COMPRESSION_PROPERTY, DeflateCompressor.ID);
+        assertNull(consumer.parseMessage(message));
+    }
+
+    private static MessageExt delivered(Message sent) {
+        MessageExt message = message(sent.getBody());
+        MessageAccessor.setProperties(message, new HashMap<>(sent.getProperties()));
+        return message;
+    }
+
+    private static MessageExt message(byte[] body) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags("A");
+        message.setMsgId("MSG-1");
+        message.setBody(body);
+        return message;
+    }
+
+    public static class Demo {
+
+        public String name;
+
+        public int count;
+
+        public Demo() {
+        }
+
+        Demo(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    private static final class RecordingProducer extends DefaultMQProducer {
+
+        private volatile Message last;
+
+        @Override
+        public SendResult send(Message msg) {
+            last = msg;
+            return new SendResult();
+        }
+    }
+
+    private static final class DemoConsumer extends AbstractMQPushConsumer<Demo> {
+
+        @Override
+        public boolean process(String messageKey, String tag, Demo message) {
+            return true;
+        }
+    }
+}
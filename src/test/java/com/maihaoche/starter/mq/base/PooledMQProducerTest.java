@@ -0,0 +1,238 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledMQProducerTest {
+
+    @Test
+    public void sameTopicUsesSameMember() throws Exception {
+        List<FakeProducer> members = members(3);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 3, 30000);
+        for (int i = 0; i < 5; i++) {
+            pool.send(new Message("TP_TEST", "demo".getBytes()));
+        }
+        assertEquals(1, usedMembers(members).size());
+    }
+
+    @Test
+    public void roundRobinOverMembers() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.ROUND_ROBIN, 3, 30000);
+        for (int i = 0; i < 4; i++) {
+            pool.send(new Message("TP_TEST", "demo".getBytes()));
+        }
+        assertEquals(2, members.get(0).sent);
+        assertEquals(2, members.get(1).sent);
+    }
+
+    @Test
+    public void skipMemberAfterConsecutiveFailuresUntilCooldown() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 2, 200);
+        FakeProducer preferred = preferred(pool, members, "TP_TEST");
+        FakeProducer other = members.get(0) == preferred ? members.get(1) : members.get(0);
+        int preferredIndex = members.indexOf(preferred);
+
+        preferred.failure = new MQClientException("broker unavailable", null);
+        sendAndExpectFailure(pool);
+        assertTrue(pool.isHealthy(preferredIndex));
+        sendAndExpectFailure(pool);
+        assertFalse(pool.isHealthy(preferredIndex));
+
+        // 冷却期内路由到另一个实例
+        pool.send(new Message("TP_TEST", "demo".getBytes()));
+        assertEquals(1, other.sent);
+
+        preferred.failure = null;
+        Thread.sleep(250);
+        assertTrue(pool.isHealthy(preferredIndex));
+        int sent = preferred.sent;
+        pool.send(new Message("TP_TEST", "demo".getBytes()));
+        assertEquals(sent + 1, preferred.sent);
+    }
+
+    @Test
+    public void successResetsConsecutiveFailures() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 2, 30000);
+        FakeProducer preferred = preferred(pool, members, "TP_TEST");
+        int preferredIndex = members.indexOf(preferred);
+
+        preferred.failure = new MQClientException("broker unavailable", null);
+        sendAndExpectFailure(pool);
+        preferred.failure = null;
+        pool.send(new Message("TP_TEST", "demo".getBytes()));
+        preferred.failure = new MQClientException("broker unavailable", null);
+        sendAndExpectFailure(pool);
+        assertTrue(pool.isHealthy(preferredIndex));
+    }
+
+    @Test
+    public void illegalMessageDoesNotMarkMemberUnhealthy() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 1, 30000);
+        FakeProducer preferred = preferred(pool, members, "TP_TEST");
+
+        preferred.failure = new MQClientException(ResponseCode.MESSAGE_ILLEGAL, "message body too large");
+        sendAndExpectFailure(pool);
+        sendAndExpectFailure(pool);
+        assertTrue(pool.isHealthy(members.indexOf(preferred)));
+    }
+
+    @Test
+    public void asyncFailureMarksMemberUnhealthy() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 1, 30000);
+        FakeProducer preferred = preferred(pool, members, "TP_TEST");
+
+        preferred.failure = new MQClientException("broker unavailable", null);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        pool.send(new Message("TP_TEST", "demo".getBytes()), new SendCallback() {
+            @Override
+            public void onSuccess(SendResult sendResult) {
+            }
+
+            @Override
+            public void onException(Throwable e) {
+                error.set(e);
+            }
+        });
+        assertSame(preferred.failure, error.get());
+        assertFalse(pool.isHealthy(members.indexOf(preferred)));
+    }
+
+    @Test
+    public void keepPreferredMemberWhenAllUnhealthy() throws Exception {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 1, 30000);
+        for (FakeProducer member : members) {
+            member.failure = new MQClientException("broker unavailable", null);
+        }
+        sendAndExpectFailure(pool);
+        sendAndExpectFailure(pool);
+        assertFalse(pool.isHealthy(0));
+        assertFalse(pool.isHealthy(1));
+        // 所有实例都不健康时仍然尝试发送而不是直接拒绝
+        sendAndExpectFailure(pool);
+        assertEquals(3, members.get(0).attempts + members.get(1).attempts);
+    }
+
+    @Test
+    public void propagateSettingsToMembers() {
+        List<FakeProducer> members = members(2);
+        PooledMQProducer pool = pool(members, PooledMQProducer.Strategy.TOPIC, 3, 30000);
+        pool.setSendMsgTimeout(1234);
+        pool.setProducerGroup("PG_OTHER");
+        for (FakeProducer member : members) {
+            assertEquals(1234, member.getSendMsgTimeout());
+            assertEquals("PG_OTHER", member.getProducerGroup());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void rejectInstanceNameOnPool() {
+        pool(members(2), PooledMQProducer.Strategy.TOPIC, 3, 30000).setInstanceName("PRODUCER");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectEmptyPool() {
+        new PooledMQProducer("PG_TEST", Collections.<DefaultMQProducer>emptyList(), PooledMQProducer.Strategy.TOPIC, 3, 30000);
+    }
+
+    private static void sendAndExpectFailure(PooledMQProducer pool) throws Exception {
+        try {
+            pool.send(new Message("TP_TEST", "demo".getBytes()));
+            fail();
+        } catch (MQClientException e) {
+            // expected
+        }
+    }
+
+    /**
+     * 发送一条消息找出topic固定使用的实例
+     */
+    private static FakeProducer preferred(PooledMQProducer pool, List<FakeProducer> members, String topic) throws Exception {
+        pool.send(new Message(topic, "demo".getBytes()));
+        Set<FakeProducer> used = usedMembers(members);
+        assertEquals(1, used.size());
+        FakeProducer preferred = used.iterator().next();
+        preferred.sent = 0;
+        return preferred;
+    }
+
+    private static Set<FakeProducer> usedMembers(List<FakeProducer> members) {
+        Set<FakeProducer> used = new HashSet<>();
+        for (FakeProducer member : members) {
+            if (member.sent > 0) {
+                used.add(member);
+            }
+        }
+        return used;
+    }
+
+    private static List<FakeProducer> members(int size) {
+        List<FakeProducer> members = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            FakeProducer member = new FakeProducer();
+            member.setInstanceName("PG_TEST-" + i);
+            members.add(member);
+        }
+        return members;
+    }
+
+    private static PooledMQProducer pool(List<FakeProducer> members, PooledMQProducer.Strategy strategy, int failureThreshold, long cooldownMillis) {
+        return new PooledMQProducer("PG_TEST", new ArrayList<DefaultMQProducer>(members), strategy, failureThreshold, cooldownMillis);
+    }
+
+    /**
+     * failure不为空时发送失败
+     */
+    private static final class FakeProducer extends DefaultMQProducer {
+
+        private volatile MQClientException failure;
+
+        private volatile int sent;
+
+        private volatile int attempts;
+
+        @Override
+        public SendResult send(Message msg) throws MQClientException {
+            attempts++;
+            if (failure != null) {
+                throw failure;
+            }
+            sent++;
+            return new SendResult();
+        }
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            attempts++;
+            if (failure != null) {
+                sendCallback.onException(failure);
+                return;
+            }
+            sent++;
+            sendCallback.onSuccess(new SendResult());
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.client.consumer.DefaultMQPullConsumer;
+import org.apache.rocketmq.client.consumer.PullCallback;
+import org.apache.rocketmq.client.consumer.PullResult;
+import org.apache.rocketmq.client.consumer.PullStatus;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PullConsumerTest {
+
+    private static final MessageQueue QUEUE_0 = new MessageQueue("TP_TEST", "broker-a", 0);
+
+    private static final MessageQueue QUEUE_1 = new MessageQueue("TP_TEST", "broker-a", 1);
+
+    private final FakePullClient client = new FakePullClient();
+
+    private final DemoConsumer consumer = new DemoConsumer();
+
+    @After
+    public void shutdown() {
+        consumer.shutdownInner();
+        client.executor.shutdownNow();
+    }
+
+    @Test
+    public void consumeInOrderAndCommitAfterProcess() throws InterruptedException {
+        client.found(QUEUE_0, 0, message("a", 0), message("b", 1));
+        client.found(QUEUE_0, 2, message("c", 2));
+        start(QUEUE_0);
+        waitUntil(() -> client.committed(QUEUE_0) == 3);
+        assertEquals(Arrays.asList("a", "b", "c"), consumer.processed);
+        // 已经拉取到最新位点后继续从提交的位点长轮询
+        waitUntil(() -> client.pulled(QUEUE_0).contains(3L));
+        assertEquals(0, consumer.getBufferedCount());
+    }
+
+    @Test
+    public void commitNextOffsetWhenNoNewMessage() throws InterruptedException {
+        client.results.put(key(QUEUE_0, 5), new PullResult(PullStatus.NO_NEW_MSG, 5, 0, 5, null));
+        client.offsets.put(QUEUE_0, 5L);
+        start(QUEUE_0);
+        waitUntil(() -> client.pulled(QUEUE_0).size() >= 2);
+        assertEquals(5, client.committed(QUEUE_0));
+        assertEquals(Arrays.asList(5L, 5L), client.pulled(QUEUE_0).subList(0, 2));
+    }
+
+    @Test
+    public void pullAgainFromLastOffsetAfterFailure() throws InterruptedException {
+        client.found(QUEUE_0, 0, message("a", 0), message("b", 1));
+        consumer.failOnce.set(true);
+        start(QUEUE_0);
+        waitUntil(() -> client.committed(QUEUE_0) == 2);
+        // 第一次处理抛出异常没有提交位点，稍后从原位点重新拉取同一批消息
+        assertEquals(Arrays.asList(0L, 0L), client.pulled(QUEUE_0).subList(0, 2));
+        assertEquals(Arrays.asList("a", "b"), consumer.processed);
+    }
+
+    @Test
+    public void stopPullingQueueRemovedByRebalance() throws InterruptedException {
+        start(QUEUE_0, QUEUE_1);
+        waitUntil(() -> client.pulled(QUEUE_0).size() == 1 && client.pulled(QUEUE_1).size() == 1);
+        consumer.messageQueueChanged("TP_TEST", queues(QUEUE_0, QUEUE_1), queues(QUEUE_1));
+        client.complete(QUEUE_0, new PullResult(PullStatus.FOUND, 1, 0, 1, Collections.singletonList(message("a", 0))));
+        client.complete(QUEUE_1, new PullResult(PullStatus.FOUND, 1, 0, 1, Collections.singletonList(message("b", 0))));
+        waitUntil(() -> client.committed(QUEUE_1) == 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("b"), consumer.processed);
+        assertEquals(-1, client.committed(QUEUE_0));
+        assertEquals(1, client.pulled(QUEUE_0).size());
+    }
+
+    @Test
+    public void suspendStopsPulling() throws InterruptedException {
+        start(QUEUE_0);
+        waitUntil(() -> client.pulled(QUEUE_0).size() == 1);
+        consumer.suspendConsume();
+        client.complete(QUEUE_0, new PullResult(PullStatus.FOUND, 1, 0, 1, Collections.singletonList(message("a", 0))));
+        Thread.sleep(50);
+        assertTrue(consumer.processed.isEmpty());
+        consumer.messageQueueChanged("TP_TEST", queues(QUEUE_0), queues(QUEUE_0));
+        Thread.sleep(50);
+        assertEquals(1, client.pulled(QUEUE_0).size());
+    }
+
+    private void start(MessageQueue... mqs) {
+        client.balanced = queues(mqs);
+        consumer.setTopic("TP_TEST");
+        consumer.setConsumer(client);
+        consumer.setPullThreads(1);
+        consumer.startInner();
+    }
+
+    private static Set<MessageQueue> queues(MessageQueue... mqs) {
+        return new HashSet<>(Arrays.asList(mqs));
+    }
+
+    private static String key(MessageQueue mq, long offset) {
+        return mq.getQueueId() + "@" + offset;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("condition not met");
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    private static MessageExt message(String key, long queueOffset) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags("A");
+        message.setKeys(key);
+        message.setMsgId("MSG-" + key);
+        message.setQueueOffset(queueOffset);
+        message.setBody(("\"" + key + "\"").getBytes(StandardCharsets.UTF_8));
+        return message;
+    }
+
+    private static final class DemoConsumer extends AbstractMQPullConsumer<String> {
+
+        private final List<String> processed = new CopyOnWriteArrayList<>();
+
+        private final AtomicBoolean failOnce = new AtomicBoolean();
+
+        @Override
+        public void dealMessage(List<MessageExt> list) {
+            if (failOnce.compareAndSet(true, false)) {
+                throw new IllegalStateException("fail once");
+            }
+            super.dealMessage(list);
+        }
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            processed.add(message);
+            return true;
+        }
+    }
+
+    /**
+     * 按queue和位点返回预设的拉取结果，没有预设结果时挂起请求，模拟长轮询
+     */
+    private static final class FakePullClient extends DefaultMQPullConsumer {
+
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        private final Map<String, PullResult> results = new ConcurrentHashMap<>();
+
+        private final Map<MessageQueue, Long> offsets = new ConcurrentHashMap<>();
+
+        private final Map<MessageQueue, Long> commits = new ConcurrentHashMap<>();
+
+        private final Map<MessageQueue, List<Long>> pulls = new ConcurrentHashMap<>();
+
+        private final Map<MessageQueue, PullCallback> pending = new ConcurrentHashMap<>();
+
+        private volatile Set<MessageQueue> balanced = Collections.emptySet();
+
+        private void found(MessageQueue mq, long offset, MessageExt... messages) {
+            results.put(key(mq, offset), new PullResult(PullStatus.FOUND, offset + messages.length, 0, offset + messages.length, Arrays.asList(messages)));
+        }
+
+        private void complete(MessageQueue mq, PullResult result) {
+            PullCallback callback = pending.remove(mq);
+            executor.execute(() -> callback.onSuccess(result));
+        }
+
+        private long committed(MessageQueue mq) {
+            return commits.getOrDefault(mq, -1L);
+        }
+
+        private List<Long> pulled(MessageQueue mq) {
+            return pulls.getOrDefault(mq, Collections.emptyList());
+        }
+
+        @Override
+        public Set<MessageQueue> fetchMessageQueuesInBalance(String topic) {
+            return balanced;
+        }
+
+        @Override
+        public long fetchConsumeOffset(MessageQueue mq, boolean fromStore) {
+            return offsets.getOrDefault(mq, 0L);
+        }
+
+        @Override
+        public void updateConsumeOffset(MessageQueue mq, long offset) {
+            commits.put(mq, offset);
+        }
+
+        @Override
+        public void pullBlockIfNotFound(MessageQueue mq, String subExpression, long offset, int maxNums, PullCallback pullCallback) {
+            pulls.computeIfAbsent(mq, k -> new CopyOnWriteArrayList<>()).add(offset);
+            PullResult result = results.get(key(mq, offset));
+            if (result == null) {
+                pending.put(mq, pullCallback);
+            } else {
+                executor.execute(() -> pullCallback.onSuccess(result));
+            }
+        }
+    }
+}
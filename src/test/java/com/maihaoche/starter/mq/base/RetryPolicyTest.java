@@ -0,0 +1,130 @@
+package com.maihaoche.starter.mq.base;
+
+import org.apache.rocketmq.common.message.MessageExt;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RetryPolicyTest {
+
+    private static final String DELAY_LEVELS = "1s 5s 10s 30s 1m 2m";
+
+    @Test
+    public void parseDurationsWithUnits() {
+        assertArrayEquals(new long[]{500, 5000, 120000, 3600000, 86400000}, RetryPolicy.parseDurations(" 500ms  5s 2m 1h 1d "));
+        assertArrayEquals(new long[0], RetryPolicy.parseDurations(null));
+        assertArrayEquals(new long[0], RetryPolicy.parseDurations(""));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectUnknownUnit() {
+        RetryPolicy.parseDurations("5s 3w");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectDurationWithoutNumber() {
+        RetryPolicy.parseDurations("s");
+    }
+
+    @Test
+    public void mapBackoffToSmallestDelayLevelNotShorter() {
+        RetryPolicy policy = RetryPolicy.of(5, "5s 20s 10m", DELAY_LEVELS, null, null);
+        assertEquals(2, policy.delayLevel(message(0)));
+        assertEquals(4, policy.delayLevel(message(1)));
+        // 超出最大级别时使用最大级别
+        assertEquals(6, policy.delayLevel(message(2)));
+        // 重试次数超出退避列表时使用最后一个
+        assertEquals(6, policy.delayLevel(message(7)));
+        assertEquals(600000, policy.suspendMillis(message(7)));
+    }
+
+    @Test
+    public void brokerDelayWithoutBackoff() {
+        RetryPolicy policy = RetryPolicy.of(5, "", DELAY_LEVELS, null, null);
+        assertEquals(0, policy.delayLevel(message(0)));
+        assertEquals(-1, policy.suspendMillis(message(0)));
+    }
+
+    @Test
+    public void suspendAtLeastOneMillisecond() {
+        assertEquals(1, RetryPolicy.of(5, "0ms", DELAY_LEVELS, null, null).suspendMillis(message(0)));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectBackoffWithoutDelayLevels() {
+        RetryPolicy.of(5, "5s", "", null, null);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectMaxAttemptsLessThanOne() {
+        RetryPolicy.of(0, "", DELAY_LEVELS, null, null);
+    }
+
+    @Test
+    public void retryUntilMaxAttempts() {
+        RetryPolicy policy = RetryPolicy.of(3, "", DELAY_LEVELS, null, null);
+        assertTrue(policy.shouldRetry(message(0), null));
+        assertTrue(policy.shouldRetry(message(1), new IllegalStateException()));
+        assertFalse(policy.shouldRetry(message(2), null));
+        assertFalse(policy.isExhausted(message(2)));
+        assertTrue(policy.isExhausted(message(3)));
+    }
+
+    @Test
+    public void giveUpOnNoRetryExceptionInCauseChain() {
+        RetryPolicy policy = RetryPolicy.of(5, "", DELAY_LEVELS, null, classes(IOException.class));
+        assertFalse(policy.shouldRetry(message(0), new UncheckedIOException(new IOException("disk full"))));
+        assertTrue(policy.shouldRetry(message(0), new IllegalStateException()));
+    }
+
+    @Test
+    public void retryOnlyListedExceptions() {
+        RetryPolicy policy = RetryPolicy.of(5, "", DELAY_LEVELS, classes(IllegalStateException.class), null);
+        assertTrue(policy.shouldRetry(message(0), new IllegalStateException()));
+        assertFalse(policy.shouldRetry(message(0), new IllegalArgumentException()));
+        // process返回false时没有异常，按处理次数决定
+        assertTrue(policy.shouldRetry(message(0), null));
+    }
+
+    @Test
+    public void noRetryOnTakesPrecedenceOverRetryOn() {
+        RetryPolicy policy = RetryPolicy.of(5, "", DELAY_LEVELS, classes(RuntimeException.class), classes(IllegalArgumentException.class));
+        assertFalse(policy.shouldRetry(message(0), new IllegalArgumentException()));
+        assertTrue(policy.shouldRetry(message(0), new IllegalStateException()));
+    }
+
+    @Test
+    public void stopAtSelfReferencingCause() {
+        RetryPolicy policy = RetryPolicy.of(5, "", DELAY_LEVELS, null, classes(IOException.class));
+        assertTrue(policy.shouldRetry(message(0), new SelfCausedException()));
+    }
+
+    @SafeVarargs
+    private static Class<? extends Throwable>[] classes(Class<? extends Throwable>... types) {
+        return types;
+    }
+
+    private static MessageExt message(int reconsumeTimes) {
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setReconsumeTimes(reconsumeTimes);
+        return message;
+    }
+
+    /**
+     * getCause返回自身的异常
+     */
+    private static final class SelfCausedException extends RuntimeException {
+
+        @Override
+        public synchronized Throwable getCause() {
+            return this;
+        }
+    }
+}
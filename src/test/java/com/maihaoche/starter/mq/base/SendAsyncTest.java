@@ -0,0 +1,138 @@
+package com.maihaoche.starter.mq.base;
+
+import com.maihaoche.starter.mq.MQException;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.MessageQueueSelector;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SendAsyncTest {
+
+    @Test
+    public void completeOnceWhenClientThrowsAfterCallback() throws Exception {
+        CallbackThenThrowProducer client = new CallbackThenThrowProducer();
+        DemoProducer producer = producer(client, 1);
+        CompletableFuture<SendResult> future = producer.sendAsync("TP_TEST", "A", "demo");
+        assertSame(client.result, future.get(1, TimeUnit.SECONDS));
+        assertEquals(0, producer.getInFlightCount());
+        // 许可只归还一次，上限仍然是1
+        assertInFlightLimit(producer);
+    }
+
+    @Test
+    public void failWhenInFlightLimitReached() {
+        PendingProducer client = new PendingProducer();
+        DemoProducer producer = producer(client, 1);
+        CompletableFuture<SendResult> pending = producer.sendAsync("TP_TEST", "A", "demo");
+        CompletableFuture<SendResult> rejected = producer.sendAsync("TP_TEST", "A", "demo");
+        assertFalse(pending.isDone());
+        assertTrue(rejected.isCompletedExceptionally());
+        assertEquals(1, producer.getInFlightCount());
+        client.callbacks.get(0).onSuccess(new SendResult());
+        assertEquals(0, producer.getInFlightCount());
+        assertFalse(producer.sendAsync("TP_TEST", "A", "demo").isDone());
+    }
+
+    @Test
+    public void failAndReleaseWhenClientThrows() throws InterruptedException {
+        DemoProducer producer = producer(new ThrowingProducer(), 1);
+        CompletableFuture<SendResult> future = producer.sendAsync("TP_TEST", "A", "demo");
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MQException);
+        }
+        assertEquals(0, producer.getInFlightCount());
+        assertInFlightLimit(producer);
+    }
+
+    @Test
+    public void sendWithHashKeyThroughSelector() throws Exception {
+        CallbackThenThrowProducer client = new CallbackThenThrowProducer();
+        DemoProducer producer = producer(client, 1);
+        producer.sendAsync("TP_TEST", "A", "demo", "order-1").get(1, TimeUnit.SECONDS);
+        assertEquals("order-1", client.hashKey);
+        assertEquals("order-1", client.message.getUserProperty(OrderlyLanes.HASH_KEY_PROPERTY));
+        assertEquals(0, producer.getInFlightCount());
+    }
+
+    /**
+     * 上限为1时，一个未完成的请求之后的发送立即失败
+     */
+    private static void assertInFlightLimit(DemoProducer producer) {
+        producer.setProducer(new PendingProducer());
+        assertFalse(producer.sendAsync("TP_TEST", "A", "demo").isDone());
+        assertTrue(producer.sendAsync("TP_TEST", "A", "demo").isCompletedExceptionally());
+        assertEquals(1, producer.getInFlightCount());
+    }
+
+    private static DemoProducer producer(DefaultMQProducer client, int maxInFlight) {
+        DemoProducer producer = new DemoProducer();
+        producer.setProducer(client);
+        producer.setInFlightLimit(maxInFlight, InFlightLimitPolicy.FAIL_FAST, 0);
+        return producer;
+    }
+
+    private static final class DemoProducer extends AbstractMQProducer {
+    }
+
+    /**
+     * 先回调成功再抛出异常
+     */
+    private static final class CallbackThenThrowProducer extends DefaultMQProducer {
+
+        private final SendResult result = new SendResult();
+
+        private volatile Object hashKey;
+
+        private volatile Message message;
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) throws MQClientException {
+            sendCallback.onSuccess(result);
+            throw new MQClientException("fail after callback", null);
+        }
+
+        @Override
+        public void send(Message msg, MessageQueueSelector selector, Object arg, SendCallback sendCallback) throws MQClientException {
+            hashKey = arg;
+            message = msg;
+            sendCallback.onSuccess(result);
+            throw new MQClientException("fail after callback", null);
+        }
+    }
+
+    private static final class PendingProducer extends DefaultMQProducer {
+
+        private final List<SendCallback> callbacks = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            callbacks.add(sendCallback);
+        }
+    }
+
+    private static final class ThrowingProducer extends DefaultMQProducer {
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) throws MQClientException {
+            throw new MQClientException("broker unavailable", null);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.google.gson.reflect.TypeToken;
+import com.maihaoche.starter.mq.MQException;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class MessageCodecsTest {
+
+    @Test
+    public void defaultToGson() {
+        assertSame(MessageCodecs.getDefault(), MessageCodecs.get(null));
+        assertSame(MessageCodecs.getDefault(), MessageCodecs.get(""));
+        assertEquals(GsonMessageCodec.ID, MessageCodecs.getDefault().getId());
+    }
+
+    @Test(expected = MQException.class)
+    public void rejectUnknownCodec() {
+        MessageCodecs.get("unknown");
+    }
+
+    @Test
+    public void roundTripWithBuiltInCodecs() {
+        for (String id : Arrays.asList("gson", "jackson", "smile")) {
+            MessageCodec codec = MessageCodecs.get(id);
+            Demo decoded = codec.decode(codec.encode(new Demo("a", 1)), Demo.class);
+            assertEquals(id, "a", decoded.name);
+            assertEquals(id, 1, decoded.count);
+        }
+    }
+
+    @Test
+    public void gsonDecodeGenericTypeFromStream() {
+        MessageCodec codec = MessageCodecs.getDefault();
+        byte[] body = codec.encode(Arrays.asList(new Demo("a", 1), new Demo("b", 2)));
+        MessageDecoder<List<Demo>> decoder = codec.decoder(new TypeToken<List<Demo>>() {}.getType());
+        List<Demo> decoded = decoder.decode(new ByteArrayInputStream(body));
+        assertEquals(2, decoded.size());
+        assertEquals("b", decoded.get(1).name);
+    }
+
+    @Test
+    public void gsonDecodeEmptyBodyAsNull() {
+        assertNull(MessageCodecs.getDefault().decode(new byte[0], Demo.class));
+    }
+
+    @Test(expected = MQException.class)
+    public void gsonRejectTrailingContent() {
+        MessageCodecs.getDefault().decode("{\"name\":\"a\"} x".getBytes(StandardCharsets.UTF_8), Demo.class);
+    }
+
+    @Test(expected = MQException.class)
+    public void jacksonWrapDecodeFailure() {
+        MessageCodecs.get("jackson").decode("not json".getBytes(StandardCharsets.UTF_8), Demo.class);
+    }
+
+    @Test
+    public void replaceRegisteredCodec() {
+        MessageCodec custom = new GsonMessageCodec() {
+            @Override
+            public String getId() {
+                return "custom-test";
+            }
+        };
+        MessageCodecs.register(custom);
+        assertSame(custom, MessageCodecs.get("custom-test"));
+    }
+
+    public static class Demo {
+
+        public String name;
+
+        public int count;
+
+        public Demo() {
+        }
+
+        Demo(String name, int count) {
+            this.name = name;
+            this.count = count;
+        }
+    }
+}
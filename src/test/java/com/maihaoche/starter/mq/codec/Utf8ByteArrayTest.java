@@ -0,0 +1,94 @@
+package com.maihaoche.starter.mq.codec;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Utf8ByteArrayTest {
+
+    private static final String TEXT = "ascii é 中文 😀 end";
+
+    @Test
+    public void writeSameBytesAsString() {
+        Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(1);
+        writer.write(TEXT, 0, TEXT.length());
+        assertArrayEquals(TEXT.getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+    }
+
+    @Test
+    public void writeSurrogatePairSplitAcrossWrites() {
+        Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+        for (char c : TEXT.toCharArray()) {
+            writer.write(c);
+        }
+        assertArrayEquals(TEXT.getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+    }
+
+    @Test
+    public void writeLoneSurrogatesAsQuestionMark() {
+        String text = "a\uD83Db\uDE00";
+        Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+        writer.write(text, 0, text.length());
+        writer.write('\uD83D');
+        assertArrayEquals("a?b??".getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+    }
+
+    @Test
+    public void reuseAfterReset() {
+        Utf8ByteArrayWriter writer = new Utf8ByteArrayWriter(16);
+        writer.write("first", 0, 5);
+        writer.write('\uD83D');
+        writer.reset();
+        writer.write("second", 0, 6);
+        assertArrayEquals("second".getBytes(StandardCharsets.UTF_8), writer.toByteArray());
+    }
+
+    @Test
+    public void readSameCharsAsString() {
+        assertEquals(TEXT, read(TEXT.getBytes(StandardCharsets.UTF_8), 1024));
+    }
+
+    @Test
+    public void readSurrogatePairIntoOneCharBuffer() {
+        assertEquals(TEXT, read(TEXT.getBytes(StandardCharsets.UTF_8), 1));
+    }
+
+    @Test
+    public void readTruncatedSequenceAsReplacement() {
+        byte[] bytes = "中".getBytes(StandardCharsets.UTF_8);
+        assertEquals("\uFFFD\uFFFD", read(Arrays.copyOf(bytes, 2), 16));
+    }
+
+    @Test
+    public void gsonCodecMatchesGsonToJson() {
+        Object msgObj = Collections.singletonMap("text", TEXT);
+        byte[] body = new GsonMessageCodec().encode(msgObj);
+        assertArrayEquals(new Gson().toJson(msgObj).getBytes(StandardCharsets.UTF_8), body);
+    }
+
+    @Test
+    public void gsonCodecEncodeAfterLargeMessage() {
+        GsonMessageCodec codec = new GsonMessageCodec();
+        char[] large = new char[2 * 1024 * 1024];
+        Arrays.fill(large, 'x');
+        assertEquals(large.length + 2, codec.encode(new String(large)).length);
+        assertEquals("\"small\"", new String(codec.encode("small"), StandardCharsets.UTF_8));
+    }
+
+    private static String read(byte[] bytes, int bufferSize) {
+        Utf8ByteArrayReader reader = new Utf8ByteArrayReader(bytes);
+        StringBuilder out = new StringBuilder();
+        char[] buffer = new char[bufferSize];
+        int n;
+        while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+            out.append(buffer, 0, n);
+        }
+        return out.toString();
+    }
+}
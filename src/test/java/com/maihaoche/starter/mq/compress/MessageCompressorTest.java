@@ -0,0 +1,82 @@
+package com.maihaoche.starter.mq.compress;
+
+import com.maihaoche.starter.mq.MQException;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCompressorTest {
+
+    @Test
+    public void roundTripWithBuiltInCompressors() throws IOException {
+        for (String id : Arrays.asList(DeflateCompressor.ID, Lz4Compressor.ID)) {
+            MessageCompressor compressor = MessageCompressors.get(id);
+            for (byte[] body : Arrays.asList(new byte[0], "{\"a\":1}".getBytes(StandardCharsets.UTF_8), repeated(200 * 1024))) {
+                byte[] compressed = compressor.compress(body);
+                assertArrayEquals(id, body, read(compressor.decompress(compressed)));
+            }
+            assertTrue(id, compressor.compress(repeated(200 * 1024)).length < 20 * 1024);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failOnCorruptDeflateData() throws IOException {
+        byte[] compressed = new DeflateCompressor().compress(repeated(1024));
+        compressed[0] = 0;
+        read(new DeflateCompressor().decompress(compressed));
+    }
+
+    @Test(expected = MQException.class)
+    public void rejectUnknownCompressor() {
+        MessageCompressors.get("unknown");
+    }
+
+    @Test
+    public void selectByThresholdAndTopic() {
+        MessageCompressor deflate = MessageCompressors.get(DeflateCompressor.ID);
+        MessageCompressor lz4 = MessageCompressors.get(Lz4Compressor.ID);
+        CompressionPolicy policy = new CompressionPolicy(deflate, 1024,
+                Collections.singletonMap("TP_LZ4", new CompressionPolicy.Rule(lz4, 64)));
+        assertNull(policy.select("TP_TEST", 1023));
+        assertSame(deflate, policy.select("TP_TEST", 1024));
+        assertSame(lz4, policy.select("TP_LZ4", 64));
+        assertNull(CompressionPolicy.NONE.select("TP_TEST", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void disableCompressionForTopic() {
+        CompressionPolicy policy = new CompressionPolicy(MessageCompressors.get(DeflateCompressor.ID), 0,
+                Collections.singletonMap("TP_RAW", new CompressionPolicy.Rule(null, 0)));
+        assertNull(policy.select("TP_RAW", 1 << 20));
+    }
+
+    private static byte[] repeated(int size) {
+        byte[] body = new byte[size];
+        for (int i = 0; i < size; i++) {
+            body[i] = (byte) ('a' + i % 16);
+        }
+        return body;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream input = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.maihaoche.starter.mq.config;
+
+import com.maihaoche.starter.mq.annotation.EnableMQConfiguration;
+import com.maihaoche.starter.mq.annotation.MQConsumer;
+import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import com.maihaoche.starter.mq.transport.MQTransport;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ConsumerShutdownTest {
+
+    private static volatile CountDownLatch entered;
+
+    private static volatile CountDownLatch release;
+
+    private static volatile boolean finished;
+
+    private ConfigurableApplicationContext context;
+
+    @After
+    public void reset() {
+        if (release != null) {
+            release.countDown();
+        }
+        if (context != null) {
+            context.close();
+        }
+        finished = false;
+    }
+
+    @Test
+    public void drainInFlightMessageBeforeShutdown() throws Exception {
+        context = run("rocketmq.consumer-shutdown.timeout-ms=5000");
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        sendAndAwaitProcessing();
+        // 关闭过程中处理完成
+        new Thread(() -> {
+            sleep(200);
+            release.countDown();
+        }).start();
+        context.close();
+        assertTrue(finished);
+        assertEquals(1, count(registry, "drained"), 0);
+        assertEquals(0, count(registry, "abandoned"), 0);
+    }
+
+    @Test
+    public void abandonAfterDrainTimeout() throws Exception {
+        context = run("rocketmq.consumer-shutdown.timeout-ms=200");
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        sendAndAwaitProcessing();
+        long begin = System.currentTimeMillis();
+        context.close();
+        // 超时后不再等待仍在处理的消息
+        assertTrue(System.currentTimeMillis() - begin < 3000);
+        assertFalse(finished);
+        assertEquals(0, count(registry, "drained"), 0);
+        assertEquals(1, count(registry, "abandoned"), 0);
+    }
+
+    @Test
+    public void shutdownImmediatelyWithoutPendingMessages() {
+        context = run("rocketmq.consumer-shutdown.timeout-ms=5000");
+        MeterRegistry registry = context.getBean(MeterRegistry.class);
+        long begin = System.currentTimeMillis();
+        context.close();
+        assertTrue(System.currentTimeMillis() - begin < 3000);
+        assertEquals(0, count(registry, "drained"), 0);
+        assertEquals(0, count(registry, "abandoned"), 0);
+    }
+
+    private void sendAndAwaitProcessing() throws Exception {
+        entered = new CountDownLatch(1);
+        release = new CountDownLatch(1);
+        DefaultMQProducer producer = context.getBean(MQTransport.class).createProducer("PG_DRAIN");
+        producer.start();
+        try {
+            producer.send(new Message("TP_DRAIN", "A", "\"demo\"".getBytes(StandardCharsets.UTF_8)));
+        } finally {
+            producer.shutdown();
+        }
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+    }
+
+    private static double count(MeterRegistry registry, String result) {
+        Counter counter = registry.find("rocketmq.consumer.shutdown").tags("group", "CG_DRAIN", "result", result).counter();
+        return counter == null ? 0 : counter.count();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ConfigurableApplicationContext run(String... properties) {
+        return new SpringApplicationBuilder(TestApplication.class).web(false)
+                .properties("rocketmq.transport=memory")
+                .properties(properties)
+                .run();
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    @EnableMQConfiguration
+    @Import(DrainConsumer.class)
+    static class TestApplication {
+
+        @Bean
+        public MeterRegistry meterRegistry() {
+            return new SimpleMeterRegistry();
+        }
+    }
+
+    /**
+     * 处理消息时等待release，最多等待5秒
+     */
+    @MQConsumer(consumerGroup = "CG_DRAIN", topic = "TP_DRAIN")
+    static class DrainConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            entered.countDown();
+            try {
+                finished = release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.maihaoche.starter.mq.config;
+
+import com.maihaoche.starter.mq.annotation.EnableMQConfiguration;
+import com.maihaoche.starter.mq.annotation.MQConsumer;
+import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import com.maihaoche.starter.mq.transport.InMemoryMQPushConsumer;
+import com.maihaoche.starter.mq.transport.InMemoryTransport;
+import com.maihaoche.starter.mq.transport.MQTransport;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConsumerStartupTest {
+
+    /**按consumerGroup指定启动时的行为*/
+    private static final Map<String, Behavior> BEHAVIORS = new ConcurrentHashMap<>();
+
+    /**已经启动、还没有关闭的消费者*/
+    private static final Map<String, Boolean> RUNNING = new ConcurrentHashMap<>();
+
+    private static volatile CountDownLatch barrier;
+
+    private ConfigurableApplicationContext context;
+
+    @After
+    public void reset() {
+        if (context != null) {
+            context.close();
+        }
+        BEHAVIORS.clear();
+        RUNNING.clear();
+        barrier = null;
+    }
+
+    @Test
+    public void startConsumersInParallel() {
+        // 两个消费者都到达屏障后才能启动完成，串行启动时第一个消费者会等待超时
+        barrier = new CountDownLatch(2);
+        BEHAVIORS.put("CG_FIRST", Behavior.AWAIT_BARRIER);
+        BEHAVIORS.put("CG_SECOND", Behavior.AWAIT_BARRIER);
+        context = run("rocketmq.consumer-startup.threads=2");
+        assertTrue(RUNNING.containsKey("CG_FIRST"));
+        assertTrue(RUNNING.containsKey("CG_SECOND"));
+    }
+
+    @Test
+    public void failContextWhenConsumerStartFails() {
+        BEHAVIORS.put("CG_SECOND", Behavior.FAIL);
+        try {
+            context = run();
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(ExceptionUtils.getRootCause(e) instanceof MQClientException);
+            assertTrue(ExceptionUtils.getStackTrace(e).contains(SecondConsumer.class.getName()));
+        }
+        // 已经启动的消费者随启动失败一起关闭
+        assertFalse(RUNNING.containsKey("CG_FIRST"));
+        assertFalse(RUNNING.containsKey("CG_SECOND"));
+    }
+
+    @Test
+    public void failContextWhenStartupTimesOut() throws InterruptedException {
+        barrier = new CountDownLatch(2);
+        BEHAVIORS.put("CG_SECOND", Behavior.AWAIT_BARRIER);
+        try {
+            context = run("rocketmq.consumer-startup.timeout-ms=200");
+            fail();
+        } catch (RuntimeException e) {
+            String message = ExceptionUtils.getRootCause(e).getMessage();
+            assertTrue(message, message.contains(SecondConsumer.class.getName()));
+            assertFalse(message, message.contains(FirstConsumer.class.getName()));
+        }
+        assertFalse(RUNNING.containsKey("CG_FIRST"));
+        // 超时后才启动完成的消费者由启动任务自己关闭
+        barrier.countDown();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (RUNNING.containsKey("CG_SECOND") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(RUNNING.containsKey("CG_SECOND"));
+    }
+
+    private static ConfigurableApplicationContext run(String... properties) {
+        return new SpringApplicationBuilder(TestApplication.class).web(false)
+                .properties("rocketmq.consumer-shutdown.timeout-ms=1000")
+                .properties(properties)
+                .run();
+    }
+
+    private enum Behavior {
+        /**启动时抛出异常*/
+        FAIL,
+        /**等待屏障打开后再启动，最多等待1秒*/
+        AWAIT_BARRIER
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    @EnableMQConfiguration
+    @Import({FirstConsumer.class, SecondConsumer.class})
+    static class TestApplication {
+
+        @Bean
+        public MQTransport mqTransport() {
+            return new ControlledTransport();
+        }
+    }
+
+    /**
+     * 按{@link #BEHAVIORS}控制消费者启动的进程内传输层
+     */
+    private static final class ControlledTransport extends InMemoryTransport {
+
+        @Override
+        public DefaultMQPushConsumer createPushConsumer(String consumerGroup) {
+            return new InMemoryMQPushConsumer(consumerGroup, getBroker()) {
+
+                @Override
+                public void start() throws MQClientException {
+                    Behavior behavior = BEHAVIORS.get(consumerGroup);
+                    if (behavior == Behavior.FAIL) {
+                        throw new MQClientException("start " + consumerGroup + " fail", null);
+                    }
+                    if (behavior == Behavior.AWAIT_BARRIER) {
+                        CountDownLatch latch = barrier;
+                        latch.countDown();
+                        try {
+                            if (!latch.await(1, TimeUnit.SECONDS)) {
+                                throw new MQClientException("barrier of " + consumerGroup + " not opened", null);
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    super.start();
+                    RUNNING.put(consumerGroup, true);
+                }
+
+                @Override
+                public void shutdown() {
+                    super.shutdown();
+                    RUNNING.remove(consumerGroup);
+                }
+            };
+        }
+    }
+
+    @MQConsumer(consumerGroup = "CG_FIRST", topic = "TP_FIRST")
+    static class FirstConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return true;
+        }
+    }
+
+    @MQConsumer(consumerGroup = "CG_SECOND", topic = "TP_SECOND")
+    static class SecondConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package com.maihaoche.starter.mq.config;
+
+import com.maihaoche.starter.mq.annotation.EnableMQConfiguration;
+import com.maihaoche.starter.mq.annotation.MQConsumer;
+import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationContextException;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MQConsumerAutoConfigurationTest {
+
+    private ConfigurableApplicationContext context;
+
+    @After
+    public void closeContext() {
+        if (context != null) {
+            context.close();
+        }
+    }
+
+    @Test
+    public void rejectRestartAfterStop() {
+        context = run();
+        MQConsumerAutoConfiguration configuration = context.getBean(MQConsumerAutoConfiguration.class);
+        assertTrue(configuration.isRunning());
+        context.stop();
+        assertFalse(configuration.isRunning());
+        try {
+            context.start();
+            fail();
+        } catch (ApplicationContextException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertFalse(configuration.isRunning());
+    }
+
+    @Test
+    public void overrideTuningPerConsumerGroup() {
+        context = run("rocketmq.consumers.CG_TEST.consume-thread-min=4", "rocketmq.consumers.CG_TEST.consume-thread-max=8",
+                "rocketmq.consumers.CG_TEST.pull-interval=100");
+        DefaultMQPushConsumer consumer = context.getBean(TestConsumer.class).getConsumer();
+        assertEquals(4, consumer.getConsumeThreadMin());
+        assertEquals(8, consumer.getConsumeThreadMax());
+        assertEquals(100, consumer.getPullInterval());
+        // 没有覆盖的参数取注解上的值
+        assertEquals(32, consumer.getPullBatchSize());
+        assertEquals(1000, consumer.getPullThresholdForQueue());
+    }
+
+    @Test
+    public void rejectConsumeThreadMinGreaterThanMax() {
+        try {
+            context = run("rocketmq.consumers.CG_TEST.consume-thread-min=10", "rocketmq.consumers.CG_TEST.consume-thread-max=5");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(ExceptionUtils.getRootCause(e).getMessage().contains("consumeThreadMin must not be greater than consumeThreadMax"));
+        }
+    }
+
+    @Test
+    public void rejectUnknownLimiter() {
+        try {
+            context = run("rocketmq.consumers.CG_TEST.limiter=UNKNOWN");
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(ExceptionUtils.getRootCause(e).getMessage().contains("unknown limiter"));
+        }
+    }
+
+    private static ConfigurableApplicationContext run(String... properties) {
+        return new SpringApplicationBuilder(TestApplication.class).web(false)
+                .properties("rocketmq.transport=memory", "rocketmq.consumer-shutdown.timeout-ms=1000")
+                .properties(properties)
+                .run();
+    }
+
+    @Configuration
+    @EnableAutoConfiguration
+    @EnableMQConfiguration
+    @Import(TestConsumer.class)
+    static class TestApplication {
+    }
+
+    @MQConsumer(consumerGroup = "CG_TEST", topic = "TP_TEST", deadLetterTopic = "TP_TEST_DLQ")
+    static class TestConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return true;
+        }
+    }
+}
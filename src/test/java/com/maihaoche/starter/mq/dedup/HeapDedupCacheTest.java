@@ -0,0 +1,43 @@
+package com.maihaoche.starter.mq.dedup;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeapDedupCacheTest {
+
+    @Test
+    public void containsOnlyAfterMark() {
+        DedupCache cache = new HeapDedupCache(1000, 60000);
+        assertFalse(cache.contains("a"));
+        cache.mark("a");
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void expireAfterTtl() throws InterruptedException {
+        DedupCache cache = new HeapDedupCache(1000, 20);
+        cache.mark("a");
+        Thread.sleep(40);
+        assertFalse(cache.contains("a"));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void evictEldestBeyondCapacity() {
+        DedupCache cache = new HeapDedupCache(160, 60000);
+        for (int i = 0; i < 10000; i++) {
+            cache.mark("key-" + i);
+        }
+        assertTrue(cache.size() <= 160);
+        assertEquals(10000 - cache.size(), cache.getEvictionCount());
+        assertTrue(cache.contains("key-9999"));
+        assertFalse(cache.contains("key-0"));
+    }
+}
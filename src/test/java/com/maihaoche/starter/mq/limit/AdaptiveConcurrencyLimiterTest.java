@@ -0,0 +1,170 @@
+package com.maihaoche.starter.mq.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(20);
+
+    @Test
+    public void clampInitialLimit() {
+        assertEquals(8, new AdaptiveConcurrencyLimiter(false, 100, 2, 8, 100).getLimit(), 0);
+        assertEquals(2, new AdaptiveConcurrencyLimiter(false, 0, 2, 8, 100).getLimit(), 0);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectMinLimitLessThanOne() {
+        new AdaptiveConcurrencyLimiter(false, 1, 0, 8, 100);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectMaxLimitLessThanMin() {
+        new AdaptiveConcurrencyLimiter(false, 4, 4, 2, 100);
+    }
+
+    @Test
+    public void aimdIncreaseOnlyWhenSaturated() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 4, 1, 100, 10);
+        // 并发数低于限制的一半时不放大
+        limiter.acquire(1);
+        limiter.release(FAST, true);
+        assertEquals(4, limiter.getLimit(), 0);
+        limiter.acquire(1);
+        limiter.acquire(1);
+        limiter.release(FAST, true);
+        assertEquals(5, limiter.getLimit(), 0);
+        limiter.release(FAST, true);
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void aimdBackOffOnFailureOrSlowProcess() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 10, 1, 100, 10);
+        limiter.acquire(1);
+        limiter.release(FAST, false);
+        assertEquals(9, limiter.getLimit(), 1e-9);
+        limiter.acquire(1);
+        limiter.release(SLOW, true);
+        assertEquals(8.1, limiter.getLimit(), 1e-9);
+    }
+
+    @Test
+    public void keepWithinRange() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 2, 2, 3, 10);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(1);
+            limiter.release(SLOW, false);
+        }
+        assertEquals(2, limiter.getLimit(), 0);
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, FAST, true);
+        }
+        assertEquals(3, limiter.getLimit(), 0);
+    }
+
+    @Test
+    public void blockAtLimitUntilRelease() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 10);
+        assertTrue(limiter.acquire(1));
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            limiter.acquire(1);
+            acquired.countDown();
+        });
+        waiter.start();
+        assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        limiter.release(FAST, true);
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void returnFalseWhenInterruptedWhileWaiting() throws InterruptedException {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(false, 1, 1, 1, 10);
+        assertTrue(limiter.acquire(1));
+        AtomicBoolean result = new AtomicBoolean(true);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        Thread waiter = new Thread(() -> {
+            result.set(limiter.acquire(1));
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        waiter.start();
+        Thread.sleep(50);
+        waiter.interrupt();
+        waiter.join(5000);
+        assertFalse(result.get());
+        assertTrue(interrupted.get());
+        // 没有获得许可，不占用并发数
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void gradientGrowWhileLatencyStable() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 4, 1, 100, 0);
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, FAST, true);
+        }
+        assertTrue(limiter.getLimit() > 4);
+    }
+
+    @Test
+    public void gradientHoldWhenNotSaturated() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 20, 1, 100, 0);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(1);
+            limiter.release(FAST, true);
+        }
+        assertEquals(20, limiter.getLimit(), 0);
+    }
+
+    @Test
+    public void gradientShrinkWhenLatencyRises() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 20, 1, 100, 0);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(1);
+            limiter.release(FAST, true);
+        }
+        for (int i = 0; i < 50; i++) {
+            limiter.acquire(1);
+            limiter.release(SLOW, true);
+        }
+        assertTrue(limiter.getLimit() < 10);
+    }
+
+    @Test
+    public void gradientShrinkOnFastFailures() {
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(true, 20, 1, 100, 0);
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire(1);
+            limiter.release(FAST, true);
+        }
+        // 失败的耗时很短也不会放大限制
+        for (int i = 0; i < 50; i++) {
+            saturate(limiter, 1, false);
+        }
+        assertTrue(limiter.getLimit() < 20);
+    }
+
+    /**
+     * 占满当前限制后依次释放
+     */
+    private static void saturate(AdaptiveConcurrencyLimiter limiter, long nanos, boolean success) {
+        int permits = (int) limiter.getLimit();
+        for (int i = 0; i < permits; i++) {
+            limiter.acquire(1);
+        }
+        for (int i = 0; i < permits; i++) {
+            limiter.release(nanos, success);
+        }
+    }
+}
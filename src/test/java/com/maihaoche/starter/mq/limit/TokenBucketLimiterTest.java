@@ -0,0 +1,67 @@
+package com.maihaoche.starter.mq.limit;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketLimiterTest {
+
+    @Test
+    public void limitToConfiguredRate() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(20, 1);
+        long begin = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire(1));
+        }
+        // 第一个令牌立即发放，之后每50ms发放一个
+        assertTrue(elapsedMillis(begin) >= 150);
+        assertEquals(20, limiter.getLimit(), 0);
+    }
+
+    @Test
+    public void useStoredPermitsAfterIdle() throws InterruptedException {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(20, 5);
+        Thread.sleep(500);
+        long begin = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.acquire(1));
+        }
+        assertTrue(elapsedMillis(begin) < 100);
+    }
+
+    @Test
+    public void batchAcquireDelaysNextCaller() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(100, 1);
+        long begin = System.nanoTime();
+        // 一批10条立即处理，下一次获取等待这10条的令牌
+        assertTrue(limiter.acquire(10));
+        assertTrue(elapsedMillis(begin) < 50);
+        assertTrue(limiter.acquire(1));
+        assertTrue(elapsedMillis(begin) >= 80);
+    }
+
+    @Test
+    public void returnFalseWhenInterruptedWhileWaiting() {
+        TokenBucketLimiter limiter = new TokenBucketLimiter(1, 1);
+        assertTrue(limiter.acquire(1));
+        Thread.currentThread().interrupt();
+        long begin = System.nanoTime();
+        assertFalse(limiter.acquire(1));
+        // 保留中断标记
+        assertTrue(Thread.interrupted());
+        assertTrue(elapsedMillis(begin) < 500);
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectNonPositiveRate() {
+        new TokenBucketLimiter(0, 1);
+    }
+
+    private static long elapsedMillis(long beginNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - beginNanos);
+    }
+}
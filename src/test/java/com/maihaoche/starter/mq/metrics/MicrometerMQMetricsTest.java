@@ -0,0 +1,123 @@
+package com.maihaoche.starter.mq.metrics;
+
+import com.maihaoche.starter.mq.base.AbstractMQProducer;
+import com.maihaoche.starter.mq.base.AbstractMQPushConsumer;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyContext;
+import org.apache.rocketmq.client.exception.MQClientException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MicrometerMQMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final MicrometerMQMetrics metrics = new MicrometerMQMetrics(registry);
+
+    @Test
+    public void recordSendByModeAndResult() {
+        metrics.recordSend("TP_TEST", "A", MQMetrics.SendMode.ASYNC, TimeUnit.MILLISECONDS.toNanos(3), true);
+        metrics.recordSend("TP_TEST", "A", MQMetrics.SendMode.ASYNC, TimeUnit.MILLISECONDS.toNanos(5), false);
+        metrics.recordSend("TP_TEST", "A", MQMetrics.SendMode.SYNC, TimeUnit.MILLISECONDS.toNanos(1), false);
+        assertEquals(1, sendTimer("async", "success").count());
+        assertEquals(5, sendTimer("async", "failure").totalTime(TimeUnit.MILLISECONDS), 0.001);
+        assertEquals(1, sendTimer("sync", "failure").count());
+        assertNull(registry.find("rocketmq.producer.send").tags("mode", "oneway").timer());
+    }
+
+    @Test
+    public void reuseRegisteredMeters() {
+        metrics.recordProcess("CG_TEST", "TP_TEST", "A", 1, true);
+        int meters = registry.getMeters().size();
+        Timer timer = registry.find("rocketmq.consumer.process").tags("result", "success").timer();
+        metrics.recordProcess("CG_TEST", "TP_TEST", "A", 1, true);
+        assertEquals(meters, registry.getMeters().size());
+        assertSame(timer, registry.find("rocketmq.consumer.process").tags("result", "success").timer());
+        assertEquals(2, timer.count());
+    }
+
+    @Test
+    public void tagMissingValuesAsNone() {
+        metrics.recordEncode("TP_TEST", null, 1, 10);
+        metrics.recordParse(null, "TP_TEST", "", 1, 20, false);
+        assertEquals(10, registry.get("rocketmq.producer.payload").tags("topic", "TP_TEST", "tag", "none").summary().totalAmount(), 0.001);
+        assertEquals(1, registry.get("rocketmq.consumer.parse").tags("group", "none", "tag", "none", "result", "failure").timer().count());
+    }
+
+    @Test
+    public void countRetriesAndDeadLetters() {
+        metrics.recordRetry("CG_TEST", "TP_TEST", "A", false);
+        metrics.recordRetry("CG_TEST", "TP_TEST", "A", true);
+        metrics.recordDeadLetter("CG_TEST", "TP_TEST", "rejected");
+        metrics.recordDeadLetter("CG_TEST", "TP_TEST", "rejected");
+        assertEquals(1, registry.get("rocketmq.consumer.retry").tags("result", "max_reached").counter().count(), 0.001);
+        assertEquals(2, registry.get("rocketmq.consumer.deadletter").tags("result", "rejected").counter().count(), 0.001);
+    }
+
+    @Test
+    public void gaugeInFlightCount() {
+        AtomicInteger inFlight = new AtomicInteger();
+        metrics.bindInFlight("DemoProducer", inFlight);
+        inFlight.set(3);
+        assertEquals(3, registry.get("rocketmq.producer.inflight").tags("producer", "DemoProducer").gauge().value(), 0.001);
+    }
+
+    @Test
+    public void recordFailedAsyncSendFromProducer() {
+        AbstractMQProducer producer = new AbstractMQProducer() {
+        };
+        producer.setProducer(new DefaultMQProducer() {
+            @Override
+            public void send(Message msg, SendCallback sendCallback) throws MQClientException {
+                throw new MQClientException("broker unavailable", null);
+            }
+        });
+        producer.setMetrics(metrics);
+        assertTrue(producer.sendAsync("TP_TEST", "A", "demo").isCompletedExceptionally());
+        assertEquals(1, sendTimer("async", "failure").count());
+        assertEquals(1, registry.get("rocketmq.producer.encode").tags("topic", "TP_TEST", "tag", "A").timer().count());
+    }
+
+    @Test
+    public void recordFailedProcessFromConsumer() {
+        AbstractMQPushConsumer<String> consumer = new RejectingConsumer();
+        consumer.setGroup("CG_TEST");
+        consumer.setMetrics(metrics);
+        MessageExt message = new MessageExt();
+        message.setTopic("TP_TEST");
+        message.setTags("A");
+        message.setMsgId("MSG-1");
+        message.setBody("\"a\"".getBytes(StandardCharsets.UTF_8));
+        consumer.dealMessage(new ArrayList<>(Collections.singletonList(message)), new ConsumeConcurrentlyContext(new MessageQueue("TP_TEST", "broker-a", 0)));
+        assertEquals(1, registry.get("rocketmq.consumer.parse").tags("group", "CG_TEST", "result", "success").timer().count());
+        assertEquals(1, registry.get("rocketmq.consumer.process").tags("group", "CG_TEST", "tag", "A", "result", "failure").timer().count());
+    }
+
+    private Timer sendTimer(String mode, String result) {
+        return registry.get("rocketmq.producer.send").tags("mode", mode, "topic", "TP_TEST", "tag", "A", "result", result).timer();
+    }
+
+    private static final class RejectingConsumer extends AbstractMQPushConsumer<String> {
+
+        @Override
+        public boolean process(String messageKey, String tag, String message) {
+            return false;
+        }
+    }
+}
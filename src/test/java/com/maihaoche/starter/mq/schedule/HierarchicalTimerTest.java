@@ -0,0 +1,37 @@
+package com.maihaoche.starter.mq.schedule;
+
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HierarchicalTimerTest {
+
+    @Test
+    public void expireOnTimeAcrossWheels() throws InterruptedException {
+        Map<Long, Long> firedAt = new ConcurrentHashMap<>();
+        HierarchicalTimer timer = new HierarchicalTimer(1, entry -> firedAt.put(entry.id, System.currentTimeMillis()));
+        long now = System.currentTimeMillis();
+        // 第一层64ms，第二层4096ms；150ms的消息需要从第二层降下来
+        long[] delays = {10, 50, 150, 300};
+        for (int i = 0; i < delays.length; i++) {
+            timer.add(new TimerEntry(i, now + delays[i], null));
+        }
+        timer.add(new TimerEntry(99, now - 1, null));
+        assertTrue(firedAt.containsKey(99L));
+        assertEquals(delays.length, timer.size());
+
+        long deadline = now + 5000;
+        while (firedAt.size() <= delays.length && System.currentTimeMillis() < deadline) {
+            timer.advance(100);
+        }
+        assertEquals(0, timer.size());
+        for (int i = 0; i < delays.length; i++) {
+            long fired = firedAt.get((long) i);
+            assertTrue("timer " + i + " fired early", fired >= now + delays[i]);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.maihaoche.starter.mq.schedule;
+
+import org.apache.rocketmq.client.exception.MQBrokerException;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendCallback;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSchedulerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final RecordingProducer producer = new RecordingProducer();
+
+    @Test
+    public void restartAfterClose() throws Exception {
+        File dir = folder.newFolder();
+        MessageScheduler scheduler = scheduler(dir, 3);
+        scheduler.start();
+        scheduler.schedule(message("TP_TEST", "first"), System.currentTimeMillis() + 20);
+        waitFor(() -> producer.sent.size() == 1);
+
+        // 关闭时还没到期的消息，重新启动后继续定时
+        scheduler.schedule(message("TP_TEST", "pending"), System.currentTimeMillis() + 300);
+        scheduler.close(1000);
+        assertEquals(1, scheduler.getPendingCount());
+
+        scheduler.start();
+        scheduler.schedule(message("TP_TEST", "second"), System.currentTimeMillis() + 20);
+        waitFor(() -> producer.sent.size() == 3);
+        assertEquals(0, scheduler.getPendingCount());
+        scheduler.close(1000);
+    }
+
+    @Test
+    public void buryPermanentFailureAtOnce() throws Exception {
+        MessageScheduler scheduler = scheduler(folder.newFolder(), 30);
+        scheduler.start();
+        scheduler.schedule(message("TP_ILLEGAL", "a"), System.currentTimeMillis());
+        waitFor(() -> scheduler.getDeadCount() == 1);
+        assertEquals(1, scheduler.getFireFailedCount());
+        assertEquals(0, scheduler.getPendingCount());
+        scheduler.close(1000);
+    }
+
+    @Test
+    public void buryAfterMaxFireAttempts() throws Exception {
+        File dir = folder.newFolder();
+        MessageScheduler scheduler = scheduler(dir, 2);
+        scheduler.start();
+        scheduler.schedule(message("TP_BUSY", "a"), System.currentTimeMillis());
+        waitFor(() -> scheduler.getDeadCount() == 1);
+        assertEquals(2, scheduler.getFireFailedCount());
+        assertEquals(0, scheduler.getPendingCount());
+        scheduler.close(1000);
+        assertTrue(new File(dir, "timers.dead").length() > 0);
+    }
+
+    private MessageScheduler scheduler(File dir, int maxFireAttempts) throws Exception {
+        // 没有延时级别时所有消息都放入本地时间轮
+        return new MessageScheduler(producer, "TP_SCHEDULE_HOP", new long[0], Long.MAX_VALUE, dir, 1, 1 << 20, 1000, maxFireAttempts);
+    }
+
+    private static Message message(String topic, String key) {
+        return new Message(topic, "A", key, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static final class RecordingProducer extends DefaultMQProducer {
+
+        private final List<Message> sent = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void send(Message msg, SendCallback sendCallback) {
+            if ("TP_ILLEGAL".equals(msg.getTopic())) {
+                sendCallback.onException(new MQBrokerException(ResponseCode.MESSAGE_ILLEGAL, "illegal"));
+            } else if ("TP_BUSY".equals(msg.getTopic())) {
+                sendCallback.onException(new MQBrokerException(ResponseCode.SYSTEM_ERROR, "busy"));
+            } else {
+                sent.add(msg);
+                sendCallback.onSuccess(new SendResult());
+            }
+        }
+    }
+}
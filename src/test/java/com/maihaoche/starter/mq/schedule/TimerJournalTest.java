@@ -0,0 +1,124 @@
+package com.maihaoche.starter.mq.schedule;
+
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TimerJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayAddAndRemoveAfterReopen() throws IOException {
+        File dir = folder.newFolder();
+        TimerJournal journal = new TimerJournal(dir, 1 << 20);
+        TimerEntry first = journal.add(1000, message("a"));
+        TimerEntry second = journal.add(2000, message("b"));
+        journal.sync();
+        journal.remove(first.id);
+        journal.close();
+
+        journal = new TimerJournal(dir, 1 << 20);
+        List<TimerEntry> entries = journal.entries();
+        assertEquals(1, entries.size());
+        assertEquals(second.id, entries.get(0).id);
+        assertEquals(2000, entries.get(0).fireAt);
+        assertEquals("b", body(entries.get(0).message));
+        assertEquals("b", entries.get(0).message.getKeys());
+        // 重启后的id不会与之前的记录重复
+        assertTrue(journal.add(3000, message("c")).id > second.id);
+        journal.close();
+    }
+
+    @Test
+    public void truncateTornTail() throws IOException {
+        File dir = folder.newFolder();
+        TimerJournal journal = new TimerJournal(dir, 1 << 20);
+        journal.add(1000, message("a"));
+        journal.add(2000, message("b"));
+        journal.close();
+        File file = new File(dir, "timers.journal");
+        long intact = file.length();
+        // 进程在写记录的过程中退出：长度已经写入，数据不完整
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(intact);
+            raf.writeInt(100);
+            raf.writeInt(0);
+            raf.write(new byte[10]);
+        }
+
+        journal = new TimerJournal(dir, 1 << 20);
+        assertEquals(2, journal.size());
+        assertEquals(intact, file.length());
+        journal.add(3000, message("c"));
+        journal.close();
+
+        journal = new TimerJournal(dir, 1 << 20);
+        assertEquals(3, journal.size());
+        journal.close();
+    }
+
+    @Test
+    public void compactKeepsOnlyPendingTimers() throws IOException {
+        File dir = folder.newFolder();
+        TimerJournal journal = new TimerJournal(dir, 2048);
+        TimerEntry pending = journal.add(1000, message("pending"));
+        for (int i = 0; i < 100; i++) {
+            journal.remove(journal.add(2000, message("sent-" + i)).id);
+        }
+        journal.close();
+        assertTrue(new File(dir, "timers.journal").length() < 2048);
+
+        journal = new TimerJournal(dir, 2048);
+        List<TimerEntry> entries = journal.entries();
+        assertEquals(1, entries.size());
+        assertEquals(pending.id, entries.get(0).id);
+        assertEquals("pending", body(entries.get(0).message));
+        journal.close();
+    }
+
+    @Test
+    public void buryMovesTimerToDeadFile() throws IOException {
+        File dir = folder.newFolder();
+        TimerJournal journal = new TimerJournal(dir, 1 << 20);
+        TimerEntry entry = journal.add(1000, message("a"));
+        journal.bury(entry);
+        assertEquals(0, journal.size());
+        journal.close();
+        assertTrue(new File(dir, "timers.dead").length() > 0);
+
+        journal = new TimerJournal(dir, 1 << 20);
+        assertEquals(0, journal.size());
+        journal.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectDirLockedByAnotherJournal() throws IOException {
+        File dir = folder.newFolder();
+        TimerJournal journal = new TimerJournal(dir, 1 << 20);
+        try {
+            new TimerJournal(dir, 1 << 20);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static Message message(String key) {
+        return new Message("TP_TEST", "A", key, key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String body(Message message) {
+        return new String(message.getBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,64 @@
+package com.maihaoche.starter.mq.schedule;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class TimingWheelTest {
+
+    /**
+     * 从0开始的虚拟时钟，每层4个槽：第一层跨度4，第二层16，第三层64
+     * 按到期顺序取出槽并重新插入，每条消息都应该在自己的到期时间从最低一层取出
+     */
+    @Test
+    public void cascadeFromOverflowWheels() {
+        DelayQueue<TimingWheel.Bucket> queue = new DelayQueue<>();
+        TimingWheel wheel = new TimingWheel(1, 4, 0, queue);
+        long[] fireAts = {1, 3, 5, 15, 17, 40, 63, 100};
+        for (long fireAt : fireAts) {
+            wheel.add(new TimerEntry(fireAt, fireAt, null));
+        }
+        assertFalse(wheel.add(new TimerEntry(0, 0, null)));
+
+        List<Long> expired = new ArrayList<>();
+        TimingWheel.Bucket bucket;
+        // 虚拟时钟早于当前时间，所有槽都已经到期，poll按到期时间顺序返回
+        while ((bucket = queue.poll()) != null) {
+            long now = bucket.getExpiration();
+            wheel.advanceClock(now);
+            for (TimerEntry entry : bucket.flush()) {
+                if (!wheel.add(entry)) {
+                    assertEquals(entry.fireAt, now);
+                    expired.add(entry.fireAt);
+                }
+            }
+        }
+        List<Long> expected = new ArrayList<>();
+        for (long fireAt : fireAts) {
+            expected.add(fireAt);
+        }
+        Collections.sort(expired);
+        assertEquals(expected, expired);
+    }
+
+    @Test
+    public void reuseBucketOnNextRound() {
+        DelayQueue<TimingWheel.Bucket> queue = new DelayQueue<>();
+        TimingWheel wheel = new TimingWheel(1, 4, 0, queue);
+        wheel.add(new TimerEntry(1, 1, null));
+        TimingWheel.Bucket bucket = queue.poll();
+        wheel.advanceClock(bucket.getExpiration());
+        assertEquals(1, bucket.flush().size());
+        // 同一个槽在下一圈再次使用时要重新放进DelayQueue
+        wheel.advanceClock(2);
+        wheel.add(new TimerEntry(5, 5, null));
+        assertEquals(bucket, queue.poll());
+        assertEquals(5, bucket.getExpiration());
+    }
+}
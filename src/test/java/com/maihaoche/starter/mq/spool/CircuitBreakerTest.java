@@ -0,0 +1,55 @@
+package com.maihaoche.starter.mq.spool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    @Test
+    public void openAfterConsecutiveFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 10000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertTrue(breaker.isClosed());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryProbe());
+    }
+
+    @Test
+    public void closeOrReopenAfterProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.onFailure();
+        Thread.sleep(30);
+        assertTrue(breaker.tryProbe());
+        assertFalse(breaker.tryProbe());
+        breaker.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        Thread.sleep(30);
+        assertTrue(breaker.tryProbe());
+        breaker.onSuccess();
+        assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    public void reopenWhenProbeGetsNoResult() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker(1, 20);
+        breaker.onFailure();
+        Thread.sleep(30);
+        assertTrue(breaker.tryProbe());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        Thread.sleep(30);
+        assertFalse(breaker.tryProbe());
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        Thread.sleep(30);
+        assertTrue(breaker.tryProbe());
+    }
+}
@@ -0,0 +1,138 @@
+package com.maihaoche.starter.mq.spool;
+
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MessageSpoolTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumeFromCheckpointAfterReopen() throws IOException {
+        File dir = folder.newFolder();
+        MessageSpool spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES * 4);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(spool.append(message(i)));
+        }
+        assertEquals("0", body(spool.peek()));
+        spool.commit();
+        spool.close();
+
+        spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES * 4);
+        assertEquals(2, spool.getPendingCount());
+        assertEquals("1", body(spool.peek()));
+        spool.commit();
+        assertEquals("2", body(spool.peek()));
+        spool.commit();
+        assertNull(spool.peek());
+        assertEquals(0, spool.getPendingCount());
+        spool.close();
+    }
+
+    @Test
+    public void truncateTornRecordAtTail() throws IOException {
+        File dir = folder.newFolder();
+        MessageSpool spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES * 4);
+        for (int i = 0; i < 3; i++) {
+            spool.append(message(i));
+        }
+        spool.close();
+        // 第三条记录写了一半：长度已经写入，数据与CRC不一致
+        int recordSize = 8 + MessageRecords.encode(message(0)).length;
+        try (RandomAccessFile segment = new RandomAccessFile(new File(dir, String.format("%020d.spool", 0)), "rw")) {
+            segment.seek(recordSize * 2 + 8);
+            segment.write(segment.read() ^ 0xff);
+        }
+
+        spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES * 4);
+        assertEquals(2, spool.getPendingCount());
+        spool.append(message(3));
+        assertEquals("0", body(spool.peek()));
+        spool.commit();
+        assertEquals("1", body(spool.peek()));
+        spool.commit();
+        assertEquals("3", body(spool.peek()));
+        spool.commit();
+        assertNull(spool.peek());
+        spool.close();
+    }
+
+    @Test
+    public void rollSegmentsAndRejectBeyondMaxBytes() throws IOException {
+        File dir = folder.newFolder();
+        int recordSize = 8 + MessageRecords.encode(message(0)).length;
+        int segmentBytes = recordSize * 2;
+        MessageSpool spool = new MessageSpool(dir, segmentBytes, segmentBytes * 2);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(spool.append(message(i)));
+        }
+        assertFalse(spool.append(message(4)));
+        spool.close();
+
+        spool = new MessageSpool(dir, segmentBytes, segmentBytes * 2);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(String.valueOf(i), body(spool.peek()));
+            spool.commit();
+        }
+        assertNull(spool.peek());
+        // 读完的段已经删除，可以继续写入
+        assertTrue(spool.append(message(5)));
+        spool.close();
+    }
+
+    @Test
+    public void quarantineKeepsRecordForManualRecovery() throws IOException {
+        File dir = folder.newFolder();
+        MessageSpool spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES * 4);
+        spool.append(message(0));
+        spool.append(message(1));
+        spool.peek();
+        spool.quarantine();
+        assertEquals(1, spool.getPendingCount());
+        assertEquals("1", body(spool.peek()));
+        spool.close();
+
+        File quarantine = new File(dir, "quarantine");
+        int recordSize = 8 + MessageRecords.encode(message(0)).length;
+        assertEquals(recordSize, quarantine.length());
+        try (RandomAccessFile file = new RandomAccessFile(quarantine, "r")) {
+            assertEquals(recordSize - 8, file.readInt());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectDirLockedByAnotherSpool() throws IOException {
+        File dir = folder.newFolder();
+        MessageSpool spool = new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES);
+        try {
+            new MessageSpool(dir, SEGMENT_BYTES, SEGMENT_BYTES);
+        } finally {
+            spool.close();
+        }
+    }
+
+    private static Message message(int i) {
+        Message message = new Message("TP_TEST", "A", "key-" + i, String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        message.putUserProperty("seq", String.valueOf(i));
+        return message;
+    }
+
+    private static String body(Message message) {
+        return new String(message.getBody(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,70 @@
+package com.maihaoche.starter.mq.spool;
+
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.apache.rocketmq.client.producer.SendResult;
+import org.apache.rocketmq.common.message.Message;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SendSpoolTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quarantinePoisonRecordAndKeepReplaying() throws Exception {
+        File dir = folder.newFolder();
+        FailingProducer producer = new FailingProducer();
+        // 阈值为1：每次失败都会打开熔断器，验证半开时的异常也会重新打开，而不是停在半开
+        SendSpool spool = new SendSpool("test", new MessageSpool(dir, 4096, 4096 * 4), new CircuitBreaker(1, 10),
+                () -> producer, () -> null, "MQ_HASH_KEY", 1000);
+        try {
+            assertTrue(spool.append(new Message("TP_POISON", "poison".getBytes(StandardCharsets.UTF_8))));
+            assertTrue(spool.append(new Message("TP_TEST", "ok".getBytes(StandardCharsets.UTF_8))));
+            long deadline = System.currentTimeMillis() + 10000;
+            while (spool.getReplayedCount() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertEquals(1, spool.getDroppedCount());
+            assertEquals(1, spool.getReplayedCount());
+            assertEquals(SendSpool.MAX_REPLAY_ATTEMPTS, producer.poisonAttempts.get());
+            assertEquals(CircuitBreaker.State.CLOSED, spool.getState());
+            assertEquals(0, spool.getDepth());
+        } finally {
+            spool.close(1000);
+        }
+        assertTrue(new File(dir, "quarantine").length() > 0);
+    }
+
+    @Test
+    public void appendRejectedAfterClose() throws IOException {
+        SendSpool spool = new SendSpool("test", new MessageSpool(folder.newFolder(), 4096, 4096), new CircuitBreaker(1, 10000),
+                FailingProducer::new, () -> null, "MQ_HASH_KEY", 1000);
+        spool.close(1000);
+        assertFalse(spool.append(new Message("TP_TEST", new byte[1])));
+    }
+
+    private static final class FailingProducer extends DefaultMQProducer {
+
+        private final AtomicInteger poisonAttempts = new AtomicInteger();
+
+        @Override
+        public SendResult send(Message msg) {
+            if ("TP_POISON".equals(msg.getTopic())) {
+                poisonAttempts.incrementAndGet();
+                throw new IllegalStateException("can not serialize");
+            }
+            return new SendResult();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.commons.lang3.reflect.FieldUtils;
+import org.apache.rocketmq.client.consumer.DefaultMQPushConsumer;
+import org.apache.rocketmq.client.impl.MQClientManager;
+import org.apache.rocketmq.client.producer.DefaultMQProducer;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.GenericApplicationContext;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClientInstanceAllocatorTest {
+
+    @Test
+    public void spreadGroupsOverSharedInstances() {
+        ClientInstanceAllocator allocator = new ClientInstanceAllocator(ClientInstanceAllocator.SHARED, 2, false);
+        DefaultMQPushConsumer first = consumer(allocator, "CG_A");
+        DefaultMQPushConsumer second = consumer(allocator, "CG_B");
+        DefaultMQPushConsumer third = consumer(allocator, "CG_C");
+        assertEquals("MQ-SHARED-0", first.getInstanceName());
+        assertEquals("MQ-SHARED-1", second.getInstanceName());
+        assertEquals("MQ-SHARED-0", third.getInstanceName());
+    }
+
+    @Test
+    public void separateInstancesForSameGroup() {
+        ClientInstanceAllocator allocator = new ClientInstanceAllocator(ClientInstanceAllocator.SHARED, 1, false);
+        DefaultMQPushConsumer first = consumer(allocator, "CG_A");
+        DefaultMQPushConsumer second = consumer(allocator, "CG_A");
+        // 同一个实例中一个group只能注册一次，实例不够时额外创建
+        assertNotEquals(first.getInstanceName(), second.getInstanceName());
+    }
+
+    @Test
+    public void keepProducerInstanceUnlessIncluded() {
+        ClientInstanceAllocator allocator = new ClientInstanceAllocator(ClientInstanceAllocator.SHARED, 2, false);
+        DefaultMQProducer producer = new DefaultMQProducer("PG_A");
+        allocator.assignProducer(producer, "PG_A", "PRODUCER");
+        assertEquals("PRODUCER", producer.getInstanceName());
+
+        allocator = new ClientInstanceAllocator(ClientInstanceAllocator.SHARED, 2, true);
+        allocator.assignProducer(producer, "PG_A", "PRODUCER");
+        assertTrue(producer.getInstanceName().startsWith("MQ-SHARED-"));
+    }
+
+    @Test
+    public void reportWithoutCreatingClientInstances() throws Exception {
+        ClientInstanceAllocator allocator = new ClientInstanceAllocator(ClientInstanceAllocator.PER_CONSUMER, 1, false);
+        DefaultMQPushConsumer consumer = consumer(allocator, "CG_A");
+        consumer.setNamesrvAddr("127.0.0.1:9876");
+        allocator.onApplicationEvent(new ContextRefreshedEvent(new GenericApplicationContext()));
+        // 没有启动的客户端不会在统计时创建MQClientInstance
+        assertFalse(factoryTable().containsKey(consumer.buildMQClientId()));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void rejectUnknownMode() {
+        new ClientInstanceAllocator("UNKNOWN", 1, false);
+    }
+
+    private static DefaultMQPushConsumer consumer(ClientInstanceAllocator allocator, String group) {
+        DefaultMQPushConsumer consumer = new DefaultMQPushConsumer(group);
+        allocator.assignConsumer(consumer, group);
+        return consumer;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, ?> factoryTable() throws IllegalAccessException {
+        return (Map<String, ?>) FieldUtils.readField(MQClientManager.getInstance(), "factoryTable", true);
+    }
+}
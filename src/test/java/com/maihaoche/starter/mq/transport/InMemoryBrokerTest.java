@@ -0,0 +1,246 @@
+package com.maihaoche.starter.mq.transport;
+
+import org.apache.rocketmq.client.consumer.PullCallback;
+import org.apache.rocketmq.client.consumer.PullResult;
+import org.apache.rocketmq.client.consumer.PullStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeConcurrentlyStatus;
+import org.apache.rocketmq.client.consumer.listener.ConsumeOrderlyStatus;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerConcurrently;
+import org.apache.rocketmq.client.consumer.listener.MessageListenerOrderly;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageQueue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class InMemoryBrokerTest {
+
+    private final InMemoryBroker broker = new InMemoryBroker(2, "1s", 1000);
+
+    private final List<InMemoryMQPushConsumer> consumers = new ArrayList<>();
+
+    @After
+    public void shutdown() {
+        for (InMemoryMQPushConsumer consumer : consumers) {
+            consumer.shutdown();
+        }
+        broker.shutdown();
+    }
+
+    @Test
+    public void pullWithTagFilter() {
+        MessageQueue mq = queue(0);
+        broker.put(message("A"), mq);
+        broker.put(message("B"), mq);
+        broker.put(message("C"), mq);
+        PullResult result = broker.pull(mq, "A || C", 0, 32);
+        assertEquals(PullStatus.FOUND, result.getPullStatus());
+        assertEquals(3, result.getNextBeginOffset());
+        assertEquals(Arrays.asList("A", "C"), tags(result.getMsgFoundList()));
+        assertEquals(PullStatus.NO_MATCHED_MSG, broker.pull(mq, "D", 0, 32).getPullStatus());
+        assertEquals(PullStatus.NO_NEW_MSG, broker.pull(mq, "*", 3, 32).getPullStatus());
+    }
+
+    @Test
+    public void offsetIllegalAfterOldMessagesDropped() {
+        InMemoryBroker small = new InMemoryBroker(1, "1s", 2);
+        try {
+            MessageQueue mq = new MessageQueue("TP_TEST", InMemoryBroker.BROKER_NAME, 0);
+            for (int i = 0; i < 3; i++) {
+                small.put(message("A"), mq);
+            }
+            PullResult result = small.pull(mq, "*", 0, 32);
+            assertEquals(PullStatus.OFFSET_ILLEGAL, result.getPullStatus());
+            assertEquals(1, result.getNextBeginOffset());
+            assertEquals(2, small.pull(mq, "*", 1, 32).getMsgFoundList().size());
+        } finally {
+            small.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnknownQueue() {
+        broker.put(message("A"), queue(5));
+    }
+
+    @Test
+    public void longPollAnsweredByNewMessage() throws InterruptedException {
+        BlockingQueue<PullResult> results = new LinkedBlockingQueue<>();
+        broker.pullAsync(queue(0), "*", 0, 32, callback(results), 10000);
+        assertEquals(null, results.poll(100, TimeUnit.MILLISECONDS));
+        broker.put(message("A"), queue(0));
+        PullResult result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals(PullStatus.FOUND, result.getPullStatus());
+    }
+
+    @Test
+    public void longPollTimesOutWithoutMessage() throws InterruptedException {
+        BlockingQueue<PullResult> results = new LinkedBlockingQueue<>();
+        broker.pullAsync(queue(0), "*", 0, 32, callback(results), 100);
+        PullResult result = results.poll(5, TimeUnit.SECONDS);
+        assertNotNull(result);
+        assertEquals(PullStatus.NO_NEW_MSG, result.getPullStatus());
+    }
+
+    @Test
+    public void delayedMessageVisibleAfterDelay() throws InterruptedException {
+        Message message = message("A");
+        message.setDelayTimeLevel(1);
+        broker.put(message, queue(0));
+        assertEquals(PullStatus.NO_NEW_MSG, broker.pull(queue(0), "*", 0, 32).getPullStatus());
+        waitUntil(() -> broker.pull(queue(0), "*", 0, 32).getPullStatus() == PullStatus.FOUND);
+    }
+
+    @Test
+    public void sendBackToRetryTopicThenDeadLetterTopic() throws InterruptedException {
+        broker.put(message("A"), queue(0));
+        MessageExt delivered = broker.pull(queue(0), "*", 0, 32).getMsgFoundList().get(0);
+        broker.sendBack(delivered, "CG_TEST", 0, 1);
+        MessageQueue retryQueue = new MessageQueue(MixAll.getRetryTopic("CG_TEST"), InMemoryBroker.BROKER_NAME, 0);
+        waitUntil(() -> broker.pull(retryQueue, "*", 0, 32).getPullStatus() == PullStatus.FOUND);
+        MessageExt retry = broker.pull(retryQueue, "*", 0, 32).getMsgFoundList().get(0);
+        assertEquals(1, retry.getReconsumeTimes());
+        assertEquals(delivered.getMsgId(), retry.getMsgId());
+        // 超过最大重试次数后直接进入死信topic
+        broker.sendBack(retry, "CG_TEST", 0, 1);
+        MessageQueue dlq = new MessageQueue(MixAll.getDLQTopic("CG_TEST"), InMemoryBroker.BROKER_NAME, 0);
+        PullResult dead = broker.pull(dlq, "*", 0, 32);
+        assertEquals(PullStatus.FOUND, dead.getPullStatus());
+        assertEquals("TP_TEST", dead.getMsgFoundList().get(0).getProperty(MessageConst.PROPERTY_RETRY_TOPIC));
+    }
+
+    @Test
+    public void clusteringConsumersShareQueues() throws Exception {
+        Map<String, List<String>> received = new ConcurrentHashMap<>();
+        InMemoryMQPushConsumer first = pushConsumer("CG_TEST", "first", received);
+        InMemoryMQPushConsumer second = pushConsumer("CG_TEST", "second", received);
+        first.start();
+        second.start();
+        InMemoryMQProducer producer = new InMemoryMQProducer("PG_TEST", broker);
+        for (int i = 0; i < 10; i++) {
+            producer.send(message("A"), queue(i % 2));
+        }
+        waitUntil(() -> count(received) == 10);
+        Thread.sleep(100);
+        assertEquals(10, count(received));
+        assertEquals(5, received.get("first").size());
+        assertEquals(5, received.get("second").size());
+    }
+
+    @Test
+    public void redeliverThroughRetryTopicWhenReconsumeLater() throws Exception {
+        List<Integer> attempts = new CopyOnWriteArrayList<>();
+        InMemoryMQPushConsumer consumer = track(new InMemoryMQPushConsumer("CG_TEST", broker));
+        consumer.subscribe("TP_TEST", "*");
+        consumer.registerMessageListener((MessageListenerConcurrently) (list, context) -> {
+            attempts.add(list.get(0).getReconsumeTimes());
+            return attempts.size() == 1 ? ConsumeConcurrentlyStatus.RECONSUME_LATER : ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        });
+        consumer.start();
+        broker.put(message("A"), queue(0));
+        waitUntil(() -> attempts.size() == 2);
+        assertEquals(Arrays.asList(0, 1), attempts);
+    }
+
+    @Test
+    public void orderlyConsumeRetriesInPlace() throws Exception {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        InMemoryMQPushConsumer consumer = track(new InMemoryMQPushConsumer("CG_TEST", broker));
+        consumer.subscribe("TP_TEST", "*");
+        consumer.setSuspendCurrentQueueTimeMillis(10);
+        consumer.registerMessageListener((MessageListenerOrderly) (list, context) -> {
+            String body = new String(list.get(0).getBody(), StandardCharsets.UTF_8);
+            bodies.add(body);
+            return "1".equals(body) && bodies.size() == 1 ? ConsumeOrderlyStatus.SUSPEND_CURRENT_QUEUE_A_MOMENT : ConsumeOrderlyStatus.SUCCESS;
+        });
+        consumer.start();
+        for (int i = 1; i <= 3; i++) {
+            broker.put(new Message("TP_TEST", "A", String.valueOf(i).getBytes(StandardCharsets.UTF_8)), queue(0));
+        }
+        waitUntil(() -> bodies.size() == 4);
+        // 挂起后在原queue上重新消费，不会越过失败的消息
+        assertEquals(Arrays.asList("1", "1", "2", "3"), bodies);
+    }
+
+    private InMemoryMQPushConsumer pushConsumer(String group, String name, Map<String, List<String>> received) {
+        InMemoryMQPushConsumer consumer = track(new InMemoryMQPushConsumer(group, broker));
+        consumer.setInstanceName(name);
+        consumer.subscribe("TP_TEST", "*");
+        consumer.registerMessageListener((MessageListenerConcurrently) (list, context) -> {
+            for (MessageExt message : list) {
+                received.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(message.getMsgId());
+            }
+            return ConsumeConcurrentlyStatus.CONSUME_SUCCESS;
+        });
+        return consumer;
+    }
+
+    private InMemoryMQPushConsumer track(InMemoryMQPushConsumer consumer) {
+        consumers.add(consumer);
+        return consumer;
+    }
+
+    private static int count(Map<String, List<String>> received) {
+        int count = 0;
+        for (List<String> list : received.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    private static PullCallback callback(BlockingQueue<PullResult> results) {
+        return new PullCallback() {
+            @Override
+            public void onSuccess(PullResult pullResult) {
+                results.add(pullResult);
+            }
+
+            @Override
+            public void onException(Throwable e) {
+            }
+        };
+    }
+
+    private static MessageQueue queue(int queueId) {
+        return new MessageQueue("TP_TEST", InMemoryBroker.BROKER_NAME, queueId);
+    }
+
+    private static Message message(String tag) {
+        return new Message("TP_TEST", tag, "\"demo\"".getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> tags(List<MessageExt> messages) {
+        List<String> tags = new ArrayList<>();
+        for (MessageExt message : messages) {
+            tags.add(message.getTags());
+        }
+        return tags;
+    }
+
+    private static void waitUntil(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("condition not met", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}